@@ -15,22 +15,30 @@
  */
 package nctu.pncourse.bridge;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Timer;
 import com.google.common.collect.ImmutableSet;
+import org.onlab.metrics.MetricsComponent;
+import org.onlab.metrics.MetricsFeature;
+import org.onlab.metrics.MetricsService;
+import org.onlab.packet.ARP;
 import org.onlab.packet.Ethernet;
+import org.onlab.packet.Ip4Address;
 import org.onlab.packet.MacAddress;
 import org.onosproject.cfg.ComponentConfigService;
 import org.onosproject.event.Event;
 import org.onosproject.net.*;
 import org.onosproject.net.flow.*;
-import org.onosproject.net.flow.criteria.Criterion;
-import org.onosproject.net.flow.criteria.EthCriterion;
-import org.onosproject.net.flow.instructions.Instruction;
-import org.onosproject.net.flow.instructions.Instructions;
 import org.onosproject.net.flowobjective.DefaultForwardingObjective;
 import org.onosproject.net.flowobjective.FlowObjectiveService;
 import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.flowobjective.Objective;
+import org.onosproject.net.flowobjective.ObjectiveContext;
+import org.onosproject.net.flowobjective.ObjectiveError;
 import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.packet.DefaultOutboundPacket;
 import org.onosproject.net.packet.PacketPriority;
+import org.onosproject.net.topology.DefaultTopologyVertex;
 import org.onosproject.net.topology.TopologyEvent;
 import org.onosproject.net.topology.TopologyListener;
 import org.osgi.service.component.ComponentContext;
@@ -43,9 +51,33 @@ import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.util.*;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static nctu.pncourse.bridge.OsgiPropertyConstants.ADMISSION_SAMPLE_RATE;
+import static nctu.pncourse.bridge.OsgiPropertyConstants.ARP_MISS_INTERVAL;
+import static nctu.pncourse.bridge.OsgiPropertyConstants.ARP_MISS_INTERVAL_DEFAULT;
+import static nctu.pncourse.bridge.OsgiPropertyConstants.ARP_PROXY;
+import static nctu.pncourse.bridge.OsgiPropertyConstants.ARP_PROXY_DEFAULT;
+import static nctu.pncourse.bridge.OsgiPropertyConstants.ADMISSION_SAMPLE_RATE_DEFAULT;
+import static nctu.pncourse.bridge.OsgiPropertyConstants.ADMISSION_THRESHOLD;
+import static nctu.pncourse.bridge.OsgiPropertyConstants.ADMISSION_THRESHOLD_DEFAULT;
+import static nctu.pncourse.bridge.OsgiPropertyConstants.INSTALL_PATH;
+import static nctu.pncourse.bridge.OsgiPropertyConstants.INSTALL_PATH_DEFAULT;
+import static nctu.pncourse.bridge.OsgiPropertyConstants.PACKET_BUFFER_TIMEOUT;
+import static nctu.pncourse.bridge.OsgiPropertyConstants.PACKET_BUFFER_TIMEOUT_DEFAULT;
+import static nctu.pncourse.bridge.OsgiPropertyConstants.PACKET_BUFFERING;
+import static nctu.pncourse.bridge.OsgiPropertyConstants.PACKET_BUFFERING_DEFAULT;
+import static nctu.pncourse.bridge.OsgiPropertyConstants.RULE_GRANULARITY;
+import static nctu.pncourse.bridge.OsgiPropertyConstants.RULE_GRANULARITY_DEFAULT;
 import static org.onlab.util.Tools.get;
+import static org.onlab.util.Tools.getIntegerProperty;
+import static org.onlab.util.Tools.groupedThreads;
+import static org.onlab.util.Tools.isPropertyEnabled;
 
 /** Libraries for hw */
 import org.onosproject.core.ApplicationId;
@@ -60,7 +92,12 @@ import org.onosproject.net.topology.TopologyService;
 
 import org.onosproject.net.host.HostService;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Skeletal ONOS application component.
@@ -69,6 +106,14 @@ import java.util.concurrent.ExecutorService;
         service = {SomeInterface.class},
         property = {
                 "someProperty=Some Default String Value",
+                INSTALL_PATH + ":Boolean=" + INSTALL_PATH_DEFAULT,
+                ADMISSION_THRESHOLD + ":Integer=" + ADMISSION_THRESHOLD_DEFAULT,
+                ADMISSION_SAMPLE_RATE + ":Integer=" + ADMISSION_SAMPLE_RATE_DEFAULT,
+                ARP_PROXY + ":Boolean=" + ARP_PROXY_DEFAULT,
+                ARP_MISS_INTERVAL + ":Integer=" + ARP_MISS_INTERVAL_DEFAULT,
+                PACKET_BUFFERING + ":Boolean=" + PACKET_BUFFERING_DEFAULT,
+                PACKET_BUFFER_TIMEOUT + ":Integer=" + PACKET_BUFFER_TIMEOUT_DEFAULT,
+                RULE_GRANULARITY + "=" + RULE_GRANULARITY_DEFAULT,
         })
 public class AppComponent implements SomeInterface {
 
@@ -79,6 +124,30 @@ public class AppComponent implements SomeInterface {
      */
     private String someProperty;
 
+    /** Install forwarding entries on every switch of the path on the first packet-in. */
+    private boolean installPath = INSTALL_PATH_DEFAULT;
+
+    /** Number of packet-ins queued on a worker above which only a sample of them is processed. */
+    private int admissionThreshold = ADMISSION_THRESHOLD_DEFAULT;
+
+    /** One packet-in in this many is processed while the queue is above the threshold. */
+    private int admissionSampleRate = ADMISSION_SAMPLE_RATE_DEFAULT;
+
+    /** Answer ARP requests for known hosts instead of flooding them. */
+    private boolean arpProxy = ARP_PROXY_DEFAULT;
+
+    /** Milliseconds during which further ARP requests for a target that was just flooded are dropped. */
+    private int arpMissInterval = ARP_MISS_INTERVAL_DEFAULT;
+
+    /** Hold the packet-ins of a flow until its forwarding entry is written on the switch, then send them in order. */
+    private boolean packetBuffering = PACKET_BUFFERING_DEFAULT;
+
+    /** Milliseconds a packet-in is held at most, it is sent anyway if its forwarding entry is not written by then. */
+    private int packetBufferTimeout = PACKET_BUFFER_TIMEOUT_DEFAULT;
+
+    /** Match fields of the forwarding entries, dst, srcDst or inPortDst. */
+    private RuleGranularity ruleGranularity = RuleGranularity.fromProperty(RULE_GRANULARITY_DEFAULT);
+
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     protected ComponentConfigService cfgService;
 
@@ -103,26 +172,109 @@ public class AppComponent implements SomeInterface {
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     protected TopologyService topologyService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected MetricsService metricsService;
+
     // App ID
     private ApplicationId app_id;
 
-    // Packet processor
+    // Packet processors
     private BridgeProcessor processor = new BridgeProcessor();
+    private ArpProxy arpProcessor = new ArpProxy();
 
     // Default flow rule parameters
     private static final int DEFAULT_TIMEOUT = 10;
     private static final int DEFAULT_PRIORITY = 50000;
 
+    // Maximum number of (src, dst) device pairs kept in the path cache
+    private static final int PATH_CACHE_SIZE = 4096;
+
+    // Milliseconds an IP to MAC binding is used to answer ARP requests, and between two purges of the cache
+    private static final long ARP_BINDING_TIMEOUT = 60000;
+    private static final long ARP_PURGE_INTERVAL = 10000;
+
+    // IP to MAC bindings seen in ARP packets or resolved from the host service
+    private final ArpCache arpCache = new ArpCache(ARP_BINDING_TIMEOUT);
+    private final AtomicLong lastArpPurge = new AtomicLong();
+
+    // Milliseconds a forwarding objective is considered in flight without news from the device,
+    // and between two purges of the in-flight entries
+    private static final long IN_FLIGHT_TIMEOUT = 1000;
+    private static final long IN_FLIGHT_PURGE_INTERVAL = 10000;
+
+    // Forwarding entries being written, further packet-ins of their flow are only sent out
+    private final InFlightTable inFlight = new InFlightTable(IN_FLIGHT_TIMEOUT);
+    private final AtomicLong lastInFlightPurge = new AtomicLong();
+
+    // Maximum number of packet-outs held for an entry,
+    // and milliseconds between two checks for entries which were not written in time
+    private static final int PACKET_BUFFER_SIZE = 64;
+    private static final long PACKET_BUFFER_SWEEP_INTERVAL = 50;
+
+    // Packet-outs waiting for the forwarding entry of their device when buffering is enabled
+    private final PacketBuffer packetBuffer = new PacketBuffer(PACKET_BUFFER_SIZE);
+    private ScheduledExecutorService bufferExecutor;
+
+    private final PathCache pathCache = new PathCache(PATH_CACHE_SIZE,
+            (src, dst) -> topologyService.getPaths(topologyService.currentTopology(), src, dst), this::in_topology);
+
     private final TopologyListener topologyListener = new InternalTopologyListener();
 
-    private ExecutorService blackHoleExecutor;
+    // Forwarding entries of the app, looked up by blackhole repair
+    private final FlowRuleIndex flowRuleIndex = new FlowRuleIndex();
+    private final FlowRuleListener flowRuleListener = new InternalFlowRuleListener();
+
+    // Blackhole repair parameters
+    private static final int REPAIR_WORKERS = 4;
+    private static final int REPAIR_COALESCE_WINDOW = 50;
+
+    // Egress points of removed links waiting for the next repair pass
+    private final Set<ConnectPoint> pendingRepairs = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean repairScheduled = new AtomicBoolean();
+    private volatile long repairRequestedAt;
+
+    // Repair passes run one at a time, the devices of a pass are repaired in parallel
+    private ScheduledExecutorService blackHoleExecutor;
+    private ExecutorService repairWorkers;
+
+    // Time from a link going down to its blackholed entries being removed
+    private Timer timeToRepair;
+
+    // Packet-in workers, and maximum number of packet-ins waiting on each of them
+    private static final int PACKET_WORKERS = 4;
+    private static final int PACKET_QUEUE_SIZE = 4096;
+
+    // Packet-ins are processed off the dispatcher thread by the worker of their device
+    private PacketWorkers packetWorkers;
+    private MetricsComponent metricsComponent;
+    private MetricsFeature packetFeature;
+
+    // Packet-in outcomes, objectives and processing times of every device
+    private BridgeMetrics bridgeMetrics;
 
     @Activate
     protected void activate() {
         cfgService.registerProperties(getClass());
         app_id = coreService.registerApplication("nctu.pncourse.bridge");
+        packetService.addProcessor(arpProcessor, PacketProcessor.director(1));
         packetService.addProcessor(processor, PacketProcessor.director(2));
         topologyService.addListener(topologyListener);
+        flowRuleService.addListener(flowRuleListener);
+        for (FlowEntry entry : flowRuleService.getFlowEntriesById(app_id))
+            flowRuleIndex.add(entry);
+        blackHoleExecutor = Executors.newSingleThreadScheduledExecutor(groupedThreads("bridge", "blackhole", log));
+        repairWorkers = Executors.newFixedThreadPool(REPAIR_WORKERS, groupedThreads("bridge", "repair-%d", log));
+        metricsComponent = metricsService.registerComponent("bridge");
+        MetricsFeature repairFeature = metricsComponent.registerFeature("blackhole");
+        timeToRepair = metricsService.createTimer(metricsComponent, repairFeature, "timeToRepair");
+        packetFeature = metricsComponent.registerFeature("packetIn");
+        bridgeMetrics = new BridgeMetrics(metricsService, metricsComponent);
+        packetWorkers = new PacketWorkers(PACKET_WORKERS, PACKET_QUEUE_SIZE, admissionThreshold,
+                admissionSampleRate, groupedThreads("bridge", "packet-in-%d", log));
+        registerWorkerMetrics();
+        bufferExecutor = Executors.newSingleThreadScheduledExecutor(groupedThreads("bridge", "buffer", log));
+        bufferExecutor.scheduleWithFixedDelay(this::releaseExpiredPackets, PACKET_BUFFER_SWEEP_INTERVAL,
+                PACKET_BUFFER_SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
         requestsPackets();
         log.info("Started");
     }
@@ -132,12 +284,51 @@ public class AppComponent implements SomeInterface {
         cfgService.unregisterProperties(getClass(), false);
         flowRuleService.removeFlowRulesById(app_id);
         packetService.removeProcessor(processor);
+        packetService.removeProcessor(arpProcessor);
         processor = null;
+        arpProcessor = null;
+        arpCache.clear();
+        packetWorkers.shutdown();
+        unregisterWorkerMetrics();
+        bridgeMetrics.clear();
         topologyService.removeListener(topologyListener);
+        flowRuleService.removeListener(flowRuleListener);
+        flowRuleIndex.clear();
+        inFlight.clear();
+        bufferExecutor.shutdownNow();
+        packetBuffer.releaseAll().forEach(Runnable::run);
+        blackHoleExecutor.shutdownNow();
+        repairWorkers.shutdownNow();
+        pendingRepairs.clear();
+        repairScheduled.set(false);
+        pathCache.invalidateAll();
         cancelPackets();
         log.info("Stopped");
     }
 
+    /**
+     * Expose the queue depth, drop rate and latency of every packet-in worker
+     */
+    private void registerWorkerMetrics() {
+        for (int i = 0; i < packetWorkers.size(); i++) {
+            int worker = i;
+            metricsService.registerMetric(metricsComponent, packetFeature, "worker" + i + "Depth",
+                    (Gauge<Integer>) () -> packetWorkers.depth(worker));
+            metricsService.registerMetric(metricsComponent, packetFeature, "worker" + i + "Dropped",
+                    packetWorkers.dropped(i));
+            metricsService.registerMetric(metricsComponent, packetFeature, "worker" + i + "Latency",
+                    packetWorkers.latency(i));
+        }
+    }
+
+    private void unregisterWorkerMetrics() {
+        for (int i = 0; i < packetWorkers.size(); i++) {
+            metricsService.removeMetric(metricsComponent, packetFeature, "worker" + i + "Depth");
+            metricsService.removeMetric(metricsComponent, packetFeature, "worker" + i + "Dropped");
+            metricsService.removeMetric(metricsComponent, packetFeature, "worker" + i + "Latency");
+        }
+    }
+
     /**
      * Request Packet-in via PacketService
      */
@@ -173,6 +364,31 @@ public class AppComponent implements SomeInterface {
         Dictionary<?, ?> properties = context != null ? context.getProperties() : new Properties();
         if (context != null) {
             someProperty = get(properties, "someProperty");
+            Boolean enabled = isPropertyEnabled(properties, INSTALL_PATH);
+            installPath = enabled == null ? INSTALL_PATH_DEFAULT : enabled;
+            Integer threshold = getIntegerProperty(properties, ADMISSION_THRESHOLD);
+            admissionThreshold = threshold == null ? ADMISSION_THRESHOLD_DEFAULT : threshold;
+            Integer sampleRate = getIntegerProperty(properties, ADMISSION_SAMPLE_RATE);
+            admissionSampleRate = sampleRate == null ? ADMISSION_SAMPLE_RATE_DEFAULT : sampleRate;
+            if (packetWorkers != null)
+                packetWorkers.configure(admissionThreshold, admissionSampleRate);
+            enabled = isPropertyEnabled(properties, ARP_PROXY);
+            arpProxy = enabled == null ? ARP_PROXY_DEFAULT : enabled;
+            Integer missInterval = getIntegerProperty(properties, ARP_MISS_INTERVAL);
+            arpMissInterval = missInterval == null || missInterval < 0 ? ARP_MISS_INTERVAL_DEFAULT : missInterval;
+            enabled = isPropertyEnabled(properties, PACKET_BUFFERING);
+            packetBuffering = enabled == null ? PACKET_BUFFERING_DEFAULT : enabled;
+            Integer bufferTimeout = getIntegerProperty(properties, PACKET_BUFFER_TIMEOUT);
+            packetBufferTimeout = bufferTimeout == null || bufferTimeout < 0 ?
+                    PACKET_BUFFER_TIMEOUT_DEFAULT : bufferTimeout;
+            RuleGranularity granularity = RuleGranularity.fromProperty(get(properties, RULE_GRANULARITY));
+            if (granularity == null)
+                granularity = RuleGranularity.fromProperty(RULE_GRANULARITY_DEFAULT);
+            if (granularity != ruleGranularity) {
+                ruleGranularity = granularity;
+                if (app_id != null)
+                    removeForwardingEntries();
+            }
         }
         log.info("Reconfigured");
     }
@@ -185,7 +401,7 @@ public class AppComponent implements SomeInterface {
     /** Learning bridge processor */
     private class BridgeProcessor implements PacketProcessor {
         /**
-         * Process the packets
+         * Queue the packets on the worker of their device, or drop them if the worker is overloaded
          *
          * @param context content of the incoming message
          */
@@ -195,16 +411,49 @@ public class AppComponent implements SomeInterface {
             if (context.isHandled())
                 return;
 
+            DeviceId device_id = context.inPacket().receivedFrom().deviceId();
+            if (!packetWorkers.submit(device_id, () -> forward(context))) {
+                context.block();
+                bridgeMetrics.mark(device_id, BridgeMetrics.Event.BLOCKED);
+                log.debug("Dropped packet-in from {}", context.inPacket().receivedFrom());
+            }
+        }
+
+        /**
+         * Process the packets
+         *
+         * @param context content of the incoming message
+         */
+        private void forward(PacketContext context) {
+            DeviceId device_id = context.inPacket().receivedFrom().deviceId();
+            Timer.Context timer = bridgeMetrics.time(device_id, BridgeMetrics.Stage.PROCESS);
+            try {
+                if (decide(context))
+                    bridgeMetrics.mark(device_id, BridgeMetrics.Event.PROCESSED);
+                else
+                    bridgeMetrics.mark(device_id, BridgeMetrics.Event.IGNORED);
+            } finally {
+                timer.stop();
+            }
+        }
+
+        /**
+         * Flood, forward or drop a packet
+         *
+         * @param context content of the incoming message
+         * @return whether the bridge made a decision, false if it ignored the packet
+         */
+        private boolean decide(PacketContext context) {
             InboundPacket pkt = context.inPacket();
             Ethernet eth_pkt = pkt.parsed();
 
             // Don't process null packet
             if (eth_pkt == null)
-                return;
+                return false;
 
             // Don't process control packet
             if (is_control_packet(eth_pkt))
-                return;
+                return false;
 
             // Get destination host ID from destination MAC
             // Use destination host ID to get location information about host
@@ -213,34 +462,38 @@ public class AppComponent implements SomeInterface {
 
             // Don't process the packet if it's destination MAC is LLDP
             if (dst_id.mac().isLldp())
-                return;
+                return false;
 
             // Flood if host is unknown
             if (dst == null) {
                 flood(context);
-                return;
+                return true;
             }
 
             // Forward to the destination if packet is on the edge switch
             if (pkt.receivedFrom().deviceId().equals(dst.location().deviceId())) {
-                // Install rule and packet-out only if destination port is different from where the packet came
-                if (!context.inPacket().receivedFrom().port().equals(dst.location().port())) {
-                    log.info("Packet reached destination switch {}", dst.location().deviceId());
-                    install_rule(context, dst.location().port());
-                }
-                return;
+                // Leave the packet alone if the destination is on the port where it came from
+                if (context.inPacket().receivedFrom().port().equals(dst.location().port()))
+                    return false;
+                install_rule(context, dst.location().port());
+                return true;
             }
 
             // Find path to the destination
             Set<Path> paths;
-            paths = topologyService.getPaths(topologyService.currentTopology(),
-                    pkt.receivedFrom().deviceId(), dst.location().deviceId());
+            Timer.Context lookup = bridgeMetrics.time(pkt.receivedFrom().deviceId(),
+                    BridgeMetrics.Stage.PATH_LOOKUP);
+            try {
+                paths = pathCache.getPaths(pkt.receivedFrom().deviceId(), dst.location().deviceId());
+            } finally {
+                lookup.stop();
+            }
 
             // Flood if there is no path
             if (paths.isEmpty()) {
                 log.warn("Flood the packet");
                 flood(context);
-                return;
+                return true;
             }
 
             // Pick a path that doesn't lead back to the where the packet came from
@@ -251,11 +504,90 @@ public class AppComponent implements SomeInterface {
                 log.warn("Doesn't know how to forward src: {}, dst: {} from switch {}", eth_pkt.getSourceMAC(),
                         eth_pkt.getDestinationMAC(), pkt.receivedFrom());
                 flood(context);
+                return true;
+            }
+
+            // Install rules on the whole path, or on this switch only, and packet-out
+            if (installPath)
+                install_path(context, path, dst.location());
+            else
+                install_rule(context, path.src().port());
+            return true;
+        }
+    }
+
+    /** ARP proxy, answers requests for known hosts before they reach the bridge */
+    private class ArpProxy implements PacketProcessor {
+        /**
+         * Reply to ARP requests whose target is known, let the bridge flood the first request for
+         * an unknown target and drop the following ones for a while
+         *
+         * @param context content of the incoming message
+         */
+        @Override
+        public void process(PacketContext context) {
+            if (!arpProxy || context.isHandled())
+                return;
+
+            InboundPacket pkt = context.inPacket();
+            Ethernet eth_pkt = pkt.parsed();
+            if (eth_pkt == null || eth_pkt.getEtherType() != Ethernet.TYPE_ARP)
                 return;
+
+            long now = System.currentTimeMillis();
+            long lastPurge = lastArpPurge.get();
+            if (now - lastPurge >= ARP_PURGE_INTERVAL && lastArpPurge.compareAndSet(lastPurge, now))
+                arpCache.purge(now, arpMissInterval);
+
+            // A truncated or malformed ARP packet is left to the bridge
+            if (!(eth_pkt.getPayload() instanceof ARP))
+                return;
+
+            // Every ARP packet tells where its sender is, probes without a sender IP excepted
+            ARP arp = (ARP) eth_pkt.getPayload();
+            Ip4Address sender_ip = Ip4Address.valueOf(arp.getSenderProtocolAddress());
+            if (!sender_ip.isZero())
+                arpCache.bind(sender_ip, MacAddress.valueOf(arp.getSenderHardwareAddress()), now);
+
+            // Replies and gratuitous requests are forwarded by the bridge
+            Ip4Address target_ip = Ip4Address.valueOf(arp.getTargetProtocolAddress());
+            if (arp.getOpCode() != ARP.OP_REQUEST || target_ip.equals(sender_ip))
+                return;
+
+            DeviceId device_id = pkt.receivedFrom().deviceId();
+            MacAddress target_mac = resolve(target_ip, now);
+            if (target_mac != null) {
+                Ethernet reply = ARP.buildArpReply(target_ip, target_mac, eth_pkt);
+                TrafficTreatment treatment = DefaultTrafficTreatment.builder()
+                        .setOutput(pkt.receivedFrom().port())
+                        .build();
+                packetService.emit(new DefaultOutboundPacket(device_id, treatment,
+                        ByteBuffer.wrap(reply.serialize())));
+                context.block();
+                bridgeMetrics.mark(device_id, BridgeMetrics.Event.ARP_REPLIED);
+            } else if (!arpCache.allowMiss(target_ip, now, arpMissInterval)) {
+                context.block();
+                bridgeMetrics.mark(device_id, BridgeMetrics.Event.ARP_SUPPRESSED);
             }
+        }
 
-            // Install rule and packet-out
-            install_rule(context, path.src().port());
+        /**
+         * Find the MAC address of an IP address in the cache, then in the host service
+         *
+         * @param ip  IP address
+         * @param now current time in milliseconds
+         * @return MAC address or null if unknown
+         */
+        private MacAddress resolve(Ip4Address ip, long now) {
+            MacAddress mac = arpCache.lookup(ip, now);
+            if (mac != null)
+                return mac;
+
+            for (Host host : hostService.getHostsByIp(ip)) {
+                arpCache.bind(ip, host.mac(), now);
+                return host.mac();
+            }
+            return null;
         }
     }
 
@@ -287,10 +619,14 @@ public class AppComponent implements SomeInterface {
      * @param context content of the incoming packet
      */
     private void flood(PacketContext context) {
-        if (topologyService.isBroadcastPoint(topologyService.currentTopology(), context.inPacket().receivedFrom()))
+        DeviceId device_id = context.inPacket().receivedFrom().deviceId();
+        if (topologyService.isBroadcastPoint(topologyService.currentTopology(), context.inPacket().receivedFrom())) {
             packet_out(context, PortNumber.FLOOD);
-        else
+            bridgeMetrics.mark(device_id, BridgeMetrics.Event.FLOODED);
+        } else {
             context.block();
+            bridgeMetrics.mark(device_id, BridgeMetrics.Event.BLOCKED);
+        }
     }
 
     /**
@@ -317,59 +653,302 @@ public class AppComponent implements SomeInterface {
         InboundPacket pkt = context.inPacket();
         Ethernet eth_pkt = pkt.parsed();
 
-        // Setup match fields
-        TrafficSelector selector = DefaultTrafficSelector.builder()
-                .matchEthDst(eth_pkt.getDestinationMAC())
-                .build();
+        TrafficSelector match = ruleGranularity.selector(eth_pkt.getSourceMAC(), pkt.receivedFrom().port(),
+                eth_pkt.getDestinationMAC());
+
+        // Held before the objective is issued, its confirmation sends the packet
+        boolean held = hold_packet_out(context, match, port);
 
+        // Forward flow-mod object
+        install_forwarding(context.inPacket().receivedFrom().deviceId(), match, port);
+
+        // Packet-out
+        if (!held)
+            packet_out(context, port);
+        bridgeMetrics.mark(context.inPacket().receivedFrom().deviceId(), BridgeMetrics.Event.UNICAST);
+    }
+
+    /**
+     * Install flow rules on every switch from the destination back to this one and packet-out
+     *
+     * @param context content of the incoming packet
+     * @param path    path from this switch to the destination switch
+     * @param dst     location of the destination host
+     */
+    private void install_path(PacketContext context, Path path, ConnectPoint dst) {
+        Ethernet eth_pkt = context.inPacket().parsed();
+        MacAddress src_mac = eth_pkt.getSourceMAC();
+        MacAddress dst_mac = eth_pkt.getDestinationMAC();
+        RuleGranularity granularity = ruleGranularity;
+        List<Link> links = path.links();
+
+        // Held until the entry of this switch, the last one issued, is written
+        TrafficSelector ingress = granularity.selector(src_mac, context.inPacket().receivedFrom().port(), dst_mac);
+        boolean held = hold_packet_out(context, ingress, path.src().port());
+
+        // Egress first, so the packet never reaches a switch that has no rule yet and gets punted again,
+        // every other switch is entered from the previous link of the path
+        install_forwarding(dst.deviceId(),
+                granularity.selector(src_mac, links.get(links.size() - 1).dst().port(), dst_mac), dst.port());
+        for (int i = links.size() - 1; i > 0; i--) {
+            ConnectPoint hop = links.get(i).src();
+            install_forwarding(hop.deviceId(), granularity.selector(src_mac, links.get(i - 1).dst().port(), dst_mac),
+                    hop.port());
+        }
+        install_forwarding(path.src().deviceId(), ingress, path.src().port());
+
+        // Packet-out
+        if (!held)
+            packet_out(context, path.src().port());
+        bridgeMetrics.mark(context.inPacket().receivedFrom().deviceId(), BridgeMetrics.Event.UNICAST);
+    }
+
+    /**
+     * Install the entry which sends the packets matching its fields out of a port, unless the same
+     * entry is still being written
+     *
+     * @param device_id device ID
+     * @param match     match fields of the entry, in the rule granularity
+     * @param port      output port to be defined in the flow rule
+     */
+    private void install_forwarding(DeviceId device_id, TrafficSelector match, PortNumber port) {
+        long now = System.currentTimeMillis();
+        long lastPurge = lastInFlightPurge.get();
+        if (now - lastPurge >= IN_FLIGHT_PURGE_INTERVAL && lastInFlightPurge.compareAndSet(lastPurge, now))
+            inFlight.purge(now);
+
+        if (!inFlight.begin(device_id, match, port, now)) {
+            bridgeMetrics.mark(device_id, BridgeMetrics.Event.IN_FLIGHT);
+            return;
+        }
+
+        issue(device_id, forwarding_objective(match, port).add(
+                new ObjectiveContext() {
+                    @Override
+                    public void onSuccess(Objective objective) {
+                        inFlight.end(device_id, match, port);
+                        releasePackets(device_id, match);
+                    }
+
+                    @Override
+                    public void onError(Objective objective, ObjectiveError error) {
+                        log.warn("Failed to install {} -> {} on {}: {}", match, port, device_id, error);
+                        inFlight.end(device_id, match, port);
+                        releasePackets(device_id, match);
+                    }
+                }));
+    }
+
+    /**
+     * Hold a packet-out until its entry on this switch is written, when buffering is enabled and the
+     * batch of the entry has room
+     *
+     * @param context content of the incoming packet
+     * @param match   match fields of the entry
+     * @param port    output port number
+     * @return whether the packet-out is held, false if it has to be sent now
+     */
+    private boolean hold_packet_out(PacketContext context, TrafficSelector match, PortNumber port) {
+        if (!packetBuffering)
+            return false;
+
+        DeviceId device_id = context.inPacket().receivedFrom().deviceId();
+        if (!packetBuffer.hold(device_id, match, () -> packet_out(context, port), System.currentTimeMillis()))
+            return false;
+        bridgeMetrics.mark(device_id, BridgeMetrics.Event.BUFFERED);
+        return true;
+    }
+
+    /**
+     * Send the packet-outs held for an entry, in the order they arrived
+     *
+     * @param device_id device ID
+     * @param match     match fields of the entry
+     */
+    private void releasePackets(DeviceId device_id, TrafficSelector match) {
+        packetBuffer.release(device_id, match).forEach(Runnable::run);
+    }
+
+    /**
+     * Send the packet-outs whose entry was not confirmed in time
+     */
+    void releaseExpiredPackets() {
+        packetBuffer.releaseExpired(System.currentTimeMillis(), packetBufferTimeout).forEach(Runnable::run);
+    }
+
+    /**
+     * Send a forwarding objective to a device and count it
+     *
+     * @param device_id device ID
+     * @param objective forwarding objective
+     */
+    private void issue(DeviceId device_id, ForwardingObjective objective) {
+        flowObjectiveService.forward(device_id, objective);
+        bridgeMetrics.mark(device_id, BridgeMetrics.Event.OBJECTIVES);
+    }
+
+    /**
+     * Build the forwarding objective which sends the packets matching its fields out of a port
+     *
+     * @param selector match fields of the entry
+     * @param port     output port to be defined in the flow rule
+     * @return forwarding objective builder
+     */
+    private ForwardingObjective.Builder forwarding_objective(TrafficSelector selector, PortNumber port) {
         // Setup action fields
         TrafficTreatment treatment = DefaultTrafficTreatment.builder()
                 .setOutput(port)
                 .build();
 
         // Setup flow-mod object
-        ForwardingObjective forwardingObjective = DefaultForwardingObjective.builder()
+        return DefaultForwardingObjective.builder()
                 .withSelector(selector)
                 .withTreatment(treatment)
                 .withPriority(DEFAULT_PRIORITY)
                 .withFlag(ForwardingObjective.Flag.VERSATILE)
                 .fromApp(app_id)
-                .makeTemporary(DEFAULT_TIMEOUT)
-                .add();
-
-        // Forward flow-mod object
-        flowObjectiveService.forward(context.inPacket().receivedFrom().deviceId(), forwardingObjective);
+                .makeTemporary(DEFAULT_TIMEOUT);
+    }
 
-        // Packet-out
-        packet_out(context, port);
+    /**
+     * Whether a device is in the current topology, which only holds the available devices
+     *
+     * @param device_id device ID
+     * @return boolean
+     */
+    private boolean in_topology(DeviceId device_id) {
+        return topologyService.getGraph(topologyService.currentTopology()).getVertexes()
+                .contains(new DefaultTopologyVertex(device_id));
     }
 
     /** Topology Listener from ReactiveForwarding */
     private class InternalTopologyListener implements TopologyListener {
         @Override
         public void event(TopologyEvent event) {
+            pathCache.invalidate(event);
+            log.debug("Path cache: {} entries, {} hits, {} misses",
+                    pathCache.size(), pathCache.hitCount(), pathCache.missCount());
+
             List<Event> reasons = event.reasons();
             if (reasons != null) {
                 reasons.forEach(re -> {
                     if (re instanceof LinkEvent) {
                         LinkEvent le = (LinkEvent) re;
-                        if (le.type() == LinkEvent.Type.LINK_REMOVED && blackHoleExecutor != null) {
-                            blackHoleExecutor.submit(() -> fixBlackhole(le.subject().src()));
-                        }
+                        if (le.type() == LinkEvent.Type.LINK_REMOVED)
+                            requestRepair(le.subject().src());
                     }
                 });
             }
         }
     }
 
+    /** Keeps the flow rule index in step with the entries of the app */
+    private class InternalFlowRuleListener implements FlowRuleListener {
+        @Override
+        public boolean isRelevant(FlowRuleEvent event) {
+            return app_id != null && event.subject().appId() == app_id.id();
+        }
+
+        @Override
+        public void event(FlowRuleEvent event) {
+            switch (event.type()) {
+                case RULE_ADD_REQUESTED:
+                case RULE_ADDED:
+                case RULE_UPDATED:
+                    flowRuleIndex.add(event.subject());
+                    break;
+                case RULE_REMOVE_REQUESTED:
+                case RULE_REMOVED:
+                    flowRuleIndex.remove(event.subject());
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Remove every forwarding entry of the app, the next packet-ins install entries of the new granularity
+     */
+    private void removeForwardingEntries() {
+        List<FlowRule> entries = new ArrayList<>();
+        for (FlowEntry entry : flowRuleService.getFlowEntriesById(app_id)) {
+            if (RuleGranularity.isForwarding(entry.selector()))
+                entries.add(entry);
+        }
+        if (!entries.isEmpty()) {
+            log.info("Removing {} forwarding entries of the previous granularity", entries.size());
+            flowRuleService.removeFlowRules(entries.toArray(new FlowRule[0]));
+        }
+    }
+
+    /**
+     * Queue the repair of an egress point whose link went down, a burst of link events makes one repair pass
+     *
+     * @param egress source of the removed link
+     */
+    private void requestRepair(ConnectPoint egress) {
+        pendingRepairs.add(egress);
+        if (repairScheduled.compareAndSet(false, true)) {
+            repairRequestedAt = System.nanoTime();
+            blackHoleExecutor.schedule(this::repairBlackholes, REPAIR_COALESCE_WINDOW, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Repair all queued egress points, one worker per egress device, and remove the entries with one
+     * batch per device
+     */
+    private void repairBlackholes() {
+        long requestedAt = repairRequestedAt;
+        // Links removed from now on are repaired by the next pass
+        repairScheduled.set(false);
+
+        Map<DeviceId, List<ConnectPoint>> egresses = new HashMap<>();
+        for (Iterator<ConnectPoint> it = pendingRepairs.iterator(); it.hasNext(); ) {
+            ConnectPoint egress = it.next();
+            it.remove();
+            egresses.computeIfAbsent(egress.deviceId(), k -> new ArrayList<>()).add(egress);
+        }
+        if (egresses.isEmpty())
+            return;
+
+        List<CompletableFuture<Map<DeviceId, Set<FlowRule>>>> futures = new ArrayList<>();
+        for (List<ConnectPoint> deviceEgresses : egresses.values()) {
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                Map<DeviceId, Set<FlowRule>> removals = new HashMap<>();
+                deviceEgresses.forEach(egress -> fixBlackhole(egress, removals));
+                return removals;
+            }, repairWorkers));
+        }
+
+        Map<DeviceId, Set<FlowRule>> removals = new HashMap<>();
+        for (CompletableFuture<Map<DeviceId, Set<FlowRule>>> future : futures) {
+            try {
+                future.join().forEach((id, rules) ->
+                        removals.computeIfAbsent(id, k -> new HashSet<>()).addAll(rules));
+            } catch (CompletionException e) {
+                log.warn("Blackhole repair failed", e.getCause());
+            }
+        }
+        removeFlowRules(removals, requestedAt);
+    }
+
     /** Blackhole fixing functions from ReactiveForwarding */
-    private void fixBlackhole(ConnectPoint egress) {
-        Set<FlowEntry> rules = getFlowRulesFrom(egress);
+    private void fixBlackhole(ConnectPoint egress, Map<DeviceId, Set<FlowRule>> removals) {
+        Set<FlowRule> rules = flowRuleIndex.rulesTo(egress);
         Set<SrcDstPair> pairs = findSrcDstPairs(rules);
 
         Map<DeviceId, Set<Path>> srcPaths = new HashMap<>();
 
         for (SrcDstPair sd : pairs) {
+            // Entries without a source MAC, matching the destination and maybe the ingress port, have no
+            // source to back track to, removing them here makes the next packet punt and take a new path
+            if (sd.src == null) {
+                cleanFlowRules(sd, egress.deviceId(), removals);
+                continue;
+            }
+
             // get the edge deviceID for the src host
             Host srcHost = hostService.getHost(HostId.hostId(sd.src));
             Host dstHost = hostService.getHost(HostId.hostId(sd.dst));
@@ -378,36 +957,18 @@ public class AppComponent implements SomeInterface {
                 DeviceId dstId = dstHost.location().deviceId();
                 log.trace("SRC ID is {}, DST ID is {}", srcId, dstId);
 
-                cleanFlowRules(sd, egress.deviceId());
+                cleanFlowRules(sd, egress.deviceId(), removals);
 
                 Set<Path> shortestPaths = srcPaths.get(srcId);
                 if (shortestPaths == null) {
-                    shortestPaths = topologyService.getPaths(topologyService.currentTopology(),
-                            egress.deviceId(), srcId);
+                    shortestPaths = pathCache.getPaths(egress.deviceId(), srcId);
                     srcPaths.put(srcId, shortestPaths);
                 }
-                backTrackBadNodes(shortestPaths, dstId, sd);
+                backTrackBadNodes(shortestPaths, dstId, sd, removals);
             }
         }
     }
 
-    private Set<FlowEntry> getFlowRulesFrom(ConnectPoint egress) {
-        ImmutableSet.Builder<FlowEntry> builder = ImmutableSet.builder();
-        flowRuleService.getFlowEntries(egress.deviceId()).forEach(r -> {
-            if (r.appId() == app_id.id()) {
-                r.treatment().allInstructions().forEach(i -> {
-                    if (i.type() == Instruction.Type.OUTPUT) {
-                        if (((Instructions.OutputInstruction) i).port().equals(egress.port())) {
-                            builder.add(r);
-                        }
-                    }
-                });
-            }
-        });
-
-        return builder.build();
-    }
-
     // Wrapper class for a source and destination pair of MAC addresses
     private final class SrcDstPair {
         final MacAddress src;
@@ -438,7 +999,8 @@ public class AppComponent implements SomeInterface {
     }
 
     // Backtracks from link down event to remove flows that lead to blackhole
-    private void backTrackBadNodes(Set<Path> shortestPaths, DeviceId dstId, SrcDstPair sd) {
+    private void backTrackBadNodes(Set<Path> shortestPaths, DeviceId dstId, SrcDstPair sd,
+                                   Map<DeviceId, Set<FlowRule>> removals) {
         for (Path p : shortestPaths) {
             List<Link> pathLinks = p.links();
             for (int i = 0; i < pathLinks.size(); i = i + 1) {
@@ -447,66 +1009,76 @@ public class AppComponent implements SomeInterface {
 
                 // skipping the first link because this link's src has already been pruned beforehand
                 if (i != 0) {
-                    cleanFlowRules(sd, curDevice);
+                    cleanFlowRules(sd, curDevice, removals);
                 }
 
-                Set<Path> pathsFromCurDevice =
-                        topologyService.getPaths(topologyService.currentTopology(),
-                                curDevice, dstId);
+                Set<Path> pathsFromCurDevice = pathCache.getPaths(curDevice, dstId);
                 if (pick_forward_path_if_possible(pathsFromCurDevice, curLink.src().port()) != null) {
                     break;
                 } else {
                     if (i + 1 == pathLinks.size()) {
-                        cleanFlowRules(sd, curLink.dst().deviceId());
+                        cleanFlowRules(sd, curLink.dst().deviceId(), removals);
                     }
                 }
             }
         }
     }
 
-    // Removes flow rules off specified device with specific SrcDstPair
-    private void cleanFlowRules(SrcDstPair pair, DeviceId id) {
+    // Collects the flow rules with specific SrcDstPair off specified device for removal
+    private void cleanFlowRules(SrcDstPair pair, DeviceId id, Map<DeviceId, Set<FlowRule>> removals) {
         log.trace("Searching for flow rules to remove from: {}", id);
         log.trace("Removing flows w/ SRC={}, DST={}", pair.src, pair.dst);
-        for (FlowEntry r : flowRuleService.getFlowEntries(id)) {
-            boolean matchesSrc = false, matchesDst = false;
-            for (Instruction i : r.treatment().allInstructions()) {
-                if (i.type() == Instruction.Type.OUTPUT) {
-                    // if the flow has matching src and dst
-                    for (Criterion cr : r.selector().criteria()) {
-                        if (cr.type() == Criterion.Type.ETH_DST) {
-                            if (((EthCriterion) cr).mac().equals(pair.dst)) {
-                                matchesDst = true;
-                            }
-                        } else if (cr.type() == Criterion.Type.ETH_SRC) {
-                            if (((EthCriterion) cr).mac().equals(pair.src)) {
-                                matchesSrc = true;
-                            }
-                        }
-                    }
-                }
+        for (FlowRule r : flowRuleIndex.rulesFor(id, pair.dst)) {
+            if (Objects.equals(FlowRuleIndex.ethSrc(r), pair.src))
+                removals.computeIfAbsent(id, k -> new HashSet<>()).add(r);
+        }
+    }
+
+    // Removes the collected flow rules with one batch per device, the repair is timed until all batches complete
+    private void removeFlowRules(Map<DeviceId, Set<FlowRule>> removals, long requestedAt) {
+        if (removals.isEmpty()) {
+            recordRepair(requestedAt, 0);
+            return;
+        }
+
+        int total = removals.values().stream().mapToInt(Set::size).sum();
+        AtomicInteger remaining = new AtomicInteger(removals.size());
+        FlowRuleOperationsContext context = new FlowRuleOperationsContext() {
+            @Override
+            public void onSuccess(FlowRuleOperations ops) {
+                if (remaining.decrementAndGet() == 0)
+                    recordRepair(requestedAt, total);
             }
-            if (matchesDst && matchesSrc) {
-                log.trace("Removed flow rule from device: {}", id);
-                flowRuleService.removeFlowRules((FlowRule) r);
+
+            @Override
+            public void onError(FlowRuleOperations ops) {
+                log.warn("Failed to remove blackholed flow rules: {}", ops);
+                if (remaining.decrementAndGet() == 0)
+                    recordRepair(requestedAt, total);
             }
-        }
+        };
+
+        removals.forEach((id, rules) -> {
+            FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+            rules.forEach(ops::remove);
+            log.trace("Removing {} flow rules from device: {}", rules.size(), id);
+            flowRuleService.apply(ops.build(context));
+        });
+    }
 
+    private void recordRepair(long requestedAt, int removed) {
+        long elapsed = System.nanoTime() - requestedAt;
+        timeToRepair.update(elapsed, TimeUnit.NANOSECONDS);
+        log.debug("Blackhole repair removed {} flow rules in {} ms", removed, TimeUnit.NANOSECONDS.toMillis(elapsed));
     }
 
-    // Returns a set of src/dst MAC pairs extracted from the specified set of flow entries
-    private Set<SrcDstPair> findSrcDstPairs(Set<FlowEntry> rules) {
+    // Returns a set of src/dst MAC pairs extracted from the specified set of flow rules
+    private Set<SrcDstPair> findSrcDstPairs(Set<FlowRule> rules) {
         ImmutableSet.Builder<SrcDstPair> builder = ImmutableSet.builder();
-        for (FlowEntry r : rules) {
-            MacAddress src = null, dst = null;
-            for (Criterion cr : r.selector().criteria()) {
-                if (cr.type() == Criterion.Type.ETH_DST) {
-                    dst = ((EthCriterion) cr).mac();
-                } else if (cr.type() == Criterion.Type.ETH_SRC) {
-                    src = ((EthCriterion) cr).mac();
-                }
-            }
-            builder.add(new SrcDstPair(src, dst));
+        for (FlowRule r : rules) {
+            MacAddress dst = FlowRuleIndex.ethDst(r);
+            if (dst != null)
+                builder.add(new SrcDstPair(FlowRuleIndex.ethSrc(r), dst));
         }
         return builder.build();
     }
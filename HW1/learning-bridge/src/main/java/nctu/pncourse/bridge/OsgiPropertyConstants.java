@@ -0,0 +1,57 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.bridge;
+
+/**
+ * Constants for default values of configurable properties.
+ */
+public final class OsgiPropertyConstants {
+
+    private OsgiPropertyConstants() {
+    }
+
+    /** Install forwarding entries on every switch of the path on the first packet-in. */
+    public static final String INSTALL_PATH = "installPath";
+    public static final boolean INSTALL_PATH_DEFAULT = true;
+
+    /** Number of packet-ins queued on a worker above which only a sample of them is processed. */
+    public static final String ADMISSION_THRESHOLD = "admissionThreshold";
+    public static final int ADMISSION_THRESHOLD_DEFAULT = 1024;
+
+    /** One packet-in in this many is processed while the queue is above the threshold. */
+    public static final String ADMISSION_SAMPLE_RATE = "admissionSampleRate";
+    public static final int ADMISSION_SAMPLE_RATE_DEFAULT = 16;
+
+    /** Answer ARP requests for known hosts instead of flooding them. */
+    public static final String ARP_PROXY = "arpProxy";
+    public static final boolean ARP_PROXY_DEFAULT = true;
+
+    /** Milliseconds during which further ARP requests for a target that was just flooded are dropped. */
+    public static final String ARP_MISS_INTERVAL = "arpMissInterval";
+    public static final int ARP_MISS_INTERVAL_DEFAULT = 1000;
+
+    /** Hold the packet-ins of a flow until its forwarding entry is written on the switch, then send them in order. */
+    public static final String PACKET_BUFFERING = "packetBuffering";
+    public static final boolean PACKET_BUFFERING_DEFAULT = false;
+
+    /** Milliseconds a packet-in is held at most, it is sent anyway if its forwarding entry is not written by then. */
+    public static final String PACKET_BUFFER_TIMEOUT = "packetBufferTimeout";
+    public static final int PACKET_BUFFER_TIMEOUT_DEFAULT = 200;
+
+    /** Match fields of the forwarding entries, dst, srcDst or inPortDst. */
+    public static final String RULE_GRANULARITY = "ruleGranularity";
+    public static final String RULE_GRANULARITY_DEFAULT = "dst";
+}
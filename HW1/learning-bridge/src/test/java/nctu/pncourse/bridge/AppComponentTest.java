@@ -15,26 +15,128 @@
  */
 package nctu.pncourse.bridge;
 
+import com.codahale.metrics.Meter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.onlab.graph.ScalarWeight;
+import org.onlab.metrics.MetricsManager;
+import org.onlab.packet.ARP;
+import org.onlab.packet.DeserializationException;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IPv4;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.VlanId;
 import org.onosproject.cfg.ComponentConfigService;
 import org.onosproject.cfg.ComponentConfigAdapter;
 import org.onosproject.cfg.ConfigProperty;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.CoreServiceAdapter;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultHost;
+import org.onosproject.net.DefaultLink;
+import org.onosproject.net.DefaultPath;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.HostId;
+import org.onosproject.net.HostLocation;
+import org.onosproject.net.Link;
+import org.onosproject.net.Path;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.criteria.EthCriterion;
+import org.onosproject.net.flow.instructions.Instruction;
+import org.onosproject.net.flow.instructions.Instructions;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleEvent;
+import org.onosproject.net.flow.FlowRuleListener;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+import org.onosproject.net.flowobjective.FlowObjectiveServiceAdapter;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.host.HostServiceAdapter;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.packet.DefaultInboundPacket;
+import org.onosproject.net.packet.DefaultOutboundPacket;
+import org.onosproject.net.packet.OutboundPacket;
+import org.onosproject.net.packet.PacketContext;
+import org.onosproject.net.packet.PacketContextAdapter;
+import org.onosproject.net.packet.PacketProcessor;
+import org.onosproject.net.packet.PacketServiceAdapter;
+import org.onosproject.net.provider.ProviderId;
+import org.onosproject.net.topology.Topology;
+import org.onosproject.net.topology.TopologyEvent;
+import org.onosproject.net.topology.TopologyListener;
+import org.onosproject.net.topology.TopologyServiceAdapter;
+import org.osgi.service.component.ComponentContext;
 
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Set of tests of the ONOS application component.
  */
 public class AppComponentTest {
 
+    private static final MacAddress HOST_MAC = MacAddress.valueOf("00:00:00:00:00:01");
+    private static final MacAddress DST_MAC = MacAddress.valueOf("00:00:00:00:00:02");
+    private static final Ip4Address HOST_IP = Ip4Address.valueOf("10.0.0.1");
+    private static final Ip4Address DST_IP = Ip4Address.valueOf("10.0.0.2");
+    private static final ProviderId PID = new ProviderId("of", "test");
+
+    // Path s1 -> s2 -> s3, entering each switch on port 1 and leaving on port 2
+    private static final Path PATH = new DefaultPath(PID, ImmutableList.of(link(1, 2), link(2, 3)),
+            ScalarWeight.toWeight(2));
+    private static final ConnectPoint DST_LOCATION = new ConnectPoint(did(3), PortNumber.portNumber(3));
+
     private AppComponent component;
+    private TestPacketService packetService;
+    private TestFlowObjectiveService flowObjectiveService;
+    private TestFlowRuleService flowRuleService;
+    private TestTopologyService topologyService;
+    private MetricsManager metricsService;
 
     @Before
     public void setUp() {
         component = new AppComponent();
         component.cfgService = new ComponentConfigAdapter();
+        component.coreService = new TestCoreService();
+        packetService = new TestPacketService();
+        component.packetService = packetService;
+        flowRuleService = new TestFlowRuleService();
+        component.flowRuleService = flowRuleService;
+        flowObjectiveService = new TestFlowObjectiveService();
+        component.flowObjectiveService = flowObjectiveService;
+        component.hostService = new TestHostService();
+        topologyService = new TestTopologyService();
+        component.topologyService = topologyService;
+        metricsService = new MetricsManager();
+        component.metricsService = metricsService;
         component.activate();
     }
 
@@ -48,4 +150,352 @@ public class AppComponentTest {
 
     }
 
+    // Packet-in from the host on port 3 of s1 to the host on s3
+    private static PacketContext packetToDst() {
+        Ethernet eth = new Ethernet();
+        eth.setDestinationMACAddress(DST_MAC)
+                .setSourceMACAddress(HOST_MAC)
+                .setEtherType(Ethernet.TYPE_IPV4)
+                .setPayload(new IPv4());
+        ConnectPoint ingress = new ConnectPoint(did(1), PortNumber.portNumber(3));
+        return new PacketContextAdapter(0,
+                new DefaultInboundPacket(ingress, eth, ByteBuffer.wrap(eth.serialize())),
+                new DefaultOutboundPacket(did(1), null, ByteBuffer.allocate(0)), false);
+    }
+
+    @Test
+    public void pathIsInstalledEgressFirst() throws InterruptedException {
+        PacketContext context = packetToDst();
+        packetService.process(context);
+
+        // Packet-ins are processed on the packet-in workers, the packet-out comes last
+        assertNotNull("packet was not sent", awaitOutput(context));
+
+        // One entry per switch, starting from the one next to the destination host
+        assertEquals(ImmutableList.of(did(3), did(2), did(1)), flowObjectiveService.devices);
+        List<PortNumber> outputs = ImmutableList.of(PortNumber.portNumber(3), PortNumber.portNumber(2),
+                PortNumber.portNumber(2));
+        for (int i = 0; i < outputs.size(); i++) {
+            ForwardingObjective forward = flowObjectiveService.objectives.get(i);
+            assertEquals(DST_MAC, ((EthCriterion) forward.selector().getCriterion(Criterion.Type.ETH_DST)).mac());
+            assertEquals(outputs.get(i), output(forward.treatment().allInstructions()));
+        }
+
+        // Packet-out towards the next switch
+        assertEquals(PortNumber.portNumber(2), output(context.treatmentBuilder().build().allInstructions()));
+    }
+
+    @Test
+    public void pathEntriesFollowTheRuleGranularity() throws InterruptedException {
+        component.modified(componentContext(OsgiPropertyConstants.RULE_GRANULARITY, "inPortDst"));
+        PacketContext context = packetToDst();
+        packetService.process(context);
+        assertNotNull("packet was not sent", awaitOutput(context));
+
+        // Each switch matches the port it is entered from, the host port on s1 and the path ports after
+        List<PortNumber> inPorts = ImmutableList.of(PortNumber.portNumber(1), PortNumber.portNumber(1),
+                PortNumber.portNumber(3));
+        for (int i = 0; i < inPorts.size(); i++) {
+            ForwardingObjective forward = flowObjectiveService.objectives.get(i);
+            assertEquals(RuleGranularity.IN_PORT_DST.selector(HOST_MAC, inPorts.get(i), DST_MAC), forward.selector());
+        }
+
+        component.modified(componentContext(OsgiPropertyConstants.RULE_GRANULARITY, "srcDst"));
+        PacketContext second = packetToDst();
+        packetService.process(second);
+        assertNotNull("packet was not sent", awaitOutput(second));
+        assertEquals(6, flowObjectiveService.objectives.size());
+        for (int i = 3; i < 6; i++) {
+            ForwardingObjective forward = flowObjectiveService.objectives.get(i);
+            assertEquals(RuleGranularity.SRC_DST.selector(HOST_MAC, null, DST_MAC), forward.selector());
+        }
+    }
+
+    @Test
+    public void linkDownRemovesBlackholedEntries() throws InterruptedException {
+        FlowRule rule = DefaultFlowRule.builder()
+                .forDevice(did(1))
+                .withSelector(DefaultTrafficSelector.builder().matchEthDst(DST_MAC).build())
+                .withTreatment(DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(2)).build())
+                .withPriority(10)
+                .fromApp(new DefaultApplicationId(1, "nctu.pncourse.bridge"))
+                .makeTemporary(10)
+                .build();
+        flowRuleService.listener.event(new FlowRuleEvent(FlowRuleEvent.Type.RULE_ADDED, rule));
+
+        // Two events for the same link are repaired in one pass
+        for (int i = 0; i < 2; i++)
+            topologyService.listener.event(new TopologyEvent(TopologyEvent.Type.TOPOLOGY_CHANGED, null,
+                    ImmutableList.of(new LinkEvent(LinkEvent.Type.LINK_REMOVED, link(1, 2)))));
+
+        FlowRuleOperations ops = flowRuleService.batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull("blackholed entry was not removed", ops);
+        FlowRuleOperation removal = ops.stages().get(0).iterator().next();
+        assertEquals(FlowRuleOperation.Type.REMOVE, removal.type());
+        assertEquals(rule, removal.rule());
+
+        ops.callback().onSuccess(ops);
+        assertEquals(1, metricsService.getTimers((name, metric) -> name.contains("timeToRepair"))
+                .values().iterator().next().getCount());
+        assertNull(flowRuleService.batches.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void packetInOutcomesAreCountedPerDevice() throws InterruptedException {
+        packetService.process(packetToDst());
+
+        // The decision is counted once the worker is done with the packet
+        long deadline = System.currentTimeMillis() + 5000;
+        while (meterCount(did(1), "processed") == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        assertEquals(1, meterCount(did(1), "processed"));
+        assertEquals(1, meterCount(did(1), "unicast"));
+        assertEquals(0, meterCount(did(1), "flooded"));
+        assertEquals(0, meterCount(did(1), "ignored"));
+        for (int i = 1; i <= 3; i++)
+            assertEquals(1, meterCount(did(i), "objectives"));
+        assertEquals(1, metricsService.getTimers((name, metric) -> name.endsWith(did(1) + ".process"))
+                .values().iterator().next().getCount());
+        assertEquals(1, metricsService.getTimers((name, metric) -> name.endsWith(did(1) + ".pathLookup"))
+                .values().iterator().next().getCount());
+    }
+
+    @Test
+    public void packetInsOfAFlowBeingInstalledAreOnlySentOut() throws InterruptedException {
+        PacketContext first = packetToDst();
+        PacketContext second = packetToDst();
+        packetService.process(first);
+        packetService.process(second);
+        assertNotNull("packet was not sent", awaitOutput(first));
+        assertNotNull("packet was not sent", awaitOutput(second));
+
+        // The second packet-in finds the path in flight and is only sent out
+        assertEquals(3, flowObjectiveService.objectives.size());
+        for (int i = 1; i <= 3; i++)
+            assertEquals(1, meterCount(did(i), "inFlight"));
+
+        // Once the entries are confirmed a packet-in installs them again
+        for (ForwardingObjective forward : flowObjectiveService.objectives)
+            forward.context().ifPresent(context -> context.onSuccess(forward));
+        PacketContext third = packetToDst();
+        packetService.process(third);
+        assertNotNull("packet was not sent", awaitOutput(third));
+        assertEquals(6, flowObjectiveService.objectives.size());
+    }
+
+    @Test
+    public void bufferedPacketsAreSentOnceTheEntryIsWritten() throws InterruptedException {
+        component.modified(componentContext(OsgiPropertyConstants.PACKET_BUFFERING, "true",
+                OsgiPropertyConstants.PACKET_BUFFER_TIMEOUT, "60000"));
+        PacketContext first = packetToDst();
+        PacketContext second = packetToDst();
+        packetService.process(first);
+        packetService.process(second);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (meterCount(did(1), "buffered") < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(2, meterCount(did(1), "buffered"));
+        assertNull(output(first.treatmentBuilder().build().allInstructions()));
+
+        // Entries of the path are issued egress first, the one of s1 sends both packets
+        for (int i = 0; i < 2; i++)
+            flowObjectiveService.objectives.get(i).context().ifPresent(context -> context.onSuccess(null));
+        assertNull(output(first.treatmentBuilder().build().allInstructions()));
+        ForwardingObjective ingress = flowObjectiveService.objectives.get(2);
+        ingress.context().get().onSuccess(ingress);
+        assertEquals(PortNumber.portNumber(2), output(first.treatmentBuilder().build().allInstructions()));
+        assertEquals(PortNumber.portNumber(2), output(second.treatmentBuilder().build().allInstructions()));
+    }
+
+    // Component context holding the given property names and values
+    private static ComponentContext componentContext(String... namesAndValues) {
+        Dictionary<String, Object> properties = new Hashtable<>();
+        for (int i = 0; i < namesAndValues.length; i += 2)
+            properties.put(namesAndValues[i], namesAndValues[i + 1]);
+        return (ComponentContext) Proxy.newProxyInstance(ComponentContext.class.getClassLoader(),
+                new Class<?>[]{ComponentContext.class},
+                (proxy, method, args) -> method.getName().equals("getProperties") ? properties : null);
+    }
+
+    // ARP request from the host on port 3 of s1
+    private static PacketContext arpRequest(Ip4Address target) {
+        Ethernet eth = ARP.buildArpRequest(HOST_MAC.toBytes(), HOST_IP.toOctets(), target.toOctets(),
+                VlanId.NO_VID);
+        ConnectPoint ingress = new ConnectPoint(did(1), PortNumber.portNumber(3));
+        return new PacketContextAdapter(0,
+                new DefaultInboundPacket(ingress, eth, ByteBuffer.wrap(eth.serialize())),
+                new DefaultOutboundPacket(did(1), null, ByteBuffer.allocate(0)), false);
+    }
+
+    @Test
+    public void arpRequestForKnownHostIsAnswered() throws DeserializationException {
+        PacketContext context = arpRequest(DST_IP);
+        packetService.process(context);
+
+        assertTrue(context.isHandled());
+        assertEquals(1, packetService.emitted.size());
+        OutboundPacket out = packetService.emitted.get(0);
+        assertEquals(did(1), out.sendThrough());
+        assertEquals(PortNumber.portNumber(3), output(out.treatment().allInstructions()));
+
+        byte[] data = out.data().array();
+        ARP reply = (ARP) Ethernet.deserializer().deserialize(data, 0, data.length).getPayload();
+        assertEquals(ARP.OP_REPLY, reply.getOpCode());
+        assertEquals(DST_MAC, MacAddress.valueOf(reply.getSenderHardwareAddress()));
+        assertEquals(DST_IP, Ip4Address.valueOf(reply.getSenderProtocolAddress()));
+        assertEquals(HOST_MAC, MacAddress.valueOf(reply.getTargetHardwareAddress()));
+        assertEquals(1, meterCount(did(1), "arpReplied"));
+    }
+
+    @Test
+    public void repeatedArpMissesAreDropped() {
+        Ip4Address unknown = Ip4Address.valueOf("10.0.0.9");
+        PacketContext first = arpRequest(unknown);
+        PacketContext second = arpRequest(unknown);
+        packetService.process(first);
+        packetService.process(second);
+
+        // The first request goes on to the bridge to be flooded, the second is dropped
+        assertFalse(first.isHandled());
+        assertTrue(second.isHandled());
+        assertTrue(packetService.emitted.isEmpty());
+        assertEquals(1, meterCount(did(1), "arpSuppressed"));
+    }
+
+    private long meterCount(DeviceId deviceId, String event) {
+        return metricsService.getMeters((name, metric) -> name.endsWith(deviceId + "." + event))
+                .values().stream().mapToLong(Meter::getCount).sum();
+    }
+
+    private static PortNumber awaitOutput(PacketContext context) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        PortNumber port = output(context.treatmentBuilder().build().allInstructions());
+        while (port == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            port = output(context.treatmentBuilder().build().allInstructions());
+        }
+        return port;
+    }
+
+    private static PortNumber output(List<Instruction> instructions) {
+        for (Instruction instruction : instructions) {
+            if (instruction.type() == Instruction.Type.OUTPUT)
+                return ((Instructions.OutputInstruction) instruction).port();
+        }
+        return null;
+    }
+
+    private static DeviceId did(int id) {
+        return DeviceId.deviceId("of:" + id);
+    }
+
+    private static Link link(int src, int dst) {
+        return DefaultLink.builder()
+                .providerId(PID)
+                .src(new ConnectPoint(did(src), PortNumber.portNumber(2)))
+                .dst(new ConnectPoint(did(dst), PortNumber.portNumber(1)))
+                .type(Link.Type.DIRECT)
+                .build();
+    }
+
+    // Host service which knows the destination host only
+    private static class TestHostService extends HostServiceAdapter {
+        private static final Host DST_HOST = new DefaultHost(PID, HostId.hostId(DST_MAC), DST_MAC, VlanId.NONE,
+                new HostLocation(DST_LOCATION, 0), ImmutableSet.of(DST_IP));
+
+        @Override
+        public Host getHost(HostId hostId) {
+            return hostId.mac().equals(DST_MAC) ? DST_HOST : null;
+        }
+
+        @Override
+        public Set<Host> getHostsByIp(IpAddress ip) {
+            return ip.equals(DST_IP) ? ImmutableSet.of(DST_HOST) : ImmutableSet.of();
+        }
+    }
+
+    // Topology service with a single path from s1 to s3
+    private static class TestTopologyService extends TopologyServiceAdapter {
+        private TopologyListener listener;
+
+        @Override
+        public void addListener(TopologyListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public Set<Path> getPaths(Topology topology, DeviceId src, DeviceId dst) {
+            return src.equals(PATH.src().deviceId()) && dst.equals(PATH.dst().deviceId()) ?
+                    ImmutableSet.of(PATH) : ImmutableSet.of();
+        }
+
+        @Override
+        public boolean isBroadcastPoint(Topology topology, ConnectPoint connectPoint) {
+            return true;
+        }
+    }
+
+    // Flow rule service without any flow entries, which keeps the batches it is given
+    private static class TestFlowRuleService extends FlowRuleServiceAdapter {
+        private final BlockingQueue<FlowRuleOperations> batches = new LinkedBlockingQueue<>();
+        private FlowRuleListener listener;
+
+        @Override
+        public Iterable<FlowEntry> getFlowEntriesById(ApplicationId id) {
+            return ImmutableList.of();
+        }
+
+        @Override
+        public void addListener(FlowRuleListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void apply(FlowRuleOperations ops) {
+            batches.add(ops);
+        }
+    }
+
+    // Core service which hands out a real application ID
+    private static class TestCoreService extends CoreServiceAdapter {
+        @Override
+        public ApplicationId registerApplication(String name) {
+            return new DefaultApplicationId(1, name);
+        }
+    }
+
+    // Packet service which runs packets through the added processors in priority order and keeps emitted packets
+    private static class TestPacketService extends PacketServiceAdapter {
+        private final TreeMap<Integer, PacketProcessor> processors = new TreeMap<>();
+        private final List<OutboundPacket> emitted = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void addProcessor(PacketProcessor processor, int priority) {
+            processors.put(priority, processor);
+        }
+
+        @Override
+        public void emit(OutboundPacket packet) {
+            emitted.add(packet);
+        }
+
+        void process(PacketContext context) {
+            processors.values().forEach(p -> p.process(context));
+        }
+    }
+
+    // Flow objective service which records the forwarding objectives and their devices
+    private static class TestFlowObjectiveService extends FlowObjectiveServiceAdapter {
+        private final List<ForwardingObjective> objectives = new CopyOnWriteArrayList<>();
+        private final List<DeviceId> devices = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void forward(DeviceId deviceId, ForwardingObjective forwardingObjective) {
+            objectives.add(forwardingObjective);
+            devices.add(deviceId);
+        }
+    }
+
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.bridge;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.MacAddress;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.TrafficTreatment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the flow rule index used by blackhole repair.
+ */
+public class FlowRuleIndexTest {
+
+    private static final ApplicationId APP_ID = new DefaultApplicationId(1, "nctu.pncourse.test");
+    private static final DeviceId S1 = DeviceId.deviceId("of:0000000000000001");
+    private static final MacAddress MAC_A = MacAddress.valueOf("00:00:00:00:00:0a");
+    private static final MacAddress MAC_B = MacAddress.valueOf("00:00:00:00:00:0b");
+    private static final MacAddress MAC_X = MacAddress.valueOf("00:00:00:00:00:01");
+
+    private FlowRuleIndex index;
+
+    @Before
+    public void setUp() {
+        index = new FlowRuleIndex();
+    }
+
+    private static ConnectPoint port(int port) {
+        return new ConnectPoint(S1, PortNumber.portNumber(port));
+    }
+
+    private static FlowRule rule(MacAddress src, MacAddress dst, int output) {
+        TrafficSelector.Builder selector = DefaultTrafficSelector.builder().matchEthDst(dst);
+        if (src != null)
+            selector.matchEthSrc(src);
+        TrafficTreatment.Builder treatment = DefaultTrafficTreatment.builder();
+        if (output != 0)
+            treatment.setOutput(PortNumber.portNumber(output));
+        return DefaultFlowRule.builder()
+                .forDevice(S1)
+                .withSelector(selector.build())
+                .withTreatment(treatment.build())
+                .withPriority(10)
+                .fromApp(APP_ID)
+                .makeTemporary(10)
+                .build();
+    }
+
+    @Test
+    public void rulesAreFoundByOutputAndDestination() {
+        FlowRule toA = rule(null, MAC_A, 2);
+        FlowRule toB = rule(null, MAC_B, 2);
+        FlowRule fromXToA = rule(MAC_X, MAC_A, 3);
+        index.add(toA);
+        index.add(toB);
+        index.add(fromXToA);
+
+        assertEquals(ImmutableSet.of(toA, toB), index.rulesTo(port(2)));
+        assertEquals(ImmutableSet.of(fromXToA), index.rulesTo(port(3)));
+        assertEquals(ImmutableSet.of(toA, fromXToA), index.rulesFor(S1, MAC_A));
+        assertTrue(index.rulesTo(port(4)).isEmpty());
+    }
+
+    @Test
+    public void updatedRuleMovesToItsNewOutput() {
+        FlowRule before = rule(null, MAC_A, 2);
+        FlowRule after = rule(null, MAC_A, 3);
+        assertEquals(before.id(), after.id());
+        index.add(before);
+        index.add(after);
+
+        assertEquals(1, index.size());
+        assertTrue(index.rulesTo(port(2)).isEmpty());
+        assertEquals(ImmutableSet.of(after), index.rulesTo(port(3)));
+    }
+
+    @Test
+    public void removedRuleIsNotFound() {
+        FlowRule toA = rule(null, MAC_A, 2);
+        index.add(toA);
+        index.remove(toA);
+
+        assertEquals(0, index.size());
+        assertTrue(index.rulesTo(port(2)).isEmpty());
+        assertTrue(index.rulesFor(S1, MAC_A).isEmpty());
+    }
+
+    @Test
+    public void rulesWithoutOutputAreIgnored() {
+        index.add(rule(null, MAC_A, 0));
+
+        assertEquals(0, index.size());
+        assertTrue(index.rulesFor(S1, MAC_A).isEmpty());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.bridge;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.PortNumber;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the in-flight forwarding entries.
+ */
+public class InFlightTableTest {
+
+    private static final long TIMEOUT = 500;
+    private static final DeviceId S1 = DeviceId.deviceId("of:0000000000000001");
+    private static final DeviceId S2 = DeviceId.deviceId("of:0000000000000002");
+    private static final TrafficSelector TO_A = DefaultTrafficSelector.builder()
+            .matchEthDst(MacAddress.valueOf("00:00:00:00:00:0a")).build();
+    private static final PortNumber P1 = PortNumber.portNumber(1);
+    private static final PortNumber P2 = PortNumber.portNumber(2);
+
+    private InFlightTable table;
+
+    @Before
+    public void setUp() {
+        table = new InFlightTable(TIMEOUT);
+    }
+
+    @Test
+    public void duplicateIsSuppressedUntilDone() {
+        assertTrue(table.begin(S1, TO_A, P1, 0));
+        assertFalse(table.begin(S1, TO_A, P1, 1));
+        assertTrue(table.begin(S2, TO_A, P1, 1));
+
+        table.end(S1, TO_A, P1);
+        assertTrue(table.begin(S1, TO_A, P1, 2));
+    }
+
+    @Test
+    public void entryExpires() {
+        assertTrue(table.begin(S1, TO_A, P1, 0));
+        assertFalse(table.begin(S1, TO_A, P1, TIMEOUT - 1));
+        assertTrue(table.begin(S1, TO_A, P1, TIMEOUT));
+    }
+
+    @Test
+    public void moveToAnotherPortIsIssued() {
+        assertTrue(table.begin(S1, TO_A, P1, 0));
+        assertTrue(table.begin(S1, TO_A, P2, 1));
+
+        // The objective to the old port finishing leaves the new one in flight
+        table.end(S1, TO_A, P1);
+        assertFalse(table.begin(S1, TO_A, P2, 2));
+    }
+
+    @Test
+    public void purgeDropsExpiredEntries() {
+        table.begin(S1, TO_A, P1, 0);
+        table.begin(S2, TO_A, P1, 1);
+        table.purge(TIMEOUT);
+
+        assertEquals(1, table.size());
+    }
+}
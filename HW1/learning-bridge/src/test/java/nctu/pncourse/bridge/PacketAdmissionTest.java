@@ -0,0 +1,66 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.bridge;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the packet-in admission control.
+ */
+public class PacketAdmissionTest {
+
+    @Test
+    public void everyPacketIsAdmittedBelowTheThreshold() {
+        PacketAdmission admission = new PacketAdmission(8, 4, 2);
+        for (int i = 0; i < 4; i++)
+            assertTrue(admission.admit());
+
+        assertEquals(4, admission.depth());
+        assertEquals(0, admission.dropped());
+    }
+
+    @Test
+    public void packetsAreSampledAboveTheThreshold() {
+        PacketAdmission admission = new PacketAdmission(100, 2, 4);
+        admission.admit();
+        admission.admit();
+
+        int admitted = 0;
+        for (int i = 0; i < 8; i++) {
+            if (admission.admit())
+                admitted++;
+        }
+        assertEquals(2, admitted);
+        assertEquals(6, admission.dropped());
+    }
+
+    @Test
+    public void nothingIsAdmittedWhenFull() {
+        PacketAdmission admission = new PacketAdmission(2, 2, 1);
+        assertTrue(admission.admit());
+        assertTrue(admission.admit());
+        assertFalse(admission.admit());
+
+        // A processed packet frees its slot
+        admission.done();
+        assertTrue(admission.admit());
+        assertEquals(1, admission.dropped());
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.bridge;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.TrafficSelector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the packet-outs held until forwarding entries are written.
+ */
+public class PacketBufferTest {
+
+    private static final int CAPACITY = 2;
+    private static final long TIMEOUT = 100;
+    private static final DeviceId S1 = DeviceId.deviceId("of:0000000000000001");
+    private static final TrafficSelector TO_A = DefaultTrafficSelector.builder()
+            .matchEthDst(MacAddress.valueOf("00:00:00:00:00:0a")).build();
+    private static final TrafficSelector TO_B = DefaultTrafficSelector.builder()
+            .matchEthDst(MacAddress.valueOf("00:00:00:00:00:0b")).build();
+
+    private PacketBuffer buffer;
+    private List<Integer> sent;
+
+    @Before
+    public void setUp() {
+        buffer = new PacketBuffer(CAPACITY);
+        sent = new ArrayList<>();
+    }
+
+    private Runnable packetOut(int id) {
+        return () -> sent.add(id);
+    }
+
+    @Test
+    public void batchIsReleasedInOrder() {
+        assertTrue(buffer.hold(S1, TO_A, packetOut(1), 0));
+        assertTrue(buffer.hold(S1, TO_B, packetOut(2), 0));
+        assertTrue(buffer.hold(S1, TO_A, packetOut(3), 1));
+
+        buffer.release(S1, TO_A).forEach(Runnable::run);
+        assertEquals(ImmutableList.of(1, 3), sent);
+        assertTrue(buffer.release(S1, TO_A).isEmpty());
+        assertEquals(1, buffer.size());
+    }
+
+    @Test
+    public void fullBatchRefusesPackets() {
+        assertTrue(buffer.hold(S1, TO_A, packetOut(1), 0));
+        assertTrue(buffer.hold(S1, TO_A, packetOut(2), 0));
+        assertFalse(buffer.hold(S1, TO_A, packetOut(3), 0));
+        assertEquals(CAPACITY, buffer.size());
+    }
+
+    @Test
+    public void expiredBatchesAreReleased() {
+        buffer.hold(S1, TO_A, packetOut(1), 0);
+        buffer.hold(S1, TO_B, packetOut(2), 50);
+
+        buffer.releaseExpired(TIMEOUT, TIMEOUT).forEach(Runnable::run);
+        assertEquals(ImmutableList.of(1), sent);
+        buffer.releaseAll().forEach(Runnable::run);
+        assertEquals(ImmutableList.of(1, 2), sent);
+        assertEquals(0, buffer.size());
+    }
+}
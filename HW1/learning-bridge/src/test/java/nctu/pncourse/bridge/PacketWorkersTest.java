@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.bridge;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onosproject.net.DeviceId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the sharded packet-in workers.
+ */
+public class PacketWorkersTest {
+
+    private static final DeviceId S1 = DeviceId.deviceId("of:0000000000000001");
+
+    private PacketWorkers workers;
+
+    @Before
+    public void setUp() {
+        workers = new PacketWorkers(4, 2, 2, 1, Executors.defaultThreadFactory());
+    }
+
+    @After
+    public void tearDown() {
+        workers.shutdown();
+    }
+
+    @Test
+    public void packetsOfADeviceAreProcessedInOrder() throws InterruptedException {
+        List<Integer> processed = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        PacketWorkers large = new PacketWorkers(4, 1000, 1000, 1, Executors.defaultThreadFactory());
+        try {
+            for (int i = 0; i < 100; i++) {
+                int packet = i;
+                assertTrue(large.submit(S1, () -> processed.add(packet)));
+            }
+            large.submit(S1, done::countDown);
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        } finally {
+            large.shutdown();
+        }
+
+        for (int i = 0; i < 100; i++)
+            assertEquals(i, (int) processed.get(i));
+    }
+
+    @Test
+    public void fullWorkerRefusesPacketsAndCountsThem() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(2);
+        Runnable blocked = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finished.countDown();
+        };
+        assertTrue(workers.submit(S1, blocked));
+        assertTrue(workers.submit(S1, blocked));
+        assertFalse(workers.submit(S1, blocked));
+
+        int worker = workers.workerOf(S1);
+        assertEquals(2, workers.depth(worker));
+        assertEquals(1, workers.dropped(worker).getCount());
+
+        release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        // The slot is given back once the latency is recorded
+        long deadline = System.currentTimeMillis() + 5000;
+        while (workers.depth(worker) > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(2, workers.latency(worker).getCount());
+    }
+
+    @Test
+    public void refusedByAStoppedWorkerCountsAsDropped() {
+        workers.shutdown();
+        assertFalse(workers.submit(S1, () -> { }));
+        assertEquals(1, workers.dropped(workers.workerOf(S1)).getCount());
+    }
+}
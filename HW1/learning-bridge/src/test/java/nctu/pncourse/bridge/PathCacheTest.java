@@ -0,0 +1,158 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.bridge;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.graph.ScalarWeight;
+import org.onlab.packet.ChassisId;
+import org.onosproject.event.Event;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultDevice;
+import org.onosproject.net.DefaultLink;
+import org.onosproject.net.DefaultPath;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.Path;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.provider.ProviderId;
+import org.onosproject.net.topology.TopologyEvent;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of the topology-aware path cache.
+ */
+public class PathCacheTest {
+
+    private static final ProviderId PID = new ProviderId("of", "foo");
+
+    private static final Path PATH_1_2_3 = createPath("1", "2", "3");
+    private static final Path PATH_4_5 = createPath("4", "5");
+
+    private int loads;
+    private PathCache cache;
+    private final Set<DeviceId> unavailable = new HashSet<>();
+
+    @Before
+    public void setUp() {
+        loads = 0;
+        unavailable.clear();
+        cache = new PathCache(16, this::load, id -> !unavailable.contains(id));
+    }
+
+    private static DeviceId did(String id) {
+        return DeviceId.deviceId("of:" + id);
+    }
+
+    private static Link link(String src, int srcPort, String dst, int dstPort) {
+        return DefaultLink.builder()
+                .providerId(PID)
+                .src(new ConnectPoint(did(src), PortNumber.portNumber(srcPort)))
+                .dst(new ConnectPoint(did(dst), PortNumber.portNumber(dstPort)))
+                .type(Link.Type.DIRECT)
+                .build();
+    }
+
+    // Path through the given devices, entering each on port 1 and leaving on port 2
+    private static Path createPath(String... ids) {
+        ImmutableList.Builder<Link> links = ImmutableList.builder();
+        for (int i = 0; i < ids.length - 1; i++)
+            links.add(link(ids[i], 2, ids[i + 1], 1));
+        return new DefaultPath(PID, links.build(), ScalarWeight.toWeight(ids.length - 1));
+    }
+
+    private Set<Path> load(DeviceId src, DeviceId dst) {
+        loads++;
+        if (src.equals(did("1")))
+            return ImmutableSet.of(PATH_1_2_3);
+        return ImmutableSet.of(PATH_4_5);
+    }
+
+    private static Device device(String id) {
+        return new DefaultDevice(PID, did(id), Device.Type.SWITCH, "", "", "", "", new ChassisId());
+    }
+
+    private TopologyEvent event(Event reason) {
+        List<Event> reasons = ImmutableList.of(reason);
+        return new TopologyEvent(TopologyEvent.Type.TOPOLOGY_CHANGED, null, reasons);
+    }
+
+    @Test
+    public void hitsAfterFirstLookup() {
+        cache.getPaths(did("1"), did("3"));
+        cache.getPaths(did("1"), did("3"));
+        cache.getPaths(did("1"), did("3"));
+
+        assertEquals(1, loads);
+        assertEquals(2, cache.hitCount());
+        assertEquals(1, cache.missCount());
+    }
+
+    @Test
+    public void linkRemovalInvalidatesOnlyAffectedPairs() {
+        cache.getPaths(did("1"), did("3"));
+        cache.getPaths(did("4"), did("5"));
+
+        cache.invalidate(event(new LinkEvent(LinkEvent.Type.LINK_REMOVED, link("2", 2, "3", 1))));
+
+        assertEquals(1, cache.size());
+        cache.getPaths(did("4"), did("5"));
+        assertEquals(2, loads);
+        cache.getPaths(did("1"), did("3"));
+        assertEquals(3, loads);
+    }
+
+    @Test
+    public void linkAdditionInvalidatesAll() {
+        cache.getPaths(did("1"), did("3"));
+        cache.getPaths(did("4"), did("5"));
+
+        cache.invalidate(event(new LinkEvent(LinkEvent.Type.LINK_ADDED, link("1", 3, "3", 3))));
+
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void unavailableDeviceInvalidatesOnlyItsPairs() {
+        cache.getPaths(did("1"), did("3"));
+        cache.getPaths(did("4"), did("5"));
+
+        unavailable.add(did("2"));
+        cache.invalidate(event(new DeviceEvent(DeviceEvent.Type.DEVICE_AVAILABILITY_CHANGED, device("2"))));
+
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void deviceComingBackInvalidatesAll() {
+        cache.getPaths(did("1"), did("3"));
+        cache.getPaths(did("4"), did("5"));
+
+        cache.invalidate(event(new DeviceEvent(DeviceEvent.Type.DEVICE_AVAILABILITY_CHANGED, device("6"))));
+
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.bridge;
+
+import org.junit.Test;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.criteria.Criteria;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the match fields of the forwarding entries.
+ */
+public class RuleGranularityTest {
+
+    private static final MacAddress SRC = MacAddress.valueOf("00:00:00:00:00:01");
+    private static final MacAddress DST = MacAddress.valueOf("00:00:00:00:00:02");
+    private static final PortNumber IN_PORT = PortNumber.portNumber(3);
+
+    @Test
+    public void selectorsOfEveryMode() {
+        assertEquals(DefaultTrafficSelector.builder().matchEthDst(DST).build(),
+                RuleGranularity.DST.selector(SRC, IN_PORT, DST));
+        assertEquals(DefaultTrafficSelector.builder().matchEthDst(DST).matchEthSrc(SRC).build(),
+                RuleGranularity.SRC_DST.selector(SRC, IN_PORT, DST));
+        assertEquals(DefaultTrafficSelector.builder().matchEthDst(DST).matchInPort(IN_PORT).build(),
+                RuleGranularity.IN_PORT_DST.selector(SRC, IN_PORT, DST));
+    }
+
+    @Test
+    public void forwardingEntriesOfAnyModeAreRecognized() {
+        for (RuleGranularity granularity : RuleGranularity.values())
+            assertTrue(RuleGranularity.isForwarding(granularity.selector(SRC, IN_PORT, DST)));
+
+        // Learning entries match the source and the ingress port
+        TrafficSelector learn = DefaultTrafficSelector.builder().matchEthSrc(SRC).matchInPort(IN_PORT).build();
+        assertFalse(RuleGranularity.isForwarding(learn));
+        TrafficSelector wider = DefaultTrafficSelector.builder(RuleGranularity.SRC_DST.selector(SRC, IN_PORT, DST))
+                .add(Criteria.matchInPort(IN_PORT)).build();
+        assertFalse(RuleGranularity.isForwarding(wider));
+    }
+
+    @Test
+    public void propertyValues() {
+        for (RuleGranularity granularity : RuleGranularity.values())
+            assertEquals(granularity, RuleGranularity.fromProperty(granularity.propertyValue()));
+        assertNull(RuleGranularity.fromProperty("pair"));
+        assertNull(RuleGranularity.fromProperty(null));
+    }
+}
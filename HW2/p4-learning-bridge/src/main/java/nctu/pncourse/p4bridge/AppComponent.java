@@ -15,22 +15,37 @@
  */
 package nctu.pncourse.p4bridge;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Timer;
 import com.google.common.collect.ImmutableSet;
+import org.onlab.metrics.MetricsComponent;
+import org.onlab.metrics.MetricsFeature;
+import org.onlab.metrics.MetricsService;
+import org.onlab.packet.ARP;
 import org.onlab.packet.Ethernet;
+import org.onlab.packet.Ip4Address;
 import org.onlab.packet.MacAddress;
 import org.onosproject.cfg.ComponentConfigService;
+import org.onosproject.cfg.ConfigProperty;
 import org.onosproject.event.Event;
 import org.onosproject.net.*;
 import org.onosproject.net.flow.*;
 import org.onosproject.net.flow.criteria.Criterion;
 import org.onosproject.net.flow.criteria.EthCriterion;
-import org.onosproject.net.flow.instructions.Instruction;
 import org.onosproject.net.flow.instructions.Instructions;
 import org.onosproject.net.flowobjective.DefaultForwardingObjective;
+import org.onosproject.net.flowobjective.DefaultNextObjective;
+import org.onosproject.net.flowobjective.DefaultNextTreatment;
 import org.onosproject.net.flowobjective.FlowObjectiveService;
 import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.flowobjective.NextObjective;
+import org.onosproject.net.flowobjective.Objective;
+import org.onosproject.net.flowobjective.ObjectiveContext;
+import org.onosproject.net.flowobjective.ObjectiveError;
 import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.packet.DefaultOutboundPacket;
 import org.onosproject.net.packet.PacketPriority;
+import org.onosproject.net.topology.DefaultTopologyVertex;
 import org.onosproject.net.topology.TopologyEvent;
 import org.onosproject.net.topology.TopologyListener;
 import org.osgi.service.component.ComponentContext;
@@ -43,9 +58,41 @@ import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.util.*;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.ADMISSION_SAMPLE_RATE;
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.ARP_MISS_INTERVAL;
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.ARP_MISS_INTERVAL_DEFAULT;
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.ARP_PROXY;
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.ARP_PROXY_DEFAULT;
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.ECMP;
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.ECMP_DEFAULT;
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.ADMISSION_SAMPLE_RATE_DEFAULT;
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.ADMISSION_THRESHOLD;
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.ADMISSION_THRESHOLD_DEFAULT;
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.FORWARDING_TABLE_SIZE;
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.FORWARDING_TABLE_SIZE_DEFAULT;
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.INSTALL_PATH;
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.FAST_FAILOVER;
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.FAST_FAILOVER_DEFAULT;
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.INSTALL_PATH_DEFAULT;
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.NEXT_HOP_GROUPS;
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.NEXT_HOP_GROUPS_DEFAULT;
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.PACKET_BUFFER_TIMEOUT;
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.PACKET_BUFFER_TIMEOUT_DEFAULT;
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.PACKET_BUFFERING;
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.PACKET_BUFFERING_DEFAULT;
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.RULE_GRANULARITY;
+import static nctu.pncourse.p4bridge.OsgiPropertyConstants.RULE_GRANULARITY_DEFAULT;
 import static org.onlab.util.Tools.get;
+import static org.onlab.util.Tools.getIntegerProperty;
+import static org.onlab.util.Tools.groupedThreads;
+import static org.onlab.util.Tools.isPropertyEnabled;
 
 /** Libraries for hw */
 import org.onosproject.core.ApplicationId;
@@ -58,9 +105,17 @@ import org.onosproject.net.packet.InboundPacket;
 
 import org.onosproject.net.topology.TopologyService;
 
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.host.HostEvent;
+import org.onosproject.net.host.HostListener;
 import org.onosproject.net.host.HostService;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Skeletal ONOS application component.
@@ -69,6 +124,18 @@ import java.util.concurrent.ExecutorService;
         service = {SomeInterface.class},
         property = {
                 "someProperty=Some Default String Value",
+                INSTALL_PATH + ":Boolean=" + INSTALL_PATH_DEFAULT,
+                ADMISSION_THRESHOLD + ":Integer=" + ADMISSION_THRESHOLD_DEFAULT,
+                ADMISSION_SAMPLE_RATE + ":Integer=" + ADMISSION_SAMPLE_RATE_DEFAULT,
+                FORWARDING_TABLE_SIZE + ":Integer=" + FORWARDING_TABLE_SIZE_DEFAULT,
+                ARP_PROXY + ":Boolean=" + ARP_PROXY_DEFAULT,
+                ARP_MISS_INTERVAL + ":Integer=" + ARP_MISS_INTERVAL_DEFAULT,
+                PACKET_BUFFERING + ":Boolean=" + PACKET_BUFFERING_DEFAULT,
+                PACKET_BUFFER_TIMEOUT + ":Integer=" + PACKET_BUFFER_TIMEOUT_DEFAULT,
+                RULE_GRANULARITY + "=" + RULE_GRANULARITY_DEFAULT,
+                ECMP + ":Boolean=" + ECMP_DEFAULT,
+                NEXT_HOP_GROUPS + ":Boolean=" + NEXT_HOP_GROUPS_DEFAULT,
+                FAST_FAILOVER + ":Boolean=" + FAST_FAILOVER_DEFAULT,
         })
 public class AppComponent implements SomeInterface {
 
@@ -79,6 +146,42 @@ public class AppComponent implements SomeInterface {
      */
     private String someProperty;
 
+    /** Install forwarding entries on every switch of the path on the first packet-in. */
+    private boolean installPath = INSTALL_PATH_DEFAULT;
+
+    /** Number of packet-ins queued on a worker above which only a sample of them is processed. */
+    private int admissionThreshold = ADMISSION_THRESHOLD_DEFAULT;
+
+    /** One packet-in in this many is processed while the queue is above the threshold. */
+    private int admissionSampleRate = ADMISSION_SAMPLE_RATE_DEFAULT;
+
+    /** Number of entries the destination MAC table of a switch can hold. */
+    private int forwardingTableSize = FORWARDING_TABLE_SIZE_DEFAULT;
+
+    /** Answer ARP requests for known hosts instead of flooding them. */
+    private boolean arpProxy = ARP_PROXY_DEFAULT;
+
+    /** Milliseconds during which further ARP requests for a target that was just flooded are dropped. */
+    private int arpMissInterval = ARP_MISS_INTERVAL_DEFAULT;
+
+    /** Hold the packet-ins of a flow until its forwarding entry is written on the switch, then send them in order. */
+    private boolean packetBuffering = PACKET_BUFFERING_DEFAULT;
+
+    /** Milliseconds a packet-in is held at most, it is sent anyway if its forwarding entry is not written by then. */
+    private int packetBufferTimeout = PACKET_BUFFER_TIMEOUT_DEFAULT;
+
+    /** Match fields of the forwarding entries, dst, srcDst or inPortDst. */
+    private RuleGranularity ruleGranularity = RuleGranularity.fromProperty(RULE_GRANULARITY_DEFAULT);
+
+    /** Spread the traffic to a destination over its equal-cost paths, by hash in the switch. */
+    private boolean ecmp = ECMP_DEFAULT;
+
+    /** Point the entries of a switch to the hosts of another switch at one shared group of next hops. */
+    private boolean nextHopGroups = NEXT_HOP_GROUPS_DEFAULT;
+
+    /** Give the entries of a switch toward another switch a backup port the switch fails over to. */
+    private boolean fastFailover = FAST_FAILOVER_DEFAULT;
+
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     protected ComponentConfigService cfgService;
 
@@ -103,26 +206,165 @@ public class AppComponent implements SomeInterface {
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     protected TopologyService topologyService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected MetricsService metricsService;
+
     // App ID
     private ApplicationId app_id;
 
-    // Packet processor
+    // Packet processors
     private BridgeProcessor processor = new BridgeProcessor();
+    private LearnProcessor learnProcessor = new LearnProcessor();
+    private ArpProxy arpProcessor = new ArpProxy();
 
-    // Default flow rule parameters
+    // Default flow rule parameters, forwarding entries expire after DEFAULT_TIMEOUT seconds without traffic,
+    // or more if the flow statistics are polled too rarely for it
     private static final int DEFAULT_TIMEOUT = 10;
     private static final int DEFAULT_PRIORITY = 50000;
 
+    // Maximum number of (src, dst) device pairs kept in the path cache
+    private static final int PATH_CACHE_SIZE = 4096;
+
+    // Cookie of MAC learning notifications, must match InterpreterImpl.LEARN_COOKIE of the pipeconf
+    private static final long LEARN_COOKIE = 0x4c4541524eL;
+
+    // Learning parameters
+    private static final int LEARN_TIMEOUT = 60;
+    private static final int LEARN_BATCH_INTERVAL = 20;
+
+    // Milliseconds a learned location is trusted without a new notification, an active host is notified
+    // again once its learning entry times out
+    private static final long LEARNED_LOCATION_TIMEOUT = 2 * LEARN_TIMEOUT * 1000L;
+
+    // Milliseconds an IP to MAC binding is used to answer ARP requests, and between two purges of the cache
+    private static final long ARP_BINDING_TIMEOUT = 60000;
+    private static final long ARP_PURGE_INTERVAL = 10000;
+
+    // IP to MAC bindings seen in ARP packets or resolved from the host service
+    private final ArpCache arpCache = new ArpCache(ARP_BINDING_TIMEOUT);
+    private final AtomicLong lastArpPurge = new AtomicLong();
+
+    // Milliseconds a forwarding objective is considered in flight without news from the device,
+    // and between two purges of the in-flight entries
+    private static final long IN_FLIGHT_TIMEOUT = 1000;
+    private static final long IN_FLIGHT_PURGE_INTERVAL = 10000;
+
+    // Forwarding entries being written, further packet-ins of their flow are only sent out
+    private final InFlightTable inFlight = new InFlightTable(IN_FLIGHT_TIMEOUT);
+    private final AtomicLong lastInFlightPurge = new AtomicLong();
+
+    // Maximum number of packet-outs held for an entry,
+    // and milliseconds between two checks for entries which were not written in time
+    private static final int PACKET_BUFFER_SIZE = 64;
+    private static final long PACKET_BUFFER_SWEEP_INTERVAL = 50;
+
+    // Packet-outs waiting for the forwarding entry of their device when buffering is enabled
+    private final PacketBuffer packetBuffer = new PacketBuffer(PACKET_BUFFER_SIZE);
+    private ScheduledExecutorService bufferExecutor;
+
+    // Groups of next hops toward each destination switch, shared by the entries of a switch
+    private final NextHopGroups nextHops = new NextHopGroups();
+
+    // Host locations learned from the data plane, dropped when they age out or the host, or its device, goes
+    private final Map<MacAddress, LearnedLocation> learnedLocations = new ConcurrentHashMap<>();
+
+    // Learning notifications waiting for the next batch
+    private final Set<MacLocation> pendingLearns = ConcurrentHashMap.newKeySet();
+
+    private ScheduledExecutorService learnExecutor;
+
+    private final PathCache pathCache = new PathCache(PATH_CACHE_SIZE,
+            (src, dst) -> topologyService.getPaths(topologyService.currentTopology(), src, dst), this::in_topology);
+
+    // Both paths of the disjoint pairs between two switches, the backup ports are their first hops
+    private final PathCache backupPaths = new PathCache(PATH_CACHE_SIZE, this::disjoint_paths,
+            this::in_topology);
+
     private final TopologyListener topologyListener = new InternalTopologyListener();
 
-    private ExecutorService blackHoleExecutor;
+    private final HostListener hostListener = new InternalHostListener();
+
+    // Forwarding entries of the app, looked up by blackhole repair
+    private final FlowRuleIndex flowRuleIndex = new FlowRuleIndex();
+    private final FlowRuleListener flowRuleListener = new InternalFlowRuleListener();
+
+    // Blackhole repair parameters
+    private static final int REPAIR_WORKERS = 4;
+    private static final int REPAIR_COALESCE_WINDOW = 50;
+
+    // Egress points of removed links waiting for the next repair pass
+    private final Set<ConnectPoint> pendingRepairs = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean repairScheduled = new AtomicBoolean();
+    private volatile long repairRequestedAt;
+
+    // Repair passes run one at a time, the devices of a pass are repaired in parallel
+    private ScheduledExecutorService blackHoleExecutor;
+    private ExecutorService repairWorkers;
+
+    // Time from a link going down to its blackholed entries being removed
+    private Timer timeToRepair;
+
+    // Packet-in workers, and maximum number of packet-ins waiting on each of them
+    private static final int PACKET_WORKERS = 4;
+    private static final int PACKET_QUEUE_SIZE = 4096;
+
+    // Packet-ins are processed off the dispatcher thread by the worker of their device
+    private PacketWorkers packetWorkers;
+    private MetricsComponent metricsComponent;
+    private MetricsFeature packetFeature;
+
+    // Packet-in outcomes, objectives and processing times of every device
+    private BridgeMetrics bridgeMetrics;
+
+    // Destination MAC entries of every switch, the least recently used are evicted when a table fills up
+    private final TableOccupancy tableOccupancy = new TableOccupancy();
+
+    // Seconds between two reads of the forwarding entry counters
+    private static final int IDLE_POLL_INTERVAL = 2;
+
+    // The counters in the flow store only move when the flow rule manager polls the flow statistics, an
+    // entry is idle once its counter stood still over IDLE_POLLS of those polls
+    private static final String FLOW_RULE_MANAGER = "org.onosproject.net.flow.impl.FlowRuleManager";
+    private static final String FLOW_POLL_FREQUENCY = "fallbackFlowPollFrequency";
+    private static final int FLOW_POLL_FREQUENCY_DEFAULT = 30;
+    private static final int IDLE_POLLS = 2;
+    private volatile int idleTimeout = DEFAULT_TIMEOUT;
+
+    // Forwarding entries are aged by the app from their direct counters rather than by a hard timeout
+    private final IdleTracker idleTracker = new IdleTracker();
+    private ScheduledExecutorService idleExecutor;
 
     @Activate
     protected void activate() {
         cfgService.registerProperties(getClass());
         app_id = coreService.registerApplication("nctu.pncourse.bridge");
-        packetService.addProcessor(processor, PacketProcessor.director(2));
+        packetService.addProcessor(learnProcessor, PacketProcessor.director(1));
+        packetService.addProcessor(arpProcessor, PacketProcessor.director(2));
+        packetService.addProcessor(processor, PacketProcessor.director(3));
         topologyService.addListener(topologyListener);
+        hostService.addListener(hostListener);
+        flowRuleService.addListener(flowRuleListener);
+        for (FlowEntry entry : flowRuleService.getFlowEntriesById(app_id))
+            flowRuleIndex.add(entry);
+        blackHoleExecutor = Executors.newSingleThreadScheduledExecutor(groupedThreads("p4bridge", "blackhole", log));
+        repairWorkers = Executors.newFixedThreadPool(REPAIR_WORKERS, groupedThreads("p4bridge", "repair-%d", log));
+        metricsComponent = metricsService.registerComponent("p4bridge");
+        MetricsFeature repairFeature = metricsComponent.registerFeature("blackhole");
+        timeToRepair = metricsService.createTimer(metricsComponent, repairFeature, "timeToRepair");
+        packetFeature = metricsComponent.registerFeature("packetIn");
+        bridgeMetrics = new BridgeMetrics(metricsService, metricsComponent);
+        packetWorkers = new PacketWorkers(PACKET_WORKERS, PACKET_QUEUE_SIZE, admissionThreshold,
+                admissionSampleRate, groupedThreads("p4bridge", "packet-in-%d", log));
+        registerWorkerMetrics();
+        learnExecutor = Executors.newSingleThreadScheduledExecutor(groupedThreads("p4bridge", "learn", log));
+        learnExecutor.scheduleWithFixedDelay(this::flushLearned, LEARN_BATCH_INTERVAL, LEARN_BATCH_INTERVAL,
+                TimeUnit.MILLISECONDS);
+        idleExecutor = Executors.newSingleThreadScheduledExecutor(groupedThreads("p4bridge", "idle", log));
+        idleExecutor.scheduleWithFixedDelay(this::expireIdleEntries, IDLE_POLL_INTERVAL, IDLE_POLL_INTERVAL,
+                TimeUnit.SECONDS);
+        bufferExecutor = Executors.newSingleThreadScheduledExecutor(groupedThreads("p4bridge", "buffer", log));
+        bufferExecutor.scheduleWithFixedDelay(this::releaseExpiredPackets, PACKET_BUFFER_SWEEP_INTERVAL,
+                PACKET_BUFFER_SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
         requestsPackets();
         log.info("Started");
     }
@@ -132,12 +374,63 @@ public class AppComponent implements SomeInterface {
         cfgService.unregisterProperties(getClass(), false);
         flowRuleService.removeFlowRulesById(app_id);
         packetService.removeProcessor(processor);
+        packetService.removeProcessor(learnProcessor);
+        packetService.removeProcessor(arpProcessor);
         processor = null;
+        learnProcessor = null;
+        arpProcessor = null;
+        arpCache.clear();
+        packetWorkers.shutdown();
+        unregisterWorkerMetrics();
+        bridgeMetrics.clear();
         topologyService.removeListener(topologyListener);
+        hostService.removeListener(hostListener);
+        flowRuleService.removeListener(flowRuleListener);
+        flowRuleIndex.clear();
+        tableOccupancy.clear();
+        inFlight.clear();
+        nextHops.removeAll().forEach((id, groups) ->
+                groups.forEach(group -> issue(id, next_objective(group).remove())));
+        bufferExecutor.shutdownNow();
+        packetBuffer.releaseAll().forEach(Runnable::run);
+        blackHoleExecutor.shutdownNow();
+        repairWorkers.shutdownNow();
+        pendingRepairs.clear();
+        repairScheduled.set(false);
+        learnExecutor.shutdownNow();
+        idleExecutor.shutdownNow();
+        idleTracker.clear();
+        pendingLearns.clear();
+        learnedLocations.clear();
+        pathCache.invalidateAll();
+        backupPaths.invalidateAll();
         cancelPackets();
         log.info("Stopped");
     }
 
+    /**
+     * Expose the queue depth, drop rate and latency of every packet-in worker
+     */
+    private void registerWorkerMetrics() {
+        for (int i = 0; i < packetWorkers.size(); i++) {
+            int worker = i;
+            metricsService.registerMetric(metricsComponent, packetFeature, "worker" + i + "Depth",
+                    (Gauge<Integer>) () -> packetWorkers.depth(worker));
+            metricsService.registerMetric(metricsComponent, packetFeature, "worker" + i + "Dropped",
+                    packetWorkers.dropped(i));
+            metricsService.registerMetric(metricsComponent, packetFeature, "worker" + i + "Latency",
+                    packetWorkers.latency(i));
+        }
+    }
+
+    private void unregisterWorkerMetrics() {
+        for (int i = 0; i < packetWorkers.size(); i++) {
+            metricsService.removeMetric(metricsComponent, packetFeature, "worker" + i + "Depth");
+            metricsService.removeMetric(metricsComponent, packetFeature, "worker" + i + "Dropped");
+            metricsService.removeMetric(metricsComponent, packetFeature, "worker" + i + "Latency");
+        }
+    }
+
     /**
      * Request Packet-in via PacketService
      */
@@ -173,6 +466,40 @@ public class AppComponent implements SomeInterface {
         Dictionary<?, ?> properties = context != null ? context.getProperties() : new Properties();
         if (context != null) {
             someProperty = get(properties, "someProperty");
+            Boolean enabled = isPropertyEnabled(properties, INSTALL_PATH);
+            installPath = enabled == null ? INSTALL_PATH_DEFAULT : enabled;
+            Integer threshold = getIntegerProperty(properties, ADMISSION_THRESHOLD);
+            admissionThreshold = threshold == null ? ADMISSION_THRESHOLD_DEFAULT : threshold;
+            Integer sampleRate = getIntegerProperty(properties, ADMISSION_SAMPLE_RATE);
+            admissionSampleRate = sampleRate == null ? ADMISSION_SAMPLE_RATE_DEFAULT : sampleRate;
+            if (packetWorkers != null)
+                packetWorkers.configure(admissionThreshold, admissionSampleRate);
+            Integer tableSize = getIntegerProperty(properties, FORWARDING_TABLE_SIZE);
+            forwardingTableSize = tableSize == null || tableSize <= 0 ? FORWARDING_TABLE_SIZE_DEFAULT : tableSize;
+            tableOccupancy.resize(ForwardingTable.DST_MAC_FORWARD, forwardingTableSize);
+            enabled = isPropertyEnabled(properties, ARP_PROXY);
+            arpProxy = enabled == null ? ARP_PROXY_DEFAULT : enabled;
+            Integer missInterval = getIntegerProperty(properties, ARP_MISS_INTERVAL);
+            arpMissInterval = missInterval == null || missInterval < 0 ? ARP_MISS_INTERVAL_DEFAULT : missInterval;
+            enabled = isPropertyEnabled(properties, PACKET_BUFFERING);
+            packetBuffering = enabled == null ? PACKET_BUFFERING_DEFAULT : enabled;
+            Integer bufferTimeout = getIntegerProperty(properties, PACKET_BUFFER_TIMEOUT);
+            packetBufferTimeout = bufferTimeout == null || bufferTimeout < 0 ?
+                    PACKET_BUFFER_TIMEOUT_DEFAULT : bufferTimeout;
+            RuleGranularity granularity = RuleGranularity.fromProperty(get(properties, RULE_GRANULARITY));
+            if (granularity == null)
+                granularity = RuleGranularity.fromProperty(RULE_GRANULARITY_DEFAULT);
+            if (granularity != ruleGranularity) {
+                ruleGranularity = granularity;
+                if (app_id != null)
+                    removeForwardingEntries();
+            }
+            enabled = isPropertyEnabled(properties, ECMP);
+            ecmp = enabled == null ? ECMP_DEFAULT : enabled;
+            enabled = isPropertyEnabled(properties, NEXT_HOP_GROUPS);
+            nextHopGroups = enabled == null ? NEXT_HOP_GROUPS_DEFAULT : enabled;
+            enabled = isPropertyEnabled(properties, FAST_FAILOVER);
+            fastFailover = enabled == null ? FAST_FAILOVER_DEFAULT : enabled;
         }
         log.info("Reconfigured");
     }
@@ -185,7 +512,7 @@ public class AppComponent implements SomeInterface {
     /** Learning bridge processor */
     private class BridgeProcessor implements PacketProcessor {
         /**
-         * Process the packets
+         * Queue the packets on the worker of their device, or drop them if the worker is overloaded
          *
          * @param context content of the incoming message
          */
@@ -195,52 +522,90 @@ public class AppComponent implements SomeInterface {
             if (context.isHandled())
                 return;
 
+            DeviceId device_id = context.inPacket().receivedFrom().deviceId();
+            if (!packetWorkers.submit(device_id, () -> forward(context))) {
+                context.block();
+                bridgeMetrics.mark(device_id, BridgeMetrics.Event.BLOCKED);
+                log.debug("Dropped packet-in from {}", context.inPacket().receivedFrom());
+            }
+        }
+
+        /**
+         * Process the packets
+         *
+         * @param context content of the incoming message
+         */
+        private void forward(PacketContext context) {
+            DeviceId device_id = context.inPacket().receivedFrom().deviceId();
+            Timer.Context timer = bridgeMetrics.time(device_id, BridgeMetrics.Stage.PROCESS);
+            try {
+                if (decide(context))
+                    bridgeMetrics.mark(device_id, BridgeMetrics.Event.PROCESSED);
+                else
+                    bridgeMetrics.mark(device_id, BridgeMetrics.Event.IGNORED);
+            } finally {
+                timer.stop();
+            }
+        }
+
+        /**
+         * Flood, forward or drop a packet
+         *
+         * @param context content of the incoming message
+         * @return whether the bridge made a decision, false if it ignored the packet
+         */
+        private boolean decide(PacketContext context) {
             InboundPacket pkt = context.inPacket();
             Ethernet eth_pkt = pkt.parsed();
 
             // Don't process null packet
             if (eth_pkt == null)
-                return;
+                return false;
 
             // Don't process control packet
             if (is_control_packet(eth_pkt))
-                return;
+                return false;
 
             // Get destination host ID from destination MAC
             // Use destination host ID to get location information about host
             HostId dst_id = HostId.hostId(eth_pkt.getDestinationMAC());
-            Host dst = hostService.getHost(dst_id);
 
             // Don't process the packet if it's destination MAC is LLDP
             if (dst_id.mac().isLldp())
-                return;
+                return false;
+
+            ConnectPoint dst = locate(dst_id);
 
             // Flood if host is unknown
             if (dst == null) {
                 flood(context, pkt.receivedFrom().port());
-                return;
+                return true;
             }
 
             // Forward to the destination if packet is on the edge switch
-            if (pkt.receivedFrom().deviceId().equals(dst.location().deviceId())) {
-                // Install rule and packet-out only if destination port is different from where the packet came
-                if (!context.inPacket().receivedFrom().port().equals(dst.location().port())) {
-                    log.info("Packet reached destination switch {}", dst.location().deviceId());
-                    install_rule(context, dst.location().port(), pkt.receivedFrom().port());
-                }
-                return;
+            if (pkt.receivedFrom().deviceId().equals(dst.deviceId())) {
+                // Leave the packet alone if the destination is on the port where it came from
+                if (context.inPacket().receivedFrom().port().equals(dst.port()))
+                    return false;
+                install_rule(context, dst.port(), pkt.receivedFrom().port(), null);
+                return true;
             }
 
             // Find path to the destination
             Set<Path> paths;
-            paths = topologyService.getPaths(topologyService.currentTopology(),
-                    pkt.receivedFrom().deviceId(), dst.location().deviceId());
+            Timer.Context lookup = bridgeMetrics.time(pkt.receivedFrom().deviceId(),
+                    BridgeMetrics.Stage.PATH_LOOKUP);
+            try {
+                paths = pathCache.getPaths(pkt.receivedFrom().deviceId(), dst.deviceId());
+            } finally {
+                lookup.stop();
+            }
 
             // Flood if there is no path
             if (paths.isEmpty()) {
                 log.warn("Flood the packet");
                 flood(context, pkt.receivedFrom().port());
-                return;
+                return true;
             }
 
             // Pick a path that doesn't lead back to the where the packet came from
@@ -251,11 +616,228 @@ public class AppComponent implements SomeInterface {
                 log.warn("Doesn't know how to forward src: {}, dst: {} from switch {}", eth_pkt.getSourceMAC(),
                         eth_pkt.getDestinationMAC(), pkt.receivedFrom());
                 flood(context, pkt.receivedFrom().port());
+                return true;
+            }
+
+            // Spread the destination over the first hops of the equal-cost paths, entries matching more than
+            // the destination MAC are not hashed
+            if (ecmp && ruleGranularity == RuleGranularity.DST) {
+                Set<PortNumber> next_hops = first_hops(paths, pkt.receivedFrom().port());
+                if (next_hops.size() > 1) {
+                    install_ecmp(context, paths, next_hops, dst, pkt.receivedFrom().port());
+                    return true;
+                }
+            }
+
+            // Install rules on the whole path, or on this switch only, and packet-out
+            if (installPath)
+                install_path(context, path, dst, pkt.receivedFrom().port());
+            else
+                install_rule(context, path.src().port(), pkt.receivedFrom().port(), dst.deviceId());
+            return true;
+        }
+    }
+
+    /** ARP proxy, answers requests for known hosts before they reach the bridge */
+    private class ArpProxy implements PacketProcessor {
+        /**
+         * Reply to ARP requests whose target is known, let the bridge flood the first request for
+         * an unknown target and drop the following ones for a while
+         *
+         * @param context content of the incoming message
+         */
+        @Override
+        public void process(PacketContext context) {
+            if (!arpProxy || context.isHandled())
                 return;
+
+            InboundPacket pkt = context.inPacket();
+            Ethernet eth_pkt = pkt.parsed();
+            if (eth_pkt == null || eth_pkt.getEtherType() != Ethernet.TYPE_ARP)
+                return;
+
+            long now = System.currentTimeMillis();
+            long lastPurge = lastArpPurge.get();
+            if (now - lastPurge >= ARP_PURGE_INTERVAL && lastArpPurge.compareAndSet(lastPurge, now))
+                arpCache.purge(now, arpMissInterval);
+
+            // A truncated or malformed ARP packet is left to the bridge
+            if (!(eth_pkt.getPayload() instanceof ARP))
+                return;
+
+            // Every ARP packet tells where its sender is, probes without a sender IP excepted
+            ARP arp = (ARP) eth_pkt.getPayload();
+            Ip4Address sender_ip = Ip4Address.valueOf(arp.getSenderProtocolAddress());
+            if (!sender_ip.isZero())
+                arpCache.bind(sender_ip, MacAddress.valueOf(arp.getSenderHardwareAddress()), now);
+
+            // Replies and gratuitous requests are forwarded by the bridge
+            Ip4Address target_ip = Ip4Address.valueOf(arp.getTargetProtocolAddress());
+            if (arp.getOpCode() != ARP.OP_REQUEST || target_ip.equals(sender_ip))
+                return;
+
+            DeviceId device_id = pkt.receivedFrom().deviceId();
+            MacAddress target_mac = resolve(target_ip, now);
+            if (target_mac != null) {
+                Ethernet reply = ARP.buildArpReply(target_ip, target_mac, eth_pkt);
+                TrafficTreatment treatment = DefaultTrafficTreatment.builder()
+                        .setOutput(pkt.receivedFrom().port())
+                        .build();
+                packetService.emit(new DefaultOutboundPacket(device_id, treatment,
+                        ByteBuffer.wrap(reply.serialize())));
+                context.block();
+                bridgeMetrics.mark(device_id, BridgeMetrics.Event.ARP_REPLIED);
+            } else if (!arpCache.allowMiss(target_ip, now, arpMissInterval)) {
+                context.block();
+                bridgeMetrics.mark(device_id, BridgeMetrics.Event.ARP_SUPPRESSED);
             }
+        }
 
-            // Install rule and packet-out
-            install_rule(context, path.src().port(), pkt.receivedFrom().port());
+        /**
+         * Find the MAC address of an IP address in the cache, then in the host service
+         *
+         * @param ip  IP address
+         * @param now current time in milliseconds
+         * @return MAC address or null if unknown
+         */
+        private MacAddress resolve(Ip4Address ip, long now) {
+            MacAddress mac = arpCache.lookup(ip, now);
+            if (mac != null)
+                return mac;
+
+            for (Host host : hostService.getHostsByIp(ip)) {
+                arpCache.bind(ip, host.mac(), now);
+                return host.mac();
+            }
+            return null;
+        }
+    }
+
+    /** Consumer of the MAC learning notifications sent by the data plane */
+    private class LearnProcessor implements PacketProcessor {
+        /**
+         * Queue the learned (src MAC, ingress port) for the next batch
+         *
+         * @param context content of the incoming message
+         */
+        @Override
+        public void process(PacketContext context) {
+            if (context.isHandled())
+                return;
+
+            InboundPacket pkt = context.inPacket();
+            if (!pkt.cookie().isPresent() || pkt.cookie().get() != LEARN_COOKIE)
+                return;
+
+            Ethernet eth_pkt = pkt.parsed();
+            if (eth_pkt != null && !eth_pkt.getSourceMAC().isMulticast())
+                pendingLearns.add(new MacLocation(eth_pkt.getSourceMAC(), pkt.receivedFrom()));
+
+            // The notification is only a copy of the packet, nothing to packet-out
+            context.block();
+        }
+    }
+
+    /**
+     * Learn all pending MAC locations in one batch
+     */
+    void flushLearned() {
+        Iterator<MacLocation> it = pendingLearns.iterator();
+        while (it.hasNext()) {
+            MacLocation learned = it.next();
+            it.remove();
+
+            DeviceId device_id = learned.location.deviceId();
+            PortNumber port = learned.location.port();
+
+            // Stop further notifications for this (src MAC, ingress port)
+            TrafficSelector selector = DefaultTrafficSelector.builder()
+                    .matchEthSrc(learned.mac)
+                    .matchInPort(port)
+                    .build();
+            TrafficTreatment treatment = DefaultTrafficTreatment.builder()
+                    .add(Instructions.createNoAction())
+                    .build();
+            issue(device_id, DefaultForwardingObjective.builder()
+                    .withSelector(selector)
+                    .withTreatment(treatment)
+                    .withPriority(DEFAULT_PRIORITY)
+                    .withFlag(ForwardingObjective.Flag.VERSATILE)
+                    .fromApp(app_id)
+                    .makeTemporary(LEARN_TIMEOUT)
+                    .add());
+
+            // Only edge ports are host locations, infrastructure ports just see transit traffic
+            if (topologyService.isInfrastructure(topologyService.currentTopology(), learned.location))
+                continue;
+
+            // Every notification refreshes the location, a move installs the new one
+            LearnedLocation previous = learnedLocations.put(learned.mac,
+                    new LearnedLocation(learned.location, System.currentTimeMillis()));
+            if (previous == null || !learned.location.equals(previous.location)) {
+                log.debug("Learned {} at {}", learned.mac, learned.location);
+                // Finer granularities have no entry common to all sources, the first packet-in installs it
+                if (ruleGranularity == RuleGranularity.DST)
+                    install_forwarding(device_id, RuleGranularity.DST.selector(null, null, learned.mac), port);
+            }
+        }
+    }
+
+    /**
+     * Find where a host is attached, preferring locations learned from the data plane which have not aged out
+     *
+     * @param host_id host ID
+     * @return location of the host or null if unknown
+     */
+    private ConnectPoint locate(HostId host_id) {
+        LearnedLocation learned = learnedLocations.get(host_id.mac());
+        if (learned != null) {
+            if (System.currentTimeMillis() - learned.learnedAt <= LEARNED_LOCATION_TIMEOUT)
+                return learned.location;
+            learnedLocations.remove(host_id.mac(), learned);
+        }
+
+        Host host = hostService.getHost(host_id);
+        return host == null ? null : host.location();
+    }
+
+    // Wrapper class for a learned location and when it was last notified
+    private static final class LearnedLocation {
+        final ConnectPoint location;
+        final long learnedAt;
+
+        private LearnedLocation(ConnectPoint location, long learnedAt) {
+            this.location = location;
+            this.learnedAt = learnedAt;
+        }
+    }
+
+    // Wrapper class for a MAC address and where it was learned
+    private static final class MacLocation {
+        final MacAddress mac;
+        final ConnectPoint location;
+
+        private MacLocation(MacAddress mac, ConnectPoint location) {
+            this.mac = mac;
+            this.location = location;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            MacLocation that = (MacLocation) o;
+            return Objects.equals(mac, that.mac) &&
+                    Objects.equals(location, that.location);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mac, location);
         }
     }
 
@@ -283,16 +865,15 @@ public class AppComponent implements SomeInterface {
     }
 
     /**
-     * Flood the packet
+     * Flood the packet, the switch replicates it on the broadcast tree with the flood group of
+     * the input port, packets from ports off the tree are dropped by the switch
      *
      * @param context       content of the incoming packet
      * @param input_port    input port number
      */
     private void flood(PacketContext context, PortNumber input_port) {
-        if (topologyService.isBroadcastPoint(topologyService.currentTopology(), context.inPacket().receivedFrom()))
-            packet_out(context, PortNumber.FLOOD, input_port);
-        else
-            context.block();
+        packet_out(context, PortNumber.FLOOD, input_port);
+        bridgeMetrics.mark(context.inPacket().receivedFrom().deviceId(), BridgeMetrics.Event.FLOODED);
     }
 
     /**
@@ -309,70 +890,851 @@ public class AppComponent implements SomeInterface {
         return null;
     }
 
+    /**
+     * Distinct first hops of the paths, except the port where the packet came from
+     *
+     * @param paths all paths that lead to the destination
+     * @param port  the port where packet came from, or null
+     * @return egress ports of this switch, in path order
+     */
+    private Set<PortNumber> first_hops(Set<Path> paths, PortNumber port) {
+        Set<PortNumber> ports = new LinkedHashSet<>();
+        for (Path path : paths) {
+            if (!path.src().port().equals(port))
+                ports.add(path.src().port());
+        }
+        return ports;
+    }
+
     /**
      * Install flow rules on a switch and packet-out
      *
      * @param context       content of the incoming packet
      * @param output_port   output port to be defined in the flow rule
      * @param input_port    input port number
+     * @param toward        destination switch, null if the destination host is on this switch
      */
-    private void install_rule(PacketContext context, PortNumber output_port, PortNumber input_port) {
+    private void install_rule(PacketContext context, PortNumber output_port, PortNumber input_port,
+                              DeviceId toward) {
         InboundPacket pkt = context.inPacket();
         Ethernet eth_pkt = pkt.parsed();
 
-        // Setup match fields
-        TrafficSelector selector = DefaultTrafficSelector.builder()
-                .matchEthDst(eth_pkt.getDestinationMAC())
-                .build();
+        TrafficSelector match = ruleGranularity.selector(eth_pkt.getSourceMAC(), input_port,
+                eth_pkt.getDestinationMAC());
+
+        // Held before the objective is issued, its confirmation sends the packet
+        boolean held = hold_packet_out(context, match, output_port, input_port);
+
+        // Forward flow-mod object
+        install_hop(context.inPacket().receivedFrom().deviceId(), match, toward, output_port);
+
+        // Packet-out
+        if (!held)
+            packet_out(context, output_port, input_port);
+        bridgeMetrics.mark(context.inPacket().receivedFrom().deviceId(), BridgeMetrics.Event.UNICAST);
+    }
+
+    /**
+     * Install flow rules on every switch from the destination back to this one and packet-out
+     *
+     * @param context       content of the incoming packet
+     * @param path          path from this switch to the destination switch
+     * @param dst           location of the destination host
+     * @param input_port    input port number
+     */
+    private void install_path(PacketContext context, Path path, ConnectPoint dst, PortNumber input_port) {
+        Ethernet eth_pkt = context.inPacket().parsed();
+        MacAddress src_mac = eth_pkt.getSourceMAC();
+        MacAddress dst_mac = eth_pkt.getDestinationMAC();
+        RuleGranularity granularity = ruleGranularity;
+        List<Link> links = path.links();
+
+        // Held until the entry of this switch, the last one issued, is written
+        TrafficSelector ingress = granularity.selector(src_mac, input_port, dst_mac);
+        boolean held = hold_packet_out(context, ingress, path.src().port(), input_port);
+
+        // Egress first, so the packet never reaches a switch that has no rule yet and gets punted again,
+        // every other switch is entered from the previous link of the path
+        install_forwarding(dst.deviceId(),
+                granularity.selector(src_mac, links.get(links.size() - 1).dst().port(), dst_mac), dst.port());
+        for (int i = links.size() - 1; i > 0; i--) {
+            ConnectPoint hop = links.get(i).src();
+            install_hop(hop.deviceId(), granularity.selector(src_mac, links.get(i - 1).dst().port(), dst_mac),
+                    dst.deviceId(), hop.port());
+        }
+        install_hop(path.src().deviceId(), ingress, dst.deviceId(), path.src().port());
+
+        // Packet-out
+        if (!held)
+            packet_out(context, path.src().port(), input_port);
+        bridgeMetrics.mark(context.inPacket().receivedFrom().deviceId(), BridgeMetrics.Event.UNICAST);
+    }
+
+    /**
+     * Install an entry pointing at the group of the first hops on this switch, which picks one of them per
+     * flow, and the entries of every path behind it when the whole path is installed, then packet-out on the
+     * first hop
+     *
+     * @param context       content of the incoming packet
+     * @param paths         paths from this switch to the destination switch
+     * @param next_hops     first hops of the paths which don't lead back
+     * @param dst           location of the destination host
+     * @param input_port    input port number
+     */
+    private void install_ecmp(PacketContext context, Set<Path> paths, Set<PortNumber> next_hops, ConnectPoint dst,
+                              PortNumber input_port) {
+        Ethernet eth_pkt = context.inPacket().parsed();
+        TrafficSelector match = RuleGranularity.DST.selector(eth_pkt.getSourceMAC(), input_port,
+                eth_pkt.getDestinationMAC());
+        PortNumber output_port = next_hops.iterator().next();
+
+        boolean held = hold_packet_out(context, match, output_port, input_port);
+
+        if (installPath) {
+            // Egress first as on a single path, a switch on several paths gets the entry of the first one,
+            // the rest of a shortest path is a shortest path from that switch as well
+            Set<DeviceId> installed = new HashSet<>();
+            for (Path path : paths) {
+                if (!next_hops.contains(path.src().port()))
+                    continue;
+                List<Link> links = path.links();
+                if (installed.add(dst.deviceId()))
+                    install_forwarding(dst.deviceId(), match, dst.port());
+                for (int i = links.size() - 1; i > 0; i--) {
+                    ConnectPoint hop = links.get(i).src();
+                    if (installed.add(hop.deviceId()))
+                        install_hop(hop.deviceId(), match, dst.deviceId(), hop.port());
+                }
+            }
+        }
+        install_next_hops(context.inPacket().receivedFrom().deviceId(), match, dst.deviceId(), next_hops);
+
+        // Packet-out
+        if (!held)
+            packet_out(context, output_port, input_port);
+        bridgeMetrics.mark(context.inPacket().receivedFrom().deviceId(), BridgeMetrics.Event.UNICAST);
+    }
+
+    /**
+     * Drop the in-flight entries which were never confirmed, at most once per purge interval
+     *
+     * @param now current time in milliseconds
+     */
+    private void purgeInFlight(long now) {
+        long lastPurge = lastInFlightPurge.get();
+        if (now - lastPurge >= IN_FLIGHT_PURGE_INTERVAL && lastInFlightPurge.compareAndSet(lastPurge, now))
+            inFlight.purge(now);
+    }
+
+    /**
+     * Install the entry of a switch on the way to another one. An entry matching the destination MAC only
+     * points at the group of next hops toward that switch when the groups are enabled, or gets a backup
+     * port toward it with fast failover.
+     *
+     * @param device_id   device ID
+     * @param match       match fields of the entry, in the rule granularity
+     * @param toward      destination switch, null if the destination host is on this switch
+     * @param output_port output port to be defined in the flow rule
+     */
+    private void install_hop(DeviceId device_id, TrafficSelector match, DeviceId toward, PortNumber output_port) {
+        boolean dstOnly = toward != null && match.criteria().size() == 1;
+        if (dstOnly && nextHopGroups)
+            install_next_hops(device_id, match, toward, ImmutableSet.of(output_port));
+        else if (dstOnly && fastFailover)
+            install_forwarding(device_id, match, output_port, backup_port(device_id, match, toward, output_port));
+        else
+            install_forwarding(device_id, match, output_port);
+    }
+
+    /**
+     * Pick the port a switch fails over to when its output port toward a destination switch goes down, the
+     * first hop of a disjoint path which leaves by another port. The neighbour behind it has to be a loop-free
+     * alternate, whose shortest paths toward the destination switch don't come back through this switch,
+     * otherwise the rest of a disjoint path which is shortest from each of its switches is installed so the
+     * neighbour forwards along it instead of sending the packets back.
+     *
+     * @param device_id   device ID
+     * @param match       match fields of the entry, destination MAC only
+     * @param toward      destination switch
+     * @param output_port output port of the entry
+     * @return backup port, null if no disjoint path leaves by another port without a loop
+     */
+    private PortNumber backup_port(DeviceId device_id, TrafficSelector match, DeviceId toward,
+                                   PortNumber output_port) {
+        Set<Path> backups = backupPaths.getPaths(device_id, toward);
+        long distance = distance(device_id, toward);
+        for (Path path : backups) {
+            if (path.src().port().equals(output_port))
+                continue;
+            // dist(N, D) < dist(N, S) + dist(S, D), the neighbour is one hop away
+            if (distance(path.links().get(0).dst().deviceId(), toward) < 1 + distance)
+                return path.src().port();
+        }
+        for (Path path : backups) {
+            if (!path.src().port().equals(output_port) && is_shortest_after_first_hop(path)) {
+                install_backup_path(path, match);
+                return path.src().port();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether the rest of a path is a shortest path from every switch on it after the first one, so that its
+     * entries agree with the ones other packets install
+     *
+     * @param path path from this switch to the destination switch
+     * @return boolean
+     */
+    private boolean is_shortest_after_first_hop(Path path) {
+        List<Link> links = path.links();
+        for (int i = 1; i < links.size(); i++) {
+            if (distance(links.get(i).src().deviceId(), path.dst().deviceId()) != links.size() - i)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Install the entries of a backup path on every switch after the first one, egress first
+     *
+     * @param path  backup path from this switch to the destination switch
+     * @param match match fields of the entries, destination MAC only
+     */
+    private void install_backup_path(Path path, TrafficSelector match) {
+        List<Link> links = path.links();
+        for (int i = links.size() - 1; i > 0; i--)
+            install_forwarding(links.get(i).src().deviceId(), match, links.get(i).src().port());
+    }
+
+    /**
+     * Number of hops of the shortest paths between two switches
+     *
+     * @param src source device
+     * @param dst destination device
+     * @return hop count, Integer.MAX_VALUE if the destination is unreachable
+     */
+    private long distance(DeviceId src, DeviceId dst) {
+        if (src.equals(dst))
+            return 0;
+        Set<Path> paths = pathCache.getPaths(src, dst);
+        return paths.isEmpty() ? Integer.MAX_VALUE : paths.iterator().next().links().size();
+    }
+
+    /**
+     * Compute the disjoint path pairs between two switches, primaries first
+     *
+     * @param src source device
+     * @param dst destination device
+     * @return primary and backup paths of every pair
+     */
+    private Set<Path> disjoint_paths(DeviceId src, DeviceId dst) {
+        Set<DisjointPath> pairs = topologyService.getDisjointPaths(topologyService.currentTopology(), src, dst);
+        if (pairs == null)
+            return ImmutableSet.of();
+        Set<Path> paths = new LinkedHashSet<>();
+        for (DisjointPath pair : pairs)
+            paths.add(pair.primary());
+        for (DisjointPath pair : pairs) {
+            if (pair.backup() != null)
+                paths.add(pair.backup());
+        }
+        return paths;
+    }
+
+    /**
+     * Install the entry which sends the packets matching its fields out of a port, evicting the least
+     * recently installed entries of the switch if its table is nearly full, unless the same entry is
+     * still being written
+     *
+     * @param device_id   device ID
+     * @param match       match fields of the entry, in the rule granularity
+     * @param output_port output port to be defined in the flow rule
+     */
+    private void install_forwarding(DeviceId device_id, TrafficSelector match, PortNumber output_port) {
+        install_forwarding(device_id, match, output_port, null);
+    }
+
+    /**
+     * Install the entry which sends the packets matching its fields out of a port, or out of its backup
+     * port while the switch has it marked down
+     *
+     * @param device_id   device ID
+     * @param match       match fields of the entry, in the rule granularity
+     * @param output_port output port to be defined in the flow rule
+     * @param backup_port port the switch fails over to, or null
+     */
+    private void install_forwarding(DeviceId device_id, TrafficSelector match, PortNumber output_port,
+                                    PortNumber backup_port) {
+        long now = System.currentTimeMillis();
+        purgeInFlight(now);
+
+        ForwardingTable table = ForwardingTable.of(match);
+        if (!inFlight.begin(device_id, table, match, output_port, now)) {
+            bridgeMetrics.mark(device_id, BridgeMetrics.Event.IN_FLIGHT);
+            return;
+        }
+
+        issue(device_id, forwarding_objective(match, output_port, backup_port).add(
+                new ObjectiveContext() {
+                    @Override
+                    public void onSuccess(Objective objective) {
+                        inFlight.end(device_id, table, match, output_port);
+                        releasePackets(device_id, match);
+                    }
+
+                    @Override
+                    public void onError(Objective objective, ObjectiveError error) {
+                        log.warn("Failed to install {} -> {} on {}: {}", match, output_port, device_id, error);
+                        inFlight.end(device_id, table, match, output_port);
+                        tableOccupancy.remove(device_id, table, match);
+                        releasePackets(device_id, match);
+                    }
+                }));
+
+        evict(device_id, table, tableOccupancy.add(device_id, table, match, output_port));
+    }
+
+    /**
+     * Install the entry which points at the group of next hops toward a destination switch, writing the
+     * group first if no other entry of the switch uses it or updating it if its ports changed, unless the
+     * same entry is still being written
+     *
+     * @param device_id device ID
+     * @param match     match fields of the entry, destination MAC only
+     * @param toward    destination switch
+     * @param next_hops egress ports of the group
+     */
+    private void install_next_hops(DeviceId device_id, TrafficSelector match, DeviceId toward,
+                                   Set<PortNumber> next_hops) {
+        long now = System.currentTimeMillis();
+        purgeInFlight(now);
+
+        // Tracked by the first hop, which the held packet-outs are sent to
+        PortNumber output_port = next_hops.iterator().next();
+        if (!inFlight.begin(device_id, ForwardingTable.ECMP_FORWARD, match, output_port, now)) {
+            bridgeMetrics.mark(device_id, BridgeMetrics.Event.IN_FLIGHT);
+            return;
+        }
+        remove_dst_mac_entry(device_id, match);
+
+        NextHopGroups.Binding binding = nextHops.bind(device_id, match, toward, next_hops,
+                flowObjectiveService::allocateNextId);
+        if (binding.created) {
+            // The entry is written once the group is, the flow objective service holds it until then
+            issue(device_id, next_objective(binding.group).add(new ObjectiveContext() {
+                @Override
+                public void onError(Objective objective, ObjectiveError error) {
+                    log.warn("Failed to install next hops {} on {}: {}", next_hops, device_id, error);
+                    nextHops.remove(device_id, binding.group);
+                }
+            }));
+        } else if (binding.modified) {
+            // Every entry of the switch toward the same destination switch follows
+            issue(device_id, next_objective(binding.group).modify());
+        }
+
+        issue(device_id, next_hop_objective(match, binding.group.id).add(
+                new ObjectiveContext() {
+                    @Override
+                    public void onSuccess(Objective objective) {
+                        inFlight.end(device_id, ForwardingTable.ECMP_FORWARD, match, output_port);
+                        releasePackets(device_id, match);
+                        // The entry no longer points at the group it left
+                        if (binding.released != null)
+                            issue(device_id, next_objective(binding.released).remove());
+                    }
+
+                    @Override
+                    public void onError(Objective objective, ObjectiveError error) {
+                        log.warn("Failed to install {} -> {} on {}: {}", match, next_hops, device_id, error);
+                        inFlight.end(device_id, ForwardingTable.ECMP_FORWARD, match, output_port);
+                        tableOccupancy.remove(device_id, ForwardingTable.ECMP_FORWARD, match);
+                        NextHopGroups.Group released = nextHops.unbind(device_id, match);
+                        if (released != null)
+                            issue(device_id, next_objective(released).remove());
+                        releasePackets(device_id, match);
+                    }
+                }));
+
+        evict(device_id, ForwardingTable.ECMP_FORWARD,
+                tableOccupancy.add(device_id, ForwardingTable.ECMP_FORWARD, match, output_port));
+    }
+
+    /**
+     * Remove the entry of a destination MAC from 'dst_mac_forward', which is looked up before 'ecmp_forward'
+     * and would hide the entry pointing at the group of next hops. The entry is left by the other mode or
+     * written before the app knew of it.
+     *
+     * @param device_id device ID
+     * @param match     match fields of the entry, destination MAC only
+     */
+    private void remove_dst_mac_entry(DeviceId device_id, TrafficSelector match) {
+        PortNumber output_port = tableOccupancy.remove(device_id, ForwardingTable.DST_MAC_FORWARD, match);
+        if (output_port == null) {
+            MacAddress dst_mac = ((EthCriterion) match.getCriterion(Criterion.Type.ETH_DST)).mac();
+            for (FlowRule rule : flowRuleIndex.rulesFor(device_id, dst_mac)) {
+                if (rule.selector().equals(match))
+                    output_port = FlowRuleIndex.outputs(rule).iterator().next();
+            }
+        }
+        if (output_port != null)
+            issue(device_id, forwarding_objective(match, output_port).remove());
+    }
+
+    /**
+     * Remove the entries evicted from a table of a switch, entries of a group with their next step
+     *
+     * @param device_id device ID
+     * @param table     table the entries were evicted from
+     * @param evicted   match fields and output port of the evicted entries
+     */
+    private void evict(DeviceId device_id, ForwardingTable table, Map<TrafficSelector, PortNumber> evicted) {
+        if (evicted.isEmpty())
+            return;
+        log.debug("Evicting {} entries from {} of {}", evicted.size(), table, device_id);
+        evicted.forEach((entry, port) -> {
+            Integer next_id = table == ForwardingTable.ECMP_FORWARD ? nextHops.nextId(device_id, entry) : null;
+            issue(device_id, next_id != null ? next_hop_objective(entry, next_id).remove() :
+                    forwarding_objective(entry, port).remove());
+        });
+    }
 
+    /**
+     * Hold a packet-out until its entry on this switch is written, when buffering is enabled and the
+     * batch of the entry has room
+     *
+     * @param context       content of the incoming packet
+     * @param match         match fields of the entry
+     * @param output_port   output port number
+     * @param input_port    input port number
+     * @return whether the packet-out is held, false if it has to be sent now
+     */
+    private boolean hold_packet_out(PacketContext context, TrafficSelector match, PortNumber output_port,
+                                    PortNumber input_port) {
+        if (!packetBuffering)
+            return false;
+
+        DeviceId device_id = context.inPacket().receivedFrom().deviceId();
+        if (!packetBuffer.hold(device_id, match, () -> packet_out(context, output_port, input_port),
+                System.currentTimeMillis()))
+            return false;
+        bridgeMetrics.mark(device_id, BridgeMetrics.Event.BUFFERED);
+        return true;
+    }
+
+    /**
+     * Send the packet-outs held for an entry, in the order they arrived
+     *
+     * @param device_id device ID
+     * @param match     match fields of the entry
+     */
+    private void releasePackets(DeviceId device_id, TrafficSelector match) {
+        packetBuffer.release(device_id, match).forEach(Runnable::run);
+    }
+
+    /**
+     * Send the packet-outs whose entry was not confirmed in time
+     */
+    void releaseExpiredPackets() {
+        packetBuffer.releaseExpired(System.currentTimeMillis(), packetBufferTimeout).forEach(Runnable::run);
+    }
+
+    /**
+     * Send a forwarding objective to a device and count it
+     *
+     * @param device_id device ID
+     * @param objective forwarding objective
+     */
+    private void issue(DeviceId device_id, ForwardingObjective objective) {
+        flowObjectiveService.forward(device_id, objective);
+        bridgeMetrics.mark(device_id, BridgeMetrics.Event.OBJECTIVES);
+    }
+
+    /**
+     * Send a next objective to a device and count it
+     *
+     * @param device_id device ID
+     * @param objective next objective
+     */
+    private void issue(DeviceId device_id, NextObjective objective) {
+        flowObjectiveService.next(device_id, objective);
+        bridgeMetrics.mark(device_id, BridgeMetrics.Event.OBJECTIVES);
+    }
+
+    /**
+     * Build the forwarding objective which sends the packets matching its fields out of a port
+     *
+     * @param selector    match fields of the entry
+     * @param output_port output port to be defined in the flow rule
+     * @return forwarding objective builder
+     */
+    private ForwardingObjective.Builder forwarding_objective(TrafficSelector selector, PortNumber output_port) {
+        return forwarding_objective(selector, output_port, null);
+    }
+
+    /**
+     * Build the forwarding objective which sends the packets matching its fields out of a port, with a
+     * backup port it is the set_egress_ports action of the pipeline since two outputs would replicate
+     *
+     * @param selector    match fields of the entry
+     * @param output_port output port to be defined in the flow rule
+     * @param backup_port port the switch fails over to, or null
+     * @return forwarding objective builder
+     */
+    private ForwardingObjective.Builder forwarding_objective(TrafficSelector selector, PortNumber output_port,
+                                                             PortNumber backup_port) {
         // Setup action fields
-        TrafficTreatment treatment = DefaultTrafficTreatment.builder()
-                .setOutput(output_port)
-                .build();
+        TrafficTreatment treatment = backup_port == null ?
+                DefaultTrafficTreatment.builder().setOutput(output_port).build() :
+                DefaultTrafficTreatment.builder()
+                        .piTableAction(FlowRuleIndex.setEgressPorts(output_port, backup_port))
+                        .build();
 
         // Setup flow-mod object
-        ForwardingObjective forwardingObjective = DefaultForwardingObjective.builder()
+        return DefaultForwardingObjective.builder()
                 .withSelector(selector)
                 .withTreatment(treatment)
                 .withPriority(DEFAULT_PRIORITY)
                 .withFlag(ForwardingObjective.Flag.VERSATILE)
                 .fromApp(app_id)
-                .makeTemporary(DEFAULT_TIMEOUT)
-                .add();
+                .makePermanent();
+    }
 
-        // Forward flow-mod object
-        flowObjectiveService.forward(context.inPacket().receivedFrom().deviceId(), forwardingObjective);
+    /**
+     * Build the forwarding objective which hands the packets matching its fields to a group of next hops
+     *
+     * @param selector match fields of the entry
+     * @param next_id  next objective ID of the group
+     * @return forwarding objective builder
+     */
+    private ForwardingObjective.Builder next_hop_objective(TrafficSelector selector, int next_id) {
+        return DefaultForwardingObjective.builder()
+                .withSelector(selector)
+                .nextStep(next_id)
+                .withPriority(DEFAULT_PRIORITY)
+                .withFlag(ForwardingObjective.Flag.VERSATILE)
+                .fromApp(app_id)
+                .makePermanent();
+    }
 
-        // Packet-out
-        packet_out(context, output_port, input_port);
+    /**
+     * Build the next objective of a group of next hops with its current ports, the switch hashes each flow
+     * onto one of them
+     *
+     * @param group group of next hops
+     * @return next objective builder
+     */
+    private NextObjective.Builder next_objective(NextHopGroups.Group group) {
+        Set<PortNumber> ports = group.ports();
+        NextObjective.Builder builder = DefaultNextObjective.builder()
+                .withId(group.id)
+                .withType(ports.size() > 1 ? NextObjective.Type.HASHED : NextObjective.Type.SIMPLE)
+                .fromApp(app_id);
+        for (PortNumber port : ports)
+            builder.addTreatment(DefaultNextTreatment.of(DefaultTrafficTreatment.builder().setOutput(port).build()));
+        return builder;
+    }
+
+    /**
+     * Whether a device is in the current topology, which only holds the available devices
+     *
+     * @param device_id device ID
+     * @return boolean
+     */
+    private boolean in_topology(DeviceId device_id) {
+        return topologyService.getGraph(topologyService.currentTopology()).getVertexes()
+                .contains(new DefaultTopologyVertex(device_id));
     }
 
     /** Topology Listener from ReactiveForwarding */
     private class InternalTopologyListener implements TopologyListener {
         @Override
         public void event(TopologyEvent event) {
+            pathCache.invalidate(event);
+            backupPaths.invalidate(event);
+            log.debug("Path cache: {} entries, {} hits, {} misses",
+                    pathCache.size(), pathCache.hitCount(), pathCache.missCount());
+
             List<Event> reasons = event.reasons();
             if (reasons != null) {
                 reasons.forEach(re -> {
                     if (re instanceof LinkEvent) {
                         LinkEvent le = (LinkEvent) re;
-                        if (le.type() == LinkEvent.Type.LINK_REMOVED && blackHoleExecutor != null) {
-                            blackHoleExecutor.submit(() -> fixBlackhole(le.subject().src()));
-                        }
+                        if (le.type() == LinkEvent.Type.LINK_REMOVED)
+                            requestRepair(le.subject().src());
+                    } else if (re instanceof DeviceEvent) {
+                        DeviceEvent de = (DeviceEvent) re;
+                        // Hosts of a device which went away are located again
+                        if (de.type() == DeviceEvent.Type.DEVICE_REMOVED ||
+                                de.type() == DeviceEvent.Type.DEVICE_AVAILABILITY_CHANGED)
+                            learnedLocations.values().removeIf(
+                                    learned -> learned.location.deviceId().equals(de.subject().id()));
                     }
                 });
             }
         }
     }
 
+    /** Forgets the learned location of a host which moved or was removed */
+    private class InternalHostListener implements HostListener {
+        @Override
+        public void event(HostEvent event) {
+            if (event.type() == HostEvent.Type.HOST_REMOVED || event.type() == HostEvent.Type.HOST_MOVED)
+                learnedLocations.remove(event.subject().mac());
+        }
+    }
+
+    /** Keeps the flow rule index in step with the entries of the app */
+    private class InternalFlowRuleListener implements FlowRuleListener {
+        @Override
+        public boolean isRelevant(FlowRuleEvent event) {
+            return app_id != null && event.subject().appId() == app_id.id();
+        }
+
+        @Override
+        public void event(FlowRuleEvent event) {
+            switch (event.type()) {
+                case RULE_ADD_REQUESTED:
+                case RULE_ADDED:
+                case RULE_UPDATED:
+                    flowRuleIndex.add(event.subject());
+                    break;
+                case RULE_REMOVE_REQUESTED:
+                    flowRuleIndex.remove(event.subject());
+                    forgetForwarding(event.subject());
+                    break;
+                case RULE_REMOVED:
+                    flowRuleIndex.remove(event.subject());
+                    forgetForwarding(event.subject());
+                    forgetNextHops(event.subject());
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Whether a flow rule is a forwarding entry installed by install_forwarding, in any granularity
+     *
+     * @param rule flow rule
+     * @return boolean
+     */
+    private static boolean isForwarding(FlowRule rule) {
+        return RuleGranularity.isForwarding(rule.selector());
+    }
+
+    /**
+     * Table of a forwarding entry, entries with a next step point at their group in 'ecmp_forward'
+     *
+     * @param rule forwarding entry
+     * @return forwarding table
+     */
+    private static ForwardingTable tableOf(FlowRule rule) {
+        ForwardingTable table = ForwardingTable.of(rule.table());
+        if (table != null)
+            return table;
+        return FlowRuleIndex.outputs(rule).isEmpty() ? ForwardingTable.ECMP_FORWARD :
+                ForwardingTable.of(rule.selector());
+    }
+
+    /**
+     * Release the table slot of a forwarding entry which left its switch
+     *
+     * @param rule removed flow rule
+     */
+    private void forgetForwarding(FlowRule rule) {
+        if (isForwarding(rule))
+            tableOccupancy.remove(rule.deviceId(), tableOf(rule), rule.selector());
+    }
+
+    /**
+     * Remove the group of next hops of an entry which left its switch, once no other entry points at it
+     *
+     * @param rule removed flow rule
+     */
+    private void forgetNextHops(FlowRule rule) {
+        // Entries with a next step point at their group instead of outputting to a port
+        if (!isForwarding(rule) || !FlowRuleIndex.outputs(rule).isEmpty())
+            return;
+        NextHopGroups.Group released = nextHops.unbind(rule.deviceId(), rule.selector());
+        if (released != null)
+            issue(rule.deviceId(), next_objective(released).remove());
+    }
+
+    /**
+     * Remove every forwarding entry of the app, the next packet-ins install entries of the new granularity
+     */
+    private void removeForwardingEntries() {
+        List<FlowRule> entries = new ArrayList<>();
+        for (FlowEntry entry : flowRuleService.getFlowEntriesById(app_id)) {
+            if (isForwarding(entry))
+                entries.add(entry);
+        }
+        if (!entries.isEmpty()) {
+            log.info("Removing {} forwarding entries of the previous granularity", entries.size());
+            flowRuleService.removeFlowRules(entries.toArray(new FlowRule[0]));
+        }
+    }
+
+    /**
+     * Read the packet counts of all forwarding entries in one pass, keep the entries which saw traffic
+     * and remove the ones idle for the idle timeout
+     */
+    void expireIdleEntries() {
+        long now = System.currentTimeMillis();
+        long idleTimeout = TimeUnit.SECONDS.toMillis(idleTimeout());
+        Set<FlowId> present = new HashSet<>();
+        List<FlowRule> idle = new ArrayList<>();
+        for (FlowEntry entry : flowRuleService.getFlowEntriesById(app_id)) {
+            if (entry.state() != FlowEntry.FlowEntryState.ADDED || !isForwarding(entry))
+                continue;
+            present.add(entry.id());
+            if (idleTracker.update(entry, now))
+                tableOccupancy.touch(entry.deviceId(), tableOf(entry), entry.selector());
+            else if (idleTracker.isIdle(entry, now, idleTimeout))
+                idle.add(entry);
+        }
+        idleTracker.retain(present);
+
+        if (!idle.isEmpty()) {
+            log.debug("Removing {} idle forwarding entries", idle.size());
+            flowRuleService.removeFlowRules(idle.toArray(new FlowRule[0]));
+        }
+    }
+
+    /**
+     * Seconds without traffic after which a forwarding entry expires, DEFAULT_TIMEOUT unless that is less than
+     * IDLE_POLLS flow statistics polls, a busy entry would look idle between two polls otherwise
+     *
+     * @return idle timeout in seconds
+     */
+    private int idleTimeout() {
+        int pollFrequency = FLOW_POLL_FREQUENCY_DEFAULT;
+        ConfigProperty property = cfgService.getProperty(FLOW_RULE_MANAGER, FLOW_POLL_FREQUENCY);
+        if (property != null) {
+            try {
+                pollFrequency = property.asInteger();
+            } catch (NumberFormatException e) {
+                log.warn("Unreadable {} of {}: {}", FLOW_POLL_FREQUENCY, FLOW_RULE_MANAGER, property.value());
+            }
+        }
+
+        int timeout = Math.max(DEFAULT_TIMEOUT, IDLE_POLLS * pollFrequency);
+        if (timeout != idleTimeout) {
+            log.info("Forwarding entries expire after {} s without traffic, flow statistics are polled every {} s",
+                    timeout, pollFrequency);
+            idleTimeout = timeout;
+        }
+        return timeout;
+    }
+
+    /**
+     * Queue the repair of an egress point whose link went down, a burst of link events makes one repair pass
+     *
+     * @param egress source of the removed link
+     */
+    private void requestRepair(ConnectPoint egress) {
+        pendingRepairs.add(egress);
+        if (repairScheduled.compareAndSet(false, true)) {
+            repairRequestedAt = System.nanoTime();
+            blackHoleExecutor.schedule(this::repairBlackholes, REPAIR_COALESCE_WINDOW, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Repair all queued egress points, one worker per egress device, and remove the entries with one
+     * batch per device
+     */
+    private void repairBlackholes() {
+        long requestedAt = repairRequestedAt;
+        // Links removed from now on are repaired by the next pass
+        repairScheduled.set(false);
+
+        Map<DeviceId, List<ConnectPoint>> egresses = new HashMap<>();
+        for (Iterator<ConnectPoint> it = pendingRepairs.iterator(); it.hasNext(); ) {
+            ConnectPoint egress = it.next();
+            it.remove();
+            egresses.computeIfAbsent(egress.deviceId(), k -> new ArrayList<>()).add(egress);
+        }
+        if (egresses.isEmpty())
+            return;
+        rerouteNextHops();
+
+        List<CompletableFuture<Map<DeviceId, Set<FlowRule>>>> futures = new ArrayList<>();
+        for (List<ConnectPoint> deviceEgresses : egresses.values()) {
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                Map<DeviceId, Set<FlowRule>> removals = new HashMap<>();
+                deviceEgresses.forEach(egress -> fixBlackhole(egress, removals));
+                return removals;
+            }, repairWorkers));
+        }
+
+        Map<DeviceId, Set<FlowRule>> removals = new HashMap<>();
+        for (CompletableFuture<Map<DeviceId, Set<FlowRule>>> future : futures) {
+            try {
+                future.join().forEach((id, rules) ->
+                        removals.computeIfAbsent(id, k -> new HashSet<>()).addAll(rules));
+            } catch (CompletionException e) {
+                log.warn("Blackhole repair failed", e.getCause());
+            }
+        }
+        removeFlowRules(removals, requestedAt);
+    }
+
+    /**
+     * Point every group of next hops at the first hops of the current shortest paths toward its destination
+     * switch, the entries pointing at a group are left alone. The entries of a group whose destination
+     * switch is no longer reachable are removed, with the group once the last one is.
+     */
+    private void rerouteNextHops() {
+        int updated = 0;
+        for (Map.Entry<DeviceId, List<NextHopGroups.Group>> device : nextHops.groups().entrySet()) {
+            DeviceId device_id = device.getKey();
+            for (NextHopGroups.Group group : device.getValue()) {
+                Set<PortNumber> ports = first_hops(pathCache.getPaths(device_id, group.toward), null);
+                if (ports.isEmpty()) {
+                    for (TrafficSelector match : nextHops.entries(group))
+                        issue(device_id, next_hop_objective(match, group.id).remove());
+                    continue;
+                }
+                if (!ecmp)
+                    ports = ImmutableSet.of(ports.iterator().next());
+                if (nextHops.update(group, ports)) {
+                    issue(device_id, next_objective(group).modify());
+                    updated++;
+                }
+            }
+        }
+        if (updated > 0)
+            log.debug("Rerouted {} next hop groups", updated);
+    }
+
     /** Blackhole fixing functions from ReactiveForwarding */
-    private void fixBlackhole(ConnectPoint egress) {
-        Set<FlowEntry> rules = getFlowRulesFrom(egress);
+    private void fixBlackhole(ConnectPoint egress, Map<DeviceId, Set<FlowRule>> removals) {
+        Set<FlowRule> rules = new HashSet<>(flowRuleIndex.rulesTo(egress));
+        // Entries with a backup port are rerouted in place, the switch already left the egress with them but
+        // the backup port is only loop-free until other entries change and has no backup of its own
+        for (Iterator<FlowRule> it = rules.iterator(); it.hasNext(); ) {
+            FlowRule rule = it.next();
+            if (hasBackup(rule)) {
+                it.remove();
+                rerouteFailover(rule, removals);
+            }
+        }
         Set<SrcDstPair> pairs = findSrcDstPairs(rules);
 
         Map<DeviceId, Set<Path>> srcPaths = new HashMap<>();
 
         for (SrcDstPair sd : pairs) {
+            // Entries without a source MAC, matching the destination and maybe the ingress port, have no
+            // source to back track to, removing them here makes the next packet punt and take a new path
+            if (sd.src == null) {
+                cleanFlowRules(sd, egress.deviceId(), removals);
+                continue;
+            }
+
             // get the edge deviceID for the src host
             Host srcHost = hostService.getHost(HostId.hostId(sd.src));
             Host dstHost = hostService.getHost(HostId.hostId(sd.dst));
@@ -381,34 +1743,50 @@ public class AppComponent implements SomeInterface {
                 DeviceId dstId = dstHost.location().deviceId();
                 log.trace("SRC ID is {}, DST ID is {}", srcId, dstId);
 
-                cleanFlowRules(sd, egress.deviceId());
+                cleanFlowRules(sd, egress.deviceId(), removals);
 
                 Set<Path> shortestPaths = srcPaths.get(srcId);
                 if (shortestPaths == null) {
-                    shortestPaths = topologyService.getPaths(topologyService.currentTopology(),
-                            egress.deviceId(), srcId);
+                    shortestPaths = pathCache.getPaths(egress.deviceId(), srcId);
                     srcPaths.put(srcId, shortestPaths);
                 }
-                backTrackBadNodes(shortestPaths, dstId, sd);
+                backTrackBadNodes(shortestPaths, dstId, sd, removals);
             }
         }
     }
 
-    private Set<FlowEntry> getFlowRulesFrom(ConnectPoint egress) {
-        ImmutableSet.Builder<FlowEntry> builder = ImmutableSet.builder();
-        flowRuleService.getFlowEntries(egress.deviceId()).forEach(r -> {
-            if (r.appId() == app_id.id()) {
-                r.treatment().allInstructions().forEach(i -> {
-                    if (i.type() == Instruction.Type.OUTPUT) {
-                        if (((Instructions.OutputInstruction) i).port().equals(egress.port())) {
-                            builder.add(r);
-                        }
-                    }
-                });
-            }
-        });
+    /**
+     * Whether an entry has a backup port the switch fails over to
+     *
+     * @param rule forwarding entry
+     * @return boolean
+     */
+    private static boolean hasBackup(FlowRule rule) {
+        return FlowRuleIndex.outputs(rule).size() == 2;
+    }
 
-        return builder.build();
+    /**
+     * Point an entry with a backup port at the first hop of a current shortest path toward the switch of its
+     * destination host, with a new backup port, or remove it if the destination is unknown or unreachable
+     *
+     * @param rule     forwarding entry, destination MAC only
+     * @param removals entries to remove per device
+     */
+    private void rerouteFailover(FlowRule rule, Map<DeviceId, Set<FlowRule>> removals) {
+        DeviceId device_id = rule.deviceId();
+        ConnectPoint dst = locate(HostId.hostId(FlowRuleIndex.ethDst(rule)));
+        if (dst != null) {
+            if (dst.deviceId().equals(device_id)) {
+                install_forwarding(device_id, rule.selector(), dst.port());
+                return;
+            }
+            Set<Path> paths = pathCache.getPaths(device_id, dst.deviceId());
+            if (!paths.isEmpty()) {
+                install_hop(device_id, rule.selector(), dst.deviceId(), paths.iterator().next().src().port());
+                return;
+            }
+        }
+        removals.computeIfAbsent(device_id, k -> new HashSet<>()).add(rule);
     }
 
     // Wrapper class for a source and destination pair of MAC addresses
@@ -441,7 +1819,8 @@ public class AppComponent implements SomeInterface {
     }
 
     // Backtracks from link down event to remove flows that lead to blackhole
-    private void backTrackBadNodes(Set<Path> shortestPaths, DeviceId dstId, SrcDstPair sd) {
+    private void backTrackBadNodes(Set<Path> shortestPaths, DeviceId dstId, SrcDstPair sd,
+                                   Map<DeviceId, Set<FlowRule>> removals) {
         for (Path p : shortestPaths) {
             List<Link> pathLinks = p.links();
             for (int i = 0; i < pathLinks.size(); i = i + 1) {
@@ -450,66 +1829,76 @@ public class AppComponent implements SomeInterface {
 
                 // skipping the first link because this link's src has already been pruned beforehand
                 if (i != 0) {
-                    cleanFlowRules(sd, curDevice);
+                    cleanFlowRules(sd, curDevice, removals);
                 }
 
-                Set<Path> pathsFromCurDevice =
-                        topologyService.getPaths(topologyService.currentTopology(),
-                                curDevice, dstId);
+                Set<Path> pathsFromCurDevice = pathCache.getPaths(curDevice, dstId);
                 if (pick_forward_path_if_possible(pathsFromCurDevice, curLink.src().port()) != null) {
                     break;
                 } else {
                     if (i + 1 == pathLinks.size()) {
-                        cleanFlowRules(sd, curLink.dst().deviceId());
+                        cleanFlowRules(sd, curLink.dst().deviceId(), removals);
                     }
                 }
             }
         }
     }
 
-    // Removes flow rules off specified device with specific SrcDstPair
-    private void cleanFlowRules(SrcDstPair pair, DeviceId id) {
+    // Collects the flow rules with specific SrcDstPair off specified device for removal
+    private void cleanFlowRules(SrcDstPair pair, DeviceId id, Map<DeviceId, Set<FlowRule>> removals) {
         log.trace("Searching for flow rules to remove from: {}", id);
         log.trace("Removing flows w/ SRC={}, DST={}", pair.src, pair.dst);
-        for (FlowEntry r : flowRuleService.getFlowEntries(id)) {
-            boolean matchesSrc = false, matchesDst = false;
-            for (Instruction i : r.treatment().allInstructions()) {
-                if (i.type() == Instruction.Type.OUTPUT) {
-                    // if the flow has matching src and dst
-                    for (Criterion cr : r.selector().criteria()) {
-                        if (cr.type() == Criterion.Type.ETH_DST) {
-                            if (((EthCriterion) cr).mac().equals(pair.dst)) {
-                                matchesDst = true;
-                            }
-                        } else if (cr.type() == Criterion.Type.ETH_SRC) {
-                            if (((EthCriterion) cr).mac().equals(pair.src)) {
-                                matchesSrc = true;
-                            }
-                        }
-                    }
-                }
+        for (FlowRule r : flowRuleIndex.rulesFor(id, pair.dst)) {
+            if (Objects.equals(FlowRuleIndex.ethSrc(r), pair.src))
+                removals.computeIfAbsent(id, k -> new HashSet<>()).add(r);
+        }
+    }
+
+    // Removes the collected flow rules with one batch per device, the repair is timed until all batches complete
+    private void removeFlowRules(Map<DeviceId, Set<FlowRule>> removals, long requestedAt) {
+        if (removals.isEmpty()) {
+            recordRepair(requestedAt, 0);
+            return;
+        }
+
+        int total = removals.values().stream().mapToInt(Set::size).sum();
+        AtomicInteger remaining = new AtomicInteger(removals.size());
+        FlowRuleOperationsContext context = new FlowRuleOperationsContext() {
+            @Override
+            public void onSuccess(FlowRuleOperations ops) {
+                if (remaining.decrementAndGet() == 0)
+                    recordRepair(requestedAt, total);
             }
-            if (matchesDst && matchesSrc) {
-                log.trace("Removed flow rule from device: {}", id);
-                flowRuleService.removeFlowRules((FlowRule) r);
+
+            @Override
+            public void onError(FlowRuleOperations ops) {
+                log.warn("Failed to remove blackholed flow rules: {}", ops);
+                if (remaining.decrementAndGet() == 0)
+                    recordRepair(requestedAt, total);
             }
-        }
+        };
 
+        removals.forEach((id, rules) -> {
+            FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+            rules.forEach(ops::remove);
+            log.trace("Removing {} flow rules from device: {}", rules.size(), id);
+            flowRuleService.apply(ops.build(context));
+        });
     }
 
-    // Returns a set of src/dst MAC pairs extracted from the specified set of flow entries
-    private Set<SrcDstPair> findSrcDstPairs(Set<FlowEntry> rules) {
+    private void recordRepair(long requestedAt, int removed) {
+        long elapsed = System.nanoTime() - requestedAt;
+        timeToRepair.update(elapsed, TimeUnit.NANOSECONDS);
+        log.debug("Blackhole repair removed {} flow rules in {} ms", removed, TimeUnit.NANOSECONDS.toMillis(elapsed));
+    }
+
+    // Returns a set of src/dst MAC pairs extracted from the specified set of flow rules
+    private Set<SrcDstPair> findSrcDstPairs(Set<FlowRule> rules) {
         ImmutableSet.Builder<SrcDstPair> builder = ImmutableSet.builder();
-        for (FlowEntry r : rules) {
-            MacAddress src = null, dst = null;
-            for (Criterion cr : r.selector().criteria()) {
-                if (cr.type() == Criterion.Type.ETH_DST) {
-                    dst = ((EthCriterion) cr).mac();
-                } else if (cr.type() == Criterion.Type.ETH_SRC) {
-                    src = ((EthCriterion) cr).mac();
-                }
-            }
-            builder.add(new SrcDstPair(src, dst));
+        for (FlowRule r : rules) {
+            MacAddress dst = FlowRuleIndex.ethDst(r);
+            if (dst != null)
+                builder.add(new SrcDstPair(FlowRuleIndex.ethSrc(r), dst));
         }
         return builder.build();
     }
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.p4bridge;
+
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * IP to MAC bindings used to answer ARP requests, and the last time each unknown target was
+ * flooded so a miss is flooded at most once per interval.
+ */
+final class ArpCache {
+
+    private final Map<Ip4Address, Binding> bindings = new ConcurrentHashMap<>();
+    private final Map<Ip4Address, Long> lastMiss = new ConcurrentHashMap<>();
+    private final long bindingTimeout;
+
+    /**
+     * @param bindingTimeout time in milliseconds after which a binding expires
+     */
+    ArpCache(long bindingTimeout) {
+        this.bindingTimeout = bindingTimeout;
+    }
+
+    /**
+     * Record where an IP address lives, the target stops being a miss
+     *
+     * @param ip  IP address
+     * @param mac MAC address of the host owning it
+     * @param now current time in milliseconds
+     */
+    void bind(Ip4Address ip, MacAddress mac, long now) {
+        bindings.put(ip, new Binding(mac, now + bindingTimeout));
+        lastMiss.remove(ip);
+    }
+
+    /**
+     * MAC address bound to an IP address
+     *
+     * @param ip  IP address
+     * @param now current time in milliseconds
+     * @return MAC address or null if unknown or expired
+     */
+    MacAddress lookup(Ip4Address ip, long now) {
+        Binding binding = bindings.get(ip);
+        if (binding == null)
+            return null;
+        if (now >= binding.expiresAt) {
+            bindings.remove(ip, binding);
+            return null;
+        }
+        return binding.mac;
+    }
+
+    /**
+     * Whether a request for an unknown target may be flooded, at most once per interval and target
+     *
+     * @param ip       target IP address
+     * @param now      current time in milliseconds
+     * @param interval minimum time in milliseconds between two floods of the same target
+     * @return boolean
+     */
+    boolean allowMiss(Ip4Address ip, long now, long interval) {
+        boolean[] allowed = new boolean[1];
+        lastMiss.compute(ip, (k, last) -> {
+            if (last != null && now - last < interval)
+                return last;
+            allowed[0] = true;
+            return now;
+        });
+        return allowed[0];
+    }
+
+    /**
+     * Drop expired bindings and miss records older than an interval
+     *
+     * @param now      current time in milliseconds
+     * @param interval miss interval in milliseconds
+     */
+    void purge(long now, long interval) {
+        bindings.values().removeIf(binding -> now >= binding.expiresAt);
+        lastMiss.values().removeIf(last -> now - last >= interval);
+    }
+
+    void clear() {
+        bindings.clear();
+        lastMiss.clear();
+    }
+
+    int size() {
+        return bindings.size();
+    }
+
+    // MAC address of a binding and when it expires
+    private static final class Binding {
+        final MacAddress mac;
+        final long expiresAt;
+
+        private Binding(MacAddress mac, long expiresAt) {
+            this.mac = mac;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.p4bridge;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import org.onlab.metrics.MetricsComponent;
+import org.onlab.metrics.MetricsFeature;
+import org.onlab.metrics.MetricsService;
+import org.onosproject.net.DeviceId;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per device packet-in metrics of the bridge, registered with the metrics service under
+ * "COMPONENT.DEVICE_ID.NAME" so they can be read with the metrics CLI command and REST API.
+ * The metrics of a device are created the first time it sends a packet-in.
+ */
+final class BridgeMetrics {
+
+    /** Outcomes of a packet-in and other events counted per device. */
+    enum Event {
+        /** Packet-in the bridge made a forwarding decision for */
+        PROCESSED("processed"),
+        /** Packet-in left alone, like control packets or packets for the port they came from */
+        IGNORED("ignored"),
+        /** Packet-in flooded */
+        FLOODED("flooded"),
+        /** Packet-in sent out of a single port */
+        UNICAST("unicast"),
+        /** Packet-in dropped by the bridge */
+        BLOCKED("blocked"),
+        /** Forwarding objective sent to the device */
+        OBJECTIVES("objectives"),
+        /** ARP request answered by the controller */
+        ARP_REPLIED("arpReplied"),
+        /** ARP request for an unknown target dropped because the target was flooded recently */
+        ARP_SUPPRESSED("arpSuppressed"),
+        /** Forwarding objective not sent because the same entry is still being written */
+        IN_FLIGHT("inFlight"),
+        /** Packet-out held until the forwarding entry of the device is written */
+        BUFFERED("buffered");
+
+        private final String metricName;
+
+        Event(String metricName) {
+            this.metricName = metricName;
+        }
+    }
+
+    /** Timed stages of the packet-in processing. */
+    enum Stage {
+        /** Path lookup from the device to the destination switch */
+        PATH_LOOKUP("pathLookup"),
+        /** Processing of a packet-in, from its worker picking it up to the decision */
+        PROCESS("process");
+
+        private final String metricName;
+
+        Stage(String metricName) {
+            this.metricName = metricName;
+        }
+    }
+
+    private final MetricsService metricsService;
+    private final MetricsComponent component;
+    private final Map<DeviceId, DeviceMetrics> devices = new ConcurrentHashMap<>();
+
+    /**
+     * @param metricsService metrics service
+     * @param component      metrics component of the app
+     */
+    BridgeMetrics(MetricsService metricsService, MetricsComponent component) {
+        this.metricsService = metricsService;
+        this.component = component;
+    }
+
+    /**
+     * Count an event of a device
+     *
+     * @param deviceId device ID
+     * @param event    event
+     */
+    void mark(DeviceId deviceId, Event event) {
+        of(deviceId).meters[event.ordinal()].mark();
+    }
+
+    /**
+     * Start timing a stage of a device
+     *
+     * @param deviceId device ID
+     * @param stage    stage
+     * @return timer context to stop when the stage is over
+     */
+    Timer.Context time(DeviceId deviceId, Stage stage) {
+        return of(deviceId).timers[stage.ordinal()].time();
+    }
+
+    /**
+     * Meter of an event of a device
+     *
+     * @param deviceId device ID
+     * @param event    event
+     * @return meter
+     */
+    Meter meter(DeviceId deviceId, Event event) {
+        return of(deviceId).meters[event.ordinal()];
+    }
+
+    /**
+     * Timer of a stage of a device
+     *
+     * @param deviceId device ID
+     * @param stage    stage
+     * @return timer
+     */
+    Timer timer(DeviceId deviceId, Stage stage) {
+        return of(deviceId).timers[stage.ordinal()];
+    }
+
+    /** Unregister the metrics of all devices */
+    void clear() {
+        devices.forEach((deviceId, metrics) -> {
+            for (Event event : Event.values())
+                metricsService.removeMetric(component, metrics.feature, event.metricName);
+            for (Stage stage : Stage.values())
+                metricsService.removeMetric(component, metrics.feature, stage.metricName);
+        });
+        devices.clear();
+    }
+
+    private DeviceMetrics of(DeviceId deviceId) {
+        DeviceMetrics metrics = devices.get(deviceId);
+        return metrics != null ? metrics : devices.computeIfAbsent(deviceId, DeviceMetrics::new);
+    }
+
+    // Metrics of one device
+    private final class DeviceMetrics {
+        final MetricsFeature feature;
+        final Meter[] meters = new Meter[Event.values().length];
+        final Timer[] timers = new Timer[Stage.values().length];
+
+        private DeviceMetrics(DeviceId deviceId) {
+            feature = component.registerFeature(deviceId.toString());
+            for (Event event : Event.values())
+                meters[event.ordinal()] = metricsService.createMeter(component, feature, event.metricName);
+            for (Stage stage : Stage.values())
+                timers[stage.ordinal()] = metricsService.createTimer(component, feature, stage.metricName);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.p4bridge;
+
+import com.google.common.collect.ImmutableSet;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.FlowId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.criteria.EthCriterion;
+import org.onosproject.net.flow.instructions.Instruction;
+import org.onosproject.net.flow.instructions.Instructions;
+import org.onosproject.net.flow.instructions.PiInstruction;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiActionParamId;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiActionParam;
+import org.onosproject.net.pi.runtime.PiTableAction;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Index of the forwarding entries of the app by (device, output port) and (device, destination MAC).
+ * Only entries with an output action, or the set_egress_ports action of the pipeline, are kept,
+ * an entry replaces the one with the same flow ID.
+ */
+final class FlowRuleIndex {
+
+    /** Action of the pipeline which sets the egress port and the port the switch fails over to */
+    static final PiActionId SET_EGRESS_PORTS = PiActionId.of("MyIngress.set_egress_ports");
+    static final PiActionParamId PORT = PiActionParamId.of("port");
+    static final PiActionParamId BACKUP = PiActionParamId.of("backup");
+
+    private final Map<FlowId, FlowRule> rules = new HashMap<>();
+    private final Map<ConnectPoint, Set<FlowId>> byOutput = new HashMap<>();
+    private final Map<DeviceMac, Set<FlowId>> byDst = new HashMap<>();
+
+    /**
+     * Add an entry, replacing the one with the same flow ID
+     *
+     * @param rule flow rule
+     */
+    synchronized void add(FlowRule rule) {
+        remove(rule);
+        Set<PortNumber> outputs = outputs(rule);
+        if (outputs.isEmpty())
+            return;
+
+        rules.put(rule.id(), rule);
+        for (PortNumber port : outputs)
+            byOutput.computeIfAbsent(new ConnectPoint(rule.deviceId(), port), k -> new HashSet<>()).add(rule.id());
+        MacAddress dst = ethDst(rule);
+        if (dst != null)
+            byDst.computeIfAbsent(new DeviceMac(rule.deviceId(), dst), k -> new HashSet<>()).add(rule.id());
+    }
+
+    /**
+     * Remove an entry
+     *
+     * @param rule flow rule
+     */
+    synchronized void remove(FlowRule rule) {
+        FlowRule removed = rules.remove(rule.id());
+        if (removed != null)
+            unindex(removed);
+    }
+
+    /**
+     * Entries of a device which output to a port
+     *
+     * @param egress device and output port
+     * @return set of flow rules
+     */
+    synchronized Set<FlowRule> rulesTo(ConnectPoint egress) {
+        return lookup(byOutput.get(egress));
+    }
+
+    /**
+     * Entries of a device which match a destination MAC
+     *
+     * @param deviceId device ID
+     * @param dst      destination MAC
+     * @return set of flow rules
+     */
+    synchronized Set<FlowRule> rulesFor(DeviceId deviceId, MacAddress dst) {
+        return lookup(byDst.get(new DeviceMac(deviceId, dst)));
+    }
+
+    /** Drop all entries */
+    synchronized void clear() {
+        rules.clear();
+        byOutput.clear();
+        byDst.clear();
+    }
+
+    synchronized int size() {
+        return rules.size();
+    }
+
+    private Set<FlowRule> lookup(Set<FlowId> ids) {
+        if (ids == null)
+            return ImmutableSet.of();
+        ImmutableSet.Builder<FlowRule> builder = ImmutableSet.builder();
+        for (FlowId id : ids)
+            builder.add(rules.get(id));
+        return builder.build();
+    }
+
+    private void unindex(FlowRule rule) {
+        for (PortNumber port : outputs(rule))
+            unindex(byOutput, new ConnectPoint(rule.deviceId(), port), rule.id());
+        MacAddress dst = ethDst(rule);
+        if (dst != null)
+            unindex(byDst, new DeviceMac(rule.deviceId(), dst), rule.id());
+    }
+
+    private static <K> void unindex(Map<K, Set<FlowId>> index, K key, FlowId id) {
+        Set<FlowId> ids = index.get(key);
+        if (ids != null && ids.remove(id) && ids.isEmpty())
+            index.remove(key);
+    }
+
+    /**
+     * Output ports of a flow rule, the egress port of set_egress_ports comes before its backup port
+     *
+     * @param rule flow rule
+     * @return set of port numbers
+     */
+    static Set<PortNumber> outputs(FlowRule rule) {
+        if (rule.treatment() == null)
+            return ImmutableSet.of();
+        ImmutableSet.Builder<PortNumber> builder = ImmutableSet.builder();
+        for (Instruction i : rule.treatment().allInstructions()) {
+            if (i.type() == Instruction.Type.OUTPUT) {
+                builder.add(((Instructions.OutputInstruction) i).port());
+            } else if (i.type() == Instruction.Type.PROTOCOL_INDEPENDENT) {
+                PiTableAction action = ((PiInstruction) i).action();
+                if (action.type() == PiTableAction.Type.ACTION && ((PiAction) action).id().equals(SET_EGRESS_PORTS)) {
+                    for (PiActionParam param : ((PiAction) action).parameters()) {
+                        if (param.id().equals(PORT))
+                            builder.add(port(param));
+                    }
+                    for (PiActionParam param : ((PiAction) action).parameters()) {
+                        if (param.id().equals(BACKUP))
+                            builder.add(port(param));
+                    }
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Port number carried by an action parameter
+     *
+     * @param param action parameter
+     * @return port number
+     */
+    private static PortNumber port(PiActionParam param) {
+        long number = 0;
+        for (byte b : param.value().asArray())
+            number = (number << 8) | (b & 0xff);
+        return PortNumber.portNumber(number);
+    }
+
+    /**
+     * Build the set_egress_ports action
+     *
+     * @param port   egress port
+     * @param backup port the switch fails over to while the egress port is down
+     * @return PI action
+     */
+    static PiAction setEgressPorts(PortNumber port, PortNumber backup) {
+        return PiAction.builder()
+                .withId(SET_EGRESS_PORTS)
+                .withParameter(new PiActionParam(PORT, port.toLong()))
+                .withParameter(new PiActionParam(BACKUP, backup.toLong()))
+                .build();
+    }
+
+    /**
+     * Source MAC matched by a flow rule
+     *
+     * @param rule flow rule
+     * @return MAC address, null if the rule does not match on it
+     */
+    static MacAddress ethSrc(FlowRule rule) {
+        Criterion cr = rule.selector().getCriterion(Criterion.Type.ETH_SRC);
+        return cr == null ? null : ((EthCriterion) cr).mac();
+    }
+
+    /**
+     * Destination MAC matched by a flow rule
+     *
+     * @param rule flow rule
+     * @return MAC address, null if the rule does not match on it
+     */
+    static MacAddress ethDst(FlowRule rule) {
+        Criterion cr = rule.selector().getCriterion(Criterion.Type.ETH_DST);
+        return cr == null ? null : ((EthCriterion) cr).mac();
+    }
+
+    // Wrapper class for a device and a MAC address
+    private static final class DeviceMac {
+        final DeviceId deviceId;
+        final MacAddress mac;
+
+        private DeviceMac(DeviceId deviceId, MacAddress mac) {
+            this.deviceId = deviceId;
+            this.mac = mac;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            DeviceMac that = (DeviceMac) o;
+            return Objects.equals(deviceId, that.deviceId) &&
+                    Objects.equals(mac, that.mac);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(deviceId, mac);
+        }
+    }
+}
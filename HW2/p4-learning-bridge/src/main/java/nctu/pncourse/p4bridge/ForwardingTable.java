@@ -0,0 +1,80 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.p4bridge;
+
+import org.onosproject.net.flow.TableId;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.pi.model.PiTableId;
+
+/**
+ * Tables of the pipeline which hold the forwarding entries of the bridge, with their size in learning_bridge.p4.
+ * Entries matching the destination MAC only go to the exact match table, or to the ECMP table when they point
+ * at a group of next hops, the finer granularities to the much smaller ternary one.
+ */
+enum ForwardingTable {
+    /** Exact match on the destination MAC */
+    DST_MAC_FORWARD("MyIngress.dst_mac_forward", 65536),
+    /** Exact match on the destination MAC, pointing at a group of next hops */
+    ECMP_FORWARD("MyIngress.ecmp_forward", 4096),
+    /** Ternary match on the destination MAC and the source MAC or the ingress port */
+    ETHERNET_FORWARD("MyIngress.ethernet_forward", 1024);
+
+    private final PiTableId id;
+    private final int size;
+
+    ForwardingTable(String id, int size) {
+        this.id = PiTableId.of(id);
+        this.size = size;
+    }
+
+    /**
+     * @return ID of the table in the pipeline
+     */
+    PiTableId id() {
+        return id;
+    }
+
+    /**
+     * @return number of entries the table holds
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Table of a forwarding entry which outputs to a port
+     *
+     * @param match match fields of the entry
+     * @return forwarding table
+     */
+    static ForwardingTable of(TrafficSelector match) {
+        return match.criteria().size() == 1 ? DST_MAC_FORWARD : ETHERNET_FORWARD;
+    }
+
+    /**
+     * Forwarding table of a table ID
+     *
+     * @param tableId table ID of a flow rule
+     * @return forwarding table, null if the table holds no forwarding entries
+     */
+    static ForwardingTable of(TableId tableId) {
+        for (ForwardingTable table : values()) {
+            if (table.id.equals(tableId))
+                return table;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.p4bridge;
+
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowId;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Last activity of the forwarding entries, from the packet counts read back with the entries.
+ * An entry is active when its count moved since the previous poll, a new entry counts as active.
+ */
+final class IdleTracker {
+
+    private final Map<FlowId, Activity> activities = new HashMap<>();
+
+    /**
+     * Record the packet count of an entry
+     *
+     * @param entry flow entry read from the device
+     * @param now   time of the poll in milliseconds
+     * @return whether the entry saw traffic since the previous poll
+     */
+    synchronized boolean update(FlowEntry entry, long now) {
+        Activity activity = activities.get(entry.id());
+        if (activity == null) {
+            activities.put(entry.id(), new Activity(entry.packets(), now));
+            return false;
+        }
+        if (activity.packets == entry.packets())
+            return false;
+        activity.packets = entry.packets();
+        activity.lastActive = now;
+        return true;
+    }
+
+    /**
+     * Whether an entry has seen no traffic for a while
+     *
+     * @param entry       flow entry
+     * @param now         current time in milliseconds
+     * @param idleTimeout idle time in milliseconds after which the entry expires
+     * @return boolean
+     */
+    synchronized boolean isIdle(FlowEntry entry, long now, long idleTimeout) {
+        Activity activity = activities.get(entry.id());
+        return activity != null && now - activity.lastActive >= idleTimeout;
+    }
+
+    /**
+     * Forget the entries which are no longer on the devices
+     *
+     * @param present IDs of the entries read in the last poll
+     */
+    synchronized void retain(Set<FlowId> present) {
+        activities.keySet().retainAll(present);
+    }
+
+    synchronized void clear() {
+        activities.clear();
+    }
+
+    synchronized int size() {
+        return activities.size();
+    }
+
+    // Packet count of an entry and when it last changed
+    private static final class Activity {
+        long packets;
+        long lastActive;
+
+        private Activity(long packets, long lastActive) {
+            this.packets = packets;
+            this.lastActive = lastActive;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.p4bridge;
+
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.TrafficSelector;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Forwarding entries whose objective was sent but not yet confirmed by the device, so the
+ * packet-ins of a flow arriving meanwhile are only sent out instead of issuing the same objective again.
+ * An entry is dropped when its objective succeeds or fails, or after a timeout if neither is reported.
+ */
+final class InFlightTable {
+
+    private final Map<Key, Pending> pending = new ConcurrentHashMap<>();
+    private final long timeout;
+
+    /**
+     * @param timeout time in milliseconds after which an unconfirmed entry is no longer in flight
+     */
+    InFlightTable(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Record the objective of an entry as in flight, unless the same entry already is
+     *
+     * @param deviceId device ID
+     * @param table    table of the entry
+     * @param match    match fields of the entry
+     * @param output   output port of the entry
+     * @param now      current time in milliseconds
+     * @return whether the objective has to be issued, false if an identical one is in flight
+     */
+    boolean begin(DeviceId deviceId, ForwardingTable table, TrafficSelector match, PortNumber output, long now) {
+        boolean[] issue = new boolean[1];
+        pending.compute(new Key(deviceId, table, match), (k, entry) -> {
+            if (entry != null && entry.output.equals(output) && now < entry.expiresAt)
+                return entry;
+            issue[0] = true;
+            return new Pending(output, now + timeout);
+        });
+        return issue[0];
+    }
+
+    /**
+     * Forget an entry once its objective is done, unless it was replaced by one to another port
+     *
+     * @param deviceId device ID
+     * @param table    table of the entry
+     * @param match    match fields of the entry
+     * @param output   output port of the entry
+     */
+    void end(DeviceId deviceId, ForwardingTable table, TrafficSelector match, PortNumber output) {
+        pending.computeIfPresent(new Key(deviceId, table, match),
+                (k, entry) -> entry.output.equals(output) ? null : entry);
+    }
+
+    /**
+     * Drop the entries whose objective was never confirmed
+     *
+     * @param now current time in milliseconds
+     */
+    void purge(long now) {
+        pending.values().removeIf(entry -> now >= entry.expiresAt);
+    }
+
+    void clear() {
+        pending.clear();
+    }
+
+    int size() {
+        return pending.size();
+    }
+
+    // Device, table and match fields of an entry
+    private static final class Key {
+        final DeviceId deviceId;
+        final ForwardingTable table;
+        final TrafficSelector match;
+
+        private Key(DeviceId deviceId, ForwardingTable table, TrafficSelector match) {
+            this.deviceId = deviceId;
+            this.table = table;
+            this.match = match;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key that = (Key) o;
+            return Objects.equals(deviceId, that.deviceId) &&
+                    table == that.table &&
+                    Objects.equals(match, that.match);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(deviceId, table, match);
+        }
+    }
+
+    // Output port of an entry in flight and when it stops being in flight
+    private static final class Pending {
+        final PortNumber output;
+        final long expiresAt;
+
+        private Pending(PortNumber output, long expiresAt) {
+            this.output = output;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
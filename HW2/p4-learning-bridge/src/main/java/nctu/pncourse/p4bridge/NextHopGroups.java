@@ -0,0 +1,227 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.p4bridge;
+
+import com.google.common.collect.ImmutableSet;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.TrafficSelector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntSupplier;
+
+/**
+ * Groups of next hops the forwarding entries of every device point at. All entries of a device to the
+ * hosts of one destination switch share the group toward that switch, so a reroute is one update of the
+ * group rather than a rewrite of every entry. A group is handed back for removal once no entry points at it.
+ */
+final class NextHopGroups {
+
+    private final Map<DeviceId, DeviceGroups> devices = new HashMap<>();
+
+    /**
+     * Point an entry at the group toward a destination switch, allocating the group if the device has none
+     * and changing its egress ports if they differ
+     *
+     * @param deviceId device ID
+     * @param match    match fields of the entry
+     * @param toward   destination switch of the entry
+     * @param ports    egress ports of the group, in bucket order
+     * @param ids      allocator of next objective IDs
+     * @return group of the entry, whether it is new or has new ports, and the group it left if no other
+     *         entry points at that one
+     */
+    synchronized Binding bind(DeviceId deviceId, TrafficSelector match, DeviceId toward, Set<PortNumber> ports,
+                              IntSupplier ids) {
+        DeviceGroups groups = devices.computeIfAbsent(deviceId, k -> new DeviceGroups());
+        Set<PortNumber> hops = ImmutableSet.copyOf(ports);
+        Group previous = groups.byEntry.get(match);
+        Group released = previous == null || previous.toward.equals(toward) ? null : groups.leave(previous, match);
+
+        Group group = groups.byToward.get(toward);
+        boolean created = group == null;
+        boolean modified = false;
+        if (created) {
+            group = new Group(ids.getAsInt(), toward, hops);
+            groups.byToward.put(toward, group);
+        } else if (!group.ports.equals(hops)) {
+            group.ports = hops;
+            modified = true;
+        }
+        group.entries.add(match);
+        groups.byEntry.put(match, group);
+        return new Binding(group, created, modified, released);
+    }
+
+    /**
+     * Change the egress ports of a group
+     *
+     * @param group group of a device
+     * @param ports new egress ports, in bucket order
+     * @return whether the ports changed
+     */
+    synchronized boolean update(Group group, Set<PortNumber> ports) {
+        Set<PortNumber> hops = ImmutableSet.copyOf(ports);
+        if (group.ports.equals(hops))
+            return false;
+        group.ports = hops;
+        return true;
+    }
+
+    /**
+     * Forget the group of an entry which left its device
+     *
+     * @param deviceId device ID
+     * @param match    match fields of the entry
+     * @return group no entry points at any more, to remove, or null
+     */
+    synchronized Group unbind(DeviceId deviceId, TrafficSelector match) {
+        DeviceGroups groups = devices.get(deviceId);
+        if (groups == null)
+            return null;
+        Group group = groups.byEntry.get(match);
+        Group released = group == null ? null : groups.leave(group, match);
+        if (groups.byToward.isEmpty())
+            devices.remove(deviceId);
+        return released;
+    }
+
+    /**
+     * Forget a group which could not be written, with the entries pointing at it
+     *
+     * @param deviceId device ID
+     * @param group    group of the device
+     */
+    synchronized void remove(DeviceId deviceId, Group group) {
+        DeviceGroups groups = devices.get(deviceId);
+        if (groups == null || groups.byToward.get(group.toward) != group)
+            return;
+        groups.byToward.remove(group.toward);
+        groups.byEntry.values().removeIf(g -> g == group);
+        if (groups.byToward.isEmpty())
+            devices.remove(deviceId);
+    }
+
+    /**
+     * @param deviceId device ID
+     * @param match    match fields of the entry
+     * @return next objective ID of the group of an entry, null if the entry has no next step
+     */
+    synchronized Integer nextId(DeviceId deviceId, TrafficSelector match) {
+        DeviceGroups groups = devices.get(deviceId);
+        Group group = groups == null ? null : groups.byEntry.get(match);
+        return group == null ? null : group.id;
+    }
+
+    /**
+     * @param group group of a device
+     * @return match fields of the entries pointing at the group
+     */
+    synchronized Set<TrafficSelector> entries(Group group) {
+        return new HashSet<>(group.entries);
+    }
+
+    /**
+     * @return groups of every device
+     */
+    synchronized Map<DeviceId, List<Group>> groups() {
+        Map<DeviceId, List<Group>> snapshot = new HashMap<>();
+        devices.forEach((deviceId, groups) -> snapshot.put(deviceId, new ArrayList<>(groups.byToward.values())));
+        return snapshot;
+    }
+
+    /**
+     * Forget the groups of every device
+     *
+     * @return groups to remove, by device
+     */
+    synchronized Map<DeviceId, List<Group>> removeAll() {
+        Map<DeviceId, List<Group>> removed = groups();
+        devices.clear();
+        return removed;
+    }
+
+    /**
+     * @return number of groups on all devices
+     */
+    synchronized int size() {
+        int size = 0;
+        for (DeviceGroups groups : devices.values())
+            size += groups.byToward.size();
+        return size;
+    }
+
+    /** Group of egress ports of a device toward a destination switch, and the entries pointing at it */
+    static final class Group {
+        final int id;
+        final DeviceId toward;
+        private volatile Set<PortNumber> ports;
+        private final Set<TrafficSelector> entries = new HashSet<>();
+
+        private Group(int id, DeviceId toward, Set<PortNumber> ports) {
+            this.id = id;
+            this.toward = toward;
+            this.ports = ports;
+        }
+
+        /**
+         * @return egress ports, in bucket order
+         */
+        Set<PortNumber> ports() {
+            return ports;
+        }
+    }
+
+    /** Group an entry points at, whether it has to be written or updated first, and the group to remove once it is */
+    static final class Binding {
+        final Group group;
+        final boolean created;
+        final boolean modified;
+        final Group released;
+
+        private Binding(Group group, boolean created, boolean modified, Group released) {
+            this.group = group;
+            this.created = created;
+            this.modified = modified;
+            this.released = released;
+        }
+    }
+
+    // Groups of one device by destination switch and by entry
+    private static final class DeviceGroups {
+        final Map<DeviceId, Group> byToward = new HashMap<>();
+        final Map<TrafficSelector, Group> byEntry = new HashMap<>();
+
+        /**
+         * Take an entry out of its group
+         *
+         * @return the group if no entry points at it any more, or null
+         */
+        private Group leave(Group group, TrafficSelector match) {
+            byEntry.remove(match);
+            group.entries.remove(match);
+            if (!group.entries.isEmpty())
+                return null;
+            byToward.remove(group.toward);
+            return group;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.p4bridge;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control in front of the packet-in queue.
+ * Below the threshold every packet is admitted, above it one packet in sampleRate is admitted,
+ * and nothing is admitted once the queue is full.
+ */
+final class PacketAdmission {
+
+    private final int capacity;
+    private volatile int threshold;
+    private volatile int sampleRate;
+
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicLong sampled = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param capacity   maximum number of queued packets
+     * @param threshold  number of queued packets above which packets are sampled
+     * @param sampleRate one packet in sampleRate is admitted above the threshold
+     */
+    PacketAdmission(int capacity, int threshold, int sampleRate) {
+        this.capacity = capacity;
+        configure(threshold, sampleRate);
+    }
+
+    /**
+     * Change the sampling threshold and rate
+     *
+     * @param threshold  number of queued packets above which packets are sampled
+     * @param sampleRate one packet in sampleRate is admitted above the threshold
+     */
+    void configure(int threshold, int sampleRate) {
+        this.threshold = Math.min(Math.max(threshold, 0), capacity);
+        this.sampleRate = Math.max(sampleRate, 1);
+    }
+
+    /**
+     * Take a slot in the queue for a packet, the slot is given back with done()
+     *
+     * @return whether the packet is admitted
+     */
+    boolean admit() {
+        while (true) {
+            int current = depth.get();
+            if (current >= capacity ||
+                    (current >= threshold && sampled.getAndIncrement() % sampleRate != 0)) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (depth.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    /** Give back the slot of an admitted packet once it is processed */
+    void done() {
+        depth.decrementAndGet();
+    }
+
+    /**
+     * Number of admitted packets not yet processed
+     *
+     * @return queue depth
+     */
+    int depth() {
+        return depth.get();
+    }
+
+    /**
+     * Number of packets refused since creation
+     *
+     * @return dropped packet count
+     */
+    long dropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.p4bridge;
+
+import com.google.common.collect.ImmutableList;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.TrafficSelector;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Packet-outs held per forwarding entry, device and match fields, until the entry is written,
+ * then released as one batch in arrival order so the punted packets of a flow are not reordered.
+ * A batch is bounded, a packet which doesn't fit is sent right away by the caller.
+ */
+final class PacketBuffer {
+
+    private final Map<Key, Batch> batches = new ConcurrentHashMap<>();
+    private final int capacity;
+
+    /**
+     * @param capacity maximum number of packet-outs held for an entry
+     */
+    PacketBuffer(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Hold a packet-out until an entry of a device is written
+     *
+     * @param deviceId  device ID
+     * @param match     match fields of the entry
+     * @param packetOut packet-out to run once the entry is written
+     * @param now       current time in milliseconds
+     * @return whether the packet-out is held, false if the batch of the entry is full
+     */
+    boolean hold(DeviceId deviceId, TrafficSelector match, Runnable packetOut, long now) {
+        boolean[] held = new boolean[1];
+        batches.compute(new Key(deviceId, match), (k, batch) -> {
+            if (batch == null)
+                batch = new Batch(now);
+            if (batch.packetOuts.size() < capacity) {
+                batch.packetOuts.add(packetOut);
+                held[0] = true;
+            }
+            return batch;
+        });
+        return held[0];
+    }
+
+    /**
+     * Take the packet-outs held for an entry
+     *
+     * @param deviceId device ID
+     * @param match    match fields of the entry
+     * @return packet-outs in arrival order
+     */
+    List<Runnable> release(DeviceId deviceId, TrafficSelector match) {
+        Batch batch = batches.remove(new Key(deviceId, match));
+        return batch == null ? ImmutableList.of() : batch.packetOuts;
+    }
+
+    /**
+     * Take the packet-outs of the entries which were not written in time
+     *
+     * @param now     current time in milliseconds
+     * @param timeout time in milliseconds a packet-out is held at most
+     * @return packet-outs, in arrival order for each entry
+     */
+    List<Runnable> releaseExpired(long now, long timeout) {
+        List<Runnable> expired = new ArrayList<>();
+        Iterator<Map.Entry<Key, Batch>> it = batches.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Batch> entry = it.next();
+            if (now - entry.getValue().heldSince >= timeout && batches.remove(entry.getKey(), entry.getValue()))
+                expired.addAll(entry.getValue().packetOuts);
+        }
+        return expired;
+    }
+
+    /**
+     * Take every packet-out held
+     *
+     * @return packet-outs, in arrival order for each entry
+     */
+    List<Runnable> releaseAll() {
+        return releaseExpired(Long.MAX_VALUE, 0);
+    }
+
+    int size() {
+        return batches.values().stream().mapToInt(batch -> batch.packetOuts.size()).sum();
+    }
+
+    // Device and match fields of an entry
+    private static final class Key {
+        final DeviceId deviceId;
+        final TrafficSelector match;
+
+        private Key(DeviceId deviceId, TrafficSelector match) {
+            this.deviceId = deviceId;
+            this.match = match;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key that = (Key) o;
+            return Objects.equals(deviceId, that.deviceId) &&
+                    Objects.equals(match, that.match);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(deviceId, match);
+        }
+    }
+
+    // Packet-outs held for an entry and when the first of them arrived
+    private static final class Batch {
+        final List<Runnable> packetOuts = new ArrayList<>();
+        final long heldSince;
+
+        private Batch(long heldSince) {
+            this.heldSince = heldSince;
+        }
+    }
+}
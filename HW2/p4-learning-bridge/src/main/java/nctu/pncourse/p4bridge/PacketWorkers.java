@@ -0,0 +1,157 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.p4bridge;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import org.onosproject.net.DeviceId;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed set of packet-in workers, each with its own bounded queue behind admission control.
+ * The packet-ins of a device always go to the same worker, so the packets of a flow are processed
+ * in order while different devices are served in parallel.
+ */
+final class PacketWorkers {
+
+    private final Worker[] workers;
+
+    /**
+     * @param count         number of workers
+     * @param queueSize     maximum number of queued packet-ins per worker
+     * @param threshold     queued packet-ins per worker above which packet-ins are sampled
+     * @param sampleRate    one packet-in in sampleRate is processed above the threshold
+     * @param threadFactory factory of the worker threads
+     */
+    PacketWorkers(int count, int queueSize, int threshold, int sampleRate, ThreadFactory threadFactory) {
+        workers = new Worker[count];
+        for (int i = 0; i < count; i++)
+            workers[i] = new Worker(new PacketAdmission(queueSize, threshold, sampleRate),
+                    Executors.newSingleThreadExecutor(threadFactory));
+    }
+
+    /**
+     * Change the sampling threshold and rate of every worker
+     *
+     * @param threshold  queued packet-ins per worker above which packet-ins are sampled
+     * @param sampleRate one packet-in in sampleRate is processed above the threshold
+     */
+    void configure(int threshold, int sampleRate) {
+        for (Worker worker : workers)
+            worker.admission.configure(threshold, sampleRate);
+    }
+
+    /**
+     * Worker which processes the packet-ins of a device
+     *
+     * @param deviceId device ID
+     * @return worker index
+     */
+    int workerOf(DeviceId deviceId) {
+        return Math.floorMod(deviceId.hashCode(), workers.length);
+    }
+
+    /**
+     * Queue a packet-in on the worker of its device
+     *
+     * @param deviceId device the packet-in came from
+     * @param task     processing of the packet-in
+     * @return whether the packet-in was queued, false if admission control refused it
+     */
+    boolean submit(DeviceId deviceId, Runnable task) {
+        Worker worker = workers[workerOf(deviceId)];
+        if (!worker.admission.admit()) {
+            worker.dropped.mark();
+            return false;
+        }
+
+        long queuedAt = System.nanoTime();
+        try {
+            worker.executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    worker.latency.update(System.nanoTime() - queuedAt, TimeUnit.NANOSECONDS);
+                    worker.admission.done();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            // The worker is shutting down, the packet-in is lost all the same
+            worker.admission.done();
+            worker.dropped.mark();
+            return false;
+        }
+    }
+
+    int size() {
+        return workers.length;
+    }
+
+    /**
+     * Number of packet-ins queued or being processed by a worker
+     *
+     * @param index worker index
+     * @return queue depth
+     */
+    int depth(int index) {
+        return workers[index].admission.depth();
+    }
+
+    /**
+     * Rate of packet-ins refused by a worker
+     *
+     * @param index worker index
+     * @return meter of the dropped packet-ins
+     */
+    Meter dropped(int index) {
+        return workers[index].dropped;
+    }
+
+    /**
+     * Time from a packet-in being queued on a worker to the end of its processing
+     *
+     * @param index worker index
+     * @return timer of the packet-ins
+     */
+    Timer latency(int index) {
+        return workers[index].latency;
+    }
+
+    /** Stop all workers, queued packet-ins are discarded */
+    void shutdown() {
+        for (Worker worker : workers)
+            worker.executor.shutdownNow();
+    }
+
+    // Single thread worker with its queue bound and metrics
+    private static final class Worker {
+        final PacketAdmission admission;
+        final ExecutorService executor;
+        final Meter dropped = new Meter();
+        final Timer latency = new Timer();
+
+        private Worker(PacketAdmission admission, ExecutorService executor) {
+            this.admission = admission;
+            this.executor = executor;
+        }
+    }
+}
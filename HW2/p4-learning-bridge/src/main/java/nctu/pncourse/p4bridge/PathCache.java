@@ -0,0 +1,209 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.p4bridge;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.onosproject.event.Event;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.Path;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.topology.TopologyEvent;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+
+/**
+ * Bounded cache of (src device, dst device) to shortest paths.
+ * Entries are invalidated by topology events.
+ */
+final class PathCache {
+
+    private final Cache<DevicePair, Set<Path>> cache;
+    private final BiFunction<DeviceId, DeviceId, Set<Path>> loader;
+    private final Predicate<DeviceId> isAvailable;
+
+    // Bumped on every invalidation so that a lookup racing with a topology change never stores stale paths
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Create a path cache
+     *
+     * @param maxSize     maximum number of (src, dst) pairs kept
+     * @param loader      function computing the paths on a miss
+     * @param isAvailable whether a device is available, asked when its availability changes
+     */
+    PathCache(int maxSize, BiFunction<DeviceId, DeviceId, Set<Path>> loader, Predicate<DeviceId> isAvailable) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .recordStats()
+                .build();
+        this.loader = loader;
+        this.isAvailable = isAvailable;
+    }
+
+    /**
+     * Get the paths between two devices, computing them on a miss
+     *
+     * @param src source device
+     * @param dst destination device
+     * @return set of paths
+     */
+    Set<Path> getPaths(DeviceId src, DeviceId dst) {
+        DevicePair key = new DevicePair(src, dst);
+        Set<Path> paths = cache.getIfPresent(key);
+        if (paths != null)
+            return paths;
+
+        long gen = generation.get();
+        paths = loader.apply(src, dst);
+        if (gen == generation.get())
+            cache.put(key, paths);
+        return paths;
+    }
+
+    /**
+     * Drop the entries affected by a topology event
+     *
+     * @param event topology event
+     */
+    void invalidate(TopologyEvent event) {
+        generation.incrementAndGet();
+        List<Event> reasons = event.reasons();
+        if (reasons == null || reasons.isEmpty()) {
+            invalidateAll();
+            return;
+        }
+
+        for (Event re : reasons) {
+            if (re instanceof LinkEvent) {
+                LinkEvent le = (LinkEvent) re;
+                if (le.type() == LinkEvent.Type.LINK_REMOVED) {
+                    // Removing a link only lengthens paths, so untouched entries are still shortest
+                    invalidateLink(le.subject());
+                } else {
+                    // A new or updated link may shorten the path of any pair
+                    invalidateAll();
+                    return;
+                }
+            } else if (re instanceof DeviceEvent) {
+                DeviceEvent de = (DeviceEvent) re;
+                if (de.type() == DeviceEvent.Type.DEVICE_AVAILABILITY_CHANGED &&
+                        isAvailable.test(de.subject().id())) {
+                    // A device coming back may shorten the path of any pair, like a new link
+                    invalidateAll();
+                    return;
+                }
+                if (de.type() == DeviceEvent.Type.DEVICE_REMOVED ||
+                        de.type() == DeviceEvent.Type.DEVICE_AVAILABILITY_CHANGED) {
+                    invalidateDevice(de.subject());
+                }
+            }
+        }
+    }
+
+    /** Drop all entries */
+    void invalidateAll() {
+        generation.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    long hitCount() {
+        return cache.stats().hitCount();
+    }
+
+    long missCount() {
+        return cache.stats().missCount();
+    }
+
+    long size() {
+        return cache.size();
+    }
+
+    private void invalidateLink(Link link) {
+        for (Map.Entry<DevicePair, Set<Path>> entry : cache.asMap().entrySet()) {
+            if (traverses(entry.getValue(), link.src(), link.dst()))
+                cache.invalidate(entry.getKey());
+        }
+    }
+
+    private void invalidateDevice(Device device) {
+        DeviceId id = device.id();
+        for (Map.Entry<DevicePair, Set<Path>> entry : cache.asMap().entrySet()) {
+            DevicePair key = entry.getKey();
+            if (key.src.equals(id) || key.dst.equals(id) || traverses(entry.getValue(), id))
+                cache.invalidate(key);
+        }
+    }
+
+    private static boolean traverses(Set<Path> paths, ConnectPoint src, ConnectPoint dst) {
+        for (Path path : paths) {
+            for (Link link : path.links()) {
+                if (link.src().equals(src) && link.dst().equals(dst))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean traverses(Set<Path> paths, DeviceId id) {
+        for (Path path : paths) {
+            for (Link link : path.links()) {
+                if (link.src().deviceId().equals(id) || link.dst().deviceId().equals(id))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    // Wrapper class for a source and destination pair of devices
+    private static final class DevicePair {
+        final DeviceId src;
+        final DeviceId dst;
+
+        private DevicePair(DeviceId src, DeviceId dst) {
+            this.src = src;
+            this.dst = dst;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            DevicePair that = (DevicePair) o;
+            return Objects.equals(src, that.src) &&
+                    Objects.equals(dst, that.dst);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(src, dst);
+        }
+    }
+}
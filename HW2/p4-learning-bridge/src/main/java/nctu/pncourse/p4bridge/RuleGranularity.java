@@ -0,0 +1,106 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.p4bridge;
+
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.criteria.Criterion;
+
+/**
+ * Match fields of the forwarding entries of the bridge. Matching on the destination MAC only aggregates
+ * the traffic of every source into one entry per (switch, host), the finer modes install one entry per
+ * (source MAC, destination MAC) pair or per (ingress port, destination MAC).
+ */
+enum RuleGranularity {
+    /** Destination MAC only */
+    DST("dst"),
+    /** Source and destination MAC */
+    SRC_DST("srcDst"),
+    /** Ingress port and destination MAC */
+    IN_PORT_DST("inPortDst");
+
+    private final String propertyValue;
+
+    RuleGranularity(String propertyValue) {
+        this.propertyValue = propertyValue;
+    }
+
+    /**
+     * @return value of the mode in the component configuration
+     */
+    String propertyValue() {
+        return propertyValue;
+    }
+
+    /**
+     * Mode of a component configuration value
+     *
+     * @param value property value
+     * @return rule granularity, null if the value is not one of the modes
+     */
+    static RuleGranularity fromProperty(String value) {
+        for (RuleGranularity granularity : values()) {
+            if (granularity.propertyValue.equals(value))
+                return granularity;
+        }
+        return null;
+    }
+
+    /**
+     * Match fields of the entry of a packet
+     *
+     * @param src    source MAC of the packet
+     * @param inPort port where the packet enters the switch
+     * @param dst    destination MAC of the packet
+     * @return traffic selector
+     */
+    TrafficSelector selector(MacAddress src, PortNumber inPort, MacAddress dst) {
+        TrafficSelector.Builder builder = DefaultTrafficSelector.builder().matchEthDst(dst);
+        switch (this) {
+            case SRC_DST:
+                builder.matchEthSrc(src);
+                break;
+            case IN_PORT_DST:
+                builder.matchInPort(inPort);
+                break;
+            default:
+                break;
+        }
+        return builder.build();
+    }
+
+    /**
+     * Whether a selector is the one of a forwarding entry, in any of the modes
+     *
+     * @param selector traffic selector
+     * @return boolean
+     */
+    static boolean isForwarding(TrafficSelector selector) {
+        if (selector.getCriterion(Criterion.Type.ETH_DST) == null)
+            return false;
+        switch (selector.criteria().size()) {
+            case 1:
+                return true;
+            case 2:
+                return selector.getCriterion(Criterion.Type.ETH_SRC) != null ||
+                        selector.getCriterion(Criterion.Type.IN_PORT) != null;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.p4bridge;
+
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.TrafficSelector;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Occupancy of the forwarding tables of every device, in least recently used order.
+ * Once a table goes above its high-water mark the oldest entries are handed back for eviction,
+ * so new entries never hit a full table. Every table has its own capacity.
+ */
+final class TableOccupancy {
+
+    private final Map<DeviceId, Map<ForwardingTable, LinkedHashMap<TrafficSelector, PortNumber>>> tables =
+            new HashMap<>();
+    private final Map<ForwardingTable, Integer> highWater = new EnumMap<>(ForwardingTable.class);
+
+    /**
+     * Tables start with their size in the pipeline
+     */
+    TableOccupancy() {
+        for (ForwardingTable table : ForwardingTable.values())
+            resize(table, table.size());
+    }
+
+    /**
+     * Change the capacity of a table, the next add evicts down to it
+     *
+     * @param table    forwarding table
+     * @param capacity number of entries the table can hold
+     */
+    synchronized void resize(ForwardingTable table, int capacity) {
+        // Leave 5% of the table for entries in flight
+        highWater.put(table, Math.max(capacity - capacity / 20, 1));
+    }
+
+    /**
+     * Record an entry installed on a device, or refresh its recency
+     *
+     * @param deviceId device ID
+     * @param table    table of the entry
+     * @param match    match fields of the entry
+     * @param output   output port of the entry
+     * @return entries to evict from the table, least recently used first
+     */
+    synchronized Map<TrafficSelector, PortNumber> add(DeviceId deviceId, ForwardingTable table,
+                                                      TrafficSelector match, PortNumber output) {
+        LinkedHashMap<TrafficSelector, PortNumber> entries = tables
+                .computeIfAbsent(deviceId, k -> new EnumMap<>(ForwardingTable.class))
+                .computeIfAbsent(table, k -> new LinkedHashMap<>(16, 0.75f, true));
+        entries.put(match, output);
+
+        int limit = highWater.get(table);
+        Map<TrafficSelector, PortNumber> evicted = new LinkedHashMap<>();
+        Iterator<Map.Entry<TrafficSelector, PortNumber>> it = entries.entrySet().iterator();
+        while (entries.size() > limit && it.hasNext()) {
+            Map.Entry<TrafficSelector, PortNumber> eldest = it.next();
+            evicted.put(eldest.getKey(), eldest.getValue());
+            it.remove();
+        }
+        return evicted;
+    }
+
+    /**
+     * Mark an entry as recently used without installing it again
+     *
+     * @param deviceId device ID
+     * @param table    table of the entry
+     * @param match    match fields of the entry
+     */
+    synchronized void touch(DeviceId deviceId, ForwardingTable table, TrafficSelector match) {
+        LinkedHashMap<TrafficSelector, PortNumber> entries = entries(deviceId, table);
+        if (entries != null)
+            entries.get(match);
+    }
+
+    /**
+     * Forget an entry which is no longer on a device
+     *
+     * @param deviceId device ID
+     * @param table    table of the entry
+     * @param match    match fields of the entry
+     * @return output port of the entry, null if it was not recorded
+     */
+    synchronized PortNumber remove(DeviceId deviceId, ForwardingTable table, TrafficSelector match) {
+        LinkedHashMap<TrafficSelector, PortNumber> entries = entries(deviceId, table);
+        if (entries == null)
+            return null;
+        PortNumber output = entries.remove(match);
+        if (entries.isEmpty()) {
+            Map<ForwardingTable, LinkedHashMap<TrafficSelector, PortNumber>> device = tables.get(deviceId);
+            device.remove(table);
+            if (device.isEmpty())
+                tables.remove(deviceId);
+        }
+        return output;
+    }
+
+    /**
+     * Number of entries recorded in a table of a device
+     *
+     * @param deviceId device ID
+     * @param table    forwarding table
+     * @return number of entries
+     */
+    synchronized int size(DeviceId deviceId, ForwardingTable table) {
+        LinkedHashMap<TrafficSelector, PortNumber> entries = entries(deviceId, table);
+        return entries == null ? 0 : entries.size();
+    }
+
+    /** Forget all entries */
+    synchronized void clear() {
+        tables.clear();
+    }
+
+    private LinkedHashMap<TrafficSelector, PortNumber> entries(DeviceId deviceId, ForwardingTable table) {
+        Map<ForwardingTable, LinkedHashMap<TrafficSelector, PortNumber>> device = tables.get(deviceId);
+        return device == null ? null : device.get(table);
+    }
+}
@@ -15,26 +15,147 @@
  */
 package nctu.pncourse.p4bridge;
 
+import com.codahale.metrics.Meter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.onlab.graph.ScalarWeight;
+import org.onlab.metrics.MetricsManager;
+import org.onlab.packet.ARP;
+import org.onlab.packet.Data;
+import org.onlab.packet.DeserializationException;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IPv4;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.VlanId;
 import org.onosproject.cfg.ComponentConfigService;
 import org.onosproject.cfg.ComponentConfigAdapter;
 import org.onosproject.cfg.ConfigProperty;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.CoreServiceAdapter;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultDisjointPath;
+import org.onosproject.net.DefaultHost;
+import org.onosproject.net.DefaultLink;
+import org.onosproject.net.DefaultPath;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.DisjointPath;
+import org.onosproject.net.Host;
+import org.onosproject.net.HostId;
+import org.onosproject.net.HostLocation;
+import org.onosproject.net.Link;
+import org.onosproject.net.Path;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.criteria.EthCriterion;
+import org.onosproject.net.flow.instructions.Instruction;
+import org.onosproject.net.flow.instructions.Instructions;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleEvent;
+import org.onosproject.net.flow.FlowRuleListener;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flowobjective.DefaultNextTreatment;
+import org.onosproject.net.flowobjective.FlowObjectiveServiceAdapter;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.flowobjective.NextObjective;
+import org.onosproject.net.flowobjective.Objective;
+import org.onosproject.net.host.HostEvent;
+import org.onosproject.net.host.HostListener;
+import org.onosproject.net.host.HostServiceAdapter;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.packet.DefaultInboundPacket;
+import org.onosproject.net.packet.DefaultOutboundPacket;
+import org.onosproject.net.packet.OutboundPacket;
+import org.onosproject.net.packet.PacketContext;
+import org.onosproject.net.packet.PacketContextAdapter;
+import org.onosproject.net.packet.PacketProcessor;
+import org.onosproject.net.packet.PacketServiceAdapter;
+import org.onosproject.net.pi.runtime.PiActionProfileGroupId;
+import org.onosproject.net.provider.ProviderId;
+import org.onosproject.net.topology.Topology;
+import org.onosproject.net.topology.TopologyEvent;
+import org.onosproject.net.topology.TopologyListener;
+import org.onosproject.net.topology.TopologyServiceAdapter;
+import org.osgi.service.component.ComponentContext;
 
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Optional;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Set of tests of the ONOS application component.
  */
 public class AppComponentTest {
 
+    private static final DeviceId DEVICE_ID = DeviceId.deviceId("device:bmv2:s1");
+    private static final MacAddress HOST_MAC = MacAddress.valueOf("00:00:00:00:00:01");
+    private static final MacAddress DST_MAC = MacAddress.valueOf("00:00:00:00:00:02");
+    private static final long LEARN_COOKIE = 0x4c4541524eL;
+    private static final Ip4Address HOST_IP = Ip4Address.valueOf("10.0.0.1");
+    private static final Ip4Address DST_IP = Ip4Address.valueOf("10.0.0.2");
+    private static final ProviderId PID = new ProviderId("p4runtime", "test");
+
+    // Path s1 -> s2 -> s3, entering each switch on port 1 and leaving on port 2
+    private static final Path PATH = new DefaultPath(PID, ImmutableList.of(link(1, 2), link(2, 3)),
+            ScalarWeight.toWeight(2));
+    private static final ConnectPoint DST_LOCATION = new ConnectPoint(did(3), PortNumber.portNumber(3));
+
     private AppComponent component;
+    private TestPacketService packetService;
+    private TestFlowObjectiveService flowObjectiveService;
+    private TestFlowRuleService flowRuleService;
+    private TestTopologyService topologyService;
+    private TestHostService hostService;
+    private MetricsManager metricsService;
 
     @Before
     public void setUp() {
         component = new AppComponent();
         component.cfgService = new ComponentConfigAdapter();
+        component.coreService = new TestCoreService();
+        packetService = new TestPacketService();
+        component.packetService = packetService;
+        flowRuleService = new TestFlowRuleService();
+        component.flowRuleService = flowRuleService;
+        flowObjectiveService = new TestFlowObjectiveService();
+        component.flowObjectiveService = flowObjectiveService;
+        hostService = new TestHostService();
+        component.hostService = hostService;
+        topologyService = new TestTopologyService();
+        component.topologyService = topologyService;
+        metricsService = new MetricsManager();
+        component.metricsService = metricsService;
         component.activate();
     }
 
@@ -48,4 +169,657 @@ public class AppComponentTest {
 
     }
 
+    @Test
+    public void learnNotificationInstallsForwarding() {
+        Ethernet eth = new Ethernet();
+        eth.setDestinationMACAddress(MacAddress.BROADCAST)
+                .setSourceMACAddress(HOST_MAC)
+                .setEtherType(Ethernet.TYPE_ARP);
+        ConnectPoint location = new ConnectPoint(DEVICE_ID, PortNumber.portNumber(3));
+        PacketContext context = new PacketContextAdapter(0,
+                new DefaultInboundPacket(location, eth, ByteBuffer.allocate(0), Optional.of(LEARN_COOKIE)),
+                new DefaultOutboundPacket(DEVICE_ID, null, ByteBuffer.allocate(0)), false);
+        packetService.process(context);
+        packetService.process(context);
+        component.flushLearned();
+
+        assertTrue(context.isHandled());
+        assertEquals(2, flowObjectiveService.objectives.size());
+        ForwardingObjective forward = flowObjectiveService.objectives.get(1);
+        assertEquals(HOST_MAC, ((EthCriterion) forward.selector().getCriterion(Criterion.Type.ETH_DST)).mac());
+    }
+
+    @Test
+    public void learnedLocationIsForgottenWhenTheHostMoves() throws InterruptedException {
+        // The host of s3 is notified on port 5 of s1
+        Ethernet eth = new Ethernet();
+        eth.setDestinationMACAddress(MacAddress.BROADCAST)
+                .setSourceMACAddress(DST_MAC)
+                .setEtherType(Ethernet.TYPE_ARP);
+        ConnectPoint learned = new ConnectPoint(did(1), PortNumber.portNumber(5));
+        packetService.process(new PacketContextAdapter(0,
+                new DefaultInboundPacket(learned, eth, ByteBuffer.allocate(0), Optional.of(LEARN_COOKIE)),
+                new DefaultOutboundPacket(did(1), null, ByteBuffer.allocate(0)), false));
+        component.flushLearned();
+
+        CountDownLatch sent = new CountDownLatch(1);
+        PacketContext context = packetToDst(sent);
+        packetService.process(context);
+        assertTrue("packet was not sent", sent.await(5, TimeUnit.SECONDS));
+        assertEquals(PortNumber.portNumber(5), output(context.treatmentBuilder().build().allInstructions()));
+
+        // Once the host moves, the host service locates it on s3 again
+        hostService.listener.event(new HostEvent(HostEvent.Type.HOST_MOVED, TestHostService.DST_HOST));
+        CountDownLatch resent = new CountDownLatch(1);
+        PacketContext next = packetToDst(resent);
+        packetService.process(next);
+        assertTrue("packet was not sent", resent.await(5, TimeUnit.SECONDS));
+        assertEquals(PortNumber.portNumber(2), output(next.treatmentBuilder().build().allInstructions()));
+    }
+
+    // Packet-in from the host on port 3 of s1 to the host on s3, counting down the latch when it is sent
+    private static PacketContext packetToDst(CountDownLatch sent) {
+        Ethernet eth = new Ethernet();
+        eth.setDestinationMACAddress(DST_MAC)
+                .setSourceMACAddress(HOST_MAC)
+                .setEtherType(Ethernet.TYPE_IPV4)
+                .setPayload(new IPv4());
+        ConnectPoint ingress = new ConnectPoint(did(1), PortNumber.portNumber(3));
+        return new PacketContextAdapter(0,
+                new DefaultInboundPacket(ingress, eth, ByteBuffer.wrap(eth.serialize())),
+                new DefaultOutboundPacket(did(1), null, ByteBuffer.allocate(0)), false) {
+            @Override
+            public void send() {
+                sent.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void pathIsInstalledEgressFirst() throws InterruptedException {
+        CountDownLatch sent = new CountDownLatch(1);
+        PacketContext context = packetToDst(sent);
+        packetService.process(context);
+
+        // Packet-ins are processed on the packet-in executor
+        assertTrue("packet was not sent", sent.await(5, TimeUnit.SECONDS));
+
+        // One entry per switch, starting from the one next to the destination host
+        assertEquals(ImmutableList.of(did(3), did(2), did(1)), flowObjectiveService.devices);
+        List<PortNumber> outputs = ImmutableList.of(PortNumber.portNumber(3), PortNumber.portNumber(2),
+                PortNumber.portNumber(2));
+        for (int i = 0; i < outputs.size(); i++) {
+            ForwardingObjective forward = flowObjectiveService.objectives.get(i);
+            assertEquals(DST_MAC, ((EthCriterion) forward.selector().getCriterion(Criterion.Type.ETH_DST)).mac());
+            assertEquals(outputs.get(i), output(forward.treatment().allInstructions()));
+        }
+
+        // Packet-out towards the next switch
+        assertEquals(PortNumber.portNumber(2), output(context.treatmentBuilder().build().allInstructions()));
+    }
+
+    @Test
+    public void pathEntriesFollowTheRuleGranularity() throws InterruptedException {
+        component.modified(componentContext(OsgiPropertyConstants.RULE_GRANULARITY, "inPortDst"));
+        CountDownLatch sent = new CountDownLatch(1);
+        packetService.process(packetToDst(sent));
+        assertTrue("packet was not sent", sent.await(5, TimeUnit.SECONDS));
+
+        // Each switch matches the port it is entered from, the host port on s1 and the path ports after
+        List<PortNumber> inPorts = ImmutableList.of(PortNumber.portNumber(1), PortNumber.portNumber(1),
+                PortNumber.portNumber(3));
+        for (int i = 0; i < inPorts.size(); i++) {
+            ForwardingObjective forward = flowObjectiveService.objectives.get(i);
+            assertEquals(RuleGranularity.IN_PORT_DST.selector(HOST_MAC, inPorts.get(i), DST_MAC), forward.selector());
+        }
+
+        component.modified(componentContext(OsgiPropertyConstants.RULE_GRANULARITY, "srcDst"));
+        CountDownLatch resent = new CountDownLatch(1);
+        packetService.process(packetToDst(resent));
+        assertTrue("packet was not sent", resent.await(5, TimeUnit.SECONDS));
+        assertEquals(6, flowObjectiveService.objectives.size());
+        for (int i = 3; i < 6; i++) {
+            ForwardingObjective forward = flowObjectiveService.objectives.get(i);
+            assertEquals(RuleGranularity.SRC_DST.selector(HOST_MAC, null, DST_MAC), forward.selector());
+        }
+    }
+
+    @Test
+    public void linkDownRemovesBlackholedEntries() throws InterruptedException {
+        FlowRule rule = DefaultFlowRule.builder()
+                .forDevice(did(1))
+                .withSelector(DefaultTrafficSelector.builder().matchEthDst(DST_MAC).build())
+                .withTreatment(DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(2)).build())
+                .withPriority(10)
+                .fromApp(new DefaultApplicationId(1, "nctu.pncourse.bridge"))
+                .makeTemporary(10)
+                .build();
+        flowRuleService.listener.event(new FlowRuleEvent(FlowRuleEvent.Type.RULE_ADDED, rule));
+
+        // Two events for the same link are repaired in one pass
+        for (int i = 0; i < 2; i++)
+            topologyService.listener.event(new TopologyEvent(TopologyEvent.Type.TOPOLOGY_CHANGED, null,
+                    ImmutableList.of(new LinkEvent(LinkEvent.Type.LINK_REMOVED, link(1, 2)))));
+
+        FlowRuleOperations ops = flowRuleService.batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull("blackholed entry was not removed", ops);
+        FlowRuleOperation removal = ops.stages().get(0).iterator().next();
+        assertEquals(FlowRuleOperation.Type.REMOVE, removal.type());
+        assertEquals(rule, removal.rule());
+
+        ops.callback().onSuccess(ops);
+        assertEquals(1, metricsService.getTimers((name, metric) -> name.contains("timeToRepair"))
+                .values().iterator().next().getCount());
+        assertNull(flowRuleService.batches.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void packetInOutcomesAreCountedPerDevice() throws InterruptedException {
+        CountDownLatch sent = new CountDownLatch(1);
+        packetService.process(packetToDst(sent));
+        assertTrue("packet was not sent", sent.await(5, TimeUnit.SECONDS));
+
+        // The decision is counted once the worker is done with the packet
+        long deadline = System.currentTimeMillis() + 5000;
+        while (meterCount(did(1), "processed") == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        assertEquals(1, meterCount(did(1), "processed"));
+        assertEquals(1, meterCount(did(1), "unicast"));
+        assertEquals(0, meterCount(did(1), "flooded"));
+        assertEquals(0, meterCount(did(1), "ignored"));
+        for (int i = 1; i <= 3; i++)
+            assertEquals(1, meterCount(did(i), "objectives"));
+        assertEquals(1, metricsService.getTimers((name, metric) -> name.endsWith(did(1) + ".process"))
+                .values().iterator().next().getCount());
+        assertEquals(1, metricsService.getTimers((name, metric) -> name.endsWith(did(1) + ".pathLookup"))
+                .values().iterator().next().getCount());
+    }
+
+    @Test
+    public void packetInsOfAFlowBeingInstalledAreOnlySentOut() throws InterruptedException {
+        CountDownLatch sent = new CountDownLatch(2);
+        packetService.process(packetToDst(sent));
+        packetService.process(packetToDst(sent));
+        assertTrue("packets were not sent", sent.await(5, TimeUnit.SECONDS));
+
+        // The second packet-in finds the path in flight and is only sent out
+        assertEquals(3, flowObjectiveService.objectives.size());
+        for (int i = 1; i <= 3; i++)
+            assertEquals(1, meterCount(did(i), "inFlight"));
+
+        // Once the entries are confirmed a packet-in installs them again
+        for (ForwardingObjective forward : flowObjectiveService.objectives)
+            forward.context().ifPresent(context -> context.onSuccess(forward));
+        CountDownLatch resent = new CountDownLatch(1);
+        packetService.process(packetToDst(resent));
+        assertTrue("packet was not sent", resent.await(5, TimeUnit.SECONDS));
+        assertEquals(6, flowObjectiveService.objectives.size());
+    }
+
+    @Test
+    public void bufferedPacketsAreSentOnceTheEntryIsWritten() throws InterruptedException {
+        component.modified(componentContext(OsgiPropertyConstants.PACKET_BUFFERING, "true",
+                OsgiPropertyConstants.PACKET_BUFFER_TIMEOUT, "60000"));
+        CountDownLatch sent = new CountDownLatch(2);
+        packetService.process(packetToDst(sent));
+        packetService.process(packetToDst(sent));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (meterCount(did(1), "buffered") < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(2, meterCount(did(1), "buffered"));
+        assertEquals(2, sent.getCount());
+
+        // Entries of the path are issued egress first, the one of s1 sends both packets
+        for (int i = 0; i < 2; i++)
+            flowObjectiveService.objectives.get(i).context().ifPresent(context -> context.onSuccess(null));
+        assertEquals(2, sent.getCount());
+        ForwardingObjective ingress = flowObjectiveService.objectives.get(2);
+        ingress.context().get().onSuccess(ingress);
+        assertEquals(0, sent.getCount());
+    }
+
+    @Test
+    public void equalCostPathsAreHashedOverTheirFirstHops() throws InterruptedException {
+        // Second path s1 -> s4 -> s3, leaving s1 on port 4
+        topologyService.paths = ImmutableSet.of(PATH, new DefaultPath(PID,
+                ImmutableList.of(link(1, 4, 4), link(4, 3, 2)), ScalarWeight.toWeight(2)));
+        component.modified(componentContext(OsgiPropertyConstants.ECMP, "true"));
+        CountDownLatch sent = new CountDownLatch(1);
+        PacketContext context = packetToDst(sent);
+        packetService.process(context);
+        assertTrue("packet was not sent", sent.await(5, TimeUnit.SECONDS));
+
+        // Egress first, then the middle switch of each path, then s1 which points at a group of both first hops
+        assertEquals(ImmutableList.of(did(3), did(2), did(4), did(1)), flowObjectiveService.devices);
+        assertEquals(1, flowObjectiveService.nexts.size());
+        NextObjective next = flowObjectiveService.nexts.get(0);
+        assertEquals(NextObjective.Type.HASHED, next.type());
+        assertEquals(ImmutableList.of(PortNumber.portNumber(2), PortNumber.portNumber(4)),
+                ImmutableList.of(output(treatment(next, 0).allInstructions()),
+                        output(treatment(next, 1).allInstructions())));
+        ForwardingObjective ingress = flowObjectiveService.objectives.get(3);
+        assertEquals(Integer.valueOf(next.id()), ingress.nextId());
+        assertEquals(RuleGranularity.DST.selector(HOST_MAC, null, DST_MAC), ingress.selector());
+        assertEquals(PortNumber.portNumber(2), output(context.treatmentBuilder().build().allInstructions()));
+
+        // The group is removed once the entry leaves the switch
+        FlowRule rule = DefaultFlowRule.builder()
+                .forDevice(did(1))
+                .withSelector(ingress.selector())
+                .withTreatment(DefaultTrafficTreatment.builder()
+                        .piTableAction(PiActionProfileGroupId.of(next.id()))
+                        .build())
+                .withPriority(ingress.priority())
+                .fromApp(new DefaultApplicationId(1, "nctu.pncourse.bridge"))
+                .makePermanent()
+                .build();
+        flowRuleService.listener.event(new FlowRuleEvent(FlowRuleEvent.Type.RULE_REMOVED, rule));
+        assertEquals(2, flowObjectiveService.nexts.size());
+        assertEquals(Objective.Operation.REMOVE, flowObjectiveService.nexts.get(1).op());
+        assertEquals(next.id(), flowObjectiveService.nexts.get(1).id());
+    }
+
+    @Test
+    public void switchingToEcmpRemovesTheHidingDstEntry() throws InterruptedException {
+        // Second path s1 -> s4 -> s3, only the first one is used until ECMP is enabled
+        topologyService.paths = ImmutableSet.of(PATH, new DefaultPath(PID,
+                ImmutableList.of(link(1, 4, 4), link(4, 3, 2)), ScalarWeight.toWeight(2)));
+        CountDownLatch sent = new CountDownLatch(1);
+        packetService.process(packetToDst(sent));
+        assertTrue("packet was not sent", sent.await(5, TimeUnit.SECONDS));
+        ForwardingObjective dst = flowObjectiveService.objectives.get(2);
+        assertEquals(did(1), flowObjectiveService.devices.get(2));
+
+        // The entry of s1 in 'dst_mac_forward' is still being written when s1 switches to 'ecmp_forward'
+        component.modified(componentContext(OsgiPropertyConstants.ECMP, "true"));
+        CountDownLatch resent = new CountDownLatch(1);
+        packetService.process(packetToDst(resent));
+        assertTrue("packet was not sent", resent.await(5, TimeUnit.SECONDS));
+
+        List<ForwardingObjective> s1 = new ArrayList<>();
+        for (int i = 3; i < flowObjectiveService.objectives.size(); i++) {
+            if (flowObjectiveService.devices.get(i).equals(did(1)))
+                s1.add(flowObjectiveService.objectives.get(i));
+        }
+        assertEquals(2, s1.size());
+        assertEquals(Objective.Operation.REMOVE, s1.get(0).op());
+        assertEquals(dst.selector(), s1.get(0).selector());
+        assertEquals(PortNumber.portNumber(2), output(s1.get(0).treatment().allInstructions()));
+        assertEquals(Objective.Operation.ADD, s1.get(1).op());
+        assertNotNull(s1.get(1).nextId());
+    }
+
+    @Test
+    public void entriesTowardASwitchShareAGroupWhichIsRerouted() throws InterruptedException {
+        component.modified(componentContext(OsgiPropertyConstants.NEXT_HOP_GROUPS, "true"));
+        CountDownLatch sent = new CountDownLatch(1);
+        packetService.process(packetToDst(sent));
+        assertTrue("packet was not sent", sent.await(5, TimeUnit.SECONDS));
+
+        // The egress outputs to the host, s2 and s1 point at their group toward s3
+        assertEquals(ImmutableList.of(did(3), did(2), did(1)), flowObjectiveService.devices);
+        assertNotNull(flowObjectiveService.objectives.get(0).treatment());
+        assertEquals(2, flowObjectiveService.nexts.size());
+        NextObjective s1 = flowObjectiveService.nexts.get(1);
+        assertEquals(NextObjective.Type.SIMPLE, s1.type());
+        assertEquals(Integer.valueOf(s1.id()), flowObjectiveService.objectives.get(2).nextId());
+        assertEquals(PortNumber.portNumber(2), output(treatment(s1, 0).allInstructions()));
+
+        // Once s1 -> s2 is down, s1 reaches s3 through s4 with one update of its group
+        topologyService.paths = ImmutableSet.of(new DefaultPath(PID,
+                ImmutableList.of(link(1, 4, 4), link(4, 3, 2)), ScalarWeight.toWeight(2)));
+        topologyService.listener.event(new TopologyEvent(TopologyEvent.Type.TOPOLOGY_CHANGED, null,
+                ImmutableList.of(new LinkEvent(LinkEvent.Type.LINK_REMOVED, link(1, 2)))));
+
+        NextObjective modify = null;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (modify == null && System.currentTimeMillis() < deadline) {
+            for (NextObjective next : flowObjectiveService.nexts) {
+                if (next.op() == Objective.Operation.MODIFY)
+                    modify = next;
+            }
+            Thread.sleep(10);
+        }
+        assertNotNull("group was not rerouted", modify);
+        assertEquals(s1.id(), modify.id());
+        assertEquals(PortNumber.portNumber(4), output(treatment(modify, 0).allInstructions()));
+        assertEquals(3, flowObjectiveService.objectives.stream()
+                .filter(forward -> forward.op() == Objective.Operation.ADD).count());
+    }
+
+    @Test
+    public void entriesFailOverToALoopFreeAlternate() throws InterruptedException {
+        // Backup path s1 -> s4 -> s3, leaving s1 on port 4, s4 reaches s3 directly
+        Path s4 = new DefaultPath(PID, ImmutableList.of(link(4, 3, 2)), ScalarWeight.toWeight(1));
+        topologyService.otherPaths = ImmutableSet.of(s4);
+        topologyService.disjointPaths = ImmutableSet.of(new DefaultDisjointPath(PID, (DefaultPath) PATH,
+                new DefaultPath(PID, ImmutableList.of(link(1, 4, 4), link(4, 3, 2)), ScalarWeight.toWeight(2))));
+        component.modified(componentContext(OsgiPropertyConstants.FAST_FAILOVER, "true"));
+        CountDownLatch sent = new CountDownLatch(1);
+        packetService.process(packetToDst(sent));
+        assertTrue("packet was not sent", sent.await(5, TimeUnit.SECONDS));
+
+        // s2 has no disjoint path to s3, s1 outputs to port 2 and fails over to port 4
+        assertEquals(ImmutableList.of(did(3), did(2), did(1)), flowObjectiveService.devices);
+        assertEquals(1, flowObjectiveService.objectives.get(1).treatment().allInstructions().size());
+        ForwardingObjective ingress = flowObjectiveService.objectives.get(2);
+        FlowRule rule = DefaultFlowRule.builder()
+                .forDevice(did(1))
+                .withSelector(ingress.selector())
+                .withTreatment(ingress.treatment())
+                .withPriority(ingress.priority())
+                .fromApp(new DefaultApplicationId(1, "nctu.pncourse.bridge"))
+                .makePermanent()
+                .build();
+        assertEquals(ImmutableList.of(PortNumber.portNumber(2), PortNumber.portNumber(4)),
+                ImmutableList.copyOf(FlowRuleIndex.outputs(rule)));
+
+        // The switch moves the entry off the removed link, the controller points it at the new shortest path
+        flowRuleService.listener.event(new FlowRuleEvent(FlowRuleEvent.Type.RULE_ADDED, rule));
+        topologyService.paths = ImmutableSet.of(new DefaultPath(PID,
+                ImmutableList.of(link(1, 4, 4), link(4, 3, 2)), ScalarWeight.toWeight(2)));
+        topologyService.disjointPaths = ImmutableSet.of();
+        topologyService.listener.event(new TopologyEvent(TopologyEvent.Type.TOPOLOGY_CHANGED, null,
+                ImmutableList.of(new LinkEvent(LinkEvent.Type.LINK_REMOVED, link(1, 2)))));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (flowObjectiveService.objectives.size() < 4 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(4, flowObjectiveService.objectives.size());
+        assertEquals(did(1), flowObjectiveService.devices.get(3));
+        ForwardingObjective rerouted = flowObjectiveService.objectives.get(3);
+        assertEquals(ingress.selector(), rerouted.selector());
+        assertEquals(PortNumber.portNumber(4), output(rerouted.treatment().allInstructions()));
+        assertNull(flowRuleService.batches.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void backupPathIsInstalledWhenTheNeighbourIsNoLoopFreeAlternate() throws InterruptedException {
+        // Backup path s1 -> s4 -> s5 -> s6 -> s3, s4 is as far from s3 through s1 as along it
+        Path s6 = new DefaultPath(PID, ImmutableList.of(link(6, 3, 2)), ScalarWeight.toWeight(1));
+        Path s5 = new DefaultPath(PID, ImmutableList.of(link(5, 6, 2), link(6, 3, 2)), ScalarWeight.toWeight(2));
+        Path s4 = new DefaultPath(PID, ImmutableList.of(link(4, 5, 2), link(5, 6, 2), link(6, 3, 2)),
+                ScalarWeight.toWeight(3));
+        topologyService.otherPaths = ImmutableSet.of(s4, s5, s6);
+        topologyService.disjointPaths = ImmutableSet.of(new DefaultDisjointPath(PID, (DefaultPath) PATH,
+                new DefaultPath(PID, ImmutableList.of(link(1, 4, 4), link(4, 5, 2), link(5, 6, 2), link(6, 3, 2)),
+                        ScalarWeight.toWeight(4))));
+        component.modified(componentContext(OsgiPropertyConstants.FAST_FAILOVER, "true"));
+        CountDownLatch sent = new CountDownLatch(1);
+        packetService.process(packetToDst(sent));
+        assertTrue("packet was not sent", sent.await(5, TimeUnit.SECONDS));
+
+        // The rest of the backup path is installed before s1, which fails over to port 4
+        assertEquals(ImmutableList.of(did(3), did(2), did(6), did(5), did(4), did(1)),
+                flowObjectiveService.devices);
+        for (int i = 2; i < 5; i++)
+            assertEquals(PortNumber.portNumber(2),
+                    output(flowObjectiveService.objectives.get(i).treatment().allInstructions()));
+        ForwardingObjective ingress = flowObjectiveService.objectives.get(5);
+        FlowRule rule = DefaultFlowRule.builder()
+                .forDevice(did(1))
+                .withSelector(ingress.selector())
+                .withTreatment(ingress.treatment())
+                .withPriority(ingress.priority())
+                .fromApp(new DefaultApplicationId(1, "nctu.pncourse.bridge"))
+                .makePermanent()
+                .build();
+        assertEquals(ImmutableList.of(PortNumber.portNumber(2), PortNumber.portNumber(4)),
+                ImmutableList.copyOf(FlowRuleIndex.outputs(rule)));
+    }
+
+    @Test
+    public void noBackupPortWhenTheBackupPathWouldLoop() throws InterruptedException {
+        // s4 only reaches s3 back through s1, the backup path s1 -> s4 -> s5 -> s3 is no shortest path of s4
+        Path s4 = new DefaultPath(PID, ImmutableList.of(link(4, 1, 2), link(1, 2), link(2, 3)),
+                ScalarWeight.toWeight(3));
+        topologyService.otherPaths = ImmutableSet.of(s4);
+        topologyService.disjointPaths = ImmutableSet.of(new DefaultDisjointPath(PID, (DefaultPath) PATH,
+                new DefaultPath(PID, ImmutableList.of(link(1, 4, 4), link(4, 5, 3), link(5, 3, 2)),
+                        ScalarWeight.toWeight(3))));
+        component.modified(componentContext(OsgiPropertyConstants.FAST_FAILOVER, "true"));
+        CountDownLatch sent = new CountDownLatch(1);
+        packetService.process(packetToDst(sent));
+        assertTrue("packet was not sent", sent.await(5, TimeUnit.SECONDS));
+
+        assertEquals(ImmutableList.of(did(3), did(2), did(1)), flowObjectiveService.devices);
+        ForwardingObjective ingress = flowObjectiveService.objectives.get(2);
+        assertEquals(1, ingress.treatment().allInstructions().size());
+        assertEquals(PortNumber.portNumber(2), output(ingress.treatment().allInstructions()));
+    }
+
+    // Component context holding the given property names and values
+    private static ComponentContext componentContext(String... namesAndValues) {
+        Dictionary<String, Object> properties = new Hashtable<>();
+        for (int i = 0; i < namesAndValues.length; i += 2)
+            properties.put(namesAndValues[i], namesAndValues[i + 1]);
+        return (ComponentContext) Proxy.newProxyInstance(ComponentContext.class.getClassLoader(),
+                new Class<?>[]{ComponentContext.class},
+                (proxy, method, args) -> method.getName().equals("getProperties") ? properties : null);
+    }
+
+    // ARP request from the host on port 3 of s1
+    private static PacketContext arpRequest(Ip4Address target) {
+        Ethernet eth = ARP.buildArpRequest(HOST_MAC.toBytes(), HOST_IP.toOctets(), target.toOctets(),
+                VlanId.NO_VID);
+        ConnectPoint ingress = new ConnectPoint(did(1), PortNumber.portNumber(3));
+        return new PacketContextAdapter(0,
+                new DefaultInboundPacket(ingress, eth, ByteBuffer.wrap(eth.serialize())),
+                new DefaultOutboundPacket(did(1), null, ByteBuffer.allocate(0)), false);
+    }
+
+    @Test
+    public void arpRequestForKnownHostIsAnswered() throws DeserializationException {
+        PacketContext context = arpRequest(DST_IP);
+        packetService.process(context);
+
+        assertTrue(context.isHandled());
+        assertEquals(1, packetService.emitted.size());
+        OutboundPacket out = packetService.emitted.get(0);
+        assertEquals(did(1), out.sendThrough());
+        assertEquals(PortNumber.portNumber(3), output(out.treatment().allInstructions()));
+
+        byte[] data = out.data().array();
+        ARP reply = (ARP) Ethernet.deserializer().deserialize(data, 0, data.length).getPayload();
+        assertEquals(ARP.OP_REPLY, reply.getOpCode());
+        assertEquals(DST_MAC, MacAddress.valueOf(reply.getSenderHardwareAddress()));
+        assertEquals(DST_IP, Ip4Address.valueOf(reply.getSenderProtocolAddress()));
+        assertEquals(HOST_MAC, MacAddress.valueOf(reply.getTargetHardwareAddress()));
+        assertEquals(1, meterCount(did(1), "arpReplied"));
+    }
+
+    @Test
+    public void repeatedArpMissesAreDropped() {
+        Ip4Address unknown = Ip4Address.valueOf("10.0.0.9");
+        PacketContext first = arpRequest(unknown);
+        PacketContext second = arpRequest(unknown);
+        packetService.process(first);
+        packetService.process(second);
+
+        // The first request goes on to the bridge to be flooded, the second is dropped
+        assertFalse(first.isHandled());
+        assertTrue(second.isHandled());
+        assertTrue(packetService.emitted.isEmpty());
+        assertEquals(1, meterCount(did(1), "arpSuppressed"));
+    }
+
+    @Test
+    public void truncatedArpIsLeftToTheBridge() {
+        // An ARP frame too short for its header keeps a raw payload
+        Ethernet eth = new Ethernet();
+        eth.setDestinationMACAddress(MacAddress.BROADCAST)
+                .setSourceMACAddress(HOST_MAC)
+                .setEtherType(Ethernet.TYPE_ARP)
+                .setPayload(new Data(new byte[]{0, 1, 8, 0}));
+        ConnectPoint ingress = new ConnectPoint(did(1), PortNumber.portNumber(3));
+        PacketContext context = new PacketContextAdapter(0,
+                new DefaultInboundPacket(ingress, eth, ByteBuffer.wrap(eth.serialize())),
+                new DefaultOutboundPacket(did(1), null, ByteBuffer.allocate(0)), false);
+        packetService.process(context);
+
+        assertTrue(packetService.emitted.isEmpty());
+        assertEquals(0, meterCount(did(1), "arpReplied"));
+        assertEquals(0, meterCount(did(1), "arpSuppressed"));
+    }
+
+    private long meterCount(DeviceId deviceId, String event) {
+        return metricsService.getMeters((name, metric) -> name.endsWith(deviceId + "." + event))
+                .values().stream().mapToLong(Meter::getCount).sum();
+    }
+
+    private static PortNumber output(List<Instruction> instructions) {
+        for (Instruction instruction : instructions) {
+            if (instruction.type() == Instruction.Type.OUTPUT)
+                return ((Instructions.OutputInstruction) instruction).port();
+        }
+        return null;
+    }
+
+    private static TrafficTreatment treatment(NextObjective next, int index) {
+        return ((DefaultNextTreatment) ImmutableList.copyOf(next.nextTreatments()).get(index)).treatment();
+    }
+
+    private static DeviceId did(int id) {
+        return DeviceId.deviceId("device:bmv2:s" + id);
+    }
+
+    private static Link link(int src, int dst) {
+        return link(src, dst, 2);
+    }
+
+    private static Link link(int src, int dst, int srcPort) {
+        return DefaultLink.builder()
+                .providerId(PID)
+                .src(new ConnectPoint(did(src), PortNumber.portNumber(srcPort)))
+                .dst(new ConnectPoint(did(dst), PortNumber.portNumber(1)))
+                .type(Link.Type.DIRECT)
+                .build();
+    }
+
+    // Host service which knows the destination host only, and keeps the listener of the app
+    private static class TestHostService extends HostServiceAdapter {
+        private static final Host DST_HOST = new DefaultHost(PID, HostId.hostId(DST_MAC), DST_MAC, VlanId.NONE,
+                new HostLocation(DST_LOCATION, 0), ImmutableSet.of(DST_IP));
+        private HostListener listener;
+
+        @Override
+        public void addListener(HostListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public Host getHost(HostId hostId) {
+            return hostId.mac().equals(DST_MAC) ? DST_HOST : null;
+        }
+
+        @Override
+        public Set<Host> getHostsByIp(IpAddress ip) {
+            return ip.equals(DST_IP) ? ImmutableSet.of(DST_HOST) : ImmutableSet.of();
+        }
+    }
+
+    // Topology service with a single path from s1 to s3, unless the test gives more, no disjoint paths and
+    // the shortest paths between other switches the test gives
+    private static class TestTopologyService extends TopologyServiceAdapter {
+        private TopologyListener listener;
+        private Set<Path> paths = ImmutableSet.of(PATH);
+        private Set<DisjointPath> disjointPaths = ImmutableSet.of();
+        private Set<Path> otherPaths = ImmutableSet.of();
+
+        @Override
+        public void addListener(TopologyListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public Set<Path> getPaths(Topology topology, DeviceId src, DeviceId dst) {
+            if (src.equals(PATH.src().deviceId()) && dst.equals(PATH.dst().deviceId()))
+                return paths;
+            return otherPaths.stream()
+                    .filter(path -> path.src().deviceId().equals(src) && path.dst().deviceId().equals(dst))
+                    .collect(Collectors.toSet());
+        }
+
+        @Override
+        public Set<DisjointPath> getDisjointPaths(Topology topology, DeviceId src, DeviceId dst) {
+            return src.equals(PATH.src().deviceId()) && dst.equals(PATH.dst().deviceId()) ?
+                    disjointPaths : ImmutableSet.of();
+        }
+    }
+
+    // Flow rule service without any flow entries, which keeps the batches it is given
+    private static class TestFlowRuleService extends FlowRuleServiceAdapter {
+        private final BlockingQueue<FlowRuleOperations> batches = new LinkedBlockingQueue<>();
+        private FlowRuleListener listener;
+
+        @Override
+        public Iterable<FlowEntry> getFlowEntriesById(ApplicationId id) {
+            return ImmutableList.of();
+        }
+
+        @Override
+        public void addListener(FlowRuleListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void apply(FlowRuleOperations ops) {
+            batches.add(ops);
+        }
+    }
+
+    // Core service which hands out a real application ID
+    private static class TestCoreService extends CoreServiceAdapter {
+        @Override
+        public ApplicationId registerApplication(String name) {
+            return new DefaultApplicationId(1, name);
+        }
+    }
+
+    // Packet service which runs packets through the added processors in priority order and keeps emitted packets
+    private static class TestPacketService extends PacketServiceAdapter {
+        private final TreeMap<Integer, PacketProcessor> processors = new TreeMap<>();
+        private final List<OutboundPacket> emitted = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void addProcessor(PacketProcessor processor, int priority) {
+            processors.put(priority, processor);
+        }
+
+        @Override
+        public void emit(OutboundPacket packet) {
+            emitted.add(packet);
+        }
+
+        void process(PacketContext context) {
+            processors.values().forEach(p -> p.process(context));
+        }
+    }
+
+    // Flow objective service which records the forwarding objectives and their devices, and the next objectives
+    private static class TestFlowObjectiveService extends FlowObjectiveServiceAdapter {
+        private final List<ForwardingObjective> objectives = new CopyOnWriteArrayList<>();
+        private final List<DeviceId> devices = new CopyOnWriteArrayList<>();
+        private final List<NextObjective> nexts = new CopyOnWriteArrayList<>();
+        private final AtomicInteger nextIds = new AtomicInteger();
+
+        @Override
+        public void next(DeviceId deviceId, NextObjective nextObjective) {
+            nexts.add(nextObjective);
+        }
+
+        @Override
+        public int allocateNextId() {
+            return nextIds.incrementAndGet();
+        }
+
+        @Override
+        public void forward(DeviceId deviceId, ForwardingObjective forwardingObjective) {
+            objectives.add(forwardingObjective);
+            devices.add(deviceId);
+        }
+    }
+
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.p4bridge;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the ARP bindings and miss rate limiting.
+ */
+public class ArpCacheTest {
+
+    private static final long TIMEOUT = 1000;
+    private static final long INTERVAL = 100;
+    private static final Ip4Address IP_A = Ip4Address.valueOf("10.0.0.1");
+    private static final Ip4Address IP_B = Ip4Address.valueOf("10.0.0.2");
+    private static final MacAddress MAC_A = MacAddress.valueOf("00:00:00:00:00:0a");
+
+    private ArpCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new ArpCache(TIMEOUT);
+    }
+
+    @Test
+    public void bindingExpires() {
+        cache.bind(IP_A, MAC_A, 0);
+
+        assertEquals(MAC_A, cache.lookup(IP_A, TIMEOUT - 1));
+        assertNull(cache.lookup(IP_A, TIMEOUT));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void missIsAllowedOncePerInterval() {
+        assertTrue(cache.allowMiss(IP_B, 0, INTERVAL));
+        assertFalse(cache.allowMiss(IP_B, INTERVAL - 1, INTERVAL));
+        assertTrue(cache.allowMiss(IP_A, INTERVAL - 1, INTERVAL));
+        assertTrue(cache.allowMiss(IP_B, INTERVAL, INTERVAL));
+    }
+
+    @Test
+    public void bindingClearsTheMiss() {
+        assertTrue(cache.allowMiss(IP_A, 0, INTERVAL));
+        cache.bind(IP_A, MAC_A, 1);
+
+        // Once known, a later miss is flooded right away
+        assertTrue(cache.allowMiss(IP_A, 2, INTERVAL));
+    }
+
+    @Test
+    public void purgeDropsExpiredEntries() {
+        cache.bind(IP_A, MAC_A, 0);
+        cache.allowMiss(IP_B, 0, INTERVAL);
+        cache.purge(TIMEOUT, INTERVAL);
+
+        assertEquals(0, cache.size());
+        assertTrue(cache.allowMiss(IP_B, TIMEOUT, INTERVAL));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.p4bridge;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.MacAddress;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultFlowEntry;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the counter based idle tracking of forwarding entries.
+ */
+public class IdleTrackerTest {
+
+    private static final long IDLE_TIMEOUT = 10_000;
+    private static final FlowRule RULE = DefaultFlowRule.builder()
+            .forDevice(DeviceId.deviceId("device:bmv2:s1"))
+            .withSelector(DefaultTrafficSelector.builder().matchEthDst(MacAddress.valueOf(1L)).build())
+            .withTreatment(DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(1)).build())
+            .withPriority(10)
+            .fromApp(new DefaultApplicationId(1, "nctu.pncourse.test"))
+            .makePermanent()
+            .build();
+
+    private IdleTracker tracker;
+
+    @Before
+    public void setUp() {
+        tracker = new IdleTracker();
+    }
+
+    private static FlowEntry entry(long packets) {
+        return new DefaultFlowEntry(RULE, FlowEntry.FlowEntryState.ADDED, 0, packets, 0);
+    }
+
+    @Test
+    public void entryWithTrafficNeverExpires() {
+        tracker.update(entry(0), 0);
+        for (long now = 2_000; now <= 60_000; now += 2_000) {
+            assertTrue(tracker.update(entry(now), now));
+            assertFalse(tracker.isIdle(entry(now), now, IDLE_TIMEOUT));
+        }
+    }
+
+    @Test
+    public void entryExpiresAfterTheIdleTimeout() {
+        tracker.update(entry(5), 0);
+        assertTrue(tracker.update(entry(6), 2_000));
+
+        assertFalse(tracker.update(entry(6), 11_000));
+        assertFalse(tracker.isIdle(entry(6), 11_000, IDLE_TIMEOUT));
+        assertFalse(tracker.update(entry(6), 12_000));
+        assertTrue(tracker.isIdle(entry(6), 12_000, IDLE_TIMEOUT));
+    }
+
+    @Test
+    public void removedEntriesAreForgotten() {
+        tracker.update(entry(0), 0);
+        tracker.retain(ImmutableSet.of());
+
+        assertEquals(0, tracker.size());
+        assertFalse(tracker.isIdle(entry(0), IDLE_TIMEOUT, IDLE_TIMEOUT));
+    }
+}
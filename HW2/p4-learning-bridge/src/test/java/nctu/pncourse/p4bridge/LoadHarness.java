@@ -0,0 +1,349 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.p4bridge;
+
+import com.google.common.collect.ImmutableList;
+import org.onlab.metrics.MetricsManager;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IPv4;
+import org.onlab.packet.MacAddress;
+import org.onosproject.cfg.ComponentConfigAdapter;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.CoreServiceAdapter;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+import org.onosproject.net.flowobjective.FlowObjectiveServiceAdapter;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.packet.DefaultInboundPacket;
+import org.onosproject.net.packet.DefaultOutboundPacket;
+import org.onosproject.net.packet.PacketContext;
+import org.onosproject.net.packet.PacketContextAdapter;
+import org.onosproject.net.packet.PacketProcessor;
+import org.onosproject.net.packet.PacketServiceAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Offline load harness for the learning bridge.
+ * Drives BridgeProcessor with packet-ins between the hosts of a synthetic fabric, with in-memory
+ * host, topology, flow objective and packet services, and reports the packet-in decision latency
+ * (from the packet-in to its packet-out) and the forwarding objectives issued per second.
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=nctu.pncourse.p4bridge.LoadHarness -Dexec.args="fat-tree 16 200000"
+ * </pre>
+ */
+public final class LoadHarness {
+
+    /** Packet-in workloads. */
+    enum Workload {
+        /** Random host pairs right after activation, nothing cached yet. */
+        COLD_START,
+        /** A fixed working set of host pairs, repeated. */
+        STEADY_STATE,
+        /** Random host pairs while hosts keep moving to other edge switches. */
+        HOST_CHURN,
+        /** The working set while fabric links keep failing. */
+        LINK_FAILURE
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(LoadHarness.class);
+
+    // Host pairs in the steady state working set
+    private static final int WORKING_SET = 256;
+    // Packet-ins between two host moves, and between two link failures
+    private static final int CHURN_INTERVAL = 100;
+    private static final int FAILURE_INTERVAL = 5000;
+    // Packet-ins waiting for a decision at any time, below the admission threshold so nothing is sampled
+    private static final int IN_FLIGHT = 512;
+
+    private final SyntheticFabric fabric;
+    private final Random random;
+    private final HarnessPacketService packetService = new HarnessPacketService();
+    private final CountingFlowObjectiveService flowObjectiveService = new CountingFlowObjectiveService();
+    private AppComponent component;
+
+    /**
+     * @param fabric fabric to run on
+     * @param seed   seed of the workload generator, the same seed replays the same packet-ins
+     */
+    LoadHarness(SyntheticFabric fabric, long seed) {
+        this.fabric = fabric;
+        this.random = new Random(seed);
+    }
+
+    /** Activate a fresh bridge on the fabric */
+    void start() {
+        component = new AppComponent();
+        component.cfgService = new ComponentConfigAdapter();
+        component.coreService = new HarnessCoreService();
+        component.packetService = packetService;
+        component.flowRuleService = new HarnessFlowRuleService();
+        component.flowObjectiveService = flowObjectiveService;
+        component.hostService = fabric.hostService();
+        component.topologyService = fabric.topologyService();
+        component.metricsService = new MetricsManager();
+        component.activate();
+    }
+
+    void stop() {
+        component.deactivate();
+    }
+
+    /**
+     * Replay a workload and measure it
+     *
+     * @param workload workload to replay
+     * @param packets  number of packet-ins
+     * @return measurements
+     * @throws InterruptedException if interrupted while waiting for the decisions
+     */
+    Report run(Workload workload, int packets) throws InterruptedException {
+        if (workload == Workload.COLD_START) {
+            stop();
+            start();
+        }
+
+        List<MacAddress> macs = fabric.macs();
+        List<MacAddress[]> workingSet = new ArrayList<>();
+        for (int i = 0; i < WORKING_SET; i++)
+            workingSet.add(randomPair(macs));
+
+        long[] latencies = new long[packets];
+        LongAdder decided = new LongAdder();
+        Semaphore window = new Semaphore(IN_FLIGHT);
+        long objectivesBefore = flowObjectiveService.objectives.sum();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < packets; i++) {
+            MacAddress[] pair;
+            switch (workload) {
+                case STEADY_STATE:
+                    pair = workingSet.get(i % WORKING_SET);
+                    break;
+                case HOST_CHURN:
+                    if (i % CHURN_INTERVAL == 0)
+                        fabric.moveHost(macs.get(random.nextInt(macs.size())), random);
+                    pair = randomPair(macs);
+                    break;
+                case LINK_FAILURE:
+                    if (i > 0 && i % FAILURE_INTERVAL == 0)
+                        fabric.failLink(random);
+                    pair = workingSet.get(i % WORKING_SET);
+                    break;
+                default:
+                    pair = randomPair(macs);
+                    break;
+            }
+
+            window.acquire();
+            int index = i;
+            packetService.process(new HarnessPacketContext(fabric.host(pair[0]), pair[1], latency -> {
+                latencies[index] = latency;
+                decided.increment();
+                window.release();
+            }));
+        }
+        window.acquire(IN_FLIGHT);
+        long elapsed = System.nanoTime() - start;
+
+        return new Report(workload, latencies, decided.sum(),
+                flowObjectiveService.objectives.sum() - objectivesBefore, elapsed);
+    }
+
+    private MacAddress[] randomPair(List<MacAddress> macs) {
+        MacAddress src = macs.get(random.nextInt(macs.size()));
+        MacAddress dst = src;
+        while (dst.equals(src))
+            dst = macs.get(random.nextInt(macs.size()));
+        return new MacAddress[]{src, dst};
+    }
+
+    /** Latency percentiles and objective rate of one workload */
+    static final class Report {
+        final Workload workload;
+        final long[] latencies;
+        final long decided;
+        final long objectives;
+        final long elapsed;
+
+        private Report(Workload workload, long[] latencies, long decided, long objectives, long elapsed) {
+            this.workload = workload;
+            this.latencies = latencies.clone();
+            Arrays.sort(this.latencies);
+            this.decided = decided;
+            this.objectives = objectives;
+            this.elapsed = elapsed;
+        }
+
+        /**
+         * Decision latency at a percentile
+         *
+         * @param percentile percentile between 0 and 100
+         * @return latency in microseconds
+         */
+        double percentile(double percentile) {
+            int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+            return latencies[Math.max(index, 0)] / 1000.0;
+        }
+
+        double objectivesPerSecond() {
+            return objectives / (elapsed / 1e9);
+        }
+
+        double packetsPerSecond() {
+            return decided / (elapsed / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-12s %8d pkts %10.0f pkt/s %10.0f obj/s | latency us p50 %8.1f p90 %8.1f "
+                            + "p99 %8.1f p99.9 %8.1f max %8.1f",
+                    workload, decided, packetsPerSecond(), objectivesPerSecond(),
+                    percentile(50), percentile(90), percentile(99), percentile(99.9), percentile(100));
+        }
+    }
+
+    /**
+     * Run all workloads on a fabric
+     *
+     * @param args "leaf-spine SPINES LEAVES HOSTS_PER_LEAF [PACKETS]" or "fat-tree K [PACKETS]"
+     * @throws InterruptedException if interrupted
+     */
+    public static void main(String[] args) throws InterruptedException {
+        SyntheticFabric fabric;
+        int packets;
+        if (args.length >= 2 && args[0].equals("fat-tree")) {
+            fabric = SyntheticFabric.fatTree(Integer.parseInt(args[1]));
+            packets = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+        } else if (args.length >= 4 && args[0].equals("leaf-spine")) {
+            fabric = SyntheticFabric.leafSpine(Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                    Integer.parseInt(args[3]));
+            packets = args.length > 4 ? Integer.parseInt(args[4]) : 100000;
+        } else {
+            fabric = SyntheticFabric.leafSpine(4, 32, 64);
+            packets = 100000;
+        }
+
+        log.info("Fabric {}", fabric.name());
+        LoadHarness harness = new LoadHarness(fabric, 1);
+        harness.start();
+        try {
+            for (Workload workload : Workload.values())
+                log.info("{}", harness.run(workload, packets));
+        } finally {
+            harness.stop();
+        }
+    }
+
+    /** Receives the decision latency of a packet-in, in nanoseconds */
+    private interface DecisionListener {
+        void decided(long latency);
+    }
+
+    // Packet-in from a host, decided when it is sent or blocked
+    private static final class HarnessPacketContext extends PacketContextAdapter {
+        private final long receivedAt = System.nanoTime();
+        private final AtomicBoolean decided = new AtomicBoolean();
+        private final DecisionListener listener;
+
+        private HarnessPacketContext(Host src, MacAddress dst, DecisionListener listener) {
+            super(0, inbound(src, dst), new DefaultOutboundPacket(src.location().deviceId(), null,
+                    ByteBuffer.allocate(0)), false);
+            this.listener = listener;
+        }
+
+        private static DefaultInboundPacket inbound(Host src, MacAddress dst) {
+            Ethernet eth = new Ethernet();
+            eth.setDestinationMACAddress(dst)
+                    .setSourceMACAddress(src.mac())
+                    .setEtherType(Ethernet.TYPE_IPV4)
+                    .setPayload(new IPv4());
+            ConnectPoint location = new ConnectPoint(src.location().deviceId(), src.location().port());
+            return new DefaultInboundPacket(location, eth, ByteBuffer.wrap(eth.serialize()));
+        }
+
+        private void decide() {
+            if (decided.compareAndSet(false, true))
+                listener.decided(System.nanoTime() - receivedAt);
+        }
+
+        @Override
+        public void send() {
+            decide();
+        }
+
+        @Override
+        public boolean block() {
+            decide();
+            return super.block();
+        }
+    }
+
+    private static final class HarnessPacketService extends PacketServiceAdapter {
+        private final TreeMap<Integer, PacketProcessor> processors = new TreeMap<>();
+
+        @Override
+        public void addProcessor(PacketProcessor processor, int priority) {
+            processors.put(priority, processor);
+        }
+
+        void process(PacketContext context) {
+            processors.values().forEach(p -> p.process(context));
+        }
+    }
+
+    private static final class CountingFlowObjectiveService extends FlowObjectiveServiceAdapter {
+        private final LongAdder objectives = new LongAdder();
+
+        @Override
+        public void forward(DeviceId deviceId, ForwardingObjective forwardingObjective) {
+            objectives.increment();
+            // Written right away, so the entry is no longer in flight
+            forwardingObjective.context().ifPresent(context -> context.onSuccess(forwardingObjective));
+        }
+    }
+
+    private static final class HarnessFlowRuleService extends FlowRuleServiceAdapter {
+        @Override
+        public Iterable<FlowEntry> getFlowEntriesById(ApplicationId id) {
+            return ImmutableList.of();
+        }
+    }
+
+    private static final class HarnessCoreService extends CoreServiceAdapter {
+        @Override
+        public ApplicationId registerApplication(String name) {
+            return new DefaultApplicationId(1, name);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.p4bridge;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the load harness on small fabrics, so it keeps working as the bridge changes.
+ */
+public class LoadHarnessTest {
+
+    private static final int PACKETS = 2000;
+
+    private LoadHarness harness;
+
+    @After
+    public void tearDown() {
+        if (harness != null)
+            harness.stop();
+    }
+
+    private void assertDecided(LoadHarness.Report report) {
+        assertEquals(report.workload + " lost packet-ins", PACKETS, report.decided);
+        assertTrue(report.workload + " issued no objectives", report.objectives > 0);
+        assertTrue(report.percentile(50) <= report.percentile(100));
+    }
+
+    @Test
+    public void everyWorkloadIsDecidedOnALeafSpine() throws InterruptedException {
+        harness = new LoadHarness(SyntheticFabric.leafSpine(2, 4, 8), 1);
+        harness.start();
+        for (LoadHarness.Workload workload : LoadHarness.Workload.values())
+            assertDecided(harness.run(workload, PACKETS));
+    }
+
+    @Test
+    public void fatTreePathsCrossTheCore() throws InterruptedException {
+        SyntheticFabric fabric = SyntheticFabric.fatTree(4);
+        assertEquals(16, fabric.macs().size());
+
+        // Hosts of different pods are 4 switch hops apart, over one of 4 core switches
+        int paths = fabric.paths(fabric.host(fabric.macs().get(0)).location().deviceId(),
+                fabric.host(fabric.macs().get(15)).location().deviceId()).size();
+        assertEquals(4, paths);
+
+        harness = new LoadHarness(fabric, 1);
+        harness.start();
+        assertDecided(harness.run(LoadHarness.Workload.COLD_START, PACKETS));
+    }
+}
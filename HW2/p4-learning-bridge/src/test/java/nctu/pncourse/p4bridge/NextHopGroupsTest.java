@@ -0,0 +1,141 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.p4bridge;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.TrafficSelector;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the groups of next hops toward every destination switch.
+ */
+public class NextHopGroupsTest {
+
+    private static final DeviceId S1 = DeviceId.deviceId("device:bmv2:s1");
+    private static final DeviceId S2 = DeviceId.deviceId("device:bmv2:s2");
+    private static final DeviceId S3 = DeviceId.deviceId("device:bmv2:s3");
+    private static final TrafficSelector TO_A = DefaultTrafficSelector.builder()
+            .matchEthDst(MacAddress.valueOf("00:00:00:00:00:0a")).build();
+    private static final TrafficSelector TO_B = DefaultTrafficSelector.builder()
+            .matchEthDst(MacAddress.valueOf("00:00:00:00:00:0b")).build();
+    private static final PortNumber P1 = PortNumber.portNumber(1);
+    private static final PortNumber P2 = PortNumber.portNumber(2);
+    private static final PortNumber P3 = PortNumber.portNumber(3);
+    private static final Set<PortNumber> P1_P2 = ImmutableSet.of(P1, P2);
+
+    private final AtomicInteger ids = new AtomicInteger();
+    private NextHopGroups groups;
+
+    @Before
+    public void setUp() {
+        groups = new NextHopGroups();
+    }
+
+    @Test
+    public void entriesTowardTheSameSwitchShareAGroup() {
+        NextHopGroups.Binding a = groups.bind(S1, TO_A, S3, P1_P2, ids::incrementAndGet);
+        NextHopGroups.Binding b = groups.bind(S1, TO_B, S3, ImmutableSet.of(P1, P2), ids::incrementAndGet);
+        assertTrue(a.created);
+        assertFalse(b.created);
+        assertFalse(b.modified);
+        assertSame(a.group, b.group);
+        assertEquals(P1_P2, a.group.ports());
+        assertEquals(ImmutableSet.of(TO_A, TO_B), groups.entries(a.group));
+
+        // Other devices have their own groups
+        assertTrue(groups.bind(S2, TO_A, S3, P1_P2, ids::incrementAndGet).created);
+        assertEquals(2, groups.size());
+        assertEquals(Integer.valueOf(a.group.id), groups.nextId(S1, TO_B));
+        assertNull(groups.nextId(S2, TO_B));
+    }
+
+    @Test
+    public void entryWithOtherPortsModifiesTheGroup() {
+        NextHopGroups.Group group = groups.bind(S1, TO_A, S3, P1_P2, ids::incrementAndGet).group;
+        NextHopGroups.Binding b = groups.bind(S1, TO_B, S3, ImmutableSet.of(P3), ids::incrementAndGet);
+
+        assertSame(group, b.group);
+        assertTrue(b.modified);
+        assertEquals(ImmutableSet.of(P3), group.ports());
+    }
+
+    @Test
+    public void updateChangesThePortsOnce() {
+        NextHopGroups.Group group = groups.bind(S1, TO_A, S3, P1_P2, ids::incrementAndGet).group;
+
+        assertFalse(groups.update(group, ImmutableSet.of(P1, P2)));
+        assertTrue(groups.update(group, ImmutableSet.of(P2)));
+        assertEquals(ImmutableSet.of(P2), group.ports());
+        assertEquals(ImmutableSet.of(S1), groups.groups().keySet());
+    }
+
+    @Test
+    public void groupIsReleasedWithItsLastEntry() {
+        NextHopGroups.Group group = groups.bind(S1, TO_A, S3, P1_P2, ids::incrementAndGet).group;
+        groups.bind(S1, TO_B, S3, P1_P2, ids::incrementAndGet);
+
+        assertNull(groups.unbind(S1, TO_A));
+        assertSame(group, groups.unbind(S1, TO_B));
+        assertEquals(0, groups.size());
+        assertNull(groups.unbind(S1, TO_B));
+    }
+
+    @Test
+    public void movedEntryReleasesItsPreviousGroup() {
+        NextHopGroups.Group old = groups.bind(S1, TO_A, S3, P1_P2, ids::incrementAndGet).group;
+        assertFalse(groups.bind(S1, TO_A, S3, P1_P2, ids::incrementAndGet).created);
+
+        // The host moved behind another switch
+        NextHopGroups.Binding moved = groups.bind(S1, TO_A, S2, ImmutableSet.of(P3), ids::incrementAndGet);
+        assertTrue(moved.created);
+        assertSame(old, moved.released);
+        assertEquals(1, groups.size());
+    }
+
+    @Test
+    public void failedGroupIsForgottenWithItsEntries() {
+        NextHopGroups.Group group = groups.bind(S1, TO_A, S3, P1_P2, ids::incrementAndGet).group;
+        groups.bind(S1, TO_B, S3, P1_P2, ids::incrementAndGet);
+        groups.remove(S1, group);
+
+        assertEquals(0, groups.size());
+        assertNull(groups.nextId(S1, TO_A));
+        assertTrue(groups.bind(S1, TO_A, S3, P1_P2, ids::incrementAndGet).created);
+    }
+
+    @Test
+    public void removeAllHandsBackEveryGroup() {
+        groups.bind(S1, TO_A, S3, P1_P2, ids::incrementAndGet);
+        groups.bind(S2, TO_A, S3, P1_P2, ids::incrementAndGet);
+
+        assertEquals(ImmutableSet.of(S1, S2), groups.removeAll().keySet());
+        assertEquals(0, groups.size());
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.p4bridge;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.onlab.graph.ScalarWeight;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.VlanId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultHost;
+import org.onosproject.net.DefaultLink;
+import org.onosproject.net.DefaultPath;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.HostId;
+import org.onosproject.net.HostLocation;
+import org.onosproject.net.Link;
+import org.onosproject.net.Path;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.host.HostServiceAdapter;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.provider.ProviderId;
+import org.onosproject.net.topology.Topology;
+import org.onosproject.net.topology.TopologyEvent;
+import org.onosproject.net.topology.TopologyListener;
+import org.onosproject.net.topology.TopologyServiceAdapter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-memory switching fabric with its hosts, standing in for the host and topology services.
+ * Paths are the shortest paths over the links which are up, hosts can move and links can fail.
+ */
+final class SyntheticFabric {
+
+    static final ProviderId PID = new ProviderId("harness", "nctu.pncourse.p4bridge");
+
+    // Equal cost paths returned for a pair of switches, at most
+    private static final int MAX_PATHS = 16;
+
+    private final String name;
+    private final List<DeviceId> edges = new ArrayList<>();
+    private final Map<DeviceId, List<Link>> links = new HashMap<>();
+    private final List<Link> fabricLinks = new ArrayList<>();
+    private final Set<Link> failed = ConcurrentHashMap.newKeySet();
+    private final Set<ConnectPoint> infrastructure = new HashSet<>();
+    private final Map<DeviceId, Integer> nextPort = new HashMap<>();
+    private final Map<MacAddress, Host> hosts = new ConcurrentHashMap<>();
+    private final List<MacAddress> macs = new ArrayList<>();
+
+    private final FabricTopologyService topologyService = new FabricTopologyService();
+    private final FabricHostService hostService = new FabricHostService();
+
+    private SyntheticFabric(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Leaf-spine fabric, every leaf is linked to every spine and the hosts hang off the leaves
+     *
+     * @param spines       number of spine switches
+     * @param leaves       number of leaf switches
+     * @param hostsPerLeaf number of hosts per leaf
+     * @return fabric
+     */
+    static SyntheticFabric leafSpine(int spines, int leaves, int hostsPerLeaf) {
+        SyntheticFabric fabric = new SyntheticFabric(
+                String.format("leaf-spine %d spines, %d leaves, %d hosts", spines, leaves, leaves * hostsPerLeaf));
+        for (int l = 0; l < leaves; l++) {
+            DeviceId leaf = DeviceId.deviceId("device:bmv2:leaf" + l);
+            fabric.edges.add(leaf);
+            for (int s = 0; s < spines; s++)
+                fabric.connect(leaf, DeviceId.deviceId("device:bmv2:spine" + s));
+        }
+        fabric.attachHosts(hostsPerLeaf);
+        return fabric;
+    }
+
+    /**
+     * k-ary fat-tree, k pods of k/2 edge and k/2 aggregation switches under (k/2)^2 core switches,
+     * with k/2 hosts per edge switch
+     *
+     * @param k even number of ports per switch
+     * @return fabric
+     */
+    static SyntheticFabric fatTree(int k) {
+        int half = k / 2;
+        SyntheticFabric fabric = new SyntheticFabric(
+                String.format("fat-tree k=%d, %d switches, %d hosts", k, 5 * k * k / 4, k * k * k / 4));
+        for (int p = 0; p < k; p++) {
+            for (int a = 0; a < half; a++) {
+                DeviceId agg = DeviceId.deviceId("device:bmv2:agg" + p + "-" + a);
+                for (int c = 0; c < half; c++)
+                    fabric.connect(agg, DeviceId.deviceId("device:bmv2:core" + a + "-" + c));
+            }
+            for (int e = 0; e < half; e++) {
+                DeviceId edge = DeviceId.deviceId("device:bmv2:edge" + p + "-" + e);
+                fabric.edges.add(edge);
+                for (int a = 0; a < half; a++)
+                    fabric.connect(edge, DeviceId.deviceId("device:bmv2:agg" + p + "-" + a));
+            }
+        }
+        fabric.attachHosts(half);
+        return fabric;
+    }
+
+    private PortNumber allocatePort(DeviceId deviceId) {
+        int port = nextPort.merge(deviceId, 1, Integer::sum);
+        return PortNumber.portNumber(port);
+    }
+
+    private void connect(DeviceId a, DeviceId b) {
+        ConnectPoint aPort = new ConnectPoint(a, allocatePort(a));
+        ConnectPoint bPort = new ConnectPoint(b, allocatePort(b));
+        Link forward = link(aPort, bPort);
+        links.computeIfAbsent(a, k -> new ArrayList<>()).add(forward);
+        links.computeIfAbsent(b, k -> new ArrayList<>()).add(link(bPort, aPort));
+        fabricLinks.add(forward);
+        infrastructure.add(aPort);
+        infrastructure.add(bPort);
+    }
+
+    private static Link link(ConnectPoint src, ConnectPoint dst) {
+        return DefaultLink.builder()
+                .providerId(PID)
+                .src(src)
+                .dst(dst)
+                .type(Link.Type.DIRECT)
+                .state(Link.State.ACTIVE)
+                .build();
+    }
+
+    private void attachHosts(int hostsPerEdge) {
+        for (DeviceId edge : edges) {
+            for (int h = 0; h < hostsPerEdge; h++) {
+                // Locally administered unicast MACs
+                MacAddress mac = MacAddress.valueOf(0x020000000000L + macs.size() + 1);
+                macs.add(mac);
+                hosts.put(mac, host(mac, new ConnectPoint(edge, allocatePort(edge))));
+            }
+        }
+    }
+
+    private static Host host(MacAddress mac, ConnectPoint location) {
+        return new DefaultHost(PID, HostId.hostId(mac), mac, VlanId.NONE, new HostLocation(location, 0),
+                ImmutableSet.of());
+    }
+
+    String name() {
+        return name;
+    }
+
+    /**
+     * MAC addresses of all hosts, in a fixed order
+     *
+     * @return list of MACs
+     */
+    List<MacAddress> macs() {
+        return macs;
+    }
+
+    Host host(MacAddress mac) {
+        return hosts.get(mac);
+    }
+
+    FabricTopologyService topologyService() {
+        return topologyService;
+    }
+
+    FabricHostService hostService() {
+        return hostService;
+    }
+
+    /**
+     * Move a host to a new port of another edge switch
+     *
+     * @param mac    MAC of the host
+     * @param random source of randomness
+     * @return host at its new location
+     */
+    Host moveHost(MacAddress mac, Random random) {
+        DeviceId current = hosts.get(mac).location().deviceId();
+        DeviceId edge = current;
+        while (edge.equals(current) && edges.size() > 1)
+            edge = edges.get(random.nextInt(edges.size()));
+        PortNumber port;
+        synchronized (nextPort) {
+            port = allocatePort(edge);
+        }
+        Host moved = host(mac, new ConnectPoint(edge, port));
+        hosts.put(mac, moved);
+        return moved;
+    }
+
+    /**
+     * Take a random fabric link down in both directions and notify the topology listeners
+     *
+     * @param random source of randomness
+     * @return link which went down, null if every link is already down
+     */
+    Link failLink(Random random) {
+        List<Link> up = new ArrayList<>();
+        for (Link link : fabricLinks) {
+            if (!failed.contains(link))
+                up.add(link);
+        }
+        if (up.isEmpty())
+            return null;
+
+        Link link = up.get(random.nextInt(up.size()));
+        Link reverse = reverse(link);
+        failed.add(link);
+        failed.add(reverse);
+        topologyService.post(new TopologyEvent(TopologyEvent.Type.TOPOLOGY_CHANGED, null, ImmutableList.of(
+                new LinkEvent(LinkEvent.Type.LINK_REMOVED, link),
+                new LinkEvent(LinkEvent.Type.LINK_REMOVED, reverse))));
+        return link;
+    }
+
+    private Link reverse(Link link) {
+        for (Link candidate : links.get(link.dst().deviceId())) {
+            if (candidate.dst().equals(link.src()))
+                return candidate;
+        }
+        throw new IllegalStateException("No reverse of " + link);
+    }
+
+    /**
+     * Shortest paths between two switches over the links which are up
+     *
+     * @param src source switch
+     * @param dst destination switch
+     * @return up to MAX_PATHS equal cost paths
+     */
+    Set<Path> paths(DeviceId src, DeviceId dst) {
+        // Hop count of every switch to the destination, links are symmetric
+        Map<DeviceId, Integer> distance = new HashMap<>();
+        Queue<DeviceId> queue = new ArrayDeque<>();
+        distance.put(dst, 0);
+        queue.add(dst);
+        while (!queue.isEmpty() && !distance.containsKey(src)) {
+            DeviceId node = queue.remove();
+            for (Link link : links.getOrDefault(node, ImmutableList.of())) {
+                if (!failed.contains(link) && !distance.containsKey(link.dst().deviceId())) {
+                    distance.put(link.dst().deviceId(), distance.get(node) + 1);
+                    queue.add(link.dst().deviceId());
+                }
+            }
+        }
+        if (!distance.containsKey(src))
+            return ImmutableSet.of();
+
+        ImmutableSet.Builder<Path> paths = ImmutableSet.builder();
+        collectPaths(src, distance, new LinkedList<>(), paths, new int[]{0});
+        return paths.build();
+    }
+
+    private void collectPaths(DeviceId node, Map<DeviceId, Integer> distance, LinkedList<Link> prefix,
+                              ImmutableSet.Builder<Path> paths, int[] count) {
+        int hops = distance.get(node);
+        if (hops == 0) {
+            paths.add(new DefaultPath(PID, ImmutableList.copyOf(prefix), ScalarWeight.toWeight(prefix.size())));
+            count[0]++;
+            return;
+        }
+        for (Link link : links.get(node)) {
+            Integer next = distance.get(link.dst().deviceId());
+            if (count[0] >= MAX_PATHS)
+                return;
+            if (failed.contains(link) || next == null || next != hops - 1)
+                continue;
+            prefix.addLast(link);
+            collectPaths(link.dst().deviceId(), distance, prefix, paths, count);
+            prefix.removeLast();
+        }
+    }
+
+    /** Topology service answering from the fabric */
+    final class FabricTopologyService extends TopologyServiceAdapter {
+        private final List<TopologyListener> listeners = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void addListener(TopologyListener listener) {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void removeListener(TopologyListener listener) {
+            listeners.remove(listener);
+        }
+
+        void post(TopologyEvent event) {
+            listeners.forEach(l -> l.event(event));
+        }
+
+        @Override
+        public Set<Path> getPaths(Topology topology, DeviceId src, DeviceId dst) {
+            return paths(src, dst);
+        }
+
+        @Override
+        public boolean isInfrastructure(Topology topology, ConnectPoint connectPoint) {
+            return infrastructure.contains(connectPoint);
+        }
+    }
+
+    /** Host service answering from the fabric */
+    final class FabricHostService extends HostServiceAdapter {
+        @Override
+        public Host getHost(HostId hostId) {
+            return hosts.get(hostId.mac());
+        }
+
+        @Override
+        public int getHostCount() {
+            return hosts.size();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.p4bridge;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.TrafficSelector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the forwarding table occupancy tracking.
+ */
+public class TableOccupancyTest {
+
+    private static final DeviceId S1 = DeviceId.deviceId("device:bmv2:s1");
+    private static final DeviceId S2 = DeviceId.deviceId("device:bmv2:s2");
+    private static final PortNumber PORT = PortNumber.portNumber(1);
+    private static final ForwardingTable DST = ForwardingTable.DST_MAC_FORWARD;
+    private static final ForwardingTable ETHERNET = ForwardingTable.ETHERNET_FORWARD;
+
+    // Entry to a host
+    private static TrafficSelector mac(int host) {
+        return DefaultTrafficSelector.builder().matchEthDst(MacAddress.valueOf((long) host)).build();
+    }
+
+    // Entry from host 0 to a host
+    private static TrafficSelector srcDst(int host) {
+        return DefaultTrafficSelector.builder()
+                .matchEthSrc(MacAddress.valueOf(0L))
+                .matchEthDst(MacAddress.valueOf((long) host))
+                .build();
+    }
+
+    @Test
+    public void leastRecentlyInstalledEntryIsEvicted() {
+        // A table of 20 entries is kept at 19
+        TableOccupancy occupancy = new TableOccupancy();
+        occupancy.resize(DST, 20);
+        for (int i = 1; i <= 19; i++)
+            assertTrue(occupancy.add(S1, DST, mac(i), PORT).isEmpty());
+
+        // Refreshing host 1 makes host 2 the oldest entry
+        occupancy.add(S1, DST, mac(1), PORT);
+        assertEquals(ImmutableMap.of(mac(2), PORT), occupancy.add(S1, DST, mac(20), PORT));
+        assertEquals(19, occupancy.size(S1, DST));
+    }
+
+    @Test
+    public void tablesAreTrackedPerDevice() {
+        TableOccupancy occupancy = new TableOccupancy();
+        occupancy.resize(DST, 1);
+        assertTrue(occupancy.add(S1, DST, mac(1), PORT).isEmpty());
+        assertTrue(occupancy.add(S2, DST, mac(2), PORT).isEmpty());
+
+        assertEquals(ImmutableMap.of(mac(1), PORT), occupancy.add(S1, DST, mac(3), PORT));
+        assertEquals(1, occupancy.size(S2, DST));
+    }
+
+    @Test
+    public void tablesHaveTheirOwnCapacity() {
+        // The ternary table of 1024 entries is kept at 973, the exact match table is far from full
+        TableOccupancy occupancy = new TableOccupancy();
+        for (int i = 1; i <= 973; i++) {
+            assertTrue(occupancy.add(S1, ETHERNET, srcDst(i), PORT).isEmpty());
+            assertTrue(occupancy.add(S1, DST, mac(i), PORT).isEmpty());
+        }
+
+        assertEquals(ImmutableMap.of(srcDst(1), PORT), occupancy.add(S1, ETHERNET, srcDst(974), PORT));
+        assertTrue(occupancy.add(S1, DST, mac(974), PORT).isEmpty());
+        assertEquals(973, occupancy.size(S1, ETHERNET));
+        assertEquals(974, occupancy.size(S1, DST));
+    }
+
+    @Test
+    public void removedEntryFreesItsSlot() {
+        TableOccupancy occupancy = new TableOccupancy();
+        occupancy.resize(DST, 1);
+        occupancy.add(S1, DST, mac(1), PORT);
+        assertEquals(PORT, occupancy.remove(S1, DST, mac(1)));
+
+        assertEquals(0, occupancy.size(S1, DST));
+        assertTrue(occupancy.add(S1, DST, mac(2), PORT).isEmpty());
+    }
+}
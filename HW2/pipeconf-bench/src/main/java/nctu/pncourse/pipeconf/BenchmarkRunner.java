@@ -0,0 +1,99 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.pipeconf;
+
+import com.google.common.collect.ImmutableMap;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the benchmarks with the GC profiler, so allocation rates are reported next to ops/s.
+ * Accepts the usual JMH command line options, e.g. a benchmark name regex.
+ * Exits with status 1 if a benchmark allocates more bytes per operation than its budget.
+ */
+public final class BenchmarkRunner {
+
+    // Bytes per operation reported by the GC profiler
+    private static final String ALLOC_RATE_NORM = "gc.alloc.rate.norm";
+
+    // Allocation budget in bytes per operation, by benchmark
+    private static final Map<String, Double> ALLOCATION_BUDGETS = ImmutableMap.<String, Double>builder()
+            // A packet-in path which copies or parses the payload allocates more than a full size frame
+            .put(InboundPacketBenchmark.class.getName() + ".packetIn", 1500.0)
+            .put(InboundPacketBenchmark.class.getName() + ".learnNotification", 1500.0)
+            // Output actions of ordinary ports are interned, translating one allocates nothing
+            .put(TreatmentBenchmark.class.getName() + ".setEgressPort", 16.0)
+            .build();
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Collection<RunResult> results = new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+
+        List<String> exceeded = overBudget(results);
+        if (!exceeded.isEmpty()) {
+            exceeded.forEach(System.err::println);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Find the benchmarks which allocate more than their budget
+     *
+     * @param results results of the run
+     * @return one line per benchmark over its budget
+     */
+    static List<String> overBudget(Collection<RunResult> results) {
+        List<String> exceeded = new ArrayList<>();
+        for (RunResult result : results) {
+            BenchmarkParams params = result.getParams();
+            Double budget = ALLOCATION_BUDGETS.get(params.getBenchmark());
+            if (budget == null)
+                continue;
+            for (Map.Entry<String, Result> secondary : result.getSecondaryResults().entrySet()) {
+                double perOp = secondary.getValue().getScore();
+                if (secondary.getKey().endsWith(ALLOC_RATE_NORM) && perOp >= budget)
+                    exceeded.add(String.format("%s %s allocates %.0f bytes per op, budget is %.0f",
+                            params.getBenchmark(), paramsOf(params), perOp, budget));
+            }
+        }
+        return exceeded;
+    }
+
+    private static String paramsOf(BenchmarkParams params) {
+        List<String> values = new ArrayList<>();
+        for (String key : params.getParamsKeys())
+            values.add(key + "=" + params.getParam(key));
+        return values.toString();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.pipeconf;
+
+import com.google.common.collect.ImmutableList;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.MacAddress;
+import org.onlab.util.ImmutableByteSequence;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.packet.InboundPacket;
+import org.onosproject.net.pi.model.PiPacketMetadataId;
+import org.onosproject.net.pi.model.PiPipelineInterpreter.PiInterpreterException;
+import org.onosproject.net.pi.runtime.PiPacketMetadata;
+import org.onosproject.net.pi.runtime.PiPacketOperation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.onosproject.net.pi.model.PiPacketOperationType.PACKET_IN;
+
+/**
+ * Cost of translating a P4Runtime packet-in into an inbound packet.
+ * The destination MAC is read as the bridge does, the payload is left alone.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InboundPacketBenchmark {
+
+    private static final DeviceId DEVICE_ID = DeviceId.deviceId("device:bmv2:s1");
+
+    // Size of the frame carried by the packet-in, in bytes
+    @Param({"64", "512", "1500", "9000"})
+    public int frameSize;
+
+    private InterpreterImpl interpreter;
+    private PiPacketOperation packetIn;
+    private PiPacketOperation learn;
+
+    @Setup
+    public void setUp() {
+        interpreter = new InterpreterImpl();
+
+        Ethernet eth = new Ethernet();
+        eth.setDestinationMACAddress(MacAddress.valueOf("00:00:00:00:00:02"))
+                .setSourceMACAddress(MacAddress.valueOf("00:00:00:00:00:01"))
+                .setEtherType(Ethernet.TYPE_IPV4);
+        byte[] header = eth.serialize();
+        byte[] frame = new byte[frameSize];
+        System.arraycopy(header, 0, frame, 0, Ethernet.ETHERNET_HEADER_LENGTH);
+
+        packetIn = packetIn(frame, (byte) 0);
+        learn = packetIn(frame, (byte) 1);
+    }
+
+    private static PiPacketOperation packetIn(byte[] frame, byte isLearn) {
+        return PiPacketOperation.builder()
+                .withType(PACKET_IN)
+                .withData(ImmutableByteSequence.copyFrom(frame))
+                .withMetadatas(ImmutableList.of(
+                        metadata("ingress_port", (byte) 0, (byte) 3),
+                        metadata("is_learn", isLearn)))
+                .build();
+    }
+
+    private static PiPacketMetadata metadata(String id, byte... value) {
+        return PiPacketMetadata.builder()
+                .withId(PiPacketMetadataId.of(id))
+                .withValue(ImmutableByteSequence.copyFrom(value))
+                .build();
+    }
+
+    @Benchmark
+    public MacAddress packetIn() throws PiInterpreterException {
+        InboundPacket packet = interpreter.mapInboundPacket(packetIn, DEVICE_ID);
+        return packet.parsed().getDestinationMAC();
+    }
+
+    @Benchmark
+    public MacAddress learnNotification() throws PiInterpreterException {
+        InboundPacket packet = interpreter.mapInboundPacket(learn, DEVICE_ID);
+        return packet.parsed().getSourceMAC();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.pipeconf;
+
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.packet.DefaultOutboundPacket;
+import org.onosproject.net.packet.OutboundPacket;
+import org.onosproject.net.pi.model.PiPipelineInterpreter.PiInterpreterException;
+import org.onosproject.net.pi.runtime.PiPacketOperation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of translating a packet-out into P4Runtime packet operations.
+ * A unicast packet-out to N ports is N operations, a flood is one operation on the flood group
+ * of the ingress port whatever the number of ports of the switch.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OutboundPacketBenchmark {
+
+    private static final DeviceId DEVICE_ID = DeviceId.deviceId("device:bmv2:s1");
+
+    // Number of ports of the switch, the unicast packet-out goes out of all of them
+    @Param({"1", "4", "16", "48"})
+    public int ports;
+
+    private InterpreterImpl interpreter;
+    private OutboundPacket unicast;
+    private OutboundPacket flood;
+
+    @Setup
+    public void setUp() {
+        interpreter = new InterpreterImpl();
+
+        Ethernet eth = new Ethernet();
+        eth.setDestinationMACAddress(MacAddress.valueOf("00:00:00:00:00:02"))
+                .setSourceMACAddress(MacAddress.valueOf("00:00:00:00:00:01"))
+                .setEtherType(Ethernet.TYPE_IPV4)
+                .setPad(true);
+        ByteBuffer frame = ByteBuffer.wrap(eth.serialize());
+
+        TrafficTreatment.Builder outputs = DefaultTrafficTreatment.builder();
+        for (int port = 1; port <= ports; port++)
+            outputs.setOutput(PortNumber.portNumber(port));
+        unicast = new DefaultOutboundPacket(DEVICE_ID, outputs.build(), frame);
+
+        // Flood from the last port, the group of that port excludes it
+        flood = new DefaultOutboundPacket(DEVICE_ID, DefaultTrafficTreatment.builder()
+                .setOutput(PortNumber.FLOOD)
+                .writeMetadata(ports, 1)
+                .build(), frame);
+    }
+
+    @Benchmark
+    public Collection<PiPacketOperation> unicast() throws PiInterpreterException {
+        return interpreter.mapOutboundPacket(unicast);
+    }
+
+    @Benchmark
+    public Collection<PiPacketOperation> flood() throws PiInterpreterException {
+        return interpreter.mapOutboundPacket(flood);
+    }
+}
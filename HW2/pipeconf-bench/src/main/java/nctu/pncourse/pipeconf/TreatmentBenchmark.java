@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.pipeconf;
+
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.pi.model.PiPipelineInterpreter.PiInterpreterException;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of translating the treatment of a flow rule into a P4 action.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TreatmentBenchmark {
+
+    private static final PiTableId ETHERNET_FORWARD = PiTableId.of("MyIngress.ethernet_forward");
+    private static final PiTableId DST_MAC_FORWARD = PiTableId.of("MyIngress.dst_mac_forward");
+
+    private InterpreterImpl interpreter;
+    private TrafficTreatment output;
+    private TrafficTreatment controller;
+    private TrafficTreatment flood;
+    private TrafficTreatment drop;
+
+    @Setup
+    public void setUp() {
+        interpreter = new InterpreterImpl();
+        output = DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(3)).build();
+        controller = DefaultTrafficTreatment.builder().setOutput(PortNumber.CONTROLLER).build();
+        flood = DefaultTrafficTreatment.builder().setOutput(PortNumber.FLOOD).build();
+        drop = DefaultTrafficTreatment.emptyTreatment();
+    }
+
+    @Benchmark
+    public PiAction setEgressPort() throws PiInterpreterException {
+        return interpreter.mapTreatment(output, ETHERNET_FORWARD);
+    }
+
+    @Benchmark
+    public PiAction setEgressPortExactMatch() throws PiInterpreterException {
+        return interpreter.mapTreatment(output, DST_MAC_FORWARD);
+    }
+
+    @Benchmark
+    public PiAction sendToController() throws PiInterpreterException {
+        return interpreter.mapTreatment(controller, ETHERNET_FORWARD);
+    }
+
+    @Benchmark
+    public PiAction flood() throws PiInterpreterException {
+        return interpreter.mapTreatment(flood, ETHERNET_FORWARD);
+    }
+
+    @Benchmark
+    public PiAction drop() throws PiInterpreterException {
+        return interpreter.mapTreatment(drop, ETHERNET_FORWARD);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.pipeconf;
+
+import com.google.common.collect.ImmutableSet;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.PortNumber;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Spanning tree of the infrastructure links, used to flood without loops.
+ * A port connected to another switch floods only if its link is on the tree, host ports always flood.
+ * Updates keep the links of the previous tree which still exist, so a topology change only moves
+ * the flooding of the switches next to a link which was removed.
+ */
+final class BroadcastTree {
+
+    // Links are looked at in a fixed order, so the same topology gives the same tree
+    private static final Comparator<ConnectPoint> POINT_ORDER = Comparator
+            .comparing((ConnectPoint cp) -> cp.deviceId().toString())
+            .thenComparingLong(cp -> cp.port().toLong());
+    private static final Comparator<Edge> EDGE_ORDER = Comparator
+            .comparing((Edge e) -> e.one, POINT_ORDER)
+            .thenComparing(e -> e.two, POINT_ORDER);
+
+    private Set<Edge> treeEdges = new HashSet<>();
+    private Map<DeviceId, Set<PortNumber>> blocked = new HashMap<>();
+
+    /**
+     * Recompute the tree from the current infrastructure links
+     *
+     * @param links infrastructure links, in one or both directions
+     * @return devices whose set of blocked ports changed
+     */
+    synchronized Set<DeviceId> update(Iterable<Link> links) {
+        Set<Edge> edges = new TreeSet<>(EDGE_ORDER);
+        for (Link link : links)
+            edges.add(new Edge(link.src(), link.dst()));
+
+        // Links of the previous tree first, then the others in order, as long as they join two parts
+        Map<DeviceId, DeviceId> parents = new HashMap<>();
+        Set<Edge> tree = new HashSet<>();
+        for (Edge edge : edges) {
+            if (treeEdges.contains(edge) && join(parents, edge))
+                tree.add(edge);
+        }
+        for (Edge edge : edges) {
+            if (!tree.contains(edge) && join(parents, edge))
+                tree.add(edge);
+        }
+
+        Map<DeviceId, Set<PortNumber>> newBlocked = new HashMap<>();
+        for (Edge edge : edges) {
+            if (!tree.contains(edge)) {
+                newBlocked.computeIfAbsent(edge.one.deviceId(), k -> new HashSet<>()).add(edge.one.port());
+                newBlocked.computeIfAbsent(edge.two.deviceId(), k -> new HashSet<>()).add(edge.two.port());
+            }
+        }
+
+        Set<DeviceId> changed = new HashSet<>();
+        for (DeviceId deviceId : blocked.keySet()) {
+            if (!blocked.get(deviceId).equals(newBlocked.get(deviceId)))
+                changed.add(deviceId);
+        }
+        for (DeviceId deviceId : newBlocked.keySet()) {
+            if (!newBlocked.get(deviceId).equals(blocked.get(deviceId)))
+                changed.add(deviceId);
+        }
+
+        treeEdges = tree;
+        blocked = newBlocked;
+        return changed;
+    }
+
+    /**
+     * Ports of a device which must not flood, the ports of infrastructure links off the tree
+     *
+     * @param deviceId device ID
+     * @return set of port numbers
+     */
+    synchronized Set<PortNumber> blockedPorts(DeviceId deviceId) {
+        Set<PortNumber> ports = blocked.get(deviceId);
+        return ports == null ? ImmutableSet.of() : ImmutableSet.copyOf(ports);
+    }
+
+    synchronized int size() {
+        return treeEdges.size();
+    }
+
+    synchronized void clear() {
+        treeEdges.clear();
+        blocked.clear();
+    }
+
+    // Union-find over the devices, true if the edge joined two parts
+    private static boolean join(Map<DeviceId, DeviceId> parents, Edge edge) {
+        DeviceId one = root(parents, edge.one.deviceId());
+        DeviceId two = root(parents, edge.two.deviceId());
+        if (one.equals(two))
+            return false;
+        parents.put(one, two);
+        return true;
+    }
+
+    private static DeviceId root(Map<DeviceId, DeviceId> parents, DeviceId deviceId) {
+        DeviceId root = deviceId;
+        while (parents.containsKey(root))
+            root = parents.get(root);
+        // Path compression
+        while (!deviceId.equals(root)) {
+            DeviceId next = parents.get(deviceId);
+            parents.put(deviceId, root);
+            deviceId = next;
+        }
+        return root;
+    }
+
+    // Undirected link, the ends are kept in order so both directions are the same edge
+    private static final class Edge {
+        final ConnectPoint one;
+        final ConnectPoint two;
+
+        private Edge(ConnectPoint a, ConnectPoint b) {
+            boolean ordered = POINT_ORDER.compare(a, b) <= 0;
+            this.one = ordered ? a : b;
+            this.two = ordered ? b : a;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Edge that = (Edge) o;
+            return Objects.equals(one, that.one) &&
+                    Objects.equals(two, that.two);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(one, two);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.pipeconf;
+
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.CoreService;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Port;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.group.DefaultGroupBucket;
+import org.onosproject.net.group.DefaultGroupDescription;
+import org.onosproject.net.group.DefaultGroupKey;
+import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupBucket;
+import org.onosproject.net.group.GroupBuckets;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupKey;
+import org.onosproject.net.group.GroupService;
+import org.onosproject.net.link.LinkService;
+import org.onosproject.net.pi.service.PiPipeconfService;
+import org.onosproject.net.topology.TopologyEvent;
+import org.onosproject.net.topology.TopologyListener;
+import org.onosproject.net.topology.TopologyService;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.onlab.util.Tools.groupedThreads;
+
+/**
+ * Programs one multicast group per ingress port of every device running this pipeconf.
+ * The group of an ingress port replicates to all other ports on the broadcast tree, so flooding,
+ * by the switch on a forwarding miss or by a packet-out, is loop-free and a single packet operation.
+ * Ports of infrastructure links off the tree have no group, the switch drops what they would flood.
+ */
+@Component(immediate = true)
+public final class FloodGroupProgrammer {
+
+    /** Multicast group ID of ingress port N is FLOOD_GROUP_BASE + N, N = 0 excludes no port. */
+    static final int FLOOD_GROUP_BASE = 0x1000;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected CoreService coreService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected DeviceService deviceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected GroupService groupService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected PiPipeconfService piPipeconfService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected LinkService linkService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected TopologyService topologyService;
+
+    private final DeviceListener deviceListener = new InternalDeviceListener();
+    private final TopologyListener topologyListener = new InternalTopologyListener();
+
+    // Spanning tree of the infrastructure links, only read and updated on the executor
+    private final BroadcastTree broadcastTree = new BroadcastTree();
+
+    private ApplicationId appId;
+    private ExecutorService executor;
+
+    @Activate
+    protected void activate() {
+        appId = coreService.registerApplication(Pipeconf.PIPECONF_ID.id());
+        executor = Executors.newSingleThreadExecutor(groupedThreads("pipeconf", "flood-groups", log));
+        deviceService.addListener(deviceListener);
+        topologyService.addListener(topologyListener);
+        executor.execute(() -> {
+            broadcastTree.update(linkService.getActiveLinks());
+            for (Device device : deviceService.getAvailableDevices())
+                programFloodGroups(device.id());
+        });
+        log.info("Started");
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        deviceService.removeListener(deviceListener);
+        topologyService.removeListener(topologyListener);
+        executor.shutdownNow();
+        broadcastTree.clear();
+        log.info("Stopped");
+    }
+
+    /**
+     * Multicast group ID used to flood packets which came from a port
+     *
+     * @param inputPort ingress port number, 0 if the packet has no ingress port
+     * @return multicast group ID
+     */
+    static int floodGroupId(long inputPort) {
+        return FLOOD_GROUP_BASE + (int) inputPort;
+    }
+
+    private static GroupKey groupKey(int groupId) {
+        return new DefaultGroupKey(ByteBuffer.allocate(4).putInt(groupId).array());
+    }
+
+    /**
+     * Recompute the broadcast tree and re-program the devices whose flooding ports changed
+     */
+    private void updateBroadcastTree() {
+        Set<DeviceId> changed = broadcastTree.update(linkService.getActiveLinks());
+        log.debug("Broadcast tree has {} links, {} devices to re-program", broadcastTree.size(), changed.size());
+        for (DeviceId deviceId : changed) {
+            if (deviceService.isAvailable(deviceId))
+                programFloodGroups(deviceId);
+        }
+    }
+
+    /**
+     * Add or update the flood groups of a device so they match its current ports and the broadcast tree
+     *
+     * @param deviceId device ID
+     */
+    private void programFloodGroups(DeviceId deviceId) {
+        if (!Pipeconf.isDeployedOn(piPipeconfService, deviceId))
+            return;
+
+        Set<PortNumber> blocked = broadcastTree.blockedPorts(deviceId);
+        Set<Long> ports = new TreeSet<>();
+        for (Port port : deviceService.getPorts(deviceId)) {
+            if (!port.number().isLogical() && !blocked.contains(port.number()))
+                ports.add(port.number().toLong());
+        }
+
+        // Group 0 floods packets without an ingress port to every port on the tree
+        Set<Long> inputPorts = new TreeSet<>(ports);
+        inputPorts.add(0L);
+        for (long inputPort : inputPorts) {
+            List<GroupBucket> buckets = new ArrayList<>();
+            for (long port : ports) {
+                if (port != inputPort)
+                    buckets.add(DefaultGroupBucket.createAllGroupBucket(DefaultTrafficTreatment.builder()
+                            .setOutput(PortNumber.portNumber(port))
+                            .build()));
+            }
+            writeGroup(deviceId, floodGroupId(inputPort), new GroupBuckets(buckets));
+        }
+
+        // Drop the groups of ports which have gone away or are off the tree
+        for (Group group : groupService.getGroups(deviceId, appId)) {
+            int inputPort = group.id().id() - FLOOD_GROUP_BASE;
+            if (group.type() == GroupDescription.Type.ALL && inputPort > 0 && !ports.contains((long) inputPort))
+                groupService.removeGroup(deviceId, group.appCookie(), appId);
+        }
+    }
+
+    private void writeGroup(DeviceId deviceId, int groupId, GroupBuckets buckets) {
+        GroupKey key = groupKey(groupId);
+        Group existing = groupService.getGroup(deviceId, key);
+        if (existing == null) {
+            groupService.addGroup(new DefaultGroupDescription(deviceId, GroupDescription.Type.ALL, buckets,
+                    key, groupId, appId));
+        } else if (!existing.buckets().equals(buckets)) {
+            groupService.setBucketsForGroup(deviceId, key, buckets, key, appId);
+        }
+    }
+
+    /** Move the broadcast tree when links come and go */
+    private class InternalTopologyListener implements TopologyListener {
+        @Override
+        public void event(TopologyEvent event) {
+            executor.execute(FloodGroupProgrammer.this::updateBroadcastTree);
+        }
+    }
+
+    /** Re-program the flood groups when a device or its ports change */
+    private class InternalDeviceListener implements DeviceListener {
+        @Override
+        public void event(DeviceEvent event) {
+            switch (event.type()) {
+                case DEVICE_ADDED:
+                case DEVICE_AVAILABILITY_CHANGED:
+                case PORT_ADDED:
+                case PORT_REMOVED:
+                    DeviceId deviceId = event.subject().id();
+                    if (deviceService.isAvailable(deviceId))
+                        executor.execute(() -> programFloodGroups(deviceId));
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
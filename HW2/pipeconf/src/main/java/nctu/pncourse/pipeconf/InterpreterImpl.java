@@ -22,9 +22,7 @@ import org.onlab.packet.Ethernet;
 import org.onlab.util.ImmutableByteSequence;
 import org.onosproject.net.ConnectPoint;
 import org.onosproject.net.DeviceId;
-import org.onosproject.net.Port;
 import org.onosproject.net.PortNumber;
-import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.driver.AbstractHandlerBehaviour;
 import org.onosproject.net.flow.TrafficTreatment;
 import org.onosproject.net.flow.criteria.Criterion;
@@ -51,7 +49,6 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
 
 import static java.lang.String.format;
 import static org.onlab.util.ImmutableByteSequence.copyFrom;
@@ -67,10 +64,23 @@ public final class InterpreterImpl extends AbstractHandlerBehaviour implements P
     private static final String MY_INGRESS = "MyIngress";
     private static final String ETHERNET_FORWARD = "ethernet_forward";
     private static final String EGRESS_PORT = "egress_port";
+    private static final String MCAST_GRP = "mcast_grp";
     private static final String INGRESS_PORT = "ingress_port";
+    private static final String IS_LEARN = "is_learn";
     private static final String ETHERNET = "ethernet";
     private static final String STANDARD_METADATA = "standard_metadata";
     private static final int PORT_FIELD_BITWIDTH = 9;
+    private static final int MCAST_GRP_FIELD_BITWIDTH = 16;
+
+    /** Cookie of packet-ins which are MAC learning notifications rather than punted packets. */
+    public static final long LEARN_COOKIE = 0x4c4541524eL;
+    private static final Optional<Long> LEARN_COOKIE_OPT = Optional.of(LEARN_COOKIE);
+
+    // Packet metadata
+    private static final PiPacketMetadataId INGRESS_PORT_META_ID = PiPacketMetadataId.of(INGRESS_PORT);
+    private static final PiPacketMetadataId IS_LEARN_META_ID = PiPacketMetadataId.of(IS_LEARN);
+    private static final PiPacketMetadataId EGRESS_PORT_META_ID = PiPacketMetadataId.of(EGRESS_PORT);
+    private static final PiPacketMetadataId MCAST_GRP_META_ID = PiPacketMetadataId.of(MCAST_GRP);
 
     // Fields
     private static final PiMatchFieldId INGRESS_PORT_ID = PiMatchFieldId.of(STANDARD_METADATA + DOT + "ingress_port");
@@ -80,20 +90,49 @@ public final class InterpreterImpl extends AbstractHandlerBehaviour implements P
 
     // Tables
     private static final PiTableId TABLE_ETHERNET_FORWARD = PiTableId.of(MY_INGRESS + DOT + ETHERNET_FORWARD);
+    private static final PiTableId TABLE_SRC_MAC_LEARN = PiTableId.of(MY_INGRESS + DOT + "src_mac_learn");
+    private static final PiTableId TABLE_DST_MAC_FORWARD = PiTableId.of(MY_INGRESS + DOT + "dst_mac_forward");
+    private static final PiTableId TABLE_ECMP_FORWARD = PiTableId.of(MY_INGRESS + DOT + "ecmp_forward");
 
     // Actions
     private static final PiActionId ACT_ID_NOP = PiActionId.of("NoAction");
     private static final PiActionId ACT_ID_SEND_TO_CONTROLLER = PiActionId.of(MY_INGRESS + DOT + "send_to_controller");
     private static final PiActionId ACT_ID_SET_EGRESS_PORT = PiActionId.of(MY_INGRESS + DOT + "set_egress_port");
     private static final PiActionId ACT_ID_DROP = PiActionId.of(MY_INGRESS + DOT + "drop");
+    private static final PiActionId ACT_ID_FLOOD = PiActionId.of(MY_INGRESS + DOT + "flood");
 
     // Action parameters
     private static final PiActionParamId ACT_PARAM_ID_PORT = PiActionParamId.of("port");
 
+    // Actions without parameters, shared by every translated rule
+    private static final PiAction NOP = PiAction.builder().withId(ACT_ID_NOP).build();
+    private static final PiAction DROP = PiAction.builder().withId(ACT_ID_DROP).build();
+    private static final PiAction SEND_TO_CONTROLLER = PiAction.builder().withId(ACT_ID_SEND_TO_CONTROLLER).build();
+    private static final PiAction FLOOD_ACTION = PiAction.builder().withId(ACT_ID_FLOOD).build();
+
+    // Interned set_egress_port actions and packet-out metadata, indexed by port number
+    private static final int MAX_PORTS = 1 << PORT_FIELD_BITWIDTH;
+    private static final PiAction[] SET_EGRESS_PORT = new PiAction[MAX_PORTS];
+    private static final List<PiPacketMetadata>[] UNICAST_METADATA = newMetadataTable();
+    private static final List<PiPacketMetadata>[] FLOOD_METADATA = newMetadataTable();
+
+    static {
+        for (int port = 0; port < MAX_PORTS; port++) {
+            SET_EGRESS_PORT[port] = PiAction.builder()
+                    .withId(ACT_ID_SET_EGRESS_PORT)
+                    .withParameter(new PiActionParam(ACT_PARAM_ID_PORT, (long) port))
+                    .build();
+            UNICAST_METADATA[port] = packetOutMetadata(port, 0);
+            FLOOD_METADATA[port] = packetOutMetadata(0, FloodGroupProgrammer.floodGroupId(port));
+        }
+    }
+
     // Map of table ID to the table
     private static final Map<Integer, PiTableId> TABLE_MAP =
             new ImmutableMap.Builder<Integer, PiTableId>()
                     .put(0, TABLE_ETHERNET_FORWARD)
+                    .put(1, TABLE_DST_MAC_FORWARD)
+                    .put(2, TABLE_ECMP_FORWARD)
                     .build();
 
     // Map of header field to field ID
@@ -119,22 +158,38 @@ public final class InterpreterImpl extends AbstractHandlerBehaviour implements P
 
     @Override
     public PiAction mapTreatment(TrafficTreatment treatment, PiTableId piTableId) throws PiInterpreterException {
-        if (!piTableId.toString().equals(TABLE_ETHERNET_FORWARD.toString()))
-            throw new PiInterpreterException("Can map treatments only for 'ethernet_forward' table");
+        // Table IDs come from the pipeline model, equals() is an identity check then a string comparison
+        List<Instruction> instructions = treatment.allInstructions();
+        if (TABLE_SRC_MAC_LEARN.equals(piTableId)) {
+            // Known (src MAC, ingress port) pairs only stop the learning notification
+            if (instructions.size() == 1 && instructions.get(0).type() == NOACTION)
+                return NOP;
+            throw new PiInterpreterException("Can map only NoAction treatments for 'src_mac_learn' table");
+        }
+
+        // Members of ECMP groups only set the egress port, the exact match tables forward to physical ports only
+        boolean ecmpForward = TABLE_ECMP_FORWARD.equals(piTableId);
+        boolean dstMacForward = ecmpForward || TABLE_DST_MAC_FORWARD.equals(piTableId);
+        if (!dstMacForward && !TABLE_ETHERNET_FORWARD.equals(piTableId))
+            throw new PiInterpreterException(
+                    "Can map treatments only for 'ethernet_forward', 'dst_mac_forward' and 'ecmp_forward' tables");
 
-        if (treatment.allInstructions().isEmpty()) {
+        if (instructions.isEmpty()) {
             // 0 instructions means drop
-            return PiAction.builder().withId(ACT_ID_DROP).build();
-        } else if (treatment.allInstructions().size() > 1) {
-            // We understand treatments with only 1 instruction.
+            if (ecmpForward)
+                throw new PiInterpreterException("'ecmp_forward' has no drop action");
+            return DROP;
+        } else if (instructions.size() > 1) {
+            // We understand treatments with only 1 instruction, a backup port comes as the set_egress_ports
+            // PI action which is written as is.
             throw new PiInterpreterException("Treatment has multiple instructions");
         }
 
         // Get the first and only instruction.
-        Instruction instruction = treatment.allInstructions().get(0);
+        Instruction instruction = instructions.get(0);
 
         if (instruction.type() == NOACTION)
-            return PiAction.builder().withId(ACT_ID_NOP).build();
+            return NOP;
 
         if (instruction.type() != OUTPUT) {
             // We can map only instructions of type OUTPUT.
@@ -145,15 +200,19 @@ public final class InterpreterImpl extends AbstractHandlerBehaviour implements P
         PortNumber port = outInstruction.port();
         if (!port.isLogical()) {
             // Forward the packet
+            long number = port.toLong();
+            if (number < MAX_PORTS)
+                return SET_EGRESS_PORT[(int) number];
             return PiAction.builder()
                     .withId(ACT_ID_SET_EGRESS_PORT)
-                    .withParameter(new PiActionParam(ACT_PARAM_ID_PORT, port.toLong()))
+                    .withParameter(new PiActionParam(ACT_PARAM_ID_PORT, number))
                     .build();
-        } else if (port.equals(CONTROLLER)) {
+        } else if (port.equals(CONTROLLER) && !dstMacForward) {
             // Send packet to controller
-            return PiAction.builder()
-                    .withId(ACT_ID_SEND_TO_CONTROLLER)
-                    .build();
+            return SEND_TO_CONTROLLER;
+        } else if (port.equals(FLOOD) && !dstMacForward) {
+            // Flood on the broadcast tree with the group of the ingress port
+            return FLOOD_ACTION;
         } else {
             throw new PiInterpreterException(format("Output on logical port '%s' not supported", port));
         }
@@ -162,86 +221,131 @@ public final class InterpreterImpl extends AbstractHandlerBehaviour implements P
     @Override
     public Collection<PiPacketOperation> mapOutboundPacket(OutboundPacket packet) throws PiInterpreterException {
         TrafficTreatment treatment = packet.treatment();
+        List<Instruction> instructions = treatment.allInstructions();
+
+        // We support only packet-out with OUTPUT instructions, a single one being the common case
+        if (instructions.size() == 1)
+            return ImmutableList.of(createPiPacketOp(packet.data(), instructions.get(0), treatment));
 
-        // We support only packet-out with OUTPUT instructions.
-        List<OutputInstruction> outInstructions = treatment
-                .allInstructions()
-                .stream()
-                .filter(i -> i.type().equals(OUTPUT))
-                .map(i -> (OutputInstruction) i)
-                .collect(Collectors.toList());
+        ImmutableList.Builder<PiPacketOperation> builder = ImmutableList.builder();
+        for (int i = 0; i < instructions.size(); i++)
+            builder.add(createPiPacketOp(packet.data(), instructions.get(i), treatment));
+        return builder.build();
+    }
 
-        if (treatment.allInstructions().size() != outInstructions.size()) {
+    /**
+     * Packet operation sending the data out of the port of an OUTPUT instruction
+     *
+     * @param data        packet data
+     * @param instruction instruction of the packet-out treatment
+     * @param treatment   packet-out treatment, its metadata is the input port of a flooded packet
+     * @return packet operation
+     * @throws PiInterpreterException if the instruction is not an OUTPUT to a physical port or FLOOD
+     */
+    private PiPacketOperation createPiPacketOp(ByteBuffer data, Instruction instruction, TrafficTreatment treatment)
+            throws PiInterpreterException {
+        if (instruction.type() != OUTPUT) {
             // There are other instructions that are not of type OUTPUT.
             throw new PiInterpreterException("Treatment not supported: " + treatment);
         }
 
-        ImmutableList.Builder<PiPacketOperation> builder = ImmutableList.builder();
-        for (OutputInstruction outInst : outInstructions) {
-            if (outInst.port().isLogical() && !outInst.port().equals(FLOOD)) {
-                throw new PiInterpreterException(format(
-                        "Output on logical port '%s' not supported", outInst.port()));
-            } else if (outInst.port().equals(FLOOD)) {
-                // Create a packet operation for each switch port and prevent from flooding to input port
-                long input_port = treatment.writeMetadata().metadata();
-                final DeviceService deviceService = handler().get(DeviceService.class);
-                for (Port port : deviceService.getPorts(packet.sendThrough())) {
-                    if (port.number().toLong() != input_port)
-                        builder.add(createPiPacketOp(packet.data(), port.number().toLong()));
-                }
-            } else {
-                builder.add(createPiPacketOp(packet.data(), outInst.port().toLong()));
-            }
+        PortNumber port = ((OutputInstruction) instruction).port();
+        if (port.equals(FLOOD)) {
+            // Let the switch replicate the packet with the flood group of the input port
+            long input_port = treatment.writeMetadata() == null ? 0 : treatment.writeMetadata().metadata();
+            if (input_port >= 0 && input_port < MAX_PORTS)
+                return createPiPacketOp(data, FLOOD_METADATA[(int) input_port]);
+            return createPiPacketOp(data, 0, FloodGroupProgrammer.floodGroupId(input_port));
+        } else if (port.isLogical()) {
+            throw new PiInterpreterException(format("Output on logical port '%s' not supported", port));
         }
-        return builder.build();
+
+        long number = port.toLong();
+        if (number < MAX_PORTS)
+            return createPiPacketOp(data, UNICAST_METADATA[(int) number]);
+        return createPiPacketOp(data, number, 0);
     }
 
     @Override
     public InboundPacket mapInboundPacket(PiPacketOperation packetIn, DeviceId deviceId) throws PiInterpreterException {
-        Ethernet ethPkt;
+        PiPacketMetadata ingressPort = null;
+        boolean isLearn = false;
+        for (PiPacketMetadata metadata : packetIn.metadatas()) {
+            if (metadata.id().equals(INGRESS_PORT_META_ID))
+                ingressPort = metadata;
+            else if (metadata.id().equals(IS_LEARN_META_ID))
+                isLearn = toLong(metadata.value()) != 0;
+        }
 
+        if (ingressPort == null) {
+            throw new PiInterpreterException(format(
+                    "Missing metadata '%s' in packet-in received from '%s': %s",
+                    INGRESS_PORT, deviceId, packetIn));
+        }
+
+        // The parsed view and the raw data share the packet-in buffer, the payload is parsed on demand
+        ByteBuffer rawData = packetIn.data().asReadOnlyBuffer();
+        Ethernet ethPkt;
         try {
-            ethPkt = Ethernet.deserializer().deserialize(
-                    packetIn.data().asArray(), 0, packetIn.data().size());
+            ethPkt = new LazyEthernet(rawData);
         } catch (DeserializationException dex) {
             throw new PiInterpreterException(dex.getMessage());
         }
 
-        // Returns the ingress port packet metadata.
-        Optional<PiPacketMetadata> packetMetadata = packetIn.metadatas().stream()
-                .filter(metadata -> metadata.id().toString().equals(INGRESS_PORT))
-                .findFirst();
+        ConnectPoint receivedFrom = new ConnectPoint(deviceId, PortNumber.portNumber(toLong(ingressPort.value())));
+        Optional<Long> cookie = isLearn ? LEARN_COOKIE_OPT : Optional.empty();
+        return new DefaultInboundPacket(receivedFrom, ethPkt, rawData, cookie);
+    }
 
-        if (packetMetadata.isPresent()) {
-            short s = packetMetadata.get().value().asReadOnlyBuffer().getShort();
-            ConnectPoint receivedFrom = new ConnectPoint(deviceId, PortNumber.portNumber(s));
-            ByteBuffer rawData = ByteBuffer.wrap(packetIn.data().asArray());
-            return new DefaultInboundPacket(receivedFrom, ethPkt, rawData);
-        } else {
-            throw new PiInterpreterException(format(
-                    "Missing metadata '%s' in packet-in received from '%s': %s",
-                    INGRESS_PORT, deviceId, packetIn));
-        }
+    private static long toLong(ImmutableByteSequence value) {
+        ByteBuffer bb = value.asReadOnlyBuffer();
+        long result = 0;
+        while (bb.hasRemaining())
+            result = (result << 8) | (bb.get() & 0xff);
+        return result;
     }
 
-    private PiPacketOperation createPiPacketOp(ByteBuffer data, long portNumber) throws PiInterpreterException {
-        PiPacketMetadata metadata = createPacketMetadata(portNumber);
+    private PiPacketOperation createPiPacketOp(ByteBuffer data, long portNumber, int mcastGroup)
+            throws PiInterpreterException {
+        return createPiPacketOp(data, ImmutableList.of(
+                createPacketMetadata(EGRESS_PORT_META_ID, portNumber, PORT_FIELD_BITWIDTH),
+                createPacketMetadata(MCAST_GRP_META_ID, mcastGroup, MCAST_GRP_FIELD_BITWIDTH)));
+    }
+
+    private static PiPacketOperation createPiPacketOp(ByteBuffer data, List<PiPacketMetadata> metadatas) {
         return PiPacketOperation.builder()
                 .withType(PACKET_OUT)
                 .withData(copyFrom(data))
-                .withMetadatas(ImmutableList.of(metadata))
+                .withMetadatas(metadatas)
                 .build();
     }
 
-    private PiPacketMetadata createPacketMetadata(long portNumber) throws PiInterpreterException {
+    @SuppressWarnings("unchecked")
+    private static List<PiPacketMetadata>[] newMetadataTable() {
+        return (List<PiPacketMetadata>[]) new List<?>[MAX_PORTS];
+    }
+
+    // Metadata of a packet-out to an egress port or a multicast group, for values known to fit
+    private static List<PiPacketMetadata> packetOutMetadata(long portNumber, int mcastGroup) {
+        try {
+            return ImmutableList.of(
+                    createPacketMetadata(EGRESS_PORT_META_ID, portNumber, PORT_FIELD_BITWIDTH),
+                    createPacketMetadata(MCAST_GRP_META_ID, mcastGroup, MCAST_GRP_FIELD_BITWIDTH));
+        } catch (PiInterpreterException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static PiPacketMetadata createPacketMetadata(PiPacketMetadataId id, long value, int bitWidth)
+            throws PiInterpreterException {
         try {
             return PiPacketMetadata.builder()
-                    .withId(PiPacketMetadataId.of(EGRESS_PORT))
-                    .withValue(copyFrom(portNumber).fit(PORT_FIELD_BITWIDTH))
+                    .withId(id)
+                    .withValue(copyFrom(value).fit(bitWidth))
                     .build();
         } catch (ImmutableByteSequence.ByteSequenceTrimException e) {
             throw new PiInterpreterException(format(
-                    "Port number %d too big, %s", portNumber, e.getMessage()));
+                    "Value %d too big for '%s', %s", value, id, e.getMessage()));
         }
     }
 }
\ No newline at end of file
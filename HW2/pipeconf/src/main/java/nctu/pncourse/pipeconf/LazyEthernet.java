@@ -0,0 +1,176 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.pipeconf;
+
+import org.onlab.packet.Data;
+import org.onlab.packet.DeserializationException;
+import org.onlab.packet.Deserializer;
+import org.onlab.packet.EthType;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IPacket;
+import org.onlab.packet.MacAddress;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Ethernet frame whose header is parsed up front and whose payload is only
+ * deserialized the first time it is asked for.
+ * The frame bytes are shared with the caller, not copied.
+ * The payload is parsed at most once, also when several threads read it.
+ */
+final class LazyEthernet extends Ethernet {
+
+    private final ByteBuffer frame;
+    private final int payloadOffset;
+    // Written after the payload, so a thread which sees it set also sees the payload
+    private volatile boolean payloadParsed;
+
+    /**
+     * Parse the Ethernet header, including VLAN and QinQ tags, of a frame
+     *
+     * @param frame frame bytes from position to limit, not modified
+     * @throws DeserializationException if the frame is shorter than its header
+     */
+    LazyEthernet(ByteBuffer frame) throws DeserializationException {
+        // Own view of the bytes, so readers of the shared buffer cannot move our position
+        this.frame = frame.duplicate();
+        ByteBuffer bb = this.frame.duplicate();
+        checkLength(bb, ETHERNET_HEADER_LENGTH);
+
+        byte[] address = new byte[MacAddress.MAC_ADDRESS_LENGTH];
+        bb.get(address);
+        destinationMACAddress = MacAddress.valueOf(address);
+        address = new byte[MacAddress.MAC_ADDRESS_LENGTH];
+        bb.get(address);
+        sourceMACAddress = MacAddress.valueOf(address);
+
+        // Same tag handling as Ethernet.deserializer()
+        short ethType = bb.getShort();
+        if (ethType == TYPE_QINQ) {
+            checkLength(bb, VLAN_HEADER_LENGTH + VLAN_HEADER_LENGTH);
+            short tci = bb.getShort();
+            qInQPriorityCode = (byte) (tci >> 13 & 0x07);
+            qinqVID = (short) (tci & 0x0fff);
+            qinqTPID = TYPE_QINQ;
+            ethType = bb.getShort();
+        }
+        if (ethType == TYPE_VLAN) {
+            checkLength(bb, VLAN_HEADER_LENGTH);
+            short tci = bb.getShort();
+            priorityCode = (byte) (tci >> 13 & 0x07);
+            vlanID = (short) (tci & 0x0fff);
+            ethType = bb.getShort();
+
+            if (ethType == TYPE_VLAN) {
+                // Double tagged with an outer 0x8100 tag, the outer tag goes to the QinQ fields
+                checkLength(bb, VLAN_HEADER_LENGTH);
+                qInQPriorityCode = priorityCode;
+                qinqVID = vlanID;
+                qinqTPID = TYPE_VLAN;
+                short innerTci = bb.getShort();
+                priorityCode = (byte) (innerTci >> 13 & 0x07);
+                vlanID = (short) (innerTci & 0x0fff);
+                ethType = bb.getShort();
+            }
+        } else {
+            vlanID = VLAN_UNTAGGED;
+        }
+        etherType = ethType;
+        payloadOffset = bb.position() - this.frame.position();
+    }
+
+    private static void checkLength(ByteBuffer bb, int length) throws DeserializationException {
+        if (bb.remaining() < length)
+            throw new DeserializationException(String.format(
+                    "Buffer has %d bytes left, Ethernet header needs %d", bb.remaining(), length));
+    }
+
+    /**
+     * Whether the payload has been deserialized
+     *
+     * @return boolean
+     */
+    boolean isPayloadParsed() {
+        return payloadParsed;
+    }
+
+    private synchronized void parsePayload() {
+        if (payloadParsed)
+            return;
+        ByteBuffer bb = frame.duplicate();
+        bb.position(bb.position() + payloadOffset);
+        byte[] data = new byte[bb.remaining()];
+        bb.get(data);
+
+        Deserializer<? extends IPacket> deserializer = EthType.EtherType.lookup(etherType).deserializer();
+        IPacket parsed;
+        try {
+            parsed = deserializer == null ? new Data(data) : deserializer.deserialize(data, 0, data.length);
+        } catch (DeserializationException e) {
+            // Keep payloads we cannot parse as raw data, like frames of an unknown type
+            parsed = new Data(data);
+        }
+        super.setPayload(parsed);
+        parsed.setParent(this);
+        payloadParsed = true;
+    }
+
+    @Override
+    public IPacket getPayload() {
+        if (!payloadParsed)
+            parsePayload();
+        return super.getPayload();
+    }
+
+    @Override
+    public synchronized IPacket setPayload(IPacket payload) {
+        IPacket packet = super.setPayload(payload);
+        payloadParsed = true;
+        return packet;
+    }
+
+    @Override
+    public byte[] serialize() {
+        getPayload();
+        return super.serialize();
+    }
+
+    @Override
+    public Ethernet duplicate() {
+        getPayload();
+        return super.duplicate();
+    }
+
+    @Override
+    public int hashCode() {
+        getPayload();
+        return super.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        getPayload();
+        if (obj instanceof LazyEthernet)
+            ((LazyEthernet) obj).getPayload();
+        return super.equals(obj);
+    }
+
+    @Override
+    public String toString() {
+        getPayload();
+        return super.toString();
+    }
+}
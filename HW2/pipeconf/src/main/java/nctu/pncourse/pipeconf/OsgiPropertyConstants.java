@@ -0,0 +1,41 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.pipeconf;
+
+/**
+ * Constants for default values of configurable properties.
+ */
+public final class OsgiPropertyConstants {
+
+    private OsgiPropertyConstants() {
+    }
+
+    /** Maximum number of flow rules the pipeliner writes to a device in one batch. */
+    public static final String FLOW_BATCH_SIZE = "flowBatchSize";
+    public static final int FLOW_BATCH_SIZE_DEFAULT = 1000;
+
+    /** Longest time in milliseconds a flow rule waits for its batch to be written. */
+    public static final String FLOW_BATCH_MILLIS = "flowBatchMillis";
+    public static final int FLOW_BATCH_MILLIS_DEFAULT = 10;
+
+    /** Packets per second each ingress port may send to the controller. */
+    public static final String PUNT_RATE = "puntRate";
+    public static final int PUNT_RATE_DEFAULT = 200;
+
+    /** Packets each ingress port may send to the controller in a burst above the rate. */
+    public static final String PUNT_BURST = "puntBurst";
+    public static final int PUNT_BURST_DEFAULT = 50;
+}
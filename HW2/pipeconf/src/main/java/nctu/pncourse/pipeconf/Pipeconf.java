@@ -15,14 +15,18 @@
  */
 package nctu.pncourse.pipeconf;
 
+import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.onosproject.cfg.ComponentConfigService;
+import org.onosproject.net.DeviceId;
 import org.onosproject.net.behaviour.Pipeliner;
 import org.onosproject.net.pi.model.DefaultPiPipeconf;
 import org.onosproject.net.pi.model.PiPipeconf;
@@ -30,23 +34,37 @@ import org.onosproject.net.pi.model.PiPipeconfId;
 import org.onosproject.net.pi.model.PiPipelineInterpreter;
 import org.onosproject.net.pi.model.PiPipelineModel;
 import org.onosproject.net.pi.service.PiPipeconfService;
-import org.onosproject.p4runtime.model.P4InfoParser;
 import org.onosproject.p4runtime.model.P4InfoParserException;
 
 import java.net.URL;
+import java.util.Dictionary;
+import java.util.concurrent.TimeUnit;
 
+import static org.onlab.util.Tools.getIntegerProperty;
+import static nctu.pncourse.pipeconf.OsgiPropertyConstants.FLOW_BATCH_MILLIS;
+import static nctu.pncourse.pipeconf.OsgiPropertyConstants.FLOW_BATCH_MILLIS_DEFAULT;
+import static nctu.pncourse.pipeconf.OsgiPropertyConstants.FLOW_BATCH_SIZE;
+import static nctu.pncourse.pipeconf.OsgiPropertyConstants.FLOW_BATCH_SIZE_DEFAULT;
 import static org.onosproject.net.pi.model.PiPipeconf.ExtensionType.BMV2_JSON;
 import static org.onosproject.net.pi.model.PiPipeconf.ExtensionType.P4_INFO_TEXT;
 
 /**
  * Skeletal ONOS application component.
  */
-@Component(immediate = true)
+@Component(immediate = true,
+        property = {
+                FLOW_BATCH_SIZE + ":Integer=" + FLOW_BATCH_SIZE_DEFAULT,
+                FLOW_BATCH_MILLIS + ":Integer=" + FLOW_BATCH_MILLIS_DEFAULT,
+        })
 public final class Pipeconf {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
-    /** Some configurable property. */
+    /** Maximum number of flow rules the pipeliner writes to a device in one batch. */
+    private int flowBatchSize = FLOW_BATCH_SIZE_DEFAULT;
+
+    /** Longest time in milliseconds a flow rule waits for its batch to be written. */
+    private int flowBatchMillis = FLOW_BATCH_MILLIS_DEFAULT;
 
     public static final PiPipeconfId PIPECONF_ID = new PiPipeconfId("nctu.pncourse.pipeconf");
     private static final URL P4INFO_URL = Pipeconf.class.getResource("/learning_bridge.p4info.txt");
@@ -56,11 +74,19 @@ public final class Pipeconf {
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     protected PiPipeconfService piPipeconfService;
 
+    // Batch properties are read by each device's pipeliner when it is initialized,
+    // later changes are passed to the pipeliners of the connected devices
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected ComponentConfigService cfgService;
+
     @Activate
     protected void activate() {
+        // Switches cannot connect before the pipeconf is registered
+        long start = System.nanoTime();
+        cfgService.registerProperties(getClass());
         try {
             piPipeconfService.register(buildPipeconf());
-            log.info("Started");
+            log.info("Started in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
         } catch (P4InfoParserException e) {
             log.error("Fail to register {} - Exception: {} - Cause: {}",
                     PIPECONF_ID, e.getMessage(), e.getCause().getMessage());
@@ -69,6 +95,7 @@ public final class Pipeconf {
 
     @Deactivate
     protected void deactivate() {
+        cfgService.unregisterProperties(getClass(), false);
         try {
             piPipeconfService.unregister(PIPECONF_ID);
             log.info("Stopped");
@@ -77,9 +104,36 @@ public final class Pipeconf {
         }
     }
 
+    @Modified
+    public void modified(ComponentContext context) {
+        if (context == null)
+            return;
+        Dictionary<?, ?> properties = context.getProperties();
+        Integer size = getIntegerProperty(properties, FLOW_BATCH_SIZE);
+        Integer millis = getIntegerProperty(properties, FLOW_BATCH_MILLIS);
+        flowBatchSize = size != null && size > 0 ? size : FLOW_BATCH_SIZE_DEFAULT;
+        flowBatchMillis = millis != null && millis > 0 ? millis : FLOW_BATCH_MILLIS_DEFAULT;
+        PipelinerImpl.setFlowBatch(flowBatchSize, flowBatchMillis);
+        log.info("Reconfigured, devices write {} flow rules per batch every {} ms", flowBatchSize, flowBatchMillis);
+    }
+
+    /**
+     * Whether a device runs this pipeconf, the programmers of the pipeconf leave other devices alone
+     *
+     * @param piPipeconfService pipeconf service
+     * @param deviceId          device ID
+     * @return boolean
+     */
+    static boolean isDeployedOn(PiPipeconfService piPipeconfService, DeviceId deviceId) {
+        return piPipeconfService.getPipeconf(deviceId)
+                .map(pipeconf -> PIPECONF_ID.equals(pipeconf.id()))
+                .orElse(false);
+    }
+
     private PiPipeconf buildPipeconf() throws P4InfoParserException {
 
-        final PiPipelineModel pipelineModel = P4InfoParser.parse(P4INFO_URL);
+        // Parsed once per P4Info content, activations in the same bundle reuse the model
+        final PiPipelineModel pipelineModel = PipelineModelCache.get(P4INFO_URL);
 
         return DefaultPiPipeconf.builder()
                 .withId(PIPECONF_ID)
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.pipeconf;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Resources;
+import org.onosproject.net.pi.model.PiPipelineModel;
+import org.onosproject.p4runtime.model.P4InfoParser;
+import org.onosproject.p4runtime.model.P4InfoParserException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pipeline models parsed from P4Info files, keyed by the hash of the P4Info content.
+ * The cache lives in memory as long as the classes of the bundle, so when the pipeconf component
+ * is deactivated and activated again in the same bundle, e.g. because a service it references went
+ * away for a while, the P4Info is only hashed instead of parsed again.
+ * A bundle reload or an ONOS restart starts with an empty cache and parses the P4Info once.
+ */
+final class PipelineModelCache {
+
+    private static final Logger log = LoggerFactory.getLogger(PipelineModelCache.class);
+
+    private static final Map<HashCode, PiPipelineModel> MODELS = new ConcurrentHashMap<>();
+
+    private PipelineModelCache() {
+    }
+
+    /**
+     * Get the pipeline model of a P4Info, parsing it on a miss
+     *
+     * @param p4InfoUrl URL of the P4Info text
+     * @return pipeline model
+     * @throws P4InfoParserException if the P4Info cannot be parsed
+     */
+    static PiPipelineModel get(URL p4InfoUrl) throws P4InfoParserException {
+        HashCode hash;
+        try {
+            hash = Resources.asByteSource(p4InfoUrl).hash(Hashing.sha256());
+        } catch (IOException e) {
+            // Let the parser report the P4Info it cannot read
+            return P4InfoParser.parse(p4InfoUrl);
+        }
+
+        PiPipelineModel model = MODELS.get(hash);
+        if (model != null)
+            return model;
+
+        long start = System.nanoTime();
+        model = P4InfoParser.parse(p4InfoUrl);
+        log.info("Parsed {} in {} ms", p4InfoUrl, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        MODELS.put(hash, model);
+        return model;
+    }
+
+    /**
+     * Forget every parsed model
+     */
+    static void clear() {
+        MODELS.clear();
+    }
+}
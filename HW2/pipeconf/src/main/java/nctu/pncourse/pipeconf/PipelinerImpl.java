@@ -15,23 +15,72 @@
  */
 package nctu.pncourse.pipeconf;
 
+import com.google.common.collect.ImmutableList;
+import org.onlab.util.AbstractAccumulator;
+import org.onlab.util.SharedExecutors;
+import org.onosproject.cfg.ComponentConfigService;
+import org.onosproject.cfg.ConfigProperty;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.CoreService;
 import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.behaviour.DefaultNextGroup;
 import org.onosproject.net.behaviour.NextGroup;
 import org.onosproject.net.behaviour.Pipeliner;
 import org.onosproject.net.behaviour.PipelinerContext;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.driver.AbstractHandlerBehaviour;
 import org.onosproject.net.flow.DefaultFlowRule;
 import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
 import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.instructions.Instruction;
+import org.onosproject.net.flow.instructions.Instructions;
+import org.onosproject.net.flow.instructions.PiInstruction;
+import org.onosproject.net.flowobjective.DefaultNextTreatment;
 import org.onosproject.net.flowobjective.FilteringObjective;
+import org.onosproject.net.flowobjective.FlowObjectiveStore;
 import org.onosproject.net.flowobjective.ForwardingObjective;
 import org.onosproject.net.flowobjective.NextObjective;
+import org.onosproject.net.flowobjective.NextTreatment;
+import org.onosproject.net.flowobjective.Objective;
 import org.onosproject.net.flowobjective.ObjectiveError;
+import org.onosproject.net.group.DefaultGroupBucket;
+import org.onosproject.net.group.DefaultGroupDescription;
+import org.onosproject.net.group.DefaultGroupKey;
+import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupBucket;
+import org.onosproject.net.group.GroupBuckets;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupEvent;
+import org.onosproject.net.group.GroupKey;
+import org.onosproject.net.group.GroupListener;
+import org.onosproject.net.group.GroupService;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiActionProfileId;
 import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiActionProfileGroupId;
+import org.onosproject.net.pi.runtime.PiGroupKey;
+import org.onosproject.net.pi.runtime.PiTableAction;
 import org.slf4j.Logger;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.slf4j.LoggerFactory.getLogger;
 
@@ -39,17 +88,178 @@ public class PipelinerImpl extends AbstractHandlerBehaviour implements Pipeliner
 
     // Tables
     private static final PiTableId TABLE_ETHERNET_FORWARD = PiTableId.of("MyIngress.ethernet_forward");
+    private static final PiTableId TABLE_SRC_MAC_LEARN = PiTableId.of("MyIngress.src_mac_learn");
+    private static final PiTableId TABLE_DST_MAC_FORWARD = PiTableId.of("MyIngress.dst_mac_forward");
+    private static final PiTableId TABLE_ECMP_FORWARD = PiTableId.of("MyIngress.ecmp_forward");
+    private static final PiActionId ACT_ID_SET_EGRESS_PORTS = PiActionId.of("MyIngress.set_egress_ports");
+
+    // Action selector of the 'ecmp_forward' table, next objectives of type HASHED become its groups
+    private static final PiActionProfileId ECMP_SELECTOR = PiActionProfileId.of("MyIngress.ecmp_selector");
+
+    // Clone session for MAC learning notifications, see LEARN_SESSION_ID in learning_bridge.p4
+    private static final int LEARN_SESSION_ID = 99;
+    private static final long CPU_PORT = 255;
+    private static final GroupKey LEARN_SESSION_KEY =
+            new DefaultGroupKey(ByteBuffer.allocate(4).putInt(LEARN_SESSION_ID).array());
+
+    // Action selector group IDs start above the clone session and the multicast groups of FloodGroupProgrammer,
+    // so a next objective ID never takes the ID of another group of the device
+    private static final int ECMP_GROUP_BASE = 0x10000;
+
+    // Pipeliner of each connected device, so changed batch properties reach devices already connected,
+    // a pipeliner leaves when its device is removed or a new pipeliner takes over the device
+    private static final Map<DeviceId, PipelinerImpl> PIPELINERS = new ConcurrentHashMap<>();
 
     private final Logger log = getLogger(getClass());
 
     private FlowRuleService flowRuleService;
+    private GroupService groupService;
+    private DeviceService deviceService;
+    private FlowObjectiveStore flowObjectiveStore;
+    private ApplicationId appId;
     private DeviceId deviceId;
+    private volatile ForwardingAccumulator accumulator;
 
+    // Next objectives whose group is not on the device yet, by group key
+    private final Map<GroupKey, NextObjective> pendingNexts = new ConcurrentHashMap<>();
+    private final GroupListener groupListener = new InternalGroupListener();
+    private final DeviceListener deviceListener = new InternalDeviceListener();
 
     @Override
     public void init(DeviceId deviceId, PipelinerContext context) {
         this.deviceId = deviceId;
         this.flowRuleService = context.directory().get(FlowRuleService.class);
+        this.groupService = context.directory().get(GroupService.class);
+        this.deviceService = context.directory().get(DeviceService.class);
+        this.flowObjectiveStore = context.store();
+        this.appId = context.directory().get(CoreService.class).registerApplication(Pipeconf.PIPECONF_ID.id());
+
+        ComponentConfigService cfgService = context.directory().get(ComponentConfigService.class);
+        int batchSize = intProperty(cfgService, OsgiPropertyConstants.FLOW_BATCH_SIZE, OsgiPropertyConstants.FLOW_BATCH_SIZE_DEFAULT);
+        int batchMillis = intProperty(cfgService, OsgiPropertyConstants.FLOW_BATCH_MILLIS, OsgiPropertyConstants.FLOW_BATCH_MILLIS_DEFAULT);
+        this.accumulator = new ForwardingAccumulator(batchSize, batchMillis);
+
+        groupService.addListener(groupListener);
+        if (deviceService != null)
+            deviceService.addListener(deviceListener);
+        installLearnSession();
+
+        PipelinerImpl replaced = PIPELINERS.put(deviceId, this);
+        if (replaced != null && replaced != this)
+            replaced.stop();
+    }
+
+    /**
+     * Stop listening for the device and leave the connected pipeliners,
+     * unless a new pipeliner has taken over the device
+     */
+    private void stop() {
+        groupService.removeListener(groupListener);
+        if (deviceService != null)
+            deviceService.removeListener(deviceListener);
+        PIPELINERS.remove(deviceId, this);
+    }
+
+    /**
+     * Batch the forwarding objectives of every connected device with new limits,
+     * flow rules already waiting are written with the batch they joined
+     *
+     * @param batchSize   maximum number of flow rules in one batch
+     * @param batchMillis longest time in milliseconds a flow rule waits for its batch
+     */
+    static void setFlowBatch(int batchSize, int batchMillis) {
+        for (PipelinerImpl pipeliner : PIPELINERS.values())
+            pipeliner.accumulator = pipeliner.new ForwardingAccumulator(batchSize, batchMillis);
+    }
+
+    /**
+     * Read an integer property of the pipeconf component
+     *
+     * @param cfgService   component configuration service, may be null
+     * @param name         property name
+     * @param defaultValue value used when the property is missing or not positive
+     * @return property value
+     */
+    private static int intProperty(ComponentConfigService cfgService, String name, int defaultValue) {
+        ConfigProperty property = cfgService == null ? null :
+                cfgService.getProperty(Pipeconf.class.getName(), name);
+        if (property == null)
+            return defaultValue;
+        try {
+            int value = property.asInteger();
+            return value > 0 ? value : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Program the clone session which carries MAC learning notifications to the CPU port
+     */
+    private void installLearnSession() {
+        if (groupService.getGroup(deviceId, LEARN_SESSION_KEY) != null)
+            return;
+
+        GroupBuckets buckets = new GroupBuckets(ImmutableList.of(
+                DefaultGroupBucket.createCloneGroupBucket(DefaultTrafficTreatment.builder()
+                        .setOutput(PortNumber.portNumber(CPU_PORT))
+                        .build())));
+        groupService.addGroup(new DefaultGroupDescription(deviceId, GroupDescription.Type.CLONE, buckets,
+                LEARN_SESSION_KEY, LEARN_SESSION_ID, appId));
+    }
+
+    /**
+     * Pick the table of a forwarding objective from its match fields and treatment
+     *
+     * @param obj forwarding objective with a treatment or a next step
+     * @return table ID, null if no table can hold the objective
+     */
+    private static PiTableId tableFor(ForwardingObjective obj) {
+        TrafficSelector selector = obj.selector();
+        Set<Criterion> criteria = selector.criteria();
+        if (obj.treatment() == null) {
+            // Next steps are groups of next hops, which only the 'ecmp_forward' table points at
+            return criteria.size() == 1 && selector.getCriterion(Criterion.Type.ETH_DST) != null ?
+                    TABLE_ECMP_FORWARD : null;
+        }
+        if (criteria.size() == 2 &&
+                selector.getCriterion(Criterion.Type.ETH_SRC) != null &&
+                selector.getCriterion(Criterion.Type.IN_PORT) != null)
+            return TABLE_SRC_MAC_LEARN;
+        if (criteria.size() == 1 &&
+                selector.getCriterion(Criterion.Type.ETH_DST) != null &&
+                isDstMacAction(obj.treatment()))
+            return TABLE_DST_MAC_FORWARD;
+        return TABLE_ETHERNET_FORWARD;
+    }
+
+    /**
+     * Whether a treatment is one of the actions of the 'dst_mac_forward' table, an output to a
+     * physical port, the set_egress_ports action with a backup port, a drop or no action
+     *
+     * @param treatment treatment of the objective
+     * @return boolean
+     */
+    private static boolean isDstMacAction(TrafficTreatment treatment) {
+        List<Instruction> instructions = treatment.allInstructions();
+        if (instructions.isEmpty())
+            return true;
+        if (instructions.size() > 1)
+            return false;
+        Instruction instruction = instructions.get(0);
+        if (instruction.type() == Instruction.Type.NOACTION)
+            return true;
+        if (instruction.type() == Instruction.Type.PROTOCOL_INDEPENDENT) {
+            PiTableAction action = ((PiInstruction) instruction).action();
+            return action.type() == PiTableAction.Type.ACTION &&
+                    ((PiAction) action).id().equals(ACT_ID_SET_EGRESS_PORTS);
+        }
+        return isPhysicalOutput(instruction);
+    }
+
+    private static boolean isPhysicalOutput(Instruction instruction) {
+        return instruction.type() == Instruction.Type.OUTPUT &&
+                !((Instructions.OutputInstruction) instruction).port().isLogical();
     }
 
     @Override
@@ -59,17 +269,30 @@ public class PipelinerImpl extends AbstractHandlerBehaviour implements Pipeliner
 
     @Override
     public void forward(ForwardingObjective obj) {
-        if (obj.treatment() == null) {
+        PiTableId table = tableFor(obj);
+        if (table == null) {
             obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+            return;
         }
 
+        // An objective with a next step points at the action selector group of its next objective
+        TrafficTreatment treatment = obj.treatment();
+        if (treatment == null) {
+            Integer groupId = storedGroupId(obj.nextId());
+            if (groupId == null) {
+                log.warn("No group of next objective {} on {}", obj.nextId(), deviceId);
+                obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.GROUPMISSING));
+                return;
+            }
+            treatment = DefaultTrafficTreatment.builder().piTableAction(PiActionProfileGroupId.of(groupId)).build();
+        }
         final FlowRule.Builder ruleBuilder = DefaultFlowRule.builder()
-                .forTable(TABLE_ETHERNET_FORWARD)
+                .forTable(table)
                 .forDevice(deviceId)
                 .withSelector(obj.selector())
                 .fromApp(obj.appId())
                 .withPriority(obj.priority())
-                .withTreatment(obj.treatment());
+                .withTreatment(treatment);
 
         if (obj.permanent()) {
             ruleBuilder.makePermanent();
@@ -79,26 +302,235 @@ public class PipelinerImpl extends AbstractHandlerBehaviour implements Pipeliner
 
         switch (obj.op()) {
             case ADD:
-                flowRuleService.applyFlowRules(ruleBuilder.build());
+                accumulator.add(new PendingRule(obj, new FlowRuleOperation(ruleBuilder.build(),
+                        FlowRuleOperation.Type.ADD)));
                 break;
             case REMOVE:
-                flowRuleService.removeFlowRules(ruleBuilder.build());
+                accumulator.add(new PendingRule(obj, new FlowRuleOperation(ruleBuilder.build(),
+                        FlowRuleOperation.Type.REMOVE)));
                 break;
             default:
                 log.warn("Unknown operation {}", obj.op());
+                obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
         }
+    }
+
+    /**
+     * Write a batch of forwarding objectives as one flow rule operation
+     * and report each objective once the batch completes
+     *
+     * @param batch objectives in arrival order
+     */
+    private void writeBatch(List<PendingRule> batch) {
+        FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+        FlowRuleOperation.Type lastType = null;
+        for (PendingRule pending : batch) {
+            // Operations in one stage may be applied in any order, so keep ADD and REMOVE runs apart
+            if (lastType != null && lastType != pending.operation.type())
+                ops.newStage();
+            ops.operation(pending.operation);
+            lastType = pending.operation.type();
+        }
+
+        flowRuleService.apply(ops.build(new FlowRuleOperationsContext() {
+            @Override
+            public void onSuccess(FlowRuleOperations completed) {
+                for (PendingRule pending : batch)
+                    pending.objective.context().ifPresent(c -> c.onSuccess(pending.objective));
+            }
+
+            @Override
+            public void onError(FlowRuleOperations failed) {
+                Set<FlowRule> failedRules = new HashSet<>();
+                for (Set<FlowRuleOperation> stage : failed.stages()) {
+                    for (FlowRuleOperation op : stage)
+                        failedRules.add(op.rule());
+                }
+                log.warn("{} of {} flow rules failed on {}", failedRules.size(), batch.size(), deviceId);
+
+                for (PendingRule pending : batch) {
+                    ForwardingObjective obj = pending.objective;
+                    if (failedRules.contains(pending.operation.rule()))
+                        obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.FLOWINSTALLATIONFAILED));
+                    else
+                        obj.context().ifPresent(c -> c.onSuccess(obj));
+                }
+            }
+        }));
+    }
+
+    /**
+     * ID given to the action selector group of a new next objective
+     *
+     * @param nextId next objective ID
+     * @return group ID
+     */
+    static int ecmpGroupId(int nextId) {
+        return ECMP_GROUP_BASE + nextId;
+    }
+
+    /**
+     * Key of an action selector group
+     *
+     * @param groupId group ID
+     * @return group key
+     */
+    private static GroupKey ecmpGroupKey(int groupId) {
+        return new PiGroupKey(TABLE_ECMP_FORWARD, ECMP_SELECTOR, groupId);
+    }
 
-        obj.context().ifPresent(c -> c.onSuccess(obj));
+    /**
+     * ID of the action selector group of a next objective, as kept by the flow objective store
+     *
+     * @param nextId next objective ID
+     * @return group ID, null if the group of the next objective is not on the device
+     */
+    private Integer storedGroupId(int nextId) {
+        NextGroup nextGroup = flowObjectiveStore == null ? null : flowObjectiveStore.getNextGroup(nextId);
+        return nextGroup == null ? null : ByteBuffer.wrap(nextGroup.data()).getInt();
     }
 
     @Override
     public void next(NextObjective obj) {
-        obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+        // A simple next hop is a group of one member, so an entry keeps its next ID when the group grows
+        if (obj.type() != NextObjective.Type.HASHED && obj.type() != NextObjective.Type.SIMPLE) {
+            obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+            return;
+        }
+
+        // Later operations find the group through the store, a new one takes its ID from the next objective
+        Integer groupId = obj.op() == Objective.Operation.ADD ? null : storedGroupId(obj.id());
+        if (groupId == null)
+            groupId = ecmpGroupId(obj.id());
+        GroupKey key = ecmpGroupKey(groupId);
+        GroupBuckets buckets = selectBuckets(obj);
+        if (buckets == null) {
+            obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+            return;
+        }
+        switch (obj.op()) {
+            case ADD:
+                // Reported once the group is on the device, so no entry points at a missing group
+                pendingNexts.put(key, obj);
+                groupService.addGroup(new DefaultGroupDescription(deviceId, GroupDescription.Type.SELECT,
+                        buckets, key, groupId, appId));
+                break;
+            case MODIFY:
+                // Every entry pointing at the group follows its new members
+                groupService.setBucketsForGroup(deviceId, key, buckets, key, appId);
+                obj.context().ifPresent(c -> c.onSuccess(obj));
+                break;
+            case ADD_TO_EXISTING:
+                groupService.addBucketsToGroup(deviceId, key, buckets, key, appId);
+                obj.context().ifPresent(c -> c.onSuccess(obj));
+                break;
+            case REMOVE_FROM_EXISTING:
+                groupService.removeBucketsFromGroup(deviceId, key, buckets, key, appId);
+                obj.context().ifPresent(c -> c.onSuccess(obj));
+                break;
+            case REMOVE:
+                groupService.removeGroup(deviceId, key, appId);
+                if (flowObjectiveStore != null)
+                    flowObjectiveStore.removeNextGroup(obj.id());
+                obj.context().ifPresent(c -> c.onSuccess(obj));
+                break;
+            default:
+                log.warn("Unsupported operation {} of next objective {}", obj.op(), obj.id());
+                obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+        }
+    }
+
+    /**
+     * Build the members of the action selector group of a next objective, one per treatment
+     *
+     * @param obj next objective
+     * @return group buckets, null if a member is not a treatment
+     */
+    private static GroupBuckets selectBuckets(NextObjective obj) {
+        List<GroupBucket> buckets = new ArrayList<>();
+        for (NextTreatment next : obj.nextTreatments()) {
+            // Action selector members are actions, they can't point at another next objective
+            if (next.type() != NextTreatment.Type.TREATMENT)
+                return null;
+            buckets.add(DefaultGroupBucket.createSelectGroupBucket(((DefaultNextTreatment) next).treatment()));
+        }
+        return new GroupBuckets(buckets);
     }
 
     @Override
     public List<String> getNextMappings(NextGroup nextGroup) {
-        // We do not use nextObjectives or groups.
-        return Collections.emptyList();
+        Group group = groupService.getGroup(deviceId,
+                ecmpGroupKey(ByteBuffer.wrap(nextGroup.data()).getInt()));
+        if (group == null)
+            return Collections.emptyList();
+        List<String> mappings = new ArrayList<>();
+        for (GroupBucket bucket : group.buckets().buckets())
+            mappings.add(group.id() + " -> " + bucket.treatment().allInstructions());
+        return mappings;
+    }
+
+    /** Reports the next objectives whose group was written or failed */
+    private class InternalGroupListener implements GroupListener {
+        @Override
+        public boolean isRelevant(GroupEvent event) {
+            return event.subject().deviceId().equals(deviceId);
+        }
+
+        @Override
+        public void event(GroupEvent event) {
+            if (event.type() != GroupEvent.Type.GROUP_ADDED && event.type() != GroupEvent.Type.GROUP_ADD_FAILED)
+                return;
+            NextObjective obj = pendingNexts.remove(event.subject().appCookie());
+            if (obj == null)
+                return;
+
+            if (event.type() == GroupEvent.Type.GROUP_ADDED) {
+                // Forwarding objectives waiting for this next step are released by the store
+                if (flowObjectiveStore != null)
+                    flowObjectiveStore.putNextGroup(obj.id(),
+                            new DefaultNextGroup(ByteBuffer.allocate(4).putInt(event.subject().id().id()).array()));
+                obj.context().ifPresent(c -> c.onSuccess(obj));
+            } else {
+                log.warn("Failed to write the group of next objective {} on {}", obj.id(), deviceId);
+                obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.GROUPINSTALLATIONFAILED));
+            }
+        }
+    }
+
+    /** Stops the pipeliner once its device is removed */
+    private class InternalDeviceListener implements DeviceListener {
+        @Override
+        public boolean isRelevant(DeviceEvent event) {
+            return event.type() == DeviceEvent.Type.DEVICE_REMOVED && event.subject().id().equals(deviceId);
+        }
+
+        @Override
+        public void event(DeviceEvent event) {
+            stop();
+        }
+    }
+
+    // Wrapper class for a forwarding objective and the flow rule operation it turned into
+    private static final class PendingRule {
+        final ForwardingObjective objective;
+        final FlowRuleOperation operation;
+
+        private PendingRule(ForwardingObjective objective, FlowRuleOperation operation) {
+            this.objective = objective;
+            this.operation = operation;
+        }
+    }
+
+    /** Collects the forwarding objectives of this device until the batch is full or the window ends */
+    private final class ForwardingAccumulator extends AbstractAccumulator<PendingRule> {
+        private ForwardingAccumulator(int maxRules, int maxMillis) {
+            // AbstractAccumulator takes no batch smaller than two
+            super(SharedExecutors.getTimer(), Math.max(maxRules, 2), maxMillis, maxMillis);
+        }
+
+        @Override
+        public void processItems(List<PendingRule> items) {
+            writeBatch(items);
+        }
     }
 }
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.pipeconf;
+
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.CoreService;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Port;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.flow.criteria.PiCriterion;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.link.LinkListener;
+import org.onosproject.net.link.LinkService;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiMatchFieldId;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.service.PiPipeconfService;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.onlab.util.Tools.groupedThreads;
+
+/**
+ * Marks the egress ports which are down on every device running this pipeconf, from port status and link
+ * events. Forwarding entries with a backup port fail over to it in the switch, one entry per down port
+ * instead of a rewrite of every entry by the controller.
+ */
+@Component(immediate = true)
+public final class PortFailoverProgrammer {
+
+    static final PiTableId TABLE_EGRESS_PORT_DOWN = PiTableId.of("MyIngress.egress_port_down");
+    static final PiMatchFieldId EGRESS_SPEC_ID = PiMatchFieldId.of("standard_metadata.egress_spec");
+    static final PiAction FAIL_OVER = PiAction.builder().withId(PiActionId.of("MyIngress.fail_over")).build();
+
+    private static final int FAIL_OVER_PRIORITY = 10;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected CoreService coreService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected DeviceService deviceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected FlowRuleService flowRuleService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected LinkService linkService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected PiPipeconfService piPipeconfService;
+
+    private final DeviceListener deviceListener = new InternalDeviceListener();
+    private final LinkListener linkListener = new InternalLinkListener();
+
+    // Ports marked down, only read and updated on the executor
+    private final Set<ConnectPoint> down = new HashSet<>();
+
+    private ApplicationId appId;
+    private ExecutorService executor;
+
+    @Activate
+    protected void activate() {
+        appId = coreService.registerApplication(Pipeconf.PIPECONF_ID.id());
+        executor = Executors.newSingleThreadExecutor(groupedThreads("pipeconf", "port-failover", log));
+        deviceService.addListener(deviceListener);
+        linkService.addListener(linkListener);
+        log.info("Started");
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        deviceService.removeListener(deviceListener);
+        linkService.removeListener(linkListener);
+        executor.shutdownNow();
+        for (ConnectPoint port : down)
+            flowRuleService.removeFlowRules(failOverRule(port));
+        down.clear();
+        log.info("Stopped");
+    }
+
+    /**
+     * Build the entry which moves the packets of a down egress port to their backup port
+     *
+     * @param port port of a device
+     * @return flow rule of the 'egress_port_down' table
+     */
+    private FlowRule failOverRule(ConnectPoint port) {
+        return DefaultFlowRule.builder()
+                .forDevice(port.deviceId())
+                .forTable(TABLE_EGRESS_PORT_DOWN)
+                .withSelector(DefaultTrafficSelector.builder()
+                        .matchPi(PiCriterion.builder()
+                                .matchExact(EGRESS_SPEC_ID, port.port().toLong())
+                                .build())
+                        .build())
+                .withTreatment(DefaultTrafficTreatment.builder().piTableAction(FAIL_OVER).build())
+                .withPriority(FAIL_OVER_PRIORITY)
+                .fromApp(appId)
+                .makePermanent()
+                .build();
+    }
+
+    /**
+     * Mark a port down or up again, writing the device only when the state changes
+     *
+     * @param port   port of a device
+     * @param isDown whether the port is down
+     */
+    private void mark(ConnectPoint port, boolean isDown) {
+        if (port.port().isLogical() || !Pipeconf.isDeployedOn(piPipeconfService, port.deviceId()))
+            return;
+        if (isDown && down.add(port)) {
+            log.debug("Failing over {}", port);
+            flowRuleService.applyFlowRules(failOverRule(port));
+        } else if (!isDown && down.remove(port)) {
+            log.debug("{} is back up", port);
+            flowRuleService.removeFlowRules(failOverRule(port));
+        }
+    }
+
+    /** Fail over from ports which go down and back when they come up */
+    private class InternalDeviceListener implements DeviceListener {
+        @Override
+        public void event(DeviceEvent event) {
+            Port port = event.port();
+            if (port == null)
+                return;
+            ConnectPoint cp = new ConnectPoint(event.subject().id(), port.number());
+            switch (event.type()) {
+                case PORT_UPDATED:
+                    boolean enabled = port.isEnabled();
+                    executor.execute(() -> mark(cp, !enabled));
+                    break;
+                case PORT_REMOVED:
+                    executor.execute(() -> mark(cp, true));
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /** Fail over from the source port of a link which is removed, its port may still look up */
+    private class InternalLinkListener implements LinkListener {
+        @Override
+        public void event(LinkEvent event) {
+            ConnectPoint src = event.subject().src();
+            switch (event.type()) {
+                case LINK_REMOVED:
+                    executor.execute(() -> mark(src, true));
+                    break;
+                case LINK_ADDED:
+                    executor.execute(() -> {
+                        Port port = deviceService.getPort(src);
+                        if (port == null || port.isEnabled())
+                            mark(src, false);
+                    });
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.pipeconf;
+
+import com.google.common.collect.ImmutableList;
+import org.onosproject.cfg.ComponentConfigService;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.CoreService;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Port;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.driver.DriverHandler;
+import org.onosproject.net.driver.DriverService;
+import org.onosproject.net.meter.Band;
+import org.onosproject.net.meter.DefaultBand;
+import org.onosproject.net.meter.DefaultMeter;
+import org.onosproject.net.meter.Meter;
+import org.onosproject.net.meter.MeterOperation;
+import org.onosproject.net.meter.MeterProgrammable;
+import org.onosproject.net.pi.model.PiMeterId;
+import org.onosproject.net.pi.runtime.PiMeterCellId;
+import org.onosproject.net.pi.service.PiPipeconfService;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Dictionary;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static nctu.pncourse.pipeconf.OsgiPropertyConstants.PUNT_BURST;
+import static nctu.pncourse.pipeconf.OsgiPropertyConstants.PUNT_BURST_DEFAULT;
+import static nctu.pncourse.pipeconf.OsgiPropertyConstants.PUNT_RATE;
+import static nctu.pncourse.pipeconf.OsgiPropertyConstants.PUNT_RATE_DEFAULT;
+import static org.onlab.util.Tools.getIntegerProperty;
+import static org.onlab.util.Tools.groupedThreads;
+
+/**
+ * Sets the bands of the punt meter cell of every port of the devices running this pipeconf.
+ * Packets a port sends to the controller above the configured rate turn red and are dropped by the switch.
+ */
+@Component(immediate = true,
+        property = {
+                PUNT_RATE + ":Integer=" + PUNT_RATE_DEFAULT,
+                PUNT_BURST + ":Integer=" + PUNT_BURST_DEFAULT,
+        })
+public final class PuntMeterProgrammer {
+
+    static final PiMeterId PUNT_METER_ID = PiMeterId.of("MyIngress.punt_meter");
+
+    // Size of the punt meter, see MAX_PORTS in learning_bridge.p4
+    static final int MAX_PORTS = 512;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /** Packets per second each ingress port may send to the controller. */
+    private int puntRate = PUNT_RATE_DEFAULT;
+
+    /** Packets each ingress port may send to the controller in a burst above the rate. */
+    private int puntBurst = PUNT_BURST_DEFAULT;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected ComponentConfigService cfgService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected CoreService coreService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected DeviceService deviceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected DriverService driverService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected PiPipeconfService piPipeconfService;
+
+    private final DeviceListener deviceListener = new InternalDeviceListener();
+
+    private ApplicationId appId;
+    private ExecutorService executor;
+
+    @Activate
+    protected void activate() {
+        cfgService.registerProperties(getClass());
+        appId = coreService.registerApplication(Pipeconf.PIPECONF_ID.id());
+        executor = Executors.newSingleThreadExecutor(groupedThreads("pipeconf", "punt-meters", log));
+        deviceService.addListener(deviceListener);
+        programAllDevices();
+        log.info("Started");
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        cfgService.unregisterProperties(getClass(), false);
+        deviceService.removeListener(deviceListener);
+        executor.shutdownNow();
+        log.info("Stopped");
+    }
+
+    @Modified
+    public void modified(ComponentContext context) {
+        if (context == null)
+            return;
+        Dictionary<?, ?> properties = context.getProperties();
+        Integer rate = getIntegerProperty(properties, PUNT_RATE);
+        Integer burst = getIntegerProperty(properties, PUNT_BURST);
+        puntRate = rate != null && rate > 0 ? rate : PUNT_RATE_DEFAULT;
+        puntBurst = burst != null && burst >= 0 ? burst : PUNT_BURST_DEFAULT;
+        log.info("Reconfigured, ports may punt {} packets/s with bursts of {}", puntRate, puntBurst);
+        programAllDevices();
+    }
+
+    private void programAllDevices() {
+        for (Device device : deviceService.getAvailableDevices())
+            executor.execute(() -> programPuntMeters(device.id()));
+    }
+
+    /**
+     * Bands of a punt meter cell, the committed and the peak band are the same so packets above the rate are red
+     *
+     * @return list of bands
+     */
+    List<Band> puntBands() {
+        Band band = DefaultBand.builder()
+                .ofType(Band.Type.DROP)
+                .withRate(puntRate)
+                .burstSize(puntBurst)
+                .build();
+        return ImmutableList.of(band, band);
+    }
+
+    /**
+     * Write the punt meter cells of the ports of a device
+     *
+     * @param deviceId device ID
+     */
+    private void programPuntMeters(DeviceId deviceId) {
+        if (!Pipeconf.isDeployedOn(piPipeconfService, deviceId))
+            return;
+
+        DriverHandler handler = driverService.createHandler(deviceId);
+        if (!handler.hasBehaviour(MeterProgrammable.class)) {
+            log.warn("{} cannot program meters, packet-ins are not rate limited", deviceId);
+            return;
+        }
+        MeterProgrammable meterProgrammable = handler.behaviour(MeterProgrammable.class);
+
+        List<Band> bands = puntBands();
+        for (Port port : deviceService.getPorts(deviceId)) {
+            long index = port.number().toLong();
+            if (port.number().isLogical() || index >= MAX_PORTS)
+                continue;
+
+            Meter meter = DefaultMeter.builder()
+                    .forDevice(deviceId)
+                    .withCellId(PiMeterCellId.ofIndirect(PUNT_METER_ID, index))
+                    .fromApp(appId)
+                    .withUnit(Meter.Unit.PKTS_PER_SEC)
+                    .withBands(bands)
+                    .build();
+            // The cells of a P4 meter always exist, so they are modified rather than added
+            meterProgrammable.performMeterOperation(new MeterOperation(meter, MeterOperation.Type.MODIFY))
+                    .whenComplete((ok, error) -> {
+                        if (error != null || !Boolean.TRUE.equals(ok))
+                            log.warn("Failed to set the punt meter of {}/{}", deviceId, index);
+                    });
+        }
+    }
+
+    /** Re-program the punt meters when a device or its ports change */
+    private class InternalDeviceListener implements DeviceListener {
+        @Override
+        public void event(DeviceEvent event) {
+            switch (event.type()) {
+                case DEVICE_ADDED:
+                case DEVICE_AVAILABILITY_CHANGED:
+                case PORT_ADDED:
+                    DeviceId deviceId = event.subject().id();
+                    if (deviceService.isAvailable(deviceId))
+                        executor.execute(() -> programPuntMeters(deviceId));
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.pipeconf;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultLink;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.provider.ProviderId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the broadcast tree used to flood without loops.
+ */
+public class BroadcastTreeTest {
+
+    private static final ProviderId PID = new ProviderId("p4runtime", "test");
+
+    private BroadcastTree tree;
+
+    @Before
+    public void setUp() {
+        tree = new BroadcastTree();
+    }
+
+    private static DeviceId did(int id) {
+        return DeviceId.deviceId("device:bmv2:s" + id);
+    }
+
+    // Both directions of the link between port P of sA and port Q of sB
+    private static List<Link> link(int a, int p, int b, int q) {
+        ConnectPoint one = new ConnectPoint(did(a), PortNumber.portNumber(p));
+        ConnectPoint two = new ConnectPoint(did(b), PortNumber.portNumber(q));
+        return ImmutableList.of(
+                DefaultLink.builder().providerId(PID).src(one).dst(two).type(Link.Type.DIRECT).build(),
+                DefaultLink.builder().providerId(PID).src(two).dst(one).type(Link.Type.DIRECT).build());
+    }
+
+    private static List<Link> links(List<List<Link>> links) {
+        List<Link> all = new ArrayList<>();
+        links.forEach(all::addAll);
+        return all;
+    }
+
+    // Triangle s1 - s2 - s3 - s1, port 1 goes clockwise and port 2 counter-clockwise
+    private static final List<Link> S1_S2 = link(1, 1, 2, 2);
+    private static final List<Link> S2_S3 = link(2, 1, 3, 2);
+    private static final List<Link> S3_S1 = link(3, 1, 1, 2);
+
+    private int blockedCount() {
+        int count = 0;
+        for (int i = 1; i <= 3; i++)
+            count += tree.blockedPorts(did(i)).size();
+        return count;
+    }
+
+    @Test
+    public void ringHasOneBlockedLink() {
+        Set<DeviceId> changed = tree.update(links(ImmutableList.of(S1_S2, S2_S3, S3_S1)));
+
+        assertEquals(2, tree.size());
+        assertEquals(2, blockedCount());
+        assertEquals(2, changed.size());
+    }
+
+    @Test
+    public void removingABlockedLinkKeepsTheTree() {
+        tree.update(links(ImmutableList.of(S1_S2, S2_S3, S3_S1)));
+        // s2 - s3 is the last link looked at, so it is the one off the tree
+        assertEquals(ImmutableSet.of(PortNumber.portNumber(1)), tree.blockedPorts(did(2)));
+        assertEquals(ImmutableSet.of(PortNumber.portNumber(2)), tree.blockedPorts(did(3)));
+        Set<DeviceId> changed = tree.update(links(ImmutableList.of(S1_S2, S3_S1)));
+
+        assertEquals(2, tree.size());
+        assertEquals(0, blockedCount());
+        assertEquals(ImmutableSet.of(did(2), did(3)), changed);
+    }
+
+    @Test
+    public void removedTreeLinkIsReplacedAndKeptAfterward() {
+        tree.update(links(ImmutableList.of(S1_S2, S2_S3, S3_S1)));
+        tree.update(links(ImmutableList.of(S2_S3, S3_S1)));
+        assertEquals(0, blockedCount());
+
+        // s1 - s2 comes back, the tree keeps the links it has and blocks the returning one
+        Set<DeviceId> changed = tree.update(links(ImmutableList.of(S1_S2, S2_S3, S3_S1)));
+        assertEquals(ImmutableSet.of(PortNumber.portNumber(1)), tree.blockedPorts(did(1)));
+        assertEquals(ImmutableSet.of(PortNumber.portNumber(2)), tree.blockedPorts(did(2)));
+        assertTrue(tree.blockedPorts(did(3)).isEmpty());
+        assertEquals(ImmutableSet.of(did(1), did(2)), changed);
+    }
+
+    @Test
+    public void parallelLinksFloodOnOne() {
+        tree.update(links(ImmutableList.of(link(1, 1, 2, 1), link(1, 2, 2, 2))));
+
+        assertEquals(1, tree.size());
+        assertEquals(ImmutableSet.of(PortNumber.portNumber(2)), tree.blockedPorts(did(1)));
+        assertEquals(ImmutableSet.of(PortNumber.portNumber(2)), tree.blockedPorts(did(2)));
+    }
+}
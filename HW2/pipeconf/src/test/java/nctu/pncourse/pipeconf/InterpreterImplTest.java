@@ -0,0 +1,254 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.pipeconf;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.packet.ARP;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IPacket;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onlab.util.ImmutableByteSequence;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.packet.DefaultOutboundPacket;
+import org.onosproject.net.packet.InboundPacket;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiActionParamId;
+import org.onosproject.net.pi.model.PiPacketMetadataId;
+import org.onosproject.net.pi.model.PiPipelineInterpreter;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiActionParam;
+import org.onosproject.net.pi.runtime.PiPacketMetadata;
+import org.onosproject.net.pi.runtime.PiPacketOperation;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.onosproject.net.pi.model.PiPacketOperationType.PACKET_IN;
+
+/**
+ * Tests of the pipeline interpreter.
+ */
+public class InterpreterImplTest {
+
+    private static final DeviceId DEVICE_ID = DeviceId.deviceId("device:bmv2:s1");
+    private static final MacAddress SRC = MacAddress.valueOf("00:00:00:00:00:01");
+    private static final MacAddress DST = MacAddress.valueOf("00:00:00:00:00:02");
+
+    private InterpreterImpl interpreter;
+
+    @Before
+    public void setUp() {
+        interpreter = new InterpreterImpl();
+    }
+
+    private static byte[] ethernetHeader() {
+        Ethernet eth = new Ethernet();
+        eth.setDestinationMACAddress(DST)
+                .setSourceMACAddress(SRC)
+                .setEtherType(Ethernet.TYPE_IPV4);
+        byte[] frame = eth.serialize();
+        byte[] header = new byte[Ethernet.ETHERNET_HEADER_LENGTH];
+        System.arraycopy(frame, 0, header, 0, header.length);
+        return header;
+    }
+
+    private static PiPacketMetadata metadata(String id, byte... value) {
+        return PiPacketMetadata.builder()
+                .withId(PiPacketMetadataId.of(id))
+                .withValue(ImmutableByteSequence.copyFrom(value))
+                .build();
+    }
+
+    private static PiPacketOperation packetIn(byte[] data, byte isLearn) {
+        return PiPacketOperation.builder()
+                .withType(PACKET_IN)
+                .withData(ImmutableByteSequence.copyFrom(data))
+                .withMetadatas(ImmutableList.of(
+                        metadata("ingress_port", (byte) 0, (byte) 3),
+                        metadata("is_learn", isLearn)))
+                .build();
+    }
+
+    @Test
+    public void learnNotification() throws Exception {
+        InboundPacket pkt = interpreter.mapInboundPacket(packetIn(ethernetHeader(), (byte) 1), DEVICE_ID);
+
+        assertEquals(Optional.of(InterpreterImpl.LEARN_COOKIE), pkt.cookie());
+        assertEquals(PortNumber.portNumber(3), pkt.receivedFrom().port());
+        assertEquals(SRC, pkt.parsed().getSourceMAC());
+        assertEquals(DST, pkt.parsed().getDestinationMAC());
+    }
+
+    @Test
+    public void puntedPacket() throws Exception {
+        Ethernet eth = ARP.buildArpRequest(SRC.toBytes(), Ip4Address.valueOf("10.0.0.1").toOctets(),
+                Ip4Address.valueOf("10.0.0.2").toOctets(), Ethernet.VLAN_UNTAGGED);
+        byte[] frame = eth.serialize();
+        InboundPacket pkt = interpreter.mapInboundPacket(packetIn(frame, (byte) 0), DEVICE_ID);
+
+        assertEquals(Optional.empty(), pkt.cookie());
+        assertEquals(SRC, pkt.parsed().getSourceMAC());
+        assertEquals(Ethernet.TYPE_ARP, pkt.parsed().getEtherType());
+
+        // The payload is only deserialized on request
+        assertFalse(((LazyEthernet) pkt.parsed()).isPayloadParsed());
+        assertTrue(pkt.parsed().getPayload() instanceof ARP);
+        assertEquals(Ethernet.deserializer().deserialize(frame, 0, frame.length), pkt.parsed());
+    }
+
+    @Test
+    public void payloadIsParsedOnceAcrossThreads() throws Exception {
+        Ethernet eth = ARP.buildArpRequest(SRC.toBytes(), Ip4Address.valueOf("10.0.0.1").toOctets(),
+                Ip4Address.valueOf("10.0.0.2").toOctets(), Ethernet.VLAN_UNTAGGED);
+        LazyEthernet lazy = new LazyEthernet(ByteBuffer.wrap(eth.serialize()));
+
+        // Every reader gets the same payload, none sees it half set
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<IPacket>> payloads = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            payloads.add(executor.submit(() -> {
+                start.await();
+                return lazy.getPayload();
+            }));
+        }
+        start.countDown();
+        Set<IPacket> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Future<IPacket> payload : payloads)
+            seen.add(payload.get(5, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        assertEquals(1, seen.size());
+        assertTrue(seen.iterator().next() instanceof ARP);
+        assertTrue(lazy.isPayloadParsed());
+    }
+
+    @Test
+    public void floodIsOnePacketOut() throws Exception {
+        byte[] frame = ethernetHeader();
+        Collection<PiPacketOperation> ops = interpreter.mapOutboundPacket(new DefaultOutboundPacket(DEVICE_ID,
+                DefaultTrafficTreatment.builder().setOutput(PortNumber.FLOOD).writeMetadata(2, 1).build(),
+                ByteBuffer.wrap(frame)));
+
+        assertEquals(1, ops.size());
+        PiPacketOperation op = ops.iterator().next();
+        assertTrue(op.metadatas().contains(metadata("mcast_grp", (byte) 0x10, (byte) 0x02)));
+    }
+
+    @Test
+    public void floodEntriesUseTheFloodAction() throws Exception {
+        TrafficTreatment flood = DefaultTrafficTreatment.builder().setOutput(PortNumber.FLOOD).build();
+        PiAction action = interpreter.mapTreatment(flood, PiTableId.of("MyIngress.ethernet_forward"));
+        assertEquals(PiActionId.of("MyIngress.flood"), action.id());
+
+        try {
+            interpreter.mapTreatment(flood, PiTableId.of("MyIngress.dst_mac_forward"));
+            fail("'dst_mac_forward' has no flood action");
+        } catch (PiPipelineInterpreter.PiInterpreterException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void exactMatchTableForwardsToPhysicalPortsOnly() throws Exception {
+        PiTableId table = PiTableId.of("MyIngress.dst_mac_forward");
+        PiAction action = interpreter.mapTreatment(
+                DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(3)).build(), table);
+        assertEquals(PiActionId.of("MyIngress.set_egress_port"), action.id());
+
+        try {
+            interpreter.mapTreatment(DefaultTrafficTreatment.builder().setOutput(PortNumber.CONTROLLER).build(),
+                    table);
+            fail("'dst_mac_forward' has no send_to_controller action");
+        } catch (PiPipelineInterpreter.PiInterpreterException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void twoOutputsAreNoBackupPort() throws Exception {
+        // Two outputs replicate the packet in ONOS, the backup port comes as the set_egress_ports PI action
+        TrafficTreatment twoOutputs = DefaultTrafficTreatment.builder()
+                .setOutput(PortNumber.portNumber(2))
+                .setOutput(PortNumber.portNumber(4))
+                .build();
+        try {
+            interpreter.mapTreatment(twoOutputs, PiTableId.of("MyIngress.dst_mac_forward"));
+            fail("two outputs are not a primary and a backup port");
+        } catch (PiPipelineInterpreter.PiInterpreterException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void ecmpMembersOnlySetTheEgressPort() throws Exception {
+        PiTableId table = PiTableId.of("MyIngress.ecmp_forward");
+        PiAction action = interpreter.mapTreatment(
+                DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(3)).build(), table);
+        assertEquals(PiActionId.of("MyIngress.set_egress_port"), action.id());
+
+        for (PortNumber port : ImmutableList.of(PortNumber.CONTROLLER, PortNumber.FLOOD)) {
+            try {
+                interpreter.mapTreatment(DefaultTrafficTreatment.builder().setOutput(port).build(), table);
+                fail("'ecmp_forward' has no " + port + " action");
+            } catch (PiPipelineInterpreter.PiInterpreterException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void egressPortActionsAreShared() throws Exception {
+        PiTableId table = PiTableId.of("MyIngress.ethernet_forward");
+        TrafficTreatment output = DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(3)).build();
+        PiAction action = interpreter.mapTreatment(output, table);
+        assertSame(action, interpreter.mapTreatment(output, table));
+        assertEquals(PiAction.builder()
+                .withId(PiActionId.of("MyIngress.set_egress_port"))
+                .withParameter(new PiActionParam(PiActionParamId.of("port"), 3L))
+                .build(), action);
+
+        // Ports beyond the interned range are still translated
+        PiAction wide = interpreter.mapTreatment(
+                DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(4096)).build(), table);
+        assertEquals(new PiActionParam(PiActionParamId.of("port"), 4096L),
+                wide.parameters().iterator().next());
+    }
+}
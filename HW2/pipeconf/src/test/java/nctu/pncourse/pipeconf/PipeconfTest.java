@@ -37,6 +37,7 @@ public class PipeconfTest {
     @Before
     public void setUp() {
         component = new Pipeconf();
+        component.cfgService = new ComponentConfigAdapter();
         component.activate();
     }
 
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.pipeconf;
+
+import org.junit.After;
+import org.junit.Test;
+import org.onosproject.net.pi.model.PiPipelineModel;
+import org.onosproject.net.pi.model.PiTableId;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests of the cache of parsed pipeline models.
+ */
+public class PipelineModelCacheTest {
+
+    private static final URL P4INFO_URL = PipelineModelCacheTest.class.getResource("/test.p4info.txt");
+    private static final PiTableId TABLE = PiTableId.of("MyIngress.dst_mac_forward");
+
+    @After
+    public void tearDown() {
+        PipelineModelCache.clear();
+    }
+
+    @Test
+    public void sameP4InfoIsParsedOnce() throws Exception {
+        PiPipelineModel model = PipelineModelCache.get(P4INFO_URL);
+        assertEquals(65536, model.table(TABLE).get().maxSize());
+        assertSame(model, PipelineModelCache.get(P4INFO_URL));
+    }
+
+    @Test
+    public void changedP4InfoIsParsedAgain() throws Exception {
+        Path p4Info = Files.createTempFile("learning_bridge", ".p4info.txt");
+        try {
+            String text = new String(Files.readAllBytes(Paths.get(P4INFO_URL.toURI())),
+                    StandardCharsets.UTF_8);
+            Files.write(p4Info, text.getBytes(StandardCharsets.UTF_8));
+            PiPipelineModel model = PipelineModelCache.get(p4Info.toUri().toURL());
+
+            // Same URL, new content
+            Files.write(p4Info, text.replace("size: 65536", "size: 1024").getBytes(StandardCharsets.UTF_8));
+            PiPipelineModel changed = PipelineModelCache.get(p4Info.toUri().toURL());
+            assertNotSame(model, changed);
+            assertEquals(1024, changed.table(TABLE).get().maxSize());
+        } finally {
+            Files.delete(p4Info);
+        }
+    }
+}
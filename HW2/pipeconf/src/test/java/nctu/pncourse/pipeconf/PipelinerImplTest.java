@@ -0,0 +1,678 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.pncourse.pipeconf;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+import org.onlab.osgi.ServiceDirectory;
+import org.onlab.packet.ChassisId;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.MacAddress;
+import org.onosproject.cfg.ComponentConfigAdapter;
+import org.onosproject.cfg.ComponentConfigService;
+import org.onosproject.cfg.ConfigProperty;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.CoreService;
+import org.onosproject.core.CoreServiceAdapter;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.core.GroupId;
+import org.onosproject.net.DefaultDevice;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.behaviour.NextGroup;
+import org.onosproject.net.behaviour.PipelinerContext;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.device.DeviceServiceAdapter;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.flow.FlowRuleServiceAdapter;
+import org.onosproject.net.flow.TableId;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.criteria.EthCriterion;
+import org.onosproject.net.flow.instructions.Instruction;
+import org.onosproject.net.flow.instructions.Instructions;
+import org.onosproject.net.flow.instructions.PiInstruction;
+import org.onosproject.net.flowobjective.DefaultForwardingObjective;
+import org.onosproject.net.flowobjective.DefaultNextObjective;
+import org.onosproject.net.flowobjective.DefaultNextTreatment;
+import org.onosproject.net.flowobjective.FlowObjectiveStore;
+import org.onosproject.net.flowobjective.FlowObjectiveStoreDelegate;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.flowobjective.IdNextTreatment;
+import org.onosproject.net.flowobjective.NextObjective;
+import org.onosproject.net.flowobjective.Objective;
+import org.onosproject.net.flowobjective.ObjectiveContext;
+import org.onosproject.net.flowobjective.ObjectiveError;
+import org.onosproject.net.group.DefaultGroup;
+import org.onosproject.net.group.GroupBucket;
+import org.onosproject.net.group.GroupBuckets;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupEvent;
+import org.onosproject.net.group.GroupKey;
+import org.onosproject.net.group.GroupListener;
+import org.onosproject.net.group.GroupService;
+import org.onosproject.net.group.GroupServiceAdapter;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiActionParamId;
+import org.onosproject.net.pi.model.PiActionProfileId;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiActionParam;
+import org.onosproject.net.pi.runtime.PiActionProfileGroupId;
+import org.onosproject.net.pi.runtime.PiGroupKey;
+import org.onosproject.net.provider.ProviderId;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the batching forwarding objective pipeliner.
+ */
+public class PipelinerImplTest {
+
+    private static final DeviceId DEVICE_ID = DeviceId.deviceId("device:bmv2:s1");
+    private static final ApplicationId APP_ID = new DefaultApplicationId(1, "nctu.pncourse.test");
+    private static final int BATCH_SIZE = 3;
+
+    private TestFlowRuleService flowRuleService;
+    private TestGroupService groupService;
+    private TestFlowObjectiveStore flowObjectiveStore;
+    private TestDeviceService deviceService;
+    private PipelinerImpl pipeliner;
+
+    // Objective IDs reported as installed, and errors by objective ID
+    private final Set<Integer> succeeded = ConcurrentHashMap.newKeySet();
+    private final Map<Integer, ObjectiveError> results = new ConcurrentHashMap<>();
+    private final ObjectiveContext context = new ObjectiveContext() {
+        @Override
+        public void onSuccess(Objective objective) {
+            succeeded.add(objective.id());
+        }
+
+        @Override
+        public void onError(Objective objective, ObjectiveError error) {
+            results.put(objective.id(), error);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        flowRuleService = new TestFlowRuleService();
+        groupService = new TestGroupService();
+        flowObjectiveStore = new TestFlowObjectiveStore();
+        deviceService = new TestDeviceService();
+        pipeliner = new PipelinerImpl();
+        pipeliner.init(DEVICE_ID, new TestPipelinerContext(new TestServiceDirectory()));
+    }
+
+    private ForwardingObjective objective(int host, Objective.Operation op) {
+        ForwardingObjective.Builder builder = DefaultForwardingObjective.builder()
+                .withSelector(DefaultTrafficSelector.builder()
+                        .matchEthDst(MacAddress.valueOf((long) host))
+                        .build())
+                .withTreatment(DefaultTrafficTreatment.builder()
+                        .setOutput(PortNumber.portNumber(host))
+                        .build())
+                .withPriority(10)
+                .withFlag(ForwardingObjective.Flag.VERSATILE)
+                .fromApp(APP_ID)
+                .makeTemporary(60);
+        return op == Objective.Operation.ADD ? builder.add(context) : builder.remove(context);
+    }
+
+    @Test
+    public void objectivesAreWrittenInOneBatch() throws InterruptedException {
+        List<ForwardingObjective> objectives = ImmutableList.of(
+                objective(1, Objective.Operation.ADD),
+                objective(2, Objective.Operation.ADD),
+                objective(3, Objective.Operation.ADD));
+        objectives.forEach(pipeliner::forward);
+
+        FlowRuleOperations ops = flowRuleService.batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull("batch was not written", ops);
+        assertEquals(1, ops.stages().size());
+        assertEquals(BATCH_SIZE, ops.stages().get(0).size());
+
+        // Nothing is reported until the device answers
+        assertTrue(succeeded.isEmpty());
+        ops.callback().onSuccess(ops);
+        for (ForwardingObjective obj : objectives)
+            assertTrue(succeeded.contains(obj.id()));
+        assertTrue(results.isEmpty());
+    }
+
+    @Test
+    public void changedBatchSizeReachesConnectedDevices() throws InterruptedException {
+        // A full batch of two is written right away instead of waiting for the window of the old batch
+        PipelinerImpl.setFlowBatch(2, 60000);
+        pipeliner.forward(objective(1, Objective.Operation.ADD));
+        pipeliner.forward(objective(2, Objective.Operation.ADD));
+
+        FlowRuleOperations ops = flowRuleService.batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull("batch was not written", ops);
+        assertEquals(2, ops.stages().get(0).size());
+    }
+
+    @Test
+    public void reconnectedDeviceKeepsOnlyItsNewPipeliner() {
+        GroupListener first = groupService.listener;
+        PipelinerImpl second = new PipelinerImpl();
+        second.init(DEVICE_ID, new TestPipelinerContext(new TestServiceDirectory()));
+
+        // The first pipeliner stopped listening, only the second one is left
+        assertNotNull(groupService.listener);
+        assertNotSame(first, groupService.listener);
+        assertEquals(1, deviceService.listeners.size());
+
+        // Removing the device stops the second one too
+        Device device = new DefaultDevice(new ProviderId("p4runtime", "test"), DEVICE_ID, Device.Type.SWITCH,
+                "", "", "", "", new ChassisId());
+        for (DeviceListener listener : ImmutableList.copyOf(deviceService.listeners))
+            listener.event(new DeviceEvent(DeviceEvent.Type.DEVICE_REMOVED, device));
+        assertNull(groupService.listener);
+        assertTrue(deviceService.listeners.isEmpty());
+    }
+
+    @Test
+    public void removalsFollowAdditionsInTheirOwnStage() throws InterruptedException {
+        pipeliner.forward(objective(1, Objective.Operation.ADD));
+        pipeliner.forward(objective(2, Objective.Operation.ADD));
+        pipeliner.forward(objective(1, Objective.Operation.REMOVE));
+
+        FlowRuleOperations ops = flowRuleService.batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull("batch was not written", ops);
+        assertEquals(2, ops.stages().size());
+        for (FlowRuleOperation op : ops.stages().get(0))
+            assertEquals(FlowRuleOperation.Type.ADD, op.type());
+        for (FlowRuleOperation op : ops.stages().get(1))
+            assertEquals(FlowRuleOperation.Type.REMOVE, op.type());
+    }
+
+    @Test
+    public void onlyFailedRulesReportErrors() throws InterruptedException {
+        ForwardingObjective ok = objective(1, Objective.Operation.ADD);
+        ForwardingObjective bad = objective(2, Objective.Operation.ADD);
+        pipeliner.forward(ok);
+        pipeliner.forward(bad);
+        pipeliner.forward(objective(3, Objective.Operation.ADD));
+
+        FlowRuleOperations ops = flowRuleService.batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull("batch was not written", ops);
+        FlowRuleOperation failed = null;
+        for (FlowRuleOperation op : ops.stages().get(0)) {
+            if (op.rule().treatment().allInstructions().equals(bad.treatment().allInstructions()))
+                failed = op;
+        }
+        assertNotNull(failed);
+        ops.callback().onError(FlowRuleOperations.builder().operation(failed).build());
+
+        assertEquals(ObjectiveError.FLOWINSTALLATIONFAILED, results.get(bad.id()));
+        assertNull(results.get(ok.id()));
+        assertTrue(succeeded.contains(ok.id()));
+    }
+
+    @Test
+    public void destinationOnlyObjectivesUseTheExactMatchTable() throws InterruptedException {
+        pipeliner.forward(objective(1, Objective.Operation.ADD));
+        pipeliner.forward(DefaultForwardingObjective.builder()
+                .withSelector(DefaultTrafficSelector.builder()
+                        .matchEthDst(MacAddress.valueOf(2L))
+                        .matchEthType(Ethernet.TYPE_IPV4)
+                        .build())
+                .withTreatment(DefaultTrafficTreatment.builder()
+                        .setOutput(PortNumber.portNumber(2))
+                        .build())
+                .withPriority(10)
+                .withFlag(ForwardingObjective.Flag.VERSATILE)
+                .fromApp(APP_ID)
+                .makeTemporary(60)
+                .add(context));
+        pipeliner.forward(DefaultForwardingObjective.builder()
+                .withSelector(DefaultTrafficSelector.builder()
+                        .matchEthDst(MacAddress.valueOf(3L))
+                        .build())
+                .withTreatment(DefaultTrafficTreatment.builder()
+                        .setOutput(PortNumber.CONTROLLER)
+                        .build())
+                .withPriority(10)
+                .withFlag(ForwardingObjective.Flag.VERSATILE)
+                .fromApp(APP_ID)
+                .makeTemporary(60)
+                .add(context));
+
+        FlowRuleOperations ops = flowRuleService.batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull("batch was not written", ops);
+        Map<MacAddress, TableId> tables = new HashMap<>();
+        for (FlowRuleOperation op : ops.stages().get(0)) {
+            EthCriterion dst = (EthCriterion) op.rule().selector().getCriterion(Criterion.Type.ETH_DST);
+            tables.put(dst.mac(), op.rule().table());
+        }
+        assertEquals(PiTableId.of("MyIngress.dst_mac_forward"), tables.get(MacAddress.valueOf(1L)));
+        assertEquals(PiTableId.of("MyIngress.ethernet_forward"), tables.get(MacAddress.valueOf(2L)));
+        assertEquals(PiTableId.of("MyIngress.ethernet_forward"), tables.get(MacAddress.valueOf(3L)));
+    }
+
+    @Test
+    public void outputWithABackupPortUsesTheExactMatchTable() throws InterruptedException {
+        pipeliner.forward(DefaultForwardingObjective.builder()
+                .withSelector(DefaultTrafficSelector.builder()
+                        .matchEthDst(MacAddress.valueOf(1L))
+                        .build())
+                .withTreatment(DefaultTrafficTreatment.builder()
+                        .piTableAction(PiAction.builder()
+                                .withId(PiActionId.of("MyIngress.set_egress_ports"))
+                                .withParameter(new PiActionParam(PiActionParamId.of("port"), 2L))
+                                .withParameter(new PiActionParam(PiActionParamId.of("backup"), 4L))
+                                .build())
+                        .build())
+                .withPriority(10)
+                .withFlag(ForwardingObjective.Flag.VERSATILE)
+                .fromApp(APP_ID)
+                .makeTemporary(60)
+                .add(context));
+        for (int i = 2; i <= BATCH_SIZE; i++)
+            pipeliner.forward(objective(i, Objective.Operation.ADD));
+
+        FlowRuleOperations ops = flowRuleService.batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull("batch was not written", ops);
+        for (FlowRuleOperation op : ops.stages().get(0))
+            assertEquals(PiTableId.of("MyIngress.dst_mac_forward"), op.rule().table());
+    }
+
+    @Test
+    public void nextStepOutsideTheEcmpTableIsRejected() throws InterruptedException {
+        ForwardingObjective obj = DefaultForwardingObjective.builder()
+                .withSelector(DefaultTrafficSelector.builder()
+                        .matchEthDst(MacAddress.valueOf(1L))
+                        .matchEthType(Ethernet.TYPE_IPV4)
+                        .build())
+                .nextStep(1)
+                .withPriority(10)
+                .withFlag(ForwardingObjective.Flag.VERSATILE)
+                .fromApp(APP_ID)
+                .makePermanent()
+                .add(context);
+        pipeliner.forward(obj);
+
+        assertEquals(ObjectiveError.UNSUPPORTED, results.get(obj.id()));
+        assertNull(flowRuleService.batches.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    private NextObjective hashedNext(int nextId, int... ports) {
+        NextObjective.Builder builder = DefaultNextObjective.builder()
+                .withId(nextId)
+                .withType(NextObjective.Type.HASHED)
+                .fromApp(APP_ID);
+        for (int port : ports)
+            builder.addTreatment(DefaultNextTreatment.of(
+                    DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(port)).build()));
+        return builder.add(context);
+    }
+
+    @Test
+    public void hashedNextIsAnActionSelectorGroup() throws InterruptedException {
+        NextObjective next = hashedNext(7, 2, 3);
+        pipeliner.next(next);
+
+        GroupDescription group = groupService.added.get(groupService.added.size() - 1);
+        assertEquals(GroupDescription.Type.SELECT, group.type());
+        int groupId = PipelinerImpl.ecmpGroupId(7);
+        assertEquals(new PiGroupKey(PiTableId.of("MyIngress.ecmp_forward"),
+                PiActionProfileId.of("MyIngress.ecmp_selector"), groupId), group.appCookie());
+        assertEquals(Integer.valueOf(groupId), group.givenGroupId());
+        List<PortNumber> ports = new ArrayList<>();
+        for (GroupBucket bucket : group.buckets().buckets())
+            ports.add(((Instructions.OutputInstruction)
+                    bucket.treatment().allInstructions().get(0)).port());
+        assertEquals(ImmutableList.of(PortNumber.portNumber(2), PortNumber.portNumber(3)), ports);
+
+        // The next objective is done once its group is on the device
+        assertTrue(succeeded.isEmpty());
+        assertNull(flowObjectiveStore.getNextGroup(7));
+        groupService.listener.event(new GroupEvent(GroupEvent.Type.GROUP_ADDED,
+                new DefaultGroup(new GroupId(groupId), group)));
+        assertTrue(succeeded.contains(next.id()));
+        assertNotNull(flowObjectiveStore.getNextGroup(7));
+
+        // Destination entries with the next step point at the group
+        ForwardingObjective forward = DefaultForwardingObjective.builder()
+                .withSelector(DefaultTrafficSelector.builder()
+                        .matchEthDst(MacAddress.valueOf(1L))
+                        .build())
+                .nextStep(7)
+                .withPriority(10)
+                .withFlag(ForwardingObjective.Flag.VERSATILE)
+                .fromApp(APP_ID)
+                .makePermanent()
+                .add(context);
+        for (int i = 0; i < BATCH_SIZE; i++)
+            pipeliner.forward(i == 0 ? forward : objective(i, Objective.Operation.ADD));
+        FlowRuleOperations ops = flowRuleService.batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull("batch was not written", ops);
+        FlowRuleOperation ecmp = null;
+        for (FlowRuleOperation op : ops.stages().get(0)) {
+            if (op.rule().table().equals(PiTableId.of("MyIngress.ecmp_forward")))
+                ecmp = op;
+        }
+        assertNotNull(ecmp);
+        Instruction instruction = ecmp.rule().treatment().allInstructions().get(0);
+        assertEquals(PiActionProfileGroupId.of(groupId), ((PiInstruction) instruction).action());
+    }
+
+    @Test
+    public void nextWithTheIdOfAnotherGroupGetsItsOwnGroup() {
+        // The clone session of MAC learning and the multicast groups of flooding
+        Set<Integer> reserved = new HashSet<>();
+        for (GroupDescription group : groupService.added)
+            reserved.add(group.givenGroupId());
+        assertTrue(reserved.contains(99));
+        for (int port = 0; port < 512; port++)
+            reserved.add(FloodGroupProgrammer.floodGroupId(port));
+
+        for (int nextId : new int[]{99, FloodGroupProgrammer.floodGroupId(0), FloodGroupProgrammer.floodGroupId(2)}) {
+            NextObjective next = hashedNext(nextId, 2, 3);
+            pipeliner.next(next);
+            GroupDescription group = groupService.added.get(groupService.added.size() - 1);
+            assertFalse(reserved.contains(group.givenGroupId()));
+            assertTrue(reserved.add(group.givenGroupId()));
+
+            // The store maps the next objective to its group
+            groupService.listener.event(new GroupEvent(GroupEvent.Type.GROUP_ADDED,
+                    new DefaultGroup(new GroupId(group.givenGroupId()), group)));
+            assertTrue(succeeded.contains(nextId));
+            assertEquals(group.givenGroupId().intValue(),
+                    ByteBuffer.wrap(flowObjectiveStore.getNextGroup(nextId).data()).getInt());
+        }
+    }
+
+    @Test
+    public void nextStepWithoutAGroupIsRejected() {
+        ForwardingObjective forward = DefaultForwardingObjective.builder()
+                .withSelector(DefaultTrafficSelector.builder()
+                        .matchEthDst(MacAddress.valueOf(1L))
+                        .build())
+                .nextStep(7)
+                .withPriority(10)
+                .withFlag(ForwardingObjective.Flag.VERSATILE)
+                .fromApp(APP_ID)
+                .makePermanent()
+                .add(context);
+        pipeliner.forward(forward);
+
+        assertEquals(ObjectiveError.GROUPMISSING, results.get(forward.id()));
+    }
+
+    @Test
+    public void failedGroupFailsTheNextObjective() {
+        NextObjective next = hashedNext(8, 2, 3);
+        pipeliner.next(next);
+        GroupDescription group = groupService.added.get(groupService.added.size() - 1);
+        groupService.listener.event(new GroupEvent(GroupEvent.Type.GROUP_ADD_FAILED,
+                new DefaultGroup(new GroupId(group.givenGroupId()), group)));
+
+        assertEquals(ObjectiveError.GROUPINSTALLATIONFAILED, results.get(next.id()));
+        assertNull(flowObjectiveStore.getNextGroup(8));
+    }
+
+    @Test
+    public void simpleNextIsAGroupOfOneMember() {
+        NextObjective simple = DefaultNextObjective.builder()
+                .withId(9)
+                .withType(NextObjective.Type.SIMPLE)
+                .addTreatment(DefaultNextTreatment.of(
+                        DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(2)).build()))
+                .fromApp(APP_ID)
+                .add(context);
+        pipeliner.next(simple);
+
+        GroupDescription group = groupService.added.get(groupService.added.size() - 1);
+        assertEquals(GroupDescription.Type.SELECT, group.type());
+        assertEquals(Integer.valueOf(PipelinerImpl.ecmpGroupId(9)), group.givenGroupId());
+        assertEquals(1, group.buckets().buckets().size());
+    }
+
+    @Test
+    public void broadcastNextIsUnsupported() {
+        NextObjective broadcast = DefaultNextObjective.builder()
+                .withId(9)
+                .withType(NextObjective.Type.BROADCAST)
+                .addTreatment(DefaultNextTreatment.of(
+                        DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(2)).build()))
+                .fromApp(APP_ID)
+                .add(context);
+        int groups = groupService.added.size();
+        pipeliner.next(broadcast);
+
+        assertEquals(ObjectiveError.UNSUPPORTED, results.get(broadcast.id()));
+        assertEquals(groups, groupService.added.size());
+    }
+
+    @Test
+    public void nestedNextIsUnsupported() {
+        NextObjective nested = DefaultNextObjective.builder()
+                .withId(10)
+                .withType(NextObjective.Type.HASHED)
+                .addTreatment(IdNextTreatment.of(7))
+                .fromApp(APP_ID)
+                .add(context);
+        int groups = groupService.added.size();
+        pipeliner.next(nested);
+
+        assertEquals(ObjectiveError.UNSUPPORTED, results.get(nested.id()));
+        assertEquals(groups, groupService.added.size());
+    }
+
+    @Test
+    public void modifiedNextReplacesTheMembersOfItsGroup() {
+        pipeliner.next(hashedNext(7, 2, 3));
+        NextObjective.Builder modify = DefaultNextObjective.builder()
+                .withId(7)
+                .withType(NextObjective.Type.SIMPLE)
+                .addTreatment(DefaultNextTreatment.of(
+                        DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(4)).build()))
+                .fromApp(APP_ID);
+        NextObjective next = modify.modify(context);
+        pipeliner.next(next);
+
+        // One group update, no new group
+        assertEquals(1, groupService.modified.size());
+        GroupBuckets buckets = groupService.modified.get(new PiGroupKey(PiTableId.of("MyIngress.ecmp_forward"),
+                PiActionProfileId.of("MyIngress.ecmp_selector"), PipelinerImpl.ecmpGroupId(7)));
+        assertNotNull(buckets);
+        assertEquals(PortNumber.portNumber(4), ((Instructions.OutputInstruction)
+                buckets.buckets().get(0).treatment().allInstructions().get(0)).port());
+        assertTrue(succeeded.contains(next.id()));
+    }
+
+    // Flow rule service which keeps the batches for the test to complete
+    private static class TestFlowRuleService extends FlowRuleServiceAdapter {
+        final BlockingQueue<FlowRuleOperations> batches = new LinkedBlockingQueue<>();
+
+        @Override
+        public void apply(FlowRuleOperations ops) {
+            batches.add(ops);
+        }
+    }
+
+    // Group service which keeps the groups it is given and the listener of the pipeliner
+    private static class TestGroupService extends GroupServiceAdapter {
+        final List<GroupDescription> added = new CopyOnWriteArrayList<>();
+        final Map<GroupKey, GroupBuckets> modified = new ConcurrentHashMap<>();
+        GroupListener listener;
+
+        @Override
+        public void addGroup(GroupDescription groupDesc) {
+            added.add(groupDesc);
+        }
+
+        @Override
+        public void setBucketsForGroup(DeviceId deviceId, GroupKey oldCookie, GroupBuckets buckets,
+                                       GroupKey newCookie, ApplicationId appId) {
+            modified.put(newCookie, buckets);
+        }
+
+        @Override
+        public void addListener(GroupListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void removeListener(GroupListener listener) {
+            if (this.listener == listener)
+                this.listener = null;
+        }
+    }
+
+    // Device service which only keeps its listeners
+    private static class TestDeviceService extends DeviceServiceAdapter {
+        final Set<DeviceListener> listeners = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public void addListener(DeviceListener listener) {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void removeListener(DeviceListener listener) {
+            listeners.remove(listener);
+        }
+    }
+
+    // Next groups of the flow objective manager, without delegate
+    private static class TestFlowObjectiveStore implements FlowObjectiveStore {
+        private final Map<Integer, NextGroup> groups = new ConcurrentHashMap<>();
+
+        @Override
+        public void putNextGroup(Integer nextId, NextGroup group) {
+            groups.put(nextId, group);
+        }
+
+        @Override
+        public NextGroup getNextGroup(Integer nextId) {
+            return groups.get(nextId);
+        }
+
+        @Override
+        public NextGroup removeNextGroup(Integer nextId) {
+            return groups.remove(nextId);
+        }
+
+        @Override
+        public Map<Integer, NextGroup> getAllGroups() {
+            return groups;
+        }
+
+        @Override
+        public int allocateNextId() {
+            return groups.size() + 1;
+        }
+
+        @Override
+        public void setDelegate(FlowObjectiveStoreDelegate delegate) {
+        }
+
+        @Override
+        public void unsetDelegate(FlowObjectiveStoreDelegate delegate) {
+        }
+
+        @Override
+        public boolean hasDelegate() {
+            return false;
+        }
+    }
+
+    private static class TestCoreService extends CoreServiceAdapter {
+        @Override
+        public ApplicationId registerApplication(String name) {
+            return new DefaultApplicationId(2, name);
+        }
+    }
+
+    // Configuration with a small batch, and a window long enough that the size triggers the flush
+    private static class TestComponentConfigService extends ComponentConfigAdapter {
+        @Override
+        public ConfigProperty getProperty(String componentName, String attribute) {
+            if (!Pipeconf.class.getName().equals(componentName))
+                return null;
+            if (OsgiPropertyConstants.FLOW_BATCH_SIZE.equals(attribute))
+                return ConfigProperty.setProperty(ConfigProperty.defineProperty(attribute,
+                        ConfigProperty.Type.INTEGER, "", "1000"), String.valueOf(BATCH_SIZE));
+            if (OsgiPropertyConstants.FLOW_BATCH_MILLIS.equals(attribute))
+                return ConfigProperty.setProperty(ConfigProperty.defineProperty(attribute,
+                        ConfigProperty.Type.INTEGER, "", "10"), "60000");
+            return null;
+        }
+    }
+
+    private class TestServiceDirectory implements ServiceDirectory {
+        private final Map<Class<?>, Object> services = new ConcurrentHashMap<>();
+
+        TestServiceDirectory() {
+            services.put(FlowRuleService.class, flowRuleService);
+            services.put(GroupService.class, groupService);
+            services.put(DeviceService.class, deviceService);
+            services.put(CoreService.class, new TestCoreService());
+            services.put(ComponentConfigService.class, new TestComponentConfigService());
+        }
+
+        @Override
+        public <T> T get(Class<T> serviceClass) {
+            return serviceClass.cast(services.get(serviceClass));
+        }
+    }
+
+    private class TestPipelinerContext implements PipelinerContext {
+        private final ServiceDirectory directory;
+
+        TestPipelinerContext(ServiceDirectory directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public ServiceDirectory directory() {
+            return directory;
+        }
+
+        @Override
+        public FlowObjectiveStore store() {
+            return flowObjectiveStore;
+        }
+    }
+}